@@ -0,0 +1,119 @@
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
+
+/**
+ * Tests the autosave scheduler against the provider: edits are coalesced into few writes, a
+ * flush writes synchronously, and nothing is written when nothing changed.
+ */
+public class AutosaveSchedulerTest extends ProviderTestCase2<NotePadProvider> {
+
+    // How long to wait for a background save before failing
+    private static final long SAVE_TIMEOUT_MILLIS = AutosaveScheduler.IDLE_MILLIS + 3000;
+
+    // The mocked content resolver for the provider under test
+    private MockContentResolver mMockResolver;
+
+    // The note being edited
+    private Uri mNoteUri;
+
+    // The text that the next snapshot saves, or null if there is nothing to save
+    private volatile String mText;
+
+    public AutosaveSchedulerTest() {
+        super(NotePadProvider.class, NotePad.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockResolver = getMockContentResolver();
+        mNoteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, null);
+    }
+
+    /*
+     * Tests that many edits followed by a flush result in one write of the latest text.
+     */
+    public void testFlushCoalescesEdits() {
+        AutosaveScheduler autosave = newScheduler();
+        for (int i = 0; i < 100; i++) {
+            mText = "Edit " + i;
+            autosave.onEdit();
+        }
+        autosave.flush();
+
+        assertEquals("Edit 99", readNote());
+        assertEquals(100, autosave.getEditCount());
+        assertEquals(1, autosave.getSavesPerformed());
+        assertEquals(99, autosave.getSavesAvoided());
+        autosave.release();
+    }
+
+    /*
+     * Tests that a flush with nothing to save doesn't write.
+     */
+    public void testFlushWithoutChanges() {
+        AutosaveScheduler autosave = newScheduler();
+        autosave.onEdit();
+        mText = null;
+        autosave.flush();
+
+        assertEquals("", readNote());
+        assertEquals(0, autosave.getSavesPerformed());
+        autosave.release();
+    }
+
+    /*
+     * Tests that an edit is saved in the background once editing stops, and that a later
+     * synchronous write is not overtaken by it.
+     */
+    public void testSavesWhenIdle() throws InterruptedException {
+        AutosaveScheduler autosave = newScheduler();
+        mText = "Typed";
+        autosave.onEdit();
+
+        long deadline = SystemClock.uptimeMillis() + SAVE_TIMEOUT_MILLIS;
+        while (autosave.getSavesPerformed() == 0 && SystemClock.uptimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(1, autosave.getSavesPerformed());
+        assertEquals("Typed", readNote());
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Saved");
+        autosave.writeNow(values);
+        assertEquals("Saved", readNote());
+        assertEquals(2, autosave.getSavesPerformed());
+        autosave.release();
+    }
+
+    // Creates a scheduler for the test note that saves mText
+    private AutosaveScheduler newScheduler() {
+        return new AutosaveScheduler(mMockResolver, mNoteUri, () -> {
+            String text = mText;
+            if (text == null) {
+                return null;
+            }
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
+            return values;
+        });
+    }
+
+    // Reads the text of the test note
+    private String readNote() {
+        Cursor cursor = mMockResolver.query(mNoteUri,
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests the database migration chain. A database is built at every historical version, filled
+ * with notes, and upgraded to the current version; the notes must survive, every derived table
+ * must be backfilled, and the result must have the same schema as a newly created database.
+ */
+public class DatabaseMigrationTest extends AndroidTestCase {
+
+    // The number of notes in each upgraded database
+    private static final int NOTE_COUNT = 2000;
+
+    // The most time that the schema steps of an upgrade may take, whatever the number of notes.
+    // The per-note work is done by the backfills, after the upgrade.
+    private static final long UPGRADE_BUDGET_MILLIS = 1000;
+
+    // The schema of the version 2 database, exactly as it shipped. The upgrades start from this
+    // rather than from DatabaseMigrations.createBaseSchema(), so that a change to the latter
+    // shows up as a schema mismatch.
+    private static final String VERSION_2_SCHEMA = "CREATE TABLE notes (_id INTEGER PRIMARY KEY,"
+            + "title TEXT,note TEXT,created INTEGER,modified INTEGER);";
+
+    /*
+     * Upgrades a database from each historical version to the current one.
+     */
+    public void testUpgradeFromEveryVersion() {
+        for (int version = DatabaseMigrations.BASE_VERSION;
+                version < NotePadProvider.DATABASE_VERSION; version++) {
+            SQLiteDatabase db = createDatabase(version);
+            try {
+                insertNotes(db, NOTE_COUNT);
+
+                long start = System.currentTimeMillis();
+                DatabaseMigrations.migrate(db, version, NotePadProvider.DATABASE_VERSION);
+                long elapsed = System.currentTimeMillis() - start;
+                assertTrue("upgrade from version " + version + " took " + elapsed + " ms",
+                        elapsed < UPGRADE_BUDGET_MILLIS);
+
+                DatabaseMigrations.runBackfills(db, DatabaseMigrations.BACKFILL_BATCH_SIZE);
+                assertFalse(DatabaseMigrations.hasPendingBackfills(db));
+
+                assertNotesIntact(db, NOTE_COUNT);
+                assertLogged(db, version);
+                SQLiteDatabase fresh = createDatabase(NotePadProvider.DATABASE_VERSION);
+                assertEquals(schema(fresh), schema(db));
+                fresh.close();
+            } finally {
+                db.close();
+            }
+        }
+    }
+
+    /*
+     * Tests that a backfill that runs while notes are being inserted, updated and deleted ends
+     * up with exactly one index entry per note.
+     */
+    public void testBackfillConcurrentWithWrites() {
+        SQLiteDatabase db = createDatabase(DatabaseMigrations.BASE_VERSION);
+        try {
+            insertNotes(db, NOTE_COUNT);
+            DatabaseMigrations.migrate(db, DatabaseMigrations.BASE_VERSION,
+                    NotePadProvider.DATABASE_VERSION);
+
+            // Writes that happen before the backfill reaches the notes they touch
+            insertNotes(db, 10);
+            db.execSQL("UPDATE notes SET title = 'changed' WHERE _id = " + (NOTE_COUNT - 1));
+            db.execSQL("DELETE FROM notes WHERE _id = " + NOTE_COUNT);
+
+            // Uses a small batch so that the backfill takes many transactions
+            DatabaseMigrations.runBackfills(db, 7);
+
+            long notes = DatabaseUtils.queryNumEntries(db, NotePad.Notes.TABLE_NAME);
+            assertEquals(NOTE_COUNT + 10 - 1, notes);
+            assertEquals(notes, DatabaseUtils.longForQuery(db,
+                    "SELECT count(DISTINCT docid) FROM " + NotePadProvider.FTS_TABLE_NAME, null));
+            assertEquals(notes, DatabaseUtils.queryNumEntries(db, NotePadProvider.FTS_TABLE_NAME));
+            assertEquals(1, DatabaseUtils.longForQuery(db, "SELECT count(*) FROM "
+                    + NotePadProvider.FTS_TABLE_NAME + " WHERE title MATCH 'changed'", null));
+        } finally {
+            db.close();
+        }
+    }
+
+    /*
+     * Tests that a chain that cannot reach the requested version is rejected.
+     */
+    public void testMigrateToUnknownVersion() {
+        SQLiteDatabase db = createDatabase(DatabaseMigrations.BASE_VERSION);
+        try {
+            DatabaseMigrations.migrate(db, DatabaseMigrations.BASE_VERSION,
+                    NotePadProvider.DATABASE_VERSION + 1);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        } finally {
+            db.close();
+        }
+    }
+
+    // Creates an in-memory database at the given version
+    private static SQLiteDatabase createDatabase(int version) {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        db.execSQL(VERSION_2_SCHEMA);
+        DatabaseMigrations.migrate(db, DatabaseMigrations.BASE_VERSION, version);
+        DatabaseMigrations.runBackfills(db, DatabaseMigrations.BACKFILL_BATCH_SIZE);
+        db.setVersion(version);
+        return db;
+    }
+
+    // Inserts notes using only the version 2 columns, which every version has
+    private static void insertNotes(SQLiteDatabase db, int count) {
+        SQLiteStatement insert = db.compileStatement(
+                "INSERT INTO notes (title, note, created, modified) VALUES (?, ?, ?, ?)");
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < count; i++) {
+                insert.bindString(1, "Note" + i);
+                insert.bindString(2, "This is note " + i);
+                insert.bindLong(3, i);
+                insert.bindLong(4, i);
+                insert.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+        }
+    }
+
+    // Checks that the notes inserted by insertNotes() are unchanged, fully indexed and have
+    // their derived columns
+    private static void assertNotesIntact(SQLiteDatabase db, int count) {
+        Cursor c = db.query(NotePad.Notes.TABLE_NAME,
+                new String[] { NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_NOTE,
+                        NotePad.Notes.COLUMN_NAME_CREATE_DATE, NotePad.Notes.COLUMN_NAME_PREVIEW,
+                        NotePad.Notes.COLUMN_NAME_BODY_LENGTH,
+                        NotePad.Notes.COLUMN_NAME_BODY_HASH,
+                        NotePad.Notes.COLUMN_NAME_TITLE_KEY },
+                null, null, null, null, NotePad.Notes._ID);
+        try {
+            assertEquals(count, c.getCount());
+            for (int i = 0; c.moveToNext(); i++) {
+                String note = "This is note " + i;
+                assertEquals("Note" + i, c.getString(0));
+                assertEquals(note, c.getString(1));
+                assertEquals(i, c.getLong(2));
+                assertEquals(note, c.getString(3));
+                assertEquals(note.length(), c.getInt(4));
+                assertEquals(TextDigest.hash64(note), c.getLong(5));
+                assertEquals("note" + i, c.getString(6));
+            }
+        } finally {
+            c.close();
+        }
+
+        assertEquals(count, DatabaseUtils.queryNumEntries(db, NotePadProvider.FTS_TABLE_NAME));
+    }
+
+    // Checks that every step after the given version was logged, with its timings
+    private static void assertLogged(SQLiteDatabase db, int fromVersion) {
+        Cursor c = db.query(DatabaseMigrations.LOG_TABLE_NAME,
+                new String[] { DatabaseMigrations.COLUMN_VERSION,
+                        DatabaseMigrations.COLUMN_MIGRATE_MILLIS,
+                        DatabaseMigrations.COLUMN_BACKFILL_MILLIS,
+                        DatabaseMigrations.COLUMN_BACKFILL_DONE },
+                DatabaseMigrations.COLUMN_VERSION + " > " + fromVersion,
+                null, null, null, DatabaseMigrations.COLUMN_VERSION);
+        try {
+            assertEquals(NotePadProvider.DATABASE_VERSION - fromVersion, c.getCount());
+            for (int version = fromVersion + 1; c.moveToNext(); version++) {
+                assertEquals(version, c.getInt(0));
+                assertTrue(c.getLong(1) >= 0);
+                assertTrue(c.getLong(2) >= 0);
+                assertEquals(1, c.getInt(3));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    // Returns the name and type of every table, index and trigger in the database
+    private static List<String> schema(SQLiteDatabase db) {
+        List<String> schema = new ArrayList<String>();
+        Cursor c = db.rawQuery("SELECT type, name FROM sqlite_master ORDER BY type, name", null);
+        try {
+            while (c.moveToNext()) {
+                schema.add(c.getString(0) + " " + c.getString(1));
+            }
+        } finally {
+            c.close();
+        }
+        return schema;
+    }
+}
@@ -0,0 +1,116 @@
+package com.example.android.notepad;
+
+import android.text.Editable;
+import android.text.SpannableStringBuilder;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+
+/**
+ * Compares editing a note in place with EditHistory against copying the whole text on every
+ * edit and keeping copies of it for undo, on notes of 10K, 100K and 1M characters. Each pass
+ * types, deletes and pastes at random places, then undoes every edit. The results are written
+ * to the log under the tag "NotePadBenchmark".
+ */
+public class EditHistoryBenchmark extends TestCase {
+
+    // The log tag that benchmark results are reported under
+    private static final String TAG = "NotePadBenchmark";
+
+    // The number of edits per pass, and the number of whole copies the copying path keeps
+    private static final int EDITS = 200;
+    private static final int COPIES = 20;
+
+    public void testEdit10KChars() {
+        edit(10 * 1024);
+    }
+
+    public void testEdit100KChars() {
+        edit(100 * 1024);
+    }
+
+    public void testEdit1MChars() {
+        edit(1024 * 1024);
+    }
+
+    /*
+     * Applies the same edits with each path, checks that both end with the same text and that
+     * undoing every edit in place restores the original, and reports the time per edit and per
+     * undo.
+     */
+    private void edit(int length) {
+        StringBuilder builder = new StringBuilder(length + 64);
+        for (int i = 0; builder.length() < length; i++) {
+            builder.append("Line ").append(i).append(" of the edit benchmark note\n");
+        }
+        builder.setLength(length);
+        String original = builder.toString();
+        builder = null;
+
+        // The same random edits for both paths: a position, a number of characters to delete,
+        // and the text to insert
+        Random random = new Random(11);
+        int[] starts = new int[EDITS];
+        int[] removed = new int[EDITS];
+        String[] inserted = new String[EDITS];
+        int current = length;
+        for (int i = 0; i < EDITS; i++) {
+            int kind = random.nextInt(3);
+            removed[i] = kind == 1 ? Math.min(current, 1 + random.nextInt(20)) : 0;
+            starts[i] = random.nextInt(current - removed[i] + 1);
+            inserted[i] = kind == 0 ? "x" : kind == 2 ? "pasted line " + i + "\n" : "";
+            current += inserted[i].length() - removed[i];
+        }
+
+        // In place, with the edits recorded in EditHistory
+        Editable text = new SpannableStringBuilder(original);
+        EditHistory history = new EditHistory();
+        long start = System.nanoTime();
+        for (int i = 0; i < EDITS; i++) {
+            int end = starts[i] + removed[i];
+            String before = text.subSequence(starts[i], end).toString();
+            text.replace(starts[i], end, inserted[i]);
+            history.record(starts[i], before, inserted[i], i * (EditHistory.MERGE_MILLIS + 1));
+        }
+        long historyEditNanos = System.nanoTime() - start;
+        String edited = text.toString();
+
+        start = System.nanoTime();
+        while (history.undo(text) >= 0) {
+        }
+        long historyUndoNanos = System.nanoTime() - start;
+        assertEquals(original, text.toString());
+
+        // Copying the whole text on every edit, with the last copies kept for undo
+        String copy = original;
+        ArrayDeque<String> copies = new ArrayDeque<>();
+        start = System.nanoTime();
+        for (int i = 0; i < EDITS; i++) {
+            copies.push(copy);
+            if (copies.size() > COPIES) {
+                copies.removeLast();
+            }
+            copy = copy.substring(0, starts[i]) + inserted[i]
+                    + copy.substring(starts[i] + removed[i]);
+        }
+        long copyEditNanos = System.nanoTime() - start;
+        assertEquals(edited, copy);
+
+        start = System.nanoTime();
+        int undone = 0;
+        while (!copies.isEmpty()) {
+            copy = copies.pop();
+            undone++;
+        }
+        long copyUndoNanos = System.nanoTime() - start;
+        assertTrue(copy.length() > 0);
+
+        Log.i(TAG, "edit note of " + length + " chars: in place " + historyEditNanos / EDITS
+                + " ns/edit, undo " + historyUndoNanos / EDITS + " ns/edit; copying "
+                + copyEditNanos / EDITS + " ns/edit, undo " + copyUndoNanos / undone
+                + " ns/edit (last " + undone + " edits only)");
+    }
+}
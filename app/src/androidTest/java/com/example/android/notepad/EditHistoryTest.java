@@ -0,0 +1,194 @@
+package com.example.android.notepad;
+
+import android.os.Bundle;
+import android.text.Editable;
+import android.text.SpannableStringBuilder;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+/**
+ * Tests that EditHistory undoes and redoes edits in place, merges runs of typing, drops the
+ * oldest edits past its limits, and only keeps a saved history for the text it was saved with.
+ */
+public class EditHistoryTest extends TestCase {
+
+    private EditHistory mHistory;
+    private Editable mText;
+    private long mNow;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHistory = new EditHistory();
+        mText = new SpannableStringBuilder("hello world");
+        mNow = 1000;
+    }
+
+    public void testUndoRedo() {
+        replace(6, 11, "there");
+        replace(0, 0, "> ");
+        assertEquals("> hello there", mText.toString());
+
+        assertEquals(0, mHistory.undo(mText));
+        assertEquals("hello there", mText.toString());
+        assertEquals(11, mHistory.undo(mText));
+        assertEquals("hello world", mText.toString());
+        assertFalse(mHistory.canUndo());
+        assertEquals(-1, mHistory.undo(mText));
+
+        assertEquals(11, mHistory.redo(mText));
+        assertEquals("hello there", mText.toString());
+        assertEquals(2, mHistory.redo(mText));
+        assertEquals("> hello there", mText.toString());
+        assertFalse(mHistory.canRedo());
+        assertEquals(-1, mHistory.redo(mText));
+        assertTrue(mHistory.isComplete());
+    }
+
+    public void testNewEditDiscardsRedo() {
+        replace(5, 11, "");
+        mHistory.undo(mText);
+        assertTrue(mHistory.canRedo());
+
+        replace(0, 5, "HELLO");
+        assertFalse(mHistory.canRedo());
+        assertEquals("HELLO world", mText.toString());
+        mHistory.undo(mText);
+        assertEquals("hello world", mText.toString());
+        assertFalse(mHistory.canUndo());
+    }
+
+    public void testMergesTyping() {
+        // Typed a character at a time, with a pause before the last word
+        type(11, "!");
+        type(12, " ok");
+        mNow += EditHistory.MERGE_MILLIS + 1;
+        type(15, " bye");
+        assertEquals("hello world! ok bye", mText.toString());
+
+        mHistory.undo(mText);
+        assertEquals("hello world! ok", mText.toString());
+        mHistory.undo(mText);
+        assertEquals("hello world", mText.toString());
+        assertFalse(mHistory.canUndo());
+
+        // A new line starts a new edit
+        mHistory.redo(mText);
+        mHistory.redo(mText);
+        type(19, "\n");
+        type(20, "x");
+        mHistory.undo(mText);
+        assertEquals("hello world! ok bye\n", mText.toString());
+    }
+
+    public void testDropsOldestEdits() {
+        for (int i = 0; i < EditHistory.MAX_EDITS + 10; i++) {
+            replace(0, 0, "\n");
+        }
+        int undone = 0;
+        while (mHistory.undo(mText) >= 0) {
+            undone++;
+        }
+        assertEquals(EditHistory.MAX_EDITS, undone);
+        assertEquals(10, mText.length() - "hello world".length());
+        assertFalse(mHistory.isComplete());
+    }
+
+    public void testKeepsWithinCharLimit() {
+        char[] chunk = new char[EditHistory.MAX_CHARS / 4];
+        Arrays.fill(chunk, 'x');
+        String text = new String(chunk);
+        for (int i = 0; i < 10; i++) {
+            replace(0, 0, text + "\n");
+        }
+        while (mHistory.undo(mText) >= 0) {
+        }
+        assertTrue(mText.length() > "hello world".length());
+        assertTrue(mText.toString().endsWith("hello world"));
+        assertFalse(mHistory.isComplete());
+
+        // An edit over the limit can't be undone and clears the history
+        mHistory.clear();
+        replace(0, 0, "a");
+        replace(0, mText.length(), new String(new char[EditHistory.MAX_CHARS + 1]));
+        assertFalse(mHistory.canUndo());
+        assertFalse(mHistory.isComplete());
+    }
+
+    public void testSaveAndRestore() {
+        replace(6, 11, "there");
+        replace(0, 0, "> ");
+        mHistory.undo(mText);
+        Bundle state = new Bundle();
+        mHistory.save(state, mText);
+
+        EditHistory restored = new EditHistory();
+        restored.restore(state);
+        restored.attach(new SpannableStringBuilder(mText));
+        assertTrue(restored.canUndo());
+        assertTrue(restored.canRedo());
+        assertEquals(2, restored.redo(mText));
+        assertEquals("> hello there", mText.toString());
+        restored.undo(mText);
+        restored.undo(mText);
+        assertEquals("hello world", mText.toString());
+        assertTrue(restored.isComplete());
+
+        // The text changed while the history was saved
+        restored = new EditHistory();
+        restored.restore(state);
+        restored.attach("hello planet");
+        assertFalse(restored.canUndo());
+        assertFalse(restored.canRedo());
+        assertFalse(restored.isComplete());
+    }
+
+    public void testUndoAll() {
+        replace(6, 11, "there");
+        type(11, "!");
+        replace(0, 0, "> ");
+        assertEquals(11, mHistory.undoAll(mText));
+        assertEquals("hello world", mText.toString());
+        assertFalse(mHistory.canUndo());
+        assertEquals(-1, mHistory.undoAll(mText));
+    }
+
+    public void testSavesIncompleteHistoryWithoutEdits() {
+        // The only edit is over the limit, so nothing can be saved, but neither can the
+        // restored history undo back to the text it started from
+        replace(0, mText.length(), new String(new char[EditHistory.MAX_CHARS + 1]));
+        Bundle state = new Bundle();
+        mHistory.save(state, mText);
+        EditHistory restored = new EditHistory();
+        restored.restore(state);
+        restored.attach(new SpannableStringBuilder(mText));
+        assertFalse(restored.canUndo());
+        assertFalse(restored.isComplete());
+
+        // With no edits, the restored history is complete
+        mHistory.clear();
+        state = new Bundle();
+        mHistory.save(state, mText);
+        restored = new EditHistory();
+        restored.restore(state);
+        restored.attach(new SpannableStringBuilder(mText));
+        assertTrue(restored.isComplete());
+    }
+
+    // Replaces [start, end) with text in the editable and records it, as the editor's watcher does
+    private void replace(int start, int end, String text) {
+        String removed = mText.subSequence(start, end).toString();
+        mText.replace(start, end, text);
+        mHistory.record(start, removed, text, mNow);
+    }
+
+    // Types the text a character at a time, 100 ms apart
+    private void type(int start, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            mNow += 100;
+            replace(start + i, start + i, text.substring(i, i + 1));
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.example.android.notepad;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.view.Choreographer;
+
+import java.util.Arrays;
+
+/**
+ * Records the intervals between frames on the main thread while it is running, for the
+ * frame-time benchmarks. An optional action runs at the start of every frame, for example to
+ * scroll a view by a fixed step.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+final class FrameRecorder implements Choreographer.FrameCallback {
+
+    // The most frame intervals recorded
+    private static final int MAX_FRAMES = 4096;
+
+    // A frame interval longer than one and a half 60 Hz frames means a frame was missed
+    private static final long JANK_NANOS = 25000000L;
+
+    private final Runnable mOnFrame;
+    private final long[] mIntervals = new long[MAX_FRAMES];
+    private int mCount;
+    private long mLastFrameNanos;
+    private boolean mRunning;
+
+    /**
+     * @param onFrame Runs on the main thread at the start of every frame, or null.
+     */
+    FrameRecorder(Runnable onFrame) {
+        mOnFrame = onFrame;
+    }
+
+    /**
+     * Starts recording. Must be called on the main thread.
+     */
+    void start() {
+        mRunning = true;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    /**
+     * Stops recording after the current frame. Must be called on the main thread.
+     */
+    void stop() {
+        mRunning = false;
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (mLastFrameNanos != 0 && mCount < mIntervals.length) {
+            mIntervals[mCount++] = frameTimeNanos - mLastFrameNanos;
+        }
+        mLastFrameNanos = frameTimeNanos;
+        if (mRunning) {
+            if (mOnFrame != null) {
+                mOnFrame.run();
+            }
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    /**
+     * Returns the number of intervals recorded so far.
+     */
+    int count() {
+        return mCount;
+    }
+
+    /**
+     * Returns the percentiles of the recorded intervals and the number of frames that were
+     * missed, as one line for the log.
+     */
+    String summary() {
+        long[] sorted = Arrays.copyOf(mIntervals, mCount);
+        if (sorted.length == 0) {
+            return "0 frames";
+        }
+        Arrays.sort(sorted);
+        int janky = 0;
+        for (long interval : sorted) {
+            if (interval > JANK_NANOS) {
+                janky++;
+            }
+        }
+        return sorted.length + " frames, p50 " + micros(sorted, 50) + " us, p90 "
+                + micros(sorted, 90) + " us, p99 " + micros(sorted, 99) + " us, max "
+                + sorted[sorted.length - 1] / 1000 + " us, janky " + janky;
+    }
+
+    // Returns a percentile of sorted frame intervals in microseconds
+    private static long micros(long[] sorted, int percent) {
+        int index = Math.max(0, (int) Math.ceil(sorted.length * percent / 100.0) - 1);
+        return sorted[index] / 1000;
+    }
+}
@@ -0,0 +1,184 @@
+package com.example.android.notepad;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
+import android.test.ActivityInstrumentationTestCase2;
+import android.text.Editable;
+import android.text.style.UpdateAppearance;
+import android.util.Log;
+import android.widget.EditText;
+
+import java.util.Arrays;
+
+/**
+ * Measures the latency of each keystroke in the note editor on a Markdown note of 5k lines, with
+ * syntax highlighting on and off. A character is typed into the middle of the note every frame,
+ * the time the edit takes with all of the editor's text watchers is recorded, along with the
+ * intervals between frames. The note is inserted through the real provider before the editor is
+ * opened, and is deleted again afterwards. The results are written to the log under the tag
+ * "NotePadBenchmark".
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+public class MarkdownHighlightBenchmark extends ActivityInstrumentationTestCase2<NoteEditor> {
+
+    // The log tag that benchmark results are reported under
+    private static final String TAG = "NotePadBenchmark";
+
+    // The number of lines in the note, and the number of keystrokes typed
+    private static final int LINES = 5000;
+    private static final int KEYSTROKES = 600;
+
+    // Typed over and over, starting and ending emphasis, code and lines as it goes
+    private static final String TYPED = "Some **bold** and `code` with a [link](x)\n";
+
+    // How long to wait for the editor to show the note
+    private static final long LOAD_TIMEOUT_MILLIS = 60000;
+
+    private ContentResolver mResolver;
+    private SharedPreferences mPrefs;
+    private Uri mNoteUri;
+
+    public MarkdownHighlightBenchmark() {
+        super(NoteEditor.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Context context = getInstrumentation().getTargetContext();
+        mResolver = context.getContentResolver();
+        mPrefs = context.getSharedPreferences("NotePrefs", Context.MODE_PRIVATE);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mNoteUri != null) {
+            mResolver.delete(mNoteUri, null, null);
+        }
+        mPrefs.edit().remove(NoteEditor.PREF_MARKDOWN_HIGHLIGHT).commit();
+        super.tearDown();
+    }
+
+    public void testType5kLinesHighlighted() throws Throwable {
+        type(true);
+    }
+
+    public void testType5kLinesPlain() throws Throwable {
+        type(false);
+    }
+
+    /*
+     * Opens the Markdown note with highlighting on or off, types into the middle of it a
+     * character a frame, and reports the percentiles of the time each keystroke took and of the
+     * intervals between frames. With highlighting on, checks that the end of the note, far out
+     * of view, was left without highlights.
+     */
+    private void type(boolean highlighted) throws Throwable {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return;
+        }
+        mPrefs.edit().putBoolean(NoteEditor.PREF_MARKDOWN_HIGHLIGHT, highlighted).commit();
+        insertNote("MarkdownBenchmark " + LINES, markdown(LINES));
+
+        setActivityIntent(new Intent(Intent.ACTION_EDIT, mNoteUri));
+        final EditText editor = (EditText) getActivity().findViewById(R.id.note);
+        long deadline = SystemClock.uptimeMillis() + LOAD_TIMEOUT_MILLIS;
+        while (editor.getLineCount() < LINES && SystemClock.uptimeMillis() < deadline) {
+            SystemClock.sleep(50);
+        }
+        assertTrue(editor.getLineCount() >= LINES);
+
+        // Type at the start of the line in the middle of the note, scrolled into view
+        runTestOnUiThread(() -> {
+            int middle = editor.getLayout().getLineStart(editor.getLineCount() / 2);
+            editor.requestFocus();
+            editor.setSelection(middle);
+            editor.bringPointIntoView(middle);
+        });
+        getInstrumentation().waitForIdleSync();
+
+        final long[] keystrokes = new long[KEYSTROKES];
+        final int[] typed = new int[1];
+        final FrameRecorder recorder = new FrameRecorder(() -> {
+            if (typed[0] < KEYSTROKES) {
+                Editable text = editor.getText();
+                int next = typed[0] % TYPED.length();
+                long start = System.nanoTime();
+                text.insert(editor.getSelectionStart(), TYPED.substring(next, next + 1));
+                keystrokes[typed[0]++] = System.nanoTime() - start;
+            }
+        });
+        runTestOnUiThread(recorder::start);
+        while (recorder.count() < KEYSTROKES) {
+            SystemClock.sleep(100);
+        }
+        runTestOnUiThread(recorder::stop);
+        getInstrumentation().waitForIdleSync();
+
+        Editable text = editor.getText();
+        if (highlighted) {
+            int end = text.length();
+            assertTrue(text.getSpans(0, end, UpdateAppearance.class).length > 0);
+            assertEquals(0, text.getSpans(end - 1000, end, UpdateAppearance.class).length);
+        }
+
+        long[] sorted = Arrays.copyOf(keystrokes, typed[0]);
+        Arrays.sort(sorted);
+        Log.i(TAG, "type into Markdown note of " + LINES + " lines, highlighting "
+                + (highlighted ? "on" : "off") + ": " + sorted.length + " keystrokes, p50 "
+                + micros(sorted, 50) + " us, p90 " + micros(sorted, 90) + " us, p99 "
+                + micros(sorted, 99) + " us, max " + sorted[sorted.length - 1] / 1000 + " us; "
+                + recorder.summary());
+    }
+
+    // A note of the given number of lines, with headings, lists, quotes, emphasis, code and
+    // fenced code blocks throughout
+    private static String markdown(int lines) {
+        StringBuilder text = new StringBuilder(lines * 40);
+        for (int i = 0; i < lines; i++) {
+            switch (i % 20) {
+                case 0:
+                    text.append("## Section ").append(i / 20).append('\n');
+                    break;
+                case 5:
+                case 9:
+                    text.append("```\n");
+                    break;
+                case 12:
+                    text.append("> A *quoted* line ").append(i).append('\n');
+                    break;
+                case 15:
+                case 16:
+                    text.append("- Item ").append(i).append(" with ~~old~~ text\n");
+                    break;
+                default:
+                    text.append("Line ").append(i).append(" has **bold**, `code` and a ")
+                            .append("[link](http://example.com)\n");
+                    break;
+            }
+        }
+        return text.toString();
+    }
+
+    // Returns a percentile of sorted durations in microseconds
+    private static long micros(long[] sorted, int percent) {
+        int index = Math.max(0, (int) Math.ceil(sorted.length * percent / 100.0) - 1);
+        return sorted[index] / 1000;
+    }
+
+    // Inserts the note that the benchmark opens, and keeps its URI to delete it afterwards
+    private void insertNote(String title, String text) {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, title);
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
+        mNoteUri = mResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        assertNotNull(mNoteUri);
+    }
+}
@@ -0,0 +1,165 @@
+package com.example.android.notepad;
+
+import android.test.InstrumentationTestCase;
+import android.text.Editable;
+import android.text.Layout;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.EditText;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Tests that the Markdown highlighter keeps its table of lines and code blocks up to date
+ * through random edits, the same as a highlighter that builds it from scratch, and that it
+ * keeps highlights only on the lines in view and the margin around them, the same highlights
+ * that a fresh highlighter puts there, as the text is edited and scrolled.
+ */
+public class MarkdownHighlighterTest extends InstrumentationTestCase {
+
+    // The size that the editors are laid out at
+    private static final int WIDTH = 480;
+    private static final int HEIGHT = 800;
+
+    // The number of random edits, and how often the editor is scrolled between them
+    private static final int EDITS = 400;
+    private static final int SCROLL_EVERY = 10;
+
+    // Inserted at random, so that edits add and remove lines and open and close code blocks
+    private static final String[] SNIPPETS = {
+        "\n", "\n\n", "```\n", "```", "\n```\n", "~~~\n", "# ", "> ", "- ", "**bold**", "*",
+        "`", "x", "[a](b)", "~~gone~~", "some text ",
+    };
+
+    // Whole lines that the notes are made of
+    private static final String[] LINES = {
+        "## Heading", "```", "> A *quoted* line", "- Item with ~~old~~ text",
+        "Some **bold**, `code` and a [link](http://example.com)", "", "---", "Plain text",
+    };
+
+    /*
+     * Applies random inserts, deletes and replacements, some with line breaks and fences, and
+     * scrolls now and then. After each edit, checks the highlighter against a fresh one.
+     */
+    public void testRandomEdits() throws Throwable {
+        runTestOnUiThread(() -> {
+            Random random = new Random(11);
+            EditText editor = newEditor(markdown(random, 300));
+            MarkdownHighlighter highlighter = new MarkdownHighlighter(editor);
+            highlighter.updateViewport();
+            Editable text = editor.getText();
+            assertTrue(text.getSpans(0, text.length(),
+                    MarkdownHighlighter.MarkupSpan.class).length > 0);
+            assertConsistent(editor, highlighter);
+
+            for (int i = 0; i < EDITS; i++) {
+                text = editor.getText();
+                int start = random.nextInt(text.length() + 1);
+                int end = random.nextInt(3) == 0
+                        ? Math.min(text.length(), start + random.nextInt(40)) : start;
+                String snippet = random.nextInt(4) == 0
+                        ? "" : SNIPPETS[random.nextInt(SNIPPETS.length)];
+                text.replace(start, end, snippet);
+
+                if (i % SCROLL_EVERY == 0) {
+                    // As the scroll listener would on a scroll
+                    int range = editor.getLayout().getHeight() - HEIGHT;
+                    editor.scrollTo(0, range > 0 ? random.nextInt(range) : 0);
+                    highlighter.updateViewport();
+                }
+                assertConsistent(editor, highlighter);
+            }
+
+            // The whole text replaced at once starts over
+            editor.setText(markdown(random, 100));
+            layout(editor);
+            highlighter.updateViewport();
+            assertConsistent(editor, highlighter);
+        });
+    }
+
+    /*
+     * Checks that a highlighter has the same lines and code blocks as one built from scratch
+     * for the same text, that its highlights are all within the lines in view and the margin
+     * around them, and that they are the ones that the fresh highlighter puts there.
+     */
+    private void assertConsistent(EditText editor, MarkdownHighlighter highlighter) {
+        Editable text = editor.getText();
+        EditText freshEditor = newEditor(text.toString());
+        freshEditor.scrollTo(0, editor.getScrollY());
+        MarkdownHighlighter fresh = new MarkdownHighlighter(freshEditor);
+        fresh.updateViewport();
+
+        int[] lineStarts = fresh.getLineStartsForTest();
+        assertEquals(Arrays.toString(lineStarts),
+                Arrays.toString(highlighter.getLineStartsForTest()));
+        assertEquals(Arrays.toString(fresh.getInFenceForTest()),
+                Arrays.toString(highlighter.getInFenceForTest()));
+
+        // The lines in view, as the editor lays them out, and the margin around them
+        Layout layout = editor.getLayout();
+        int top = Math.max(0, editor.getScrollY() - editor.getExtendedPaddingTop());
+        int first = lineOf(lineStarts, layout.getLineStart(layout.getLineForVertical(top)));
+        int last = lineOf(lineStarts,
+                layout.getLineEnd(layout.getLineForVertical(top + editor.getHeight())));
+        first = Math.max(0, first - MarkdownHighlighter.MARGIN_LINES);
+        last = Math.min(lineStarts.length - 1, last + MarkdownHighlighter.MARGIN_LINES);
+        int start = lineStarts[first];
+        int end = last + 1 < lineStarts.length ? lineStarts[last + 1] - 1 : text.length();
+
+        ArrayList<String> spans = spans(text);
+        for (MarkdownHighlighter.MarkupSpan span
+                : text.getSpans(0, text.length(), MarkdownHighlighter.MarkupSpan.class)) {
+            assertTrue("span " + text.getSpanStart(span) + "-" + text.getSpanEnd(span)
+                    + " outside " + start + "-" + end,
+                    text.getSpanStart(span) >= start && text.getSpanEnd(span) <= end);
+        }
+        assertEquals(spans(freshEditor.getText()), spans);
+    }
+
+    // Returns the highlights in a text, each as its range and kind, in order
+    private static ArrayList<String> spans(Editable text) {
+        ArrayList<String> spans = new ArrayList<String>();
+        for (MarkdownHighlighter.MarkupSpan span
+                : text.getSpans(0, text.length(), MarkdownHighlighter.MarkupSpan.class)) {
+            spans.add(String.format("%08d-%08d:%d", text.getSpanStart(span),
+                    text.getSpanEnd(span), span.kind));
+        }
+        Collections.sort(spans);
+        return spans;
+    }
+
+    // Returns the line that an offset is on, given the starts of the lines
+    private static int lineOf(int[] lineStarts, int offset) {
+        int line = Arrays.binarySearch(lineStarts, offset);
+        return line >= 0 ? line : -line - 2;
+    }
+
+    // Creates an editor with a text, laid out at the test's size
+    private EditText newEditor(String text) {
+        EditText editor = new EditText(getInstrumentation().getTargetContext());
+        editor.setLayoutParams(new ViewGroup.LayoutParams(WIDTH, HEIGHT));
+        editor.setText(text);
+        layout(editor);
+        return editor;
+    }
+
+    // Measures and lays out a view at the test's size
+    private static void layout(View view) {
+        view.measure(View.MeasureSpec.makeMeasureSpec(WIDTH, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(HEIGHT, View.MeasureSpec.EXACTLY));
+        view.layout(0, 0, WIDTH, HEIGHT);
+    }
+
+    // A note of the given number of lines, picked at random
+    private static String markdown(Random random, int lines) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            text.append(LINES[random.nextInt(LINES.length)]).append('\n');
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,160 @@
+package com.example.android.notepad;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
+import android.test.ActivityInstrumentationTestCase2;
+import android.util.Log;
+import android.widget.EditText;
+
+/**
+ * Measures the frame times of the note editor while it scrolls through notes of 1k, 10k and 50k
+ * lines, drawing a ruled line under each visible line, and the time and memory it takes to open
+ * notes of a few megabytes, which it edits a window at a time. The note is inserted through the
+ * real provider before the editor is opened, and is deleted again afterwards. The results are
+ * written to the log under the tag "NotePadBenchmark".
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+public class NoteEditorScrollBenchmark extends ActivityInstrumentationTestCase2<NoteEditor> {
+
+    // The log tag that benchmark results are reported under
+    private static final String TAG = "NotePadBenchmark";
+
+    // The number of frames scrolled, and the pixels scrolled each frame
+    private static final int FRAMES = 600;
+    private static final int STEP_PIXELS = 40;
+
+    // How long to wait for the editor to show the note
+    private static final long LOAD_TIMEOUT_MILLIS = 60000;
+
+    private ContentResolver mResolver;
+    private Uri mNoteUri;
+
+    public NoteEditorScrollBenchmark() {
+        super(NoteEditor.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResolver = getInstrumentation().getTargetContext().getContentResolver();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mNoteUri != null) {
+            mResolver.delete(mNoteUri, null, null);
+        }
+        super.tearDown();
+    }
+
+    public void testScroll1kLines() throws Throwable {
+        scroll(1000);
+    }
+
+    public void testScroll10kLines() throws Throwable {
+        scroll(10000);
+    }
+
+    public void testScroll50kLines() throws Throwable {
+        scroll(50000);
+    }
+
+    public void testOpen1MChars() {
+        open(1 << 20);
+    }
+
+    public void testOpen4MChars() {
+        open(4 << 20);
+    }
+
+    public void testOpen8MChars() {
+        open(8 << 20);
+    }
+
+    /*
+     * Opens a note of the given number of lines, scrolls its text a fixed step every frame, and
+     * reports the percentiles of the intervals between frames. A note too long to be read whole
+     * is scrolled through its window, which moves along as the edge of it comes into view.
+     */
+    private void scroll(int lines) throws Throwable {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return;
+        }
+        StringBuilder text = new StringBuilder(lines * 40);
+        for (int i = 0; i < lines; i++) {
+            text.append("Line ").append(i).append(" of the scroll benchmark note\n");
+        }
+        boolean large = text.length() >= NoteRecord.LARGE_LENGTH;
+        insertNote("ScrollBenchmark " + lines, text.toString());
+
+        setActivityIntent(new Intent(Intent.ACTION_EDIT, mNoteUri));
+        final EditText editor = (EditText) getActivity().findViewById(R.id.note);
+        long deadline = SystemClock.uptimeMillis() + LOAD_TIMEOUT_MILLIS;
+        while (!(large ? editor.length() > 0 : editor.getLineCount() >= lines)
+                && SystemClock.uptimeMillis() < deadline) {
+            SystemClock.sleep(50);
+        }
+        assertTrue(large ? editor.length() > 0 : editor.getLineCount() >= lines);
+        getInstrumentation().waitForIdleSync();
+
+        final FrameRecorder recorder = new FrameRecorder(() -> editor.scrollBy(0, STEP_PIXELS));
+        runTestOnUiThread(recorder::start);
+        while (recorder.count() < FRAMES) {
+            SystemClock.sleep(100);
+        }
+        runTestOnUiThread(recorder::stop);
+        getInstrumentation().waitForIdleSync();
+
+        Log.i(TAG, "scroll note of " + lines + " lines: " + recorder.summary());
+    }
+
+    /*
+     * Opens a note of the given number of characters and reports the time from starting the
+     * editor to showing the first window of text, and how much the Java heap grew meanwhile.
+     * Both should stay about the same however long the note is.
+     */
+    private void open(int length) {
+        StringBuilder text = new StringBuilder(length + 64);
+        for (int i = 0; text.length() < length; i++) {
+            text.append("Line ").append(i).append(" of the open benchmark note\n");
+        }
+        text.setLength(length);
+        insertNote("OpenBenchmark " + length, text.toString());
+        text = null;
+
+        Runtime runtime = Runtime.getRuntime();
+        runtime.gc();
+        long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+
+        long start = SystemClock.uptimeMillis();
+        setActivityIntent(new Intent(Intent.ACTION_EDIT, mNoteUri));
+        EditText editor = (EditText) getActivity().findViewById(R.id.note);
+        long deadline = start + LOAD_TIMEOUT_MILLIS;
+        while (editor.length() == 0 && SystemClock.uptimeMillis() < deadline) {
+            SystemClock.sleep(5);
+        }
+        long millis = SystemClock.uptimeMillis() - start;
+        assertTrue(editor.length() > 0);
+        assertTrue(editor.length() < length);
+        getInstrumentation().waitForIdleSync();
+
+        runtime.gc();
+        long heapAfter = runtime.totalMemory() - runtime.freeMemory();
+        Log.i(TAG, "open note of " + length + " chars: " + millis + " ms, heap +"
+                + (heapAfter - heapBefore) / 1024 + " KB, window " + editor.length() + " chars");
+    }
+
+    // Inserts the note that the benchmark opens, and keeps its URI to delete it afterwards
+    private void insertNote(String title, String text) {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, title);
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
+        mNoteUri = mResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        assertNotNull(mNoteUri);
+    }
+}
@@ -0,0 +1,629 @@
+package com.example.android.notepad;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.CrossProcessCursor;
+import android.database.Cursor;
+import android.database.CursorWindow;
+import android.database.CursorWrapper;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measures the cost of the provider's query paths on generated data sets. The results are
+ * written to the log under the tag "NotePadBenchmark"; the assertions only check that each
+ * path returned something, so that the numbers are not measuring an empty result.
+ */
+public class NotePadProviderBenchmark extends ProviderTestCase2<NotePadProvider> {
+
+    // The log tag that benchmark results are reported under
+    private static final String TAG = "NotePadBenchmark";
+
+    // The note counts that each benchmark is run at
+    private static final int[] NOTE_COUNTS = { 1000, 10000, 100000 };
+
+    // The number of times each query is repeated to get a stable average
+    private static final int ITERATIONS = 20;
+
+    // Words used to generate note titles and bodies. The search terms below are prefixes of some
+    // of them, so both query paths have results.
+    private static final String[] WORDS = {
+        "meeting", "agenda", "project", "release", "android", "database", "review", "budget",
+        "holiday", "travel", "recipe", "grocery", "invoice", "contract", "design", "sprint",
+        "report", "summary", "question", "answer", "reminder", "birthday", "weekend", "morning"
+    };
+
+    // The terms that are searched for, as a user would type them
+    private static final String[] SEARCH_TERMS = { "meet", "budg", "rev", "holiday" };
+
+    // The number of large notes, and the words in each, about 300 KB of text per note
+    private static final int LARGE_NOTE_COUNT = 200;
+    private static final int LARGE_NOTE_WORDS = 40000;
+
+    // The number of notes imported by the import benchmark, and the number imported one insert
+    // at a time for comparison, which is much slower
+    private static final int IMPORT_COUNT = 10000;
+    private static final int SINGLE_INSERT_COUNT = 1000;
+
+    // The concurrency benchmark: the number of reader threads, the notes in the list, and the
+    // number of large notes the writer saves while the readers query
+    private static final int READER_THREADS = 4;
+    private static final int CONCURRENT_NOTE_COUNT = 2000;
+    private static final int CONCURRENT_SAVES = 50;
+
+    // The chunked storage benchmark: the sizes of the notes edited, in words, about 1 MB and
+    // 5 MB of text, and the number of small edits saved to each
+    private static final int[] EDITED_NOTE_WORDS = { 130000, 650000 };
+    private static final int SMALL_EDITS = 20;
+
+    // The compression benchmark corpus: the numbers of short notes, longer notes and pasted
+    // logs, and the number of notes opened to time reading a note
+    private static final int CORPUS_SHORT_NOTES = 2000;
+    private static final int CORPUS_LONG_NOTES = 300;
+    private static final int CORPUS_LOG_NOTES = 100;
+    private static final int OPENED_NOTES = 200;
+
+    // The mocked content resolver for the provider under test
+    private MockContentResolver mMockResolver;
+
+    // The database underlying the provider under test
+    private SQLiteDatabase mDb;
+
+    public NotePadProviderBenchmark() {
+        super(NotePadProvider.class, NotePad.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockResolver = getMockContentResolver();
+        mDb = getProvider().getOpenHelperForTest().getWritableDatabase();
+    }
+
+    /*
+     * Compares the full-text search URI with the LIKE '%term%' query that NotesList used to run
+     * against the notes URI, at each of the note counts.
+     */
+    public void testSearchFullTextVersusLike() {
+        for (int count : NOTE_COUNTS) {
+            mDb.delete(NotePad.Notes.TABLE_NAME, null, null);
+            insertNotes(count, 40);
+
+            long likeMillis = 0;
+            long ftsMillis = 0;
+            for (String term : SEARCH_TERMS) {
+                likeMillis += timeQuery(NotePad.Notes.CONTENT_URI,
+                        NotePad.Notes.COLUMN_NAME_TITLE + " LIKE ? OR "
+                                + NotePad.Notes.COLUMN_NAME_NOTE + " LIKE ?",
+                        new String[] { "%" + term + "%", "%" + term + "%" });
+                ftsMillis += timeQuery(NotePad.Notes.SEARCH_URI.buildUpon()
+                        .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, term)
+                        .build(), null, null);
+            }
+
+            Log.i(TAG, "search, " + count + " notes: LIKE "
+                    + perQuery(likeMillis) + " ms/query, FTS " + perQuery(ftsMillis) + " ms/query");
+        }
+    }
+
+    /*
+     * Compares scrolling through a list of large notes with the projection that NotesList used
+     * to use, which included the note body, and with its current projection, which does not.
+     * Reports how many times the cursor window had to be filled, how many rows each fill held,
+     * and how much text was copied out of the database.
+     */
+    public void testListProjectionWindowFills() {
+        mDb.delete(NotePad.Notes.TABLE_NAME, null, null);
+        insertNotes(LARGE_NOTE_COUNT, LARGE_NOTE_WORDS);
+
+        scanWindows("with note", new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_NOTE
+        });
+        scanWindows("list projection", new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+        });
+    }
+
+    /*
+     * Reads every row and column of the notes URI with the given projection, as a list adapter
+     * binding every row would, and logs the cursor window fills it took.
+     */
+    private void scanWindows(String label, String[] projection) {
+        long start = SystemClock.elapsedRealtime();
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, projection, null, null,
+                NotePad.Notes.DEFAULT_SORT_ORDER);
+        assertEquals(LARGE_NOTE_COUNT, cursor.getCount());
+
+        int fills = 0;
+        int windowStart = -1;
+        long chars = 0;
+        while (cursor.moveToNext()) {
+            // The window is refilled, starting at a new position, when the cursor moves past it
+            CursorWindow window = window(cursor);
+            if (window != null && window.getStartPosition() != windowStart) {
+                windowStart = window.getStartPosition();
+                fills++;
+            }
+            for (int i = 0; i < projection.length; i++) {
+                String value = cursor.getString(i);
+                chars += value == null ? 0 : value.length();
+            }
+        }
+        cursor.close();
+
+        Log.i(TAG, "list scan " + label + ", " + LARGE_NOTE_COUNT + " notes: " + fills
+                + " window fills, " + (fills == 0 ? 0 : LARGE_NOTE_COUNT / fills) + " rows/fill, "
+                + (chars * 2 / 1024) + " KB of strings, "
+                + (SystemClock.elapsedRealtime() - start) + " ms");
+    }
+
+    // Returns the window of a cursor, or of the first cursor it wraps that has one
+    private static CursorWindow window(Cursor cursor) {
+        while (true) {
+            CursorWindow window = cursor instanceof CrossProcessCursor
+                    ? ((CrossProcessCursor) cursor).getWindow() : null;
+            if (window != null || !(cursor instanceof CursorWrapper)) {
+                return window;
+            }
+            cursor = ((CursorWrapper) cursor).getWrappedCursor();
+        }
+    }
+
+    /*
+     * Compares importing notes with one insert() per note, which is one transaction each, with
+     * bulkInsert() and applyBatch(), which import all of them in one transaction.
+     */
+    public void testImport() throws Exception {
+        ContentValues[] notes = generateNotes(IMPORT_COUNT);
+
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < SINGLE_INSERT_COUNT; i++) {
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, notes[i]);
+        }
+        long singleMillis = SystemClock.elapsedRealtime() - start;
+        assertEquals(SINGLE_INSERT_COUNT,
+                DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME));
+        mDb.delete(NotePad.Notes.TABLE_NAME, null, null);
+
+        start = SystemClock.elapsedRealtime();
+        mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, notes);
+        long bulkMillis = SystemClock.elapsedRealtime() - start;
+        assertEquals(IMPORT_COUNT, DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME));
+        mDb.delete(NotePad.Notes.TABLE_NAME, null, null);
+
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>(IMPORT_COUNT);
+        for (ContentValues note : notes) {
+            operations.add(ContentProviderOperation.newInsert(NotePad.Notes.CONTENT_URI)
+                    .withValues(note)
+                    .build());
+        }
+        start = SystemClock.elapsedRealtime();
+        mMockResolver.applyBatch(NotePad.AUTHORITY, operations);
+        long batchMillis = SystemClock.elapsedRealtime() - start;
+        assertEquals(IMPORT_COUNT, DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME));
+
+        Log.i(TAG, "import: insert " + SINGLE_INSERT_COUNT + " notes " + singleMillis
+                + " ms (" + (singleMillis * IMPORT_COUNT / SINGLE_INSERT_COUNT) + " ms per "
+                + IMPORT_COUNT + "), bulkInsert " + IMPORT_COUNT + " notes " + bulkMillis
+                + " ms, applyBatch " + IMPORT_COUNT + " notes " + batchMillis + " ms");
+    }
+
+    /*
+     * Measures the latency of list queries made by several reader threads while a writer saves
+     * large notes, with write-ahead logging and with a rollback journal. With a rollback journal
+     * each save blocks every query until it commits.
+     */
+    public void testConcurrentReadsDuringWrites() throws Exception {
+        for (boolean writeAheadLogging : new boolean[] { true, false }) {
+            String name = "benchmark_" + (writeAheadLogging ? "wal" : "rollback") + ".db";
+            getMockContext().deleteDatabase(name);
+            NotePadProvider.DatabaseHelper helper = new NotePadProvider.DatabaseHelper(
+                    getMockContext(), name, writeAheadLogging,
+                    NotePadProvider.WAL_AUTOCHECKPOINT_PAGES,
+                    NotePadProvider.IDLE_CHECKPOINT_DELAY_MILLIS);
+            try {
+                SQLiteDatabase db = helper.getWritableDatabase();
+                insertNotes(db, CONCURRENT_NOTE_COUNT, 40);
+                long[] micros = readWhileWriting(db);
+                Arrays.sort(micros);
+                assertTrue(micros.length > 0);
+                Log.i(TAG, "concurrent reads, " + (writeAheadLogging ? "WAL" : "rollback journal")
+                        + ", " + READER_THREADS + " readers, " + CONCURRENT_SAVES
+                        + " saves: n=" + micros.length
+                        + " p50=" + micros[micros.length / 2] / 1000.0
+                        + " p99=" + micros[micros.length * 99 / 100] / 1000.0
+                        + " max=" + micros[micros.length - 1] / 1000.0 + " ms");
+            } finally {
+                helper.close();
+                getMockContext().deleteDatabase(name);
+            }
+        }
+    }
+
+    /*
+     * Measures how many bytes saving a small edit writes, for a large note stored in chunks and
+     * for the same note stored in the note column, as every note was before. The bytes written
+     * are the pages that each save adds to the write-ahead log. The full-text index of a chunked
+     * note is not updated by its saves, so reindexing it once after the edits is reported
+     * separately.
+     */
+    public void testChunkedSaveBytesWritten() {
+        long pageSize = mDb.getPageSize();
+        for (int words : EDITED_NOTE_WORDS) {
+            mDb.delete(NotePad.Notes.TABLE_NAME, null, null);
+            String text = words(new Random(words), words);
+
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
+            long chunkedId = ContentUris.parseId(
+                    mMockResolver.insert(NotePad.Notes.CONTENT_URI, values));
+            NotePadProvider.putBodyDigest(values);
+            long inlineId = mDb.insert(NotePad.Notes.TABLE_NAME, null, values);
+
+            // Starts from an empty log
+            checkpointLog(mDb);
+
+            Random random = new Random(SMALL_EDITS);
+            long chunkedBytes = 0;
+            long inlineBytes = 0;
+            for (int i = 0; i < SMALL_EDITS; i++) {
+                // Inserts a word somewhere in the note
+                int at = random.nextInt(text.length());
+                text = text.substring(0, at) + WORDS[random.nextInt(WORDS.length)] + " "
+                        + text.substring(at);
+                values = new ContentValues();
+                values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
+
+                mMockResolver.update(ContentUris.withAppendedId(
+                        NotePad.Notes.CONTENT_ID_URI_BASE, chunkedId), values, null, null);
+                chunkedBytes += checkpointLog(mDb) * pageSize;
+
+                NotePadProvider.putBodyDigest(values);
+                mDb.update(NotePad.Notes.TABLE_NAME, values,
+                        NotePad.Notes._ID + " = " + inlineId, null);
+                inlineBytes += checkpointLog(mDb) * pageSize;
+            }
+
+            long start = SystemClock.elapsedRealtime();
+            NoteChunks.reindexStale(mDb);
+            long reindexMillis = SystemClock.elapsedRealtime() - start;
+            long reindexBytes = checkpointLog(mDb) * pageSize;
+
+            Log.i(TAG, "save small edit, " + (text.length() / 1024) + " K chars: chunked "
+                    + (chunkedBytes / SMALL_EDITS / 1024) + " KB/save, note column "
+                    + (inlineBytes / SMALL_EDITS / 1024) + " KB/save; reindex after "
+                    + SMALL_EDITS + " saves " + (reindexBytes / 1024) + " KB, "
+                    + reindexMillis + " ms");
+        }
+    }
+
+    /*
+     * Measures the space that a corpus of short notes, longer notes and pasted logs takes, and
+     * the time it takes to list the notes and to open them, with compression off, with the
+     * longer notes compressed, and with a dictionary trained for the short notes as well. The
+     * space is the pages that the database uses, full-text index included, once the corpus has
+     * been inserted, indexed and checkpointed.
+     */
+    public void testCompressionCorpus() {
+        NotePadProvider.DatabaseHelper helper = getProvider().getOpenHelperForTest();
+        ContentValues[] corpus = corpus();
+        String[] listProjection = {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+        };
+        String[] editorProjection = {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_NOTE
+        };
+
+        String[] modes = { "off", "deflate", "deflate+dictionary" };
+        for (int mode = 0; mode < modes.length; mode++) {
+            helper.setCompression(mode == 0 ? Integer.MAX_VALUE
+                    : NoteCompression.DEFAULT_MIN_LENGTH, mode == 2);
+            mDb.delete(NotePad.Notes.TABLE_NAME, null, null);
+            long start = SystemClock.elapsedRealtime();
+            mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, corpus);
+            if (mode == 2) {
+                // The dictionary is trained from the corpus, which is then inserted again
+                assertNotNull(helper.trainDictionary());
+                mDb.delete(NotePad.Notes.TABLE_NAME, null, null);
+                start = SystemClock.elapsedRealtime();
+                mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, corpus);
+            }
+            long insertMillis = SystemClock.elapsedRealtime() - start;
+            NoteChunks.reindexStale(mDb);
+            mDb.execSQL("VACUUM");
+            checkpointLog(mDb);
+            long bytes = (DatabaseUtils.longForQuery(mDb, "PRAGMA page_count", null)
+                    - DatabaseUtils.longForQuery(mDb, "PRAGMA freelist_count", null))
+                    * mDb.getPageSize();
+
+            // Lists every note, as NotesList does, without reading any text
+            start = SystemClock.elapsedRealtime();
+            Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, listProjection, null,
+                    null, NotePad.Notes.DEFAULT_SORT_ORDER);
+            assertEquals(corpus.length, cursor.getCount());
+            while (cursor.moveToNext()) {
+                cursor.getString(1);
+            }
+            cursor.close();
+            long listMillis = SystemClock.elapsedRealtime() - start;
+
+            // Opens notes spread over the corpus, as NoteEditor does, reading their text
+            long firstId = DatabaseUtils.longForQuery(mDb, "SELECT min(" + NotePad.Notes._ID
+                    + ") FROM " + NotePad.Notes.TABLE_NAME, null);
+            long chars = 0;
+            start = SystemClock.elapsedRealtime();
+            for (int i = 0; i < OPENED_NOTES; i++) {
+                Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+                        firstId + (long) i * corpus.length / OPENED_NOTES);
+                cursor = mMockResolver.query(noteUri, editorProjection, null, null, null);
+                assertTrue(cursor.moveToFirst());
+                chars += cursor.getString(2).length();
+                cursor.close();
+            }
+            long openMicros = (SystemClock.elapsedRealtime() - start) * 1000 / OPENED_NOTES;
+            assertTrue(chars > 0);
+
+            Log.i(TAG, "compression " + modes[mode] + ", " + corpus.length + " notes: "
+                    + (bytes / 1024) + " KB on disk, bulkInsert " + insertMillis + " ms, list "
+                    + listMillis + " ms, open " + openMicros + " us/note");
+        }
+    }
+
+    /*
+     * Compares the two ways NoteEditor can get a note on its first frame: reading it through
+     * the provider, which is what it waits for when the note wasn't prefetched, and looking it
+     * up in the note cache, which is what a prefetch on touch-down leaves it with. Reports the
+     * time per note for short, long and very long notes.
+     */
+    public void testOpenFromCache() {
+        NoteCache cache = new NoteCache(Long.MAX_VALUE);
+        int[] noteWords = { 100, 4000, LARGE_NOTE_WORDS };
+        for (int words : noteWords) {
+            mDb.delete(NotePad.Notes.TABLE_NAME, null, null);
+            insertNotes(ITERATIONS, words);
+            long firstId = DatabaseUtils.longForQuery(mDb, "SELECT min(" + NotePad.Notes._ID
+                    + ") FROM " + NotePad.Notes.TABLE_NAME, null);
+
+            long start = SystemClock.elapsedRealtime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                Cursor cursor = mMockResolver.query(ContentUris.withAppendedId(
+                        NotePad.Notes.CONTENT_ID_URI_BASE, firstId + i), NoteRecord.PROJECTION,
+                        null, null, null);
+                assertTrue(cursor.moveToFirst());
+                assertTrue(cache.put(NoteRecord.fromCursor(cursor), cache.generation()));
+                cursor.close();
+            }
+            long queryMicros = (SystemClock.elapsedRealtime() - start) * 1000 / ITERATIONS;
+
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                assertNotNull(cache.get(firstId + i));
+            }
+            long cacheMicros = (System.nanoTime() - start) / 1000 / ITERATIONS;
+
+            Log.i(TAG, "open " + words + "-word note: query " + queryMicros + " us, cache "
+                    + cacheMicros + " us");
+        }
+    }
+
+    /*
+     * Generates the compression benchmark corpus: short notes of a few sentences, longer notes
+     * of a few thousand characters, and pasted logs of about 20K characters each.
+     */
+    private static ContentValues[] corpus() {
+        Random random = new Random(CORPUS_SHORT_NOTES);
+        int count = CORPUS_SHORT_NOTES + CORPUS_LONG_NOTES + CORPUS_LOG_NOTES;
+        ContentValues[] notes = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            String text;
+            if (i < CORPUS_SHORT_NOTES) {
+                text = words(random, 10 + random.nextInt(60));
+            } else if (i < CORPUS_SHORT_NOTES + CORPUS_LONG_NOTES) {
+                text = words(random, 500 + random.nextInt(500));
+            } else {
+                StringBuilder log = new StringBuilder();
+                while (log.length() < 20 * 1024) {
+                    log.append("2016-03-14 09:").append(10 + random.nextInt(50)).append(':')
+                            .append(10 + random.nextInt(50)).append(" I/NoteSync(")
+                            .append(1000 + random.nextInt(9000)).append("): ")
+                            .append(words(random, 3 + random.nextInt(8))).append(" in ")
+                            .append(random.nextInt(500)).append(" ms\n");
+                }
+                text = log.toString();
+            }
+            notes[i] = new ContentValues();
+            notes[i].put(NotePad.Notes.COLUMN_NAME_TITLE, words(random, 3));
+            notes[i].put(NotePad.Notes.COLUMN_NAME_NOTE, text);
+        }
+        return notes;
+    }
+
+    /*
+     * Checkpoints the write-ahead log and returns the number of pages that were in it, which
+     * are the pages written since the previous checkpoint: once every page has been
+     * checkpointed, the next write starts the log again from its beginning.
+     */
+    private static long checkpointLog(SQLiteDatabase db) {
+        Cursor c = db.rawQuery("PRAGMA wal_checkpoint", null);
+        try {
+            assertTrue(c.moveToFirst());
+            return c.getLong(1);
+        } finally {
+            c.close();
+        }
+    }
+
+    /*
+     * Saves large notes on this thread while the reader threads query the first page of the
+     * list, and returns the latency of every query, in microseconds.
+     */
+    private static long[] readWhileWriting(final SQLiteDatabase db) throws InterruptedException {
+        final String[] projection = {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+        };
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+
+        Thread[] readers = new Thread[READER_THREADS];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread() {
+                @Override
+                public void run() {
+                    while (writing.get()) {
+                        long start = System.nanoTime();
+                        Cursor cursor = db.query(NotePad.Notes.TABLE_NAME, projection, null, null,
+                                null, null, NotePad.Notes.PAGE_SORT_ORDER, "50");
+                        while (cursor.moveToNext()) {
+                            cursor.getString(1);
+                        }
+                        cursor.close();
+                        latencies.add((System.nanoTime() - start) / 1000);
+                    }
+                }
+            };
+            readers[i].start();
+        }
+
+        // Each save rewrites a note of about 300 KB, as the editor does
+        Random random = new Random(CONCURRENT_SAVES);
+        for (int i = 0; i < CONCURRENT_SAVES; i++) {
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, words(random, LARGE_NOTE_WORDS));
+            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, System.currentTimeMillis());
+            NotePadProvider.putBodyDigest(values);
+            db.update(NotePad.Notes.TABLE_NAME, values, NotePad.Notes._ID + " = " + (i + 1),
+                    null);
+        }
+
+        writing.set(false);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        long[] micros = new long[latencies.size()];
+        for (int i = 0; i < micros.length; i++) {
+            micros[i] = latencies.get(i);
+        }
+        return micros;
+    }
+
+    // Generates the values of notes to import, 40 words each
+    private static ContentValues[] generateNotes(int count) {
+        Random random = new Random(count);
+        ContentValues[] notes = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            notes[i] = new ContentValues();
+            notes[i].put(NotePad.Notes.COLUMN_NAME_TITLE, words(random, 3));
+            notes[i].put(NotePad.Notes.COLUMN_NAME_NOTE, words(random, 40));
+        }
+        return notes;
+    }
+
+    /*
+     * Inserts generated notes straight into the database, in one transaction, with the given
+     * number of words in each body.
+     */
+    private void insertNotes(int count, int wordsPerNote) {
+        insertNotes(mDb, count, wordsPerNote);
+    }
+
+    /*
+     * Inserts generated notes straight into the given database.
+     */
+    private static void insertNotes(SQLiteDatabase db, int count, int wordsPerNote) {
+        Random random = new Random(count);
+        long now = System.currentTimeMillis();
+        SQLiteStatement insert = db.compileStatement("INSERT INTO " + NotePad.Notes.TABLE_NAME
+                + " (" + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE
+                + ", " + NotePad.Notes.COLUMN_NAME_CREATE_DATE + ", "
+                + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ", "
+                + NotePad.Notes.COLUMN_NAME_PREVIEW + ", " + NotePad.Notes.COLUMN_NAME_BODY_LENGTH
+                + ", " + NotePad.Notes.COLUMN_NAME_BODY_HASH + ", "
+                + NotePad.Notes.COLUMN_NAME_TITLE_KEY + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < count; i++) {
+                String note = words(random, wordsPerNote);
+                String title = words(random, 3);
+                insert.bindString(1, title);
+                insert.bindString(2, note);
+                insert.bindLong(3, now - i);
+                insert.bindLong(4, now - i);
+                insert.bindString(5, TextDigest.preview(note, NotePad.Notes.PREVIEW_LENGTH));
+                insert.bindLong(6, note.length());
+                insert.bindLong(7, TextDigest.hash64(note));
+                insert.bindString(8, TextDigest.titleKey(title));
+                insert.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+        }
+    }
+
+    // Builds a string of random words from the word list
+    private static String words(Random random, int count) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                text.append(' ');
+            }
+            text.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return text.toString();
+    }
+
+    /*
+     * Runs a query ITERATIONS times, reading every row, and returns the total elapsed time.
+     */
+    private long timeQuery(Uri uri, String selection, String[] selectionArgs) {
+        final String[] projection = {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+        };
+
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            Cursor cursor = mMockResolver.query(uri, projection, selection, selectionArgs, null);
+            assertTrue(cursor.getCount() > 0);
+            while (cursor.moveToNext()) {
+                cursor.getString(1);
+            }
+            cursor.close();
+        }
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    // Converts a total for all search terms and iterations to an average per query
+    private static long perQuery(long totalMillis) {
+        return totalMillis / (ITERATIONS * SEARCH_TERMS.length);
+    }
+}
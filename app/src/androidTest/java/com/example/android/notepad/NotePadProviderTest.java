@@ -16,12 +16,18 @@
 
 package com.example.android.notepad;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 import android.os.ParcelFileDescriptor;
 import android.test.ProviderTestCase2;
 import android.test.mock.MockContentResolver;
@@ -31,8 +37,12 @@ import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.Random;
 
 /*
  */
@@ -169,6 +179,14 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
         mimeType = mMockResolver.getType(NotePad.Notes.LIVE_FOLDER_URI);
         assertEquals(NotePad.Notes.CONTENT_TYPE, mimeType);
 
+        // Tests the MIME type for the search URI.
+        mimeType = mMockResolver.getType(NotePad.Notes.SEARCH_URI);
+        assertEquals(NotePad.Notes.CONTENT_TYPE, mimeType);
+
+        // Tests the MIME type for the query plans URI.
+        mimeType = mMockResolver.getType(NotePad.QueryPlans.CONTENT_URI);
+        assertEquals(NotePad.QueryPlans.CONTENT_TYPE, mimeType);
+
         // Creates a URI with a pattern for note ids. The id doesn't have to exist.
         Uri noteIdUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 1);
 
@@ -685,6 +703,110 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
         }
     }
 
+    /*
+     * Tests inserting many notes at once.
+     */
+    public void testBulkInsert() {
+        ContentValues[] values = new ContentValues[TEST_NOTES.length];
+        for (int index = 0; index < TEST_NOTES.length; index++) {
+            values[index] = TEST_NOTES[index].getContentValues();
+        }
+
+        // Bulk insert subtest 1.
+        // Every note is inserted, with the same derived columns as a single insert gives it.
+        assertEquals(TEST_NOTES.length, mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, values));
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE, NotePad.Notes.COLUMN_NAME_PREVIEW,
+                        NotePad.Notes.COLUMN_NAME_TITLE_KEY },
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Note3" }, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("This is note 3", cursor.getString(0));
+        assertEquals("This is note 3", cursor.getString(1));
+        assertEquals("note3", cursor.getString(2));
+        cursor.close();
+
+        // The notes are in the full-text index
+        cursor = mMockResolver.query(searchUri("note"), null, null, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+        cursor.close();
+
+        // Bulk insert subtest 2.
+        // A note with its own _ID is inserted too, but if any note fails, none are inserted.
+        ContentValues withId = new NoteInfo("With id", "").getContentValues();
+        withId.put(NotePad.Notes._ID, 1000);
+        ContentValues duplicate = new ContentValues(withId);
+        try {
+            mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, new ContentValues[] {
+                    new NoteInfo("Before", "").getContentValues(), withId, duplicate });
+            fail("Expected SQLException");
+        } catch (SQLException e) {
+            // expected
+        }
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+        cursor.close();
+
+        assertEquals(1, mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI,
+                new ContentValues[] { withId }));
+        cursor = mMockResolver.query(
+                ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 1000),
+                null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests applying a batch of operations, which either all take effect or none do.
+     */
+    public void testApplyBatch() throws Exception {
+        insertData();
+        Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 1);
+
+        // Batch subtest 1.
+        // An insert, an update and a delete in one batch.
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(NotePad.Notes.CONTENT_URI)
+                .withValues(new NoteInfo("Batch", "Inserted in a batch").getContentValues())
+                .build());
+        operations.add(ContentProviderOperation.newUpdate(noteUri)
+                .withValue(NotePad.Notes.COLUMN_NAME_TITLE, "Updated in a batch")
+                .build());
+        operations.add(ContentProviderOperation.newDelete(NotePad.Notes.CONTENT_URI)
+                .withSelection(NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Note9" })
+                .build());
+
+        ContentProviderResult[] results = mMockResolver.applyBatch(NotePad.AUTHORITY, operations);
+        assertEquals(3, results.length);
+        assertNotNull(results[0].uri);
+        assertEquals(1, results[1].count.intValue());
+        assertEquals(1, results[2].count.intValue());
+
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+        cursor.close();
+        cursor = mMockResolver.query(noteUri, new String[] { NotePad.Notes.COLUMN_NAME_TITLE_KEY },
+                null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("updated in a batch", cursor.getString(0));
+        cursor.close();
+
+        // Batch subtest 2.
+        // An operation that fails rolls back the ones before it.
+        operations.clear();
+        operations.add(ContentProviderOperation.newDelete(NotePad.Notes.CONTENT_URI).build());
+        operations.add(ContentProviderOperation.newInsert(INVALID_URI).build());
+        try {
+            mMockResolver.applyBatch(NotePad.AUTHORITY, operations);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+        cursor.close();
+    }
+
     /*
      * Tests deletions from the data model.
      */
@@ -790,6 +912,884 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
 
     }
 
+    /*
+     * Tests full-text searches. The full-text index is maintained by triggers, so searches must
+     * see inserts, updates and deletes done through the provider as well as rows written directly
+     * into the database.
+     */
+    public void testSearch() {
+        // Defines a projection that includes the snippet column
+        final String[] SEARCH_PROJECTION = {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_SNIPPET
+        };
+
+        // Inserts the test data directly into the database, then two notes through the provider.
+        insertData();
+        Uri meetingUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Meeting", "Agenda for Monday").getContentValues());
+        Uri groceriesUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Groceries", "Buy milk before the meeting").getContentValues());
+
+        // Search subtest 1.
+        // A word prefix matches both notes, and the note whose title matches ranks first.
+        Cursor cursor = mMockResolver.query(searchUri("meet"), SEARCH_PROJECTION, null, null, null);
+        assertEquals(2, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(ContentUris.parseId(meetingUri), cursor.getLong(0));
+        assertTrue(cursor.moveToNext());
+        assertEquals(ContentUris.parseId(groceriesUri), cursor.getLong(0));
+        assertTrue(cursor.getString(2).contains("meeting"));
+        cursor.close();
+
+        // Search subtest 2.
+        // Every term has to match, and rows inserted directly into the database are indexed.
+        cursor = mMockResolver.query(searchUri("note 5"), SEARCH_PROJECTION, null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Note5", cursor.getString(1));
+        cursor.close();
+
+        // Search subtest 3.
+        // Updates and deletes are reflected in the index.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Buy milk");
+        mMockResolver.update(groceriesUri, values, null, null);
+        mMockResolver.delete(meetingUri, null, null);
+        cursor = mMockResolver.query(searchUri("meet"), SEARCH_PROJECTION, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        // Search subtest 4.
+        // Text without spaces between words falls back to a substring match.
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("会议记录", "今天的会议很长").getContentValues());
+        cursor = mMockResolver.query(searchUri("会议"), SEARCH_PROJECTION, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        // Search subtest 5.
+        // A selection narrows the search, as NotesList does when the user extends the search
+        // term, and an empty ID list matches nothing.
+        cursor = mMockResolver.query(searchUri("note"), SEARCH_PROJECTION,
+                NotePad.Notes._ID + " IN (1,2,3)", null, null);
+        assertEquals(3, cursor.getCount());
+        cursor.close();
+        cursor = mMockResolver.query(searchUri("会议"), SEARCH_PROJECTION,
+                NotePad.Notes._ID + " IN ()", null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests paging through the notes URI with the limit and before_* query parameters.
+     */
+    public void testPagedQueries() {
+        final String[] PAGE_PROJECTION = {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+        };
+
+        // Inserts the test data, plus notes that share a timestamp, so that pages have to be
+        // continued in the middle of a run of equal timestamps.
+        insertData();
+        for (int i = 0; i < 5; i++) {
+            NoteInfo note = new NoteInfo("Tie" + i, "Same timestamp");
+            note.setCreationDate(START_DATE);
+            note.setModificationDate(START_DATE + 3 * ONE_WEEK_MILLIS);
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, note.getContentValues());
+        }
+
+        // Reads the whole list in the page order, to compare the pages with.
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, PAGE_PROJECTION, null,
+                null, NotePad.Notes.PAGE_SORT_ORDER);
+        long[] expected = new long[cursor.getCount()];
+        for (int i = 0; cursor.moveToNext(); i++) {
+            expected[i] = cursor.getLong(0);
+        }
+        cursor.close();
+        assertEquals(TEST_NOTES.length + 5, expected.length);
+
+        // Paging subtest 1.
+        // Pages of 4 notes each, continued from the last note of the previous page, return the
+        // whole list in order, with nothing skipped or repeated.
+        int position = 0;
+        Uri pageUri = pageUri(4, null, null);
+        while (true) {
+            cursor = mMockResolver.query(pageUri, PAGE_PROJECTION, null, null, null);
+            assertTrue(cursor.getCount() <= 4);
+            long lastModified = 0;
+            long lastId = 0;
+            while (cursor.moveToNext()) {
+                lastId = cursor.getLong(0);
+                lastModified = cursor.getLong(1);
+                assertEquals(expected[position++], lastId);
+            }
+            int count = cursor.getCount();
+            cursor.close();
+            if (count < 4) {
+                break;
+            }
+            pageUri = pageUri(4, lastModified, lastId);
+        }
+        assertEquals(expected.length, position);
+
+        // Paging subtest 2.
+        // Invalid paging parameters are rejected.
+        Uri[] invalidUris = {
+            pageUri(0, null, null),
+            NotePad.Notes.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT, "ten").build(),
+            NotePad.Notes.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_BEFORE_ID, "1").build(),
+            pageUri(4, null, null).buildUpon()
+                    .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_BEFORE_ID, "1").build()
+        };
+        for (Uri invalidUri : invalidUris) {
+            try {
+                mMockResolver.query(invalidUri, PAGE_PROJECTION, null, null, null);
+                fail("Expected IllegalArgumentException for " + invalidUri);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    // Builds a paged notes URI, continuing from the given note if there is one
+    private static Uri pageUri(int limit, Long beforeModified, Long beforeId) {
+        Uri.Builder builder = NotePad.Notes.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT, Integer.toString(limit));
+        if (beforeModified != null) {
+            builder.appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_BEFORE_MODIFIED,
+                    beforeModified.toString());
+            builder.appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_BEFORE_ID,
+                    beforeId.toString());
+        }
+        return builder.build();
+    }
+
+    /*
+     * Tests that the provider maintains the preview, body length and body hash columns.
+     */
+    public void testBodyDigest() {
+        final String[] DIGEST_PROJECTION = {
+            NotePad.Notes.COLUMN_NAME_PREVIEW,
+            NotePad.Notes.COLUMN_NAME_BODY_LENGTH,
+            NotePad.Notes.COLUMN_NAME_BODY_HASH
+        };
+
+        // Digest subtest 1.
+        // An insert derives the columns, and values supplied by the caller are ignored.
+        String note = "First line\n\n  second line";
+        ContentValues values = new NoteInfo("Digest", note).getContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_PREVIEW, "bogus");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        Cursor cursor = mMockResolver.query(noteUri, DIGEST_PROJECTION, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("First line second line", cursor.getString(0));
+        assertEquals(note.length(), cursor.getInt(1));
+        long hash = cursor.getLong(2);
+        assertEquals(TextDigest.hash64(note), hash);
+        cursor.close();
+
+        // Digest subtest 2.
+        // Updating only the title leaves the columns alone; updating the note changes them.
+        values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed");
+        mMockResolver.update(noteUri, values, null, null);
+        cursor = mMockResolver.query(noteUri, DIGEST_PROJECTION, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(hash, cursor.getLong(2));
+        cursor.close();
+
+        values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Changed");
+        mMockResolver.update(noteUri, values, null, null);
+        cursor = mMockResolver.query(noteUri, DIGEST_PROJECTION, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Changed", cursor.getString(0));
+        assertEquals(7, cursor.getInt(1));
+        assertFalse(hash == cursor.getLong(2));
+        cursor.close();
+
+        // Digest subtest 3.
+        // The preview is bounded, whatever the size of the note.
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            large.append("word ");
+        }
+        values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, large.toString());
+        mMockResolver.update(noteUri, values, null, null);
+        cursor = mMockResolver.query(noteUri, DIGEST_PROJECTION, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertTrue(cursor.getString(0).length() <= NotePad.Notes.PREVIEW_LENGTH);
+        assertEquals(large.length(), cursor.getInt(1));
+        cursor.close();
+    }
+
+    /*
+     * Tests that the database uses write-ahead logging, so queries don't wait for writes.
+     */
+    public void testWriteAheadLogging() {
+        assertEquals("wal", DatabaseUtils.stringForQuery(mDb, "PRAGMA journal_mode", null));
+    }
+
+    /*
+     * Tests that the title sort key is derived from the title on insert and update, and that
+     * notes sort by it.
+     */
+    public void testTitleKey() {
+        final String[] KEY_PROJECTION = { NotePad.Notes.COLUMN_NAME_TITLE_KEY };
+
+        // Full-width letters and case differences are folded; a key supplied by the caller
+        // is ignored.
+        ContentValues values = new NoteInfo("  \uff22anana ", "").getContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE_KEY, "bogus");
+        Uri banana = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        Uri apple = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("apple", "").getContentValues());
+
+        Cursor cursor = mMockResolver.query(banana, KEY_PROJECTION, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("banana", cursor.getString(0));
+        cursor.close();
+
+        values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "CHERRY");
+        mMockResolver.update(apple, values, null, null);
+
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, KEY_PROJECTION, null, null,
+                NotePad.Notes.TITLE_SORT_ORDER);
+        assertEquals(2, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("banana", cursor.getString(0));
+        assertTrue(cursor.moveToNext());
+        assertEquals("cherry", cursor.getString(0));
+        cursor.close();
+    }
+
+    /*
+     * Tests that a long note is stored in chunks, is read back whole through the note column
+     * and the pipe, and that a small edit rewrites only the chunks around it. The full-text
+     * index catches up when it is reindexed, and a note that becomes short again goes back to
+     * the note column.
+     */
+    public void testChunkedNotes() throws IOException {
+        String text = chunkedText(4 * NoteChunks.MIN_CHUNKED_LENGTH);
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Chunked", text).getContentValues());
+        long noteId = ContentUris.parseId(noteUri);
+
+        assertEquals(text, readNote(noteUri));
+        assertEquals(NotePadProvider.BODY_FORMAT_CHUNKED, DatabaseUtils.longForQuery(mDb,
+                "SELECT " + NotePadProvider.COLUMN_BODY_FORMAT + " FROM notes WHERE _id = "
+                        + noteId, null));
+        ArrayList<String> chunks = chunkKeys(noteId);
+        assertTrue(chunks.size() > 1);
+
+        // Inserts a word in the middle of the note
+        String edited = text.substring(0, text.length() / 2) + " zzmarker "
+                + text.substring(text.length() / 2);
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, edited);
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertEquals(edited, readNote(noteUri));
+
+        // Only the chunks around the edit are new
+        ArrayList<String> written = chunkKeys(noteId);
+        written.removeAll(chunks);
+        assertTrue(written.size() + " chunks rewritten",
+                written.size() >= 1 && written.size() <= 2);
+
+        // The pipe streams the chunks
+        AssetFileDescriptor descriptor =
+                mMockResolver.openTypedAssetFileDescriptor(noteUri, MIME_TYPE_TEXT, null);
+        BufferedReader in = new BufferedReader(
+                new FileReader(descriptor.getParcelFileDescriptor().getFileDescriptor()));
+        assertEquals("Chunked", in.readLine());
+        assertEquals("", in.readLine());
+        assertEquals(edited, in.readLine());
+        in.close();
+        descriptor.close();
+
+        // The edit is searchable once the index has caught up, which reports the note
+        assertEquals(Arrays.toString(new long[] { noteId }),
+                Arrays.toString(NoteChunks.reindexStale(mDb)));
+        assertEquals(0, NoteChunks.reindexStale(mDb).length);
+        Cursor cursor = mMockResolver.query(searchUri("zzmarker"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        // A short note is stored in the note column again
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Short again");
+        mMockResolver.update(noteUri, values, null, null);
+        assertEquals("Short again", readNote(noteUri));
+        assertEquals(0, chunkKeys(noteId).size());
+        cursor = mMockResolver.query(searchUri("short"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        // Deleting a chunked note deletes its chunks
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
+        mMockResolver.update(noteUri, values, null, null);
+        assertTrue(chunkKeys(noteId).size() > 1);
+        mMockResolver.delete(noteUri, null, null);
+        assertEquals(0, chunkKeys(noteId).size());
+    }
+
+    /*
+     * Tests that a note of many chunks is read back in the order of their sequence numbers,
+     * whatever order the rows are stored in, through a query of one note and of all of them.
+     */
+    public void testChunkOrder() {
+        String text = chunkedText(16 * NoteChunks.MIN_CHUNKED_LENGTH);
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Ordered", text).getContentValues());
+        long noteId = ContentUris.parseId(noteUri);
+        assertTrue(chunkSeqs(noteId).length > 50);
+
+        // Stores the chunks again, last one first, so a scan without ORDER BY reverses them
+        String chunks = NoteChunks.TABLE_NAME + " WHERE " + NoteChunks.COLUMN_NOTE_ID + " = "
+                + noteId;
+        mDb.beginTransaction();
+        try {
+            mDb.execSQL("CREATE TEMP TABLE reversed AS SELECT * FROM " + chunks + " ORDER BY "
+                    + NoteChunks.COLUMN_SEQ + " DESC");
+            mDb.execSQL("DELETE FROM " + chunks);
+            mDb.execSQL("INSERT INTO " + NoteChunks.TABLE_NAME + " SELECT * FROM reversed");
+            mDb.execSQL("DROP TABLE reversed");
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+
+        assertEquals(text, readNote(noteUri));
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_NOTE },
+                NotePad.Notes._ID + " = " + noteId, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(Cursor.FIELD_TYPE_STRING, cursor.getType(1));
+            assertEquals(text, cursor.getString(1));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Returns random words, made of the letters a to j, up to the given length
+    private static String chunkedText(int length) {
+        Random random = new Random(42);
+        StringBuilder text = new StringBuilder(length);
+        while (text.length() < length) {
+            for (int i = random.nextInt(8) + 2; i > 0; i--) {
+                text.append((char) ('a' + random.nextInt(10)));
+            }
+            text.append(' ');
+        }
+        return text.substring(0, length);
+    }
+
+    // Reads the text of a note through the provider
+    private String readNote(Uri noteUri) {
+        Cursor cursor = mMockResolver.query(noteUri,
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Returns the sequence number and hash of each stored chunk of a note, as "seq/hash"
+    private ArrayList<String> chunkKeys(long noteId) {
+        Cursor cursor = mDb.query(NoteChunks.TABLE_NAME,
+                new String[] { NoteChunks.COLUMN_SEQ, NoteChunks.COLUMN_HASH },
+                NoteChunks.COLUMN_NOTE_ID + " = " + noteId, null, null, null, null);
+        ArrayList<String> keys = new ArrayList<String>();
+        while (cursor.moveToNext()) {
+            keys.add(cursor.getLong(0) + "/" + cursor.getLong(1));
+        }
+        cursor.close();
+        return keys;
+    }
+
+    // Combines the hashes of the stored chunks of a note, in order, into the note's body hash
+    private long chunkedHash(long noteId) {
+        Cursor cursor = mDb.query(NoteChunks.TABLE_NAME, new String[] { NoteChunks.COLUMN_HASH },
+                NoteChunks.COLUMN_NOTE_ID + " = " + noteId, null, null, null,
+                NoteChunks.COLUMN_SEQ);
+        long hash = TextDigest.hash64(null);
+        while (cursor.moveToNext()) {
+            hash = TextDigest.combine(hash, cursor.getLong(0));
+        }
+        cursor.close();
+        return hash;
+    }
+
+    /*
+     * Tests the chunks URI: a window of a chunked note is read by its sequence numbers, written
+     * back as a patch that leaves the chunks around it alone, and the note's length, hash and
+     * preview follow the patch. A note that isn't chunked can't be patched.
+     */
+    public void testChunkPatches() {
+        String text = chunkedText(8 * NoteChunks.MIN_CHUNKED_LENGTH);
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Patched", text).getContentValues());
+        long noteId = ContentUris.parseId(noteUri);
+        Uri chunksUri = NotePad.Chunks.getContentUri(noteId);
+        assertEquals(NotePad.Chunks.CONTENT_TYPE, mMockResolver.getType(chunksUri));
+
+        // The chunk map, without the text
+        Cursor cursor = mMockResolver.query(chunksUri,
+                new String[] { NotePad.Chunks.COLUMN_NAME_SEQ }, null, null, null);
+        long[] seqs = new long[cursor.getCount()];
+        for (int i = 0; cursor.moveToNext(); i++) {
+            seqs[i] = cursor.getLong(0);
+        }
+        cursor.close();
+        assertTrue(seqs.length > 4);
+
+        // Reads the second and third chunks, and where they are in the text
+        cursor = mMockResolver.query(chunksUri,
+                new String[] { NotePad.Chunks.COLUMN_NAME_CONTENT },
+                NotePad.Chunks.COLUMN_NAME_SEQ + " > ? AND " + NotePad.Chunks.COLUMN_NAME_SEQ
+                        + " < ?", new String[] { Long.toString(seqs[0]), Long.toString(seqs[3]) },
+                null);
+        StringBuilder window = new StringBuilder();
+        while (cursor.moveToNext()) {
+            window.append(cursor.getString(0));
+        }
+        assertEquals(2, cursor.getCount());
+        cursor.close();
+        int start = text.indexOf(window.toString());
+        assertTrue(start > 0);
+        String head = text.substring(0, start);
+        String tail = text.substring(start + window.length());
+
+        // Writes the window back with an edit in it
+        ArrayList<String> chunks = chunkKeys(noteId);
+        assertEquals(NoteChunks.bodyHash(text), chunkedHash(noteId));
+        String edited = window.substring(0, 100) + " zzpatch " + window.substring(100);
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Chunks.COLUMN_NAME_AFTER_SEQ, seqs[0]);
+        values.put(NotePad.Chunks.COLUMN_NAME_BEFORE_SEQ, seqs[3]);
+        values.put(NotePad.Chunks.COLUMN_NAME_CONTENT, edited);
+        assertEquals(1, mMockResolver.update(chunksUri, values, null, null));
+        String expected = head + edited + tail;
+        assertEquals(expected, readNote(noteUri));
+
+        // The chunks outside the window are untouched
+        ArrayList<String> kept = chunkKeys(noteId);
+        kept.retainAll(chunks);
+        assertEquals(seqs.length - 2, kept.size());
+
+        cursor = mMockResolver.query(noteUri, new String[] {
+                NotePad.Notes.COLUMN_NAME_BODY_LENGTH, NotePad.Notes.COLUMN_NAME_BODY_HASH,
+                NotePad.Notes.COLUMN_NAME_PREVIEW }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(expected.length(), cursor.getLong(0));
+        assertEquals(chunkedHash(noteId), cursor.getLong(1));
+        assertFalse(NoteChunks.bodyHash(text) == cursor.getLong(1));
+        assertEquals(TextDigest.preview(expected, NotePad.Notes.PREVIEW_LENGTH),
+                cursor.getString(2));
+        cursor.close();
+
+        // Replaces everything before the fourth chunk, which changes the preview
+        values.clear();
+        values.put(NotePad.Chunks.COLUMN_NAME_CONTENT, "New start");
+        values.put(NotePad.Chunks.COLUMN_NAME_BEFORE_SEQ, seqs[3]);
+        assertEquals(1, mMockResolver.update(chunksUri, values, null, null));
+        assertEquals("New start" + tail, readNote(noteUri));
+        cursor = mMockResolver.query(noteUri, new String[] {
+                NotePad.Notes.COLUMN_NAME_PREVIEW, NotePad.Notes.COLUMN_NAME_BODY_LENGTH
+                }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(TextDigest.preview("New start" + tail, NotePad.Notes.PREVIEW_LENGTH),
+                cursor.getString(0));
+        assertEquals(("New start" + tail).length(), cursor.getLong(1));
+        cursor.close();
+
+        // A short note has no chunks to patch
+        Uri shortUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Short", "Short").getContentValues());
+        assertEquals(0, mMockResolver.update(
+                NotePad.Chunks.getContentUri(ContentUris.parseId(shortUri)), values, null, null));
+        assertEquals("Short", readNote(shortUri));
+    }
+
+    /*
+     * Tests that patches that narrow the range down until no sequence numbers are left between
+     * its bounds move the chunks after the range up to make room, keeping their text, rather
+     * than rewriting the note.
+     */
+    public void testChunkPatchesWithoutRoom() {
+        String text = chunkedText(4 * NoteChunks.MIN_CHUNKED_LENGTH);
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Renumbered", text).getContentValues());
+        long noteId = ContentUris.parseId(noteUri);
+        Uri chunksUri = NotePad.Chunks.getContentUri(noteId);
+        String patch = chunkedText(NoteChunks.MIN_CHUNKED_LENGTH);
+        String chunks = " FROM " + NoteChunks.TABLE_NAME + " WHERE " + NoteChunks.COLUMN_NOTE_ID
+                + " = " + noteId;
+        String last = chunks + " ORDER BY " + NoteChunks.COLUMN_SEQ + " DESC LIMIT 1";
+        long lastSeq = DatabaseUtils.longForQuery(mDb, "SELECT " + NoteChunks.COLUMN_SEQ + last,
+                null);
+        long lastHash = DatabaseUtils.longForQuery(mDb,
+                "SELECT " + NoteChunks.COLUMN_HASH + last, null);
+
+        long[] seqs = chunkSeqs(noteId);
+        long afterSeq = seqs[0];
+        long beforeSeq = seqs[1];
+        for (int i = 0; i < 10; i++) {
+            // Where the range starts in the text, and how long it is
+            int start = (int) DatabaseUtils.longForQuery(mDb, "SELECT total(length("
+                    + NoteChunks.COLUMN_CONTENT + "))" + chunks + " AND " + NoteChunks.COLUMN_SEQ
+                    + " <= " + afterSeq, null);
+            int length = (int) DatabaseUtils.longForQuery(mDb, "SELECT total(length("
+                    + NoteChunks.COLUMN_CONTENT + "))" + chunks + " AND " + NoteChunks.COLUMN_SEQ
+                    + " > " + afterSeq + " AND " + NoteChunks.COLUMN_SEQ + " < " + beforeSeq,
+                    null);
+
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Chunks.COLUMN_NAME_AFTER_SEQ, afterSeq);
+            values.put(NotePad.Chunks.COLUMN_NAME_BEFORE_SEQ, beforeSeq);
+            values.put(NotePad.Chunks.COLUMN_NAME_CONTENT, patch);
+            assertEquals(1, mMockResolver.update(chunksUri, values, null, null));
+            text = text.substring(0, start) + patch + text.substring(start + length);
+            assertEquals(text, readNote(noteUri));
+
+            // The next range is the first chunk of this patch, between its neighbours
+            seqs = chunkSeqs(noteId);
+            int first = 0;
+            while (seqs[first] <= afterSeq) {
+                first++;
+            }
+            beforeSeq = seqs[first + 1];
+        }
+
+        // The last chunk was moved up, and its text was left alone
+        assertTrue(DatabaseUtils.longForQuery(mDb, "SELECT " + NoteChunks.COLUMN_SEQ + last,
+                null) > lastSeq);
+        assertEquals(lastHash, DatabaseUtils.longForQuery(mDb,
+                "SELECT " + NoteChunks.COLUMN_HASH + last, null));
+    }
+
+    // Returns the sequence numbers of a note's chunks, in order
+    private long[] chunkSeqs(long noteId) {
+        Cursor cursor = mDb.query(NoteChunks.TABLE_NAME, new String[] { NoteChunks.COLUMN_SEQ },
+                NoteChunks.COLUMN_NOTE_ID + " = " + noteId, null, null, null,
+                NoteChunks.COLUMN_SEQ);
+        long[] seqs = new long[cursor.getCount()];
+        for (int i = 0; cursor.moveToNext(); i++) {
+            seqs[i] = cursor.getLong(0);
+        }
+        cursor.close();
+        return seqs;
+    }
+
+    /*
+     * Tests that a long note is stored compressed and read back whole through every path, that
+     * a trained dictionary lets short notes be compressed as well, and that turning compression
+     * off stores notes as they are.
+     */
+    public void testCompressedNotes() throws IOException {
+        NotePadProvider.DatabaseHelper helper = getProvider().getOpenHelperForTest();
+        String text = logText(0, 200);
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Compressed", text).getContentValues());
+        long noteId = ContentUris.parseId(noteUri);
+
+        assertEquals(NotePadProvider.BODY_FORMAT_DEFLATE, bodyFormat(noteId));
+        assertTrue(DatabaseUtils.longForQuery(mDb, "SELECT length("
+                + NoteCompression.COLUMN_NOTE_DATA + ") FROM notes WHERE _id = " + noteId, null)
+                < text.length() / 4);
+
+        // The text comes back from the note column, as a string
+        Cursor cursor = mMockResolver.query(noteUri,
+                new String[] { NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_NOTE },
+                null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(Cursor.FIELD_TYPE_STRING, cursor.getType(1));
+        assertEquals(text, cursor.getString(1));
+        cursor.close();
+
+        // The pipe streams the decompressed text
+        AssetFileDescriptor descriptor =
+                mMockResolver.openTypedAssetFileDescriptor(noteUri, MIME_TYPE_TEXT, null);
+        BufferedReader in = new BufferedReader(
+                new FileReader(descriptor.getParcelFileDescriptor().getFileDescriptor()));
+        assertEquals("Compressed", in.readLine());
+        assertEquals("", in.readLine());
+        assertEquals(text, in.readLine());
+        in.close();
+        descriptor.close();
+
+        // The text is searchable as soon as it is written, without waiting for maintenance
+        cursor = mMockResolver.query(searchUri("handled"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        // And so is its new text once it is updated, in place of the old text
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, text.replace("handled", "served"));
+        mMockResolver.update(noteUri, values, null, null);
+        assertEquals(NotePadProvider.BODY_FORMAT_DEFLATE, bodyFormat(noteId));
+        cursor = mMockResolver.query(searchUri("served"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+        cursor = mMockResolver.query(searchUri("handled"), null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+        assertEquals(0, DatabaseUtils.longForQuery(mDb, "SELECT count(*) FROM notes WHERE "
+                + NotePadProvider.COLUMN_FTS_STALE + " = 1", null));
+
+        // A short note is stored in the note column again
+        values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Short again");
+        mMockResolver.update(noteUri, values, null, null);
+        assertEquals("Short again", readNote(noteUri));
+        assertEquals(NotePadProvider.BODY_FORMAT_INLINE, bodyFormat(noteId));
+
+        // Short notes are compressed once a dictionary has been trained from similar ones
+        ContentValues[] similar = new ContentValues[NoteCompression.MIN_TRAINING_NOTES];
+        for (int i = 0; i < similar.length; i++) {
+            similar[i] = new NoteInfo("Log " + i, logText(i, 6)).getContentValues();
+        }
+        mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, similar);
+        assertNotNull(helper.trainDictionary());
+
+        String shortText = logText(1000, 6);
+        noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Short log", shortText).getContentValues());
+        assertEquals(NotePadProvider.BODY_FORMAT_DEFLATE, bodyFormat(ContentUris.parseId(noteUri)));
+        assertEquals(shortText, readNote(noteUri));
+
+        // With compression off, even a long note is stored as it is
+        helper.setCompression(Integer.MAX_VALUE, false);
+        noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Uncompressed", text).getContentValues());
+        assertEquals(NotePadProvider.BODY_FORMAT_INLINE, bodyFormat(ContentUris.parseId(noteUri)));
+        assertEquals(text, readNote(noteUri));
+    }
+
+    // Returns lines of a made-up log on a single line, as a pasted log would be after a search
+    // and replace of its line breaks
+    private static String logText(int first, int lines) {
+        StringBuilder text = new StringBuilder();
+        for (int i = first; i < first + lines; i++) {
+            text.append("2016-03-0").append(i % 9 + 1).append(" 12:").append(10 + i % 50)
+                    .append(":07.123 INFO [NoteSync] Request ").append(i)
+                    .append(" handled in ").append(i * 7 % 300).append(" ms | ");
+        }
+        return text.toString();
+    }
+
+    // Returns how the text of a note is stored
+    private long bodyFormat(long noteId) {
+        return DatabaseUtils.longForQuery(mDb, "SELECT " + NotePadProvider.COLUMN_BODY_FORMAT
+                + " FROM notes WHERE _id = " + noteId, null);
+    }
+
+    /*
+     * Tests that the note cache evicts the least recently used notes to stay within its budget,
+     * turns away records read before an invalidation, and loses exactly the notes that updates
+     * and deletes change, and that its statistics can be queried.
+     */
+    public void testNoteCache() {
+        // A budget that holds four of these records, but not five
+        NoteRecord[] records = new NoteRecord[5];
+        for (int i = 0; i < records.length; i++) {
+            records[i] = new NoteRecord(i + 1, "Title" + i, "This is note " + i, i, i);
+        }
+        NoteCache cache = new NoteCache(records[0].sizeBytes() * 9 / 2);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(cache.put(records[i], cache.generation()));
+        }
+        assertSame(records[0], cache.get(1));
+        assertTrue(cache.put(records[4], cache.generation()));
+        assertNull(cache.get(2));
+        assertSame(records[0], cache.get(1));
+        assertSame(records[4], cache.get(5));
+
+        // A record read before an invalidation isn't cached, even for another note
+        long generation = cache.generation();
+        cache.invalidate(5);
+        assertNull(cache.get(5));
+        assertFalse(cache.put(records[1], generation));
+        assertNull(cache.get(2));
+
+        // Nor is a record that would take more than a quarter of the budget
+        assertFalse(cache.put(new NoteRecord(6, "", logText(1, 100), 0, 0),
+                cache.generation()));
+
+        // Hits, misses, puts, stale puts, evictions, invalidations and entries
+        long[] stats = cache.stats();
+        assertEquals(3, stats[0]);
+        assertEquals(3, stats[1]);
+        assertEquals(5, stats[2]);
+        assertEquals(1, stats[3]);
+        assertEquals(1, stats[4]);
+        assertEquals(1, stats[5]);
+        assertEquals(3, stats[6]);
+
+        // The provider invalidates the process-wide cache for the notes it changes
+        insertData();
+        NoteCache shared = NoteCache.getInstance();
+        long[] noteIds = new long[3];
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, NoteRecord.PROJECTION,
+                null, null, NotePad.Notes._ID);
+        for (int i = 0; i < noteIds.length && cursor.moveToNext(); i++) {
+            NoteRecord record = NoteRecord.fromCursor(cursor);
+            assertTrue(shared.put(record, shared.generation()));
+            noteIds[i] = record.id;
+        }
+        cursor.close();
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed");
+        mMockResolver.update(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+                noteIds[0]), values, null, null);
+        assertNull(shared.get(noteIds[0]));
+        assertNotNull(shared.get(noteIds[1]));
+
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI, NotePad.Notes._ID + " = ?",
+                new String[] { String.valueOf(noteIds[1]) });
+        assertNull(shared.get(noteIds[1]));
+        assertNotNull(shared.get(noteIds[2]));
+
+        assertEquals(NotePad.NoteCacheStats.CONTENT_TYPE,
+                mMockResolver.getType(NotePad.NoteCacheStats.CONTENT_URI));
+        cursor = mMockResolver.query(NotePad.NoteCacheStats.CONTENT_URI, null, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(1, cursor.getLong(
+                cursor.getColumnIndexOrThrow(NotePad.NoteCacheStats.COLUMN_NAME_ENTRIES)));
+        assertTrue(cursor.getLong(
+                cursor.getColumnIndexOrThrow(NotePad.NoteCacheStats.COLUMN_NAME_HITS)) >= 2);
+        assertTrue(cursor.getLong(
+                cursor.getColumnIndexOrThrow(NotePad.NoteCacheStats.COLUMN_NAME_SIZE)) > 0);
+        cursor.close();
+
+        shared.invalidateAll();
+    }
+
+    /*
+     * Tests that the provider publishes each committed insert, update and delete to the change
+     * log with the _IDs of the notes it changed, and that the log drops changes past its capacity.
+     */
+    public void testChangeLog() {
+        NoteChangeLog log = NoteChangeLog.getInstance();
+        long generation = log.generation();
+        assertTrue(log.since(generation).isEmpty());
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Logged");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        long noteId = ContentUris.parseId(noteUri);
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Relogged");
+        mMockResolver.update(noteUri, values, null, null);
+
+        // An update that matches no note is not a change
+        mMockResolver.update(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+                noteId + 1000), values, null, null);
+        mMockResolver.delete(noteUri, null, null);
+
+        List<NoteChangeLog.Change> changes = log.since(generation);
+        assertEquals(3, changes.size());
+        int[] ops = { NoteChangeLog.OP_INSERT, NoteChangeLog.OP_UPDATE, NoteChangeLog.OP_DELETE };
+        for (int i = 0; i < ops.length; i++) {
+            NoteChangeLog.Change change = changes.get(i);
+            assertEquals(generation + i + 1, change.generation);
+            assertEquals(ops[i], change.op);
+            assertEquals(1, change.noteIds.length);
+            assertEquals(noteId, change.noteIds[0]);
+        }
+
+        // A bulk insert is one change with all of the new _IDs
+        generation = log.generation();
+        ContentValues[] rows = new ContentValues[3];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = new ContentValues();
+            rows[i].put(NotePad.Notes.COLUMN_NAME_TITLE, "Bulk" + i);
+        }
+        mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, rows);
+        changes = log.since(generation);
+        assertEquals(1, changes.size());
+        assertEquals(3, changes.get(0).noteIds.length);
+
+        // An observer further behind than the log's capacity has to query again
+        for (int i = 0; i < NoteChangeLog.CAPACITY; i++) {
+            log.record(NoteChangeLog.OP_UPDATE, null);
+        }
+        assertNull(log.since(generation));
+        assertNull(log.since(log.generation() + 1));
+    }
+
+    /*
+     * Tests that none of the queries the activities send reads the whole notes table, and that
+     * only searches, which are ranked, sort their results outside an index.
+     */
+    public void testQueryPlans() {
+        insertData();
+
+        Cursor cursor = mMockResolver.query(NotePad.QueryPlans.CONTENT_URI, null, null, null,
+                null);
+        int queryColumn = cursor.getColumnIndexOrThrow(NotePad.QueryPlans.COLUMN_NAME_QUERY);
+        int detailColumn = cursor.getColumnIndexOrThrow(NotePad.QueryPlans.COLUMN_NAME_DETAIL);
+        int fullScanColumn =
+                cursor.getColumnIndexOrThrow(NotePad.QueryPlans.COLUMN_NAME_FULL_SCAN);
+        int tempSortColumn =
+                cursor.getColumnIndexOrThrow(NotePad.QueryPlans.COLUMN_NAME_TEMP_SORT);
+
+        assertTrue(cursor.getCount() > 0);
+        while (cursor.moveToNext()) {
+            String query = cursor.getString(queryColumn);
+            String step = query + ": " + cursor.getString(detailColumn);
+
+            // A substring search has to read every note's text, by definition
+            if (!query.equals("NotesList substring search")) {
+                assertEquals(step, 0, cursor.getInt(fullScanColumn));
+            }
+            if (!query.startsWith("NotesList") || !query.contains("search")) {
+                assertEquals(step, 0, cursor.getInt(tempSortColumn));
+            }
+        }
+        cursor.close();
+    }
+
+    /*
+     * Tests that a query whose CancellationSignal has been cancelled is abandoned.
+     */
+    public void testQueryCancellation() {
+        insertData();
+
+        // A query with a signal that is never cancelled returns the same rows as one without
+        CancellationSignal signal = new CancellationSignal();
+        Cursor cursor = mMockResolver.query(searchUri("note"), null, null, null, null, signal);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+        cursor.close();
+
+        signal = new CancellationSignal();
+        signal.cancel();
+        try {
+            cursor = mMockResolver.query(searchUri("note"), null, null, null, null, signal);
+            cursor.getCount();
+            fail("Expected OperationCanceledException");
+        } catch (OperationCanceledException e) {
+            // expected
+        }
+    }
+
+    // Builds a search URI for the given terms
+    private static Uri searchUri(String terms) {
+        return NotePad.Notes.SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, terms)
+                .build();
+    }
+
     // A utility for converting note data to a ContentValues map.
     private static class NoteInfo {
         String title;
@@ -0,0 +1,337 @@
+package com.example.android.notepad;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Tests the revision history of notes: deltas, recording and reconstructing revisions,
+ * compaction of old revisions, and the revision URIs of the provider.
+ */
+public class NoteRevisionsTest extends ProviderTestCase2<NotePadProvider> {
+
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000;
+
+    // The mocked content resolver for the provider under test
+    private MockContentResolver mMockResolver;
+
+    // The provider's database
+    private SQLiteDatabase mDb;
+
+    // The time that the revisions recorded by the tests are dated from: the start of the next
+    // day, so that the provider's own compaction, which may run in the background, leaves them
+    // alone
+    private long mStartMillis;
+
+    public NoteRevisionsTest() {
+        super(NotePadProvider.class, NotePad.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockResolver = getMockContentResolver();
+        mDb = getProvider().getOpenHelperForTest().getWritableDatabase();
+        mStartMillis = (System.currentTimeMillis() / DAY_MILLIS + 1) * DAY_MILLIS;
+    }
+
+    /*
+     * Tests that a delta turns its base text into its target text, and that a small edit has a
+     * small delta, wherever it is.
+     */
+    public void testDeltaRoundTrip() {
+        Random random = new Random(13);
+        String base = text(random, 2000);
+
+        String[] targets = {
+            base,
+            "",
+            base.substring(0, 5000) + "inserted" + base.substring(5000),
+            base.substring(0, 3000) + base.substring(3100),
+            base.substring(6000) + base.substring(0, 6000),
+            text(random, 100),
+        };
+        for (String target : targets) {
+            assertEquals(target,
+                    NoteRevisions.applyDelta(base, NoteRevisions.encodeDelta(base, target)));
+        }
+        assertEquals("x", NoteRevisions.applyDelta("", NoteRevisions.encodeDelta("", "x")));
+
+        // An insertion costs about its own length, plus two copies
+        assertTrue(NoteRevisions.encodeDelta(base, targets[2]).length() < 50);
+
+        // Also within a single long line
+        String line = base.replace('\n', ' ');
+        String edited = line.substring(0, 20000) + "!" + line.substring(20000);
+        assertTrue(NoteRevisions.encodeDelta(line, edited).length() < 50);
+
+        try {
+            NoteRevisions.applyDelta(base, "x1:y");
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /*
+     * Tests that every revision of a note that is edited many times reconstructs to the text
+     * it was recorded with, that no revision is more than the maximum number of deltas from its
+     * snapshot, and that the storage grows with the edits rather than with the text.
+     */
+    public void testRecordAndReconstruct() {
+        long noteId = insertNote();
+        Random random = new Random(7);
+        String text = text(random, 1000);
+
+        ArrayList<String> texts = new ArrayList<String>();
+        ArrayList<Long> revisionIds = new ArrayList<Long>();
+        for (int i = 0; i < 50; i++) {
+            text = edit(random, text);
+            texts.add(text);
+            revisionIds.add(record(noteId, text, mStartMillis + i));
+        }
+
+        // The same text again is not recorded
+        assertEquals(-1, record(noteId, text, mStartMillis + 50));
+
+        for (int i = 0; i < texts.size(); i++) {
+            assertEquals(texts.get(i), NoteRevisions.reconstruct(mDb, revisionIds.get(i)));
+        }
+        assertNull(NoteRevisions.reconstruct(mDb, -1));
+
+        long maxDepth = DatabaseUtils.longForQuery(mDb, "SELECT max("
+                + NoteRevisions.COLUMN_DEPTH + ") FROM " + NoteRevisions.TABLE_NAME, null);
+        assertTrue(maxDepth <= NoteRevisions.MAX_DEPTH);
+
+        // Fifty full copies would be 50 times the text; snapshots every MAX_DEPTH revisions and
+        // small deltas in between are a few times the text
+        long stored = storedLength(noteId);
+        assertTrue("stored " + stored, stored < 5L * text.length());
+    }
+
+    /*
+     * Tests that compaction keeps the last revision of each old day and every recent one, and
+     * that the revisions it keeps still reconstruct to their texts.
+     */
+    public void testCompact() {
+        long noteId = insertNote();
+        Random random = new Random(3);
+        String text = text(random, 500);
+
+        // Four revisions a day for three days, then four revisions within the last day
+        long now = mStartMillis + 4 * DAY_MILLIS;
+        ArrayList<String> texts = new ArrayList<String>();
+        ArrayList<Long> revisionIds = new ArrayList<Long>();
+        ArrayList<Boolean> kept = new ArrayList<Boolean>();
+        for (int day = 0; day < 4; day++) {
+            for (int i = 0; i < 4; i++) {
+                text = edit(random, text);
+                long created = day < 3
+                        ? mStartMillis + day * DAY_MILLIS + i * 60 * 60 * 1000
+                        : now - (4 - i) * 60 * 60 * 1000;
+                texts.add(text);
+                revisionIds.add(record(noteId, text, created));
+                kept.add(day == 3 || i == 3);
+            }
+        }
+
+        assertEquals(9, NoteRevisions.compact(mDb, now));
+        assertEquals(0, NoteRevisions.compact(mDb, now));
+
+        for (int i = 0; i < texts.size(); i++) {
+            String reconstructed = NoteRevisions.reconstruct(mDb, revisionIds.get(i));
+            if (kept.get(i)) {
+                assertEquals(texts.get(i), reconstructed);
+            } else {
+                assertNull(reconstructed);
+            }
+        }
+    }
+
+    /*
+     * Tests that updating a note's text records the text it had, at most once per revision
+     * interval, and that the revisions can be listed, read and are deleted with the note.
+     */
+    public void testRevisionUris() {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "First text");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        long noteId = ContentUris.parseId(noteUri);
+        Uri revisionsUri = NotePad.Revisions.getContentUri(noteId);
+
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Second text");
+        mMockResolver.update(noteUri, values, null, null);
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Third text");
+        mMockResolver.update(noteUri, values, null, null);
+
+        assertEquals(NotePad.Revisions.CONTENT_TYPE, mMockResolver.getType(revisionsUri));
+
+        Cursor cursor = mMockResolver.query(revisionsUri, null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        long revisionId = cursor.getLong(cursor.getColumnIndexOrThrow(NotePad.Revisions._ID));
+        assertEquals(noteId, cursor.getLong(
+                cursor.getColumnIndexOrThrow(NotePad.Revisions.COLUMN_NAME_NOTE_ID)));
+        assertEquals(1, cursor.getInt(
+                cursor.getColumnIndexOrThrow(NotePad.Revisions.COLUMN_NAME_SNAPSHOT)));
+        assertEquals("First text".length(), cursor.getInt(
+                cursor.getColumnIndexOrThrow(NotePad.Revisions.COLUMN_NAME_BODY_LENGTH)));
+        assertEquals(-1, cursor.getColumnIndex(NotePad.Revisions.COLUMN_NAME_NOTE));
+        cursor.close();
+
+        Uri revisionUri = ContentUris.withAppendedId(revisionsUri, revisionId);
+        assertEquals(NotePad.Revisions.CONTENT_ITEM_TYPE, mMockResolver.getType(revisionUri));
+        cursor = mMockResolver.query(revisionUri, new String[] {
+                    NotePad.Revisions.COLUMN_NAME_NOTE, NotePad.Revisions.COLUMN_NAME_CREATE_DATE
+                }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("First text", cursor.getString(0));
+        assertTrue(cursor.getLong(1) > 0);
+        cursor.close();
+
+        // A revision of another note is not found through this note's URI
+        cursor = mMockResolver.query(ContentUris.withAppendedId(
+                NotePad.Revisions.getContentUri(noteId + 1), revisionId), null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        mMockResolver.delete(noteUri, null, null);
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NoteRevisions.TABLE_NAME));
+    }
+
+    /*
+     * Tests that the revisions of a chunked note refer to its chunks rather than hold its text,
+     * share the chunks that an edit didn't change, reconstruct to their texts, also through a
+     * delta against them after compaction, and that their chunks are deleted along with them.
+     */
+    public void testChunkedRevisions() {
+        Random random = new Random(5);
+        String first = text(random, 8000);
+        assertTrue(NoteChunks.isChunked(first));
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, first);
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        long noteId = ContentUris.parseId(noteUri);
+        long chunks = DatabaseUtils.queryNumEntries(mDb, NoteChunks.TABLE_NAME,
+                NoteChunks.COLUMN_NOTE_ID + " = " + noteId);
+
+        // Saving a new text records the first one, by its chunks
+        String second = edit(random, first);
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, second);
+        mMockResolver.update(noteUri, values, null, null);
+        Cursor cursor = mDb.query(NoteRevisions.TABLE_NAME, new String[] {
+                    NotePad.Revisions._ID, NoteRevisions.COLUMN_CHUNKED,
+                    NoteRevisions.COLUMN_CONTENT
+                }, NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = " + noteId, null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        long firstId = cursor.getLong(0);
+        assertEquals(1, cursor.getInt(1));
+        assertTrue(cursor.isNull(2));
+        cursor.close();
+        assertEquals(first, NoteRevisions.reconstruct(mDb, firstId));
+        assertEquals(chunks, DatabaseUtils.queryNumEntries(mDb, NoteRevisions.CHUNKS_TABLE_NAME));
+        assertEquals(chunks, DatabaseUtils.queryNumEntries(mDb, NoteRevisions.REFS_TABLE_NAME));
+        assertEquals(0, storedLength(noteId));
+
+        // The next revision stores only the chunks that the edit changed
+        long secondId = recordChunks(noteId, mStartMillis);
+        assertEquals(second, NoteRevisions.reconstruct(mDb, secondId));
+        long stored = DatabaseUtils.queryNumEntries(mDb, NoteRevisions.CHUNKS_TABLE_NAME);
+        assertTrue("stored " + stored + " of " + chunks, stored > chunks && stored < 2 * chunks);
+        assertEquals(-1, recordChunks(noteId, mStartMillis + 1));
+
+        // A short text after it is a delta against the chunked text
+        String third = second.substring(0, 1000);
+        long thirdId = record(noteId, third, mStartMillis + 2);
+        assertEquals(1, DatabaseUtils.longForQuery(mDb, "SELECT " + NoteRevisions.COLUMN_DEPTH
+                + " FROM " + NoteRevisions.TABLE_NAME + " WHERE " + NotePad.Revisions._ID + " = "
+                + thirdId, null));
+
+        // Compaction deletes the second revision and its own chunks, and re-encodes the third
+        // against the first
+        assertEquals(1, NoteRevisions.compact(mDb, mStartMillis + 2 * DAY_MILLIS));
+        assertNull(NoteRevisions.reconstruct(mDb, secondId));
+        assertEquals(first, NoteRevisions.reconstruct(mDb, firstId));
+        assertEquals(third, NoteRevisions.reconstruct(mDb, thirdId));
+        assertEquals(chunks, DatabaseUtils.queryNumEntries(mDb, NoteRevisions.CHUNKS_TABLE_NAME));
+
+        mMockResolver.delete(noteUri, null, null);
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NoteRevisions.CHUNKS_TABLE_NAME));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NoteRevisions.REFS_TABLE_NAME));
+    }
+
+    // Inserts an empty note and returns its _ID
+    private long insertNote() {
+        return ContentUris.parseId(mMockResolver.insert(NotePad.Notes.CONTENT_URI, null));
+    }
+
+    // Records a revision of a note in a transaction, as the provider does
+    private long record(long noteId, String text, long created) {
+        mDb.beginTransaction();
+        try {
+            long revisionId = NoteRevisions.record(mDb, noteId, "Title", text, created);
+            mDb.setTransactionSuccessful();
+            return revisionId;
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    // Records a revision of a chunked note by its chunks in a transaction, as the provider does
+    private long recordChunks(long noteId, long created) {
+        mDb.beginTransaction();
+        try {
+            Cursor cursor = mDb.query(NotePad.Notes.TABLE_NAME, new String[] {
+                        NotePad.Notes.COLUMN_NAME_BODY_LENGTH, NotePad.Notes.COLUMN_NAME_BODY_HASH
+                    }, NotePad.Notes._ID + " = " + noteId, null, null, null, null);
+            assertTrue(cursor.moveToFirst());
+            long revisionId = NoteRevisions.recordChunks(mDb, noteId, "Title", cursor.getLong(0),
+                    cursor.getLong(1), created);
+            cursor.close();
+            mDb.setTransactionSuccessful();
+            return revisionId;
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    // Returns the number of characters stored for the revisions of a note
+    private long storedLength(long noteId) {
+        return DatabaseUtils.longForQuery(mDb, "SELECT total(length("
+                + NoteRevisions.COLUMN_CONTENT + ")) FROM " + NoteRevisions.TABLE_NAME
+                + " WHERE " + NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = " + noteId, null);
+    }
+
+    // Returns a text of random words, with a line break after every tenth word
+    private static String text(Random random, int words) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            text.append("word").append(random.nextInt(10000));
+            text.append(i % 10 == 9 ? '\n' : ' ');
+        }
+        return text.toString();
+    }
+
+    // Returns a text with a few words inserted and removed at random places
+    private static String edit(Random random, String text) {
+        StringBuilder edited = new StringBuilder(text);
+        for (int i = 0; i < 3; i++) {
+            int position = random.nextInt(edited.length());
+            if (random.nextBoolean()) {
+                edited.insert(position, " edit" + random.nextInt(1000));
+            } else {
+                edited.delete(position, Math.min(edited.length(), position + 10));
+            }
+        }
+        return edited.toString();
+    }
+}
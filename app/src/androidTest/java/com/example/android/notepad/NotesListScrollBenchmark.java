@@ -0,0 +1,149 @@
+package com.example.android.notepad;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.os.SystemClock;
+import android.test.ActivityInstrumentationTestCase2;
+import android.util.Log;
+import android.widget.ListView;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Measures the frame times of the notes list while it scrolls through a large list, and the
+ * time from creating the list to its first frame with notes. The notes are inserted through the
+ * real provider before the list is opened, and are deleted again afterwards. The results are
+ * written to the log under the tag "NotePadBenchmark".
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+public class NotesListScrollBenchmark extends ActivityInstrumentationTestCase2<NotesList> {
+
+    // The log tag that benchmark results are reported under
+    private static final String TAG = "NotePadBenchmark";
+
+    // The number of notes in the list
+    private static final int NOTE_COUNT = 10000;
+
+    // The title prefix of the generated notes, used to delete them afterwards
+    private static final String TITLE_PREFIX = "ScrollBenchmark ";
+
+    // The number of scrolls, the distance of each in list heights, and how long each takes
+    private static final int SCROLLS = 40;
+    private static final int SCROLL_SCREENS = 3;
+    private static final int SCROLL_MILLIS = 500;
+
+    // The number of times the list is launched with and without a snapshot
+    private static final int LAUNCHES = 10;
+
+    private ContentResolver mResolver;
+
+    public NotesListScrollBenchmark() {
+        super(NotesList.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResolver = getInstrumentation().getTargetContext().getContentResolver();
+        deleteNotes();
+
+        // Newest notes first, a minute apart, so every row shows a different time
+        long now = System.currentTimeMillis();
+        ContentValues[] notes = new ContentValues[NOTE_COUNT];
+        for (int i = 0; i < NOTE_COUNT; i++) {
+            notes[i] = new ContentValues();
+            notes[i].put(NotePad.Notes.COLUMN_NAME_TITLE, TITLE_PREFIX + i);
+            notes[i].put(NotePad.Notes.COLUMN_NAME_NOTE, "Note " + i);
+            notes[i].put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, now - i * 60000L);
+            notes[i].put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, now - i * 60000L);
+        }
+        assertEquals(NOTE_COUNT, mResolver.bulkInsert(NotePad.Notes.CONTENT_URI, notes));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteNotes();
+        super.tearDown();
+    }
+
+    /*
+     * Scrolls down the list a few screens at a time, loading pages as it goes, and reports the
+     * percentiles of the intervals between frames and the number of frames that were missed.
+     */
+    public void testScrollFrameTimes() throws Throwable {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return;
+        }
+        final ListView listView = getActivity().getListView();
+        getInstrumentation().waitForIdleSync();
+
+        final FrameRecorder recorder = new FrameRecorder(null);
+        runTestOnUiThread(recorder::start);
+        for (int i = 0; i < SCROLLS; i++) {
+            runTestOnUiThread(() -> listView.smoothScrollBy(
+                    listView.getHeight() * SCROLL_SCREENS, SCROLL_MILLIS));
+            SystemClock.sleep(SCROLL_MILLIS + 100);
+        }
+        runTestOnUiThread(recorder::stop);
+        getInstrumentation().waitForIdleSync();
+
+        assertTrue(recorder.count() > 0);
+        assertTrue(listView.getLastVisiblePosition() > SearchExecutor.FIRST_PAGE_SIZE);
+        Log.i(TAG, "scroll " + NOTE_COUNT + " notes: " + recorder.summary() + ", rows loaded "
+                + listView.getCount());
+    }
+
+    /*
+     * Launches the list alternately without a snapshot, when it queries the first page on the
+     * main thread, and with the snapshot that the previous launch saved, and reports the median
+     * time from onCreate() to the first frame with notes. The process and the database are
+     * already open, so this is the part of a cold start that the snapshot changes.
+     */
+    public void testFirstContent() {
+        Context context = getInstrumentation().getTargetContext();
+        File snapshot = new File(context.getFilesDir(), ListSnapshot.FILE_NAME);
+        long[] queryMillis = new long[LAUNCHES];
+        long[] snapshotMillis = new long[LAUNCHES];
+        for (int i = 0; i < LAUNCHES; i++) {
+            snapshot.delete();
+            queryMillis[i] = launch(context);
+
+            // The list saves the snapshot on a background thread
+            for (int wait = 0; !snapshot.isFile() && wait < 50; wait++) {
+                SystemClock.sleep(20);
+            }
+            assertTrue(snapshot.isFile());
+            snapshotMillis[i] = launch(context);
+        }
+        Arrays.sort(queryMillis);
+        Arrays.sort(snapshotMillis);
+        Log.i(TAG, "first content " + NOTE_COUNT + " notes: query " + queryMillis[LAUNCHES / 2]
+                + " ms, snapshot " + snapshotMillis[LAUNCHES / 2] + " ms (median of " + LAUNCHES
+                + " launches)");
+    }
+
+    // Starts the list, waits for it to draw, and returns its time to first content
+    private long launch(Context context) {
+        Intent intent = new Intent(Intent.ACTION_MAIN);
+        intent.setClassName(context, NotesList.class.getName());
+        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        NotesList activity = (NotesList) getInstrumentation().startActivitySync(intent);
+        getInstrumentation().waitForIdleSync();
+        long millis = activity.getFirstContentMillis();
+        activity.finish();
+        getInstrumentation().waitForIdleSync();
+        assertTrue(millis >= 0);
+        return millis;
+    }
+
+    // Deletes the notes that the benchmark generated
+    private void deleteNotes() {
+        mResolver.delete(NotePad.Notes.CONTENT_URI, NotePad.Notes.COLUMN_NAME_TITLE + " LIKE ?",
+                new String[] { TITLE_PREFIX + "%" });
+    }
+}
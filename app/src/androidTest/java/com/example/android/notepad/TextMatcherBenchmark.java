@@ -0,0 +1,171 @@
+package com.example.android.notepad;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Measures TextMatcher on a 10 MB note body: literal queries against String.indexOf and a
+ * case-insensitive Pattern, a query typed a character at a time with and without refining the
+ * previous matches, and a regular expression with and without its time budget. The results are
+ * written to the log under the tag "NotePadBenchmark".
+ */
+public class TextMatcherBenchmark extends TestCase {
+
+    // The log tag that benchmark results are reported under
+    private static final String TAG = "NotePadBenchmark";
+
+    // The length of the body searched, and the number of timed passes per query
+    private static final int LENGTH = 10 * 1024 * 1024;
+    private static final int ITERATIONS = 5;
+
+    // Queries that don't occur, occur a few times, and don't occur but are long
+    private static final String[] QUERIES = {
+        "x7q", "Line 4242", "of the find benchmark note, line 99999999"
+    };
+
+    private static String sText;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        if (sText == null) {
+            StringBuilder text = new StringBuilder(LENGTH + 64);
+            for (int i = 0; text.length() < LENGTH; i++) {
+                text.append("Line ").append(i).append(" of the find benchmark note\n");
+            }
+            text.setLength(LENGTH);
+            sText = text.toString();
+        }
+    }
+
+    /*
+     * Finds every occurrence of each query with TextMatcher, matching case and ignoring it,
+     * and with the paths it replaces, and reports the time per pass.
+     */
+    public void testLiteral10MB() {
+        for (String query : QUERIES) {
+            Pattern pattern = Pattern.compile(query,
+                    Pattern.LITERAL | Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+            TextMatcher exact = TextMatcher.compile(query, false, false);
+            TextMatcher folded = TextMatcher.compile(query, false, true);
+
+            // Warm up each path, and check that they agree
+            int count = indexOfCount(query);
+            assertEquals(count, exact.findAll(sText).occurrenceCount);
+            assertEquals(count, folded.findAll(sText).occurrenceCount);
+            assertEquals(exact.findAll(sText).count, patternCount(pattern));
+
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                count += indexOfCount(query);
+            }
+            long indexOfNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                count += exact.findAll(sText).count;
+            }
+            long exactNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                count += patternCount(pattern);
+            }
+            long patternNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                count += folded.findAll(sText).count;
+            }
+            long foldedNanos = System.nanoTime() - start;
+            assertTrue(count >= 0);
+
+            Log.i(TAG, "find \"" + query + "\" in " + LENGTH + " chars: String.indexOf "
+                    + millis(indexOfNanos / ITERATIONS) + " ms, TextMatcher "
+                    + millis(exactNanos / ITERATIONS) + " ms; ignoring case: Pattern "
+                    + millis(patternNanos / ITERATIONS) + " ms, TextMatcher "
+                    + millis(foldedNanos / ITERATIONS) + " ms");
+        }
+    }
+
+    /*
+     * Types a query a character at a time, searching after each one from scratch and by
+     * refining the previous matches, and reports the total time of each.
+     */
+    public void testIncremental10MB() {
+        String query = "Line 4242 of";
+        TextMatcher.Matches previous = null;
+        long fullNanos = 0;
+        long refineNanos = 0;
+        for (int n = 1; n <= query.length(); n++) {
+            TextMatcher matcher = TextMatcher.compile(query.substring(0, n), false, true);
+            long start = System.nanoTime();
+            TextMatcher.Matches full = matcher.findAll(sText);
+            fullNanos += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            TextMatcher.Matches refined = matcher.refine(sText, previous);
+            refineNanos += System.nanoTime() - start;
+            assertEquals(full.count, refined.count);
+            previous = refined;
+        }
+        Log.i(TAG, "type \"" + query + "\" over " + LENGTH + " chars: full search "
+                + millis(fullNanos) + " ms, refined " + millis(refineNanos) + " ms");
+    }
+
+    /*
+     * Finds a regular expression without a time budget and with the default one, and reports
+     * the time of each and whether the budget ran out.
+     */
+    public void testRegex10MB() throws Exception {
+        // A search that timed out in another test may still be running in the background
+        while (TextMatcher.isRegexBusy()) {
+            Thread.sleep(50);
+        }
+        TextMatcher unbounded = TextMatcher.compile("Line 4242\\d* of", true, false,
+                Long.MAX_VALUE);
+        TextMatcher budgeted = TextMatcher.compile("Line 4242\\d* of", true, false);
+        unbounded.findAll(sText);
+
+        long start = System.nanoTime();
+        TextMatcher.Matches all = unbounded.findAll(sText);
+        long unboundedNanos = System.nanoTime() - start;
+        assertFalse(all.timedOut);
+
+        start = System.nanoTime();
+        TextMatcher.Matches some = budgeted.findAll(sText);
+        long budgetedNanos = System.nanoTime() - start;
+        assertTrue(some.count <= all.count);
+
+        Log.i(TAG, "regex in " + LENGTH + " chars: " + all.count + " matches in "
+                + millis(unboundedNanos) + " ms; with a budget of "
+                + TextMatcher.REGEX_BUDGET_MILLIS + " ms, " + some.count + " matches in "
+                + millis(budgetedNanos) + " ms" + (some.timedOut ? ", timed out" : ""));
+    }
+
+    // Every occurrence, including overlapping ones, as TextMatcher counts them
+    private static int indexOfCount(String query) {
+        int count = 0;
+        for (int i = sText.indexOf(query); i >= 0; i = sText.indexOf(query, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    private static int patternCount(Pattern pattern) {
+        int count = 0;
+        Matcher m = pattern.matcher(sText);
+        while (m.find()) {
+            count++;
+        }
+        return count;
+    }
+
+    private static long millis(long nanos) {
+        return nanos / 1000000;
+    }
+}
@@ -0,0 +1,196 @@
+package com.example.android.notepad;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests that TextMatcher finds the same occurrences as String.indexOf, across the blocks it
+ * scans and with case ignored, that refining a grown query agrees with a full search, and that
+ * regular expressions stop at their time budget, run one at a time and expand groups when
+ * replacing.
+ */
+public class TextMatcherTest extends TestCase {
+
+    // How long to wait for a regular expression that timed out to finish in the background
+    private static final long IDLE_TIMEOUT_MILLIS = 60000;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // A search that timed out in an earlier test may still be running, and would make the
+        // regular expressions here report busy
+        awaitRegexIdle();
+    }
+
+    public void testLiteralMatchesIndexOf() {
+        Random random = new Random(3);
+        // Longer than a few blocks, so that some occurrences straddle block boundaries
+        String text = randomText(random, 200000, "ab \n");
+        for (int i = 0; i < 200; i++) {
+            // Long enough to occur fewer than MAX_MATCHES times
+            String query = randomText(random, 3 + random.nextInt(6), "ab \n");
+            TextMatcher.Matches matches = TextMatcher.compile(query, false, false).findAll(text);
+            List<Integer> expected = occurrences(text, query);
+            assertFalse(matches.truncated);
+            assertEquals(query, expected.size(), matches.occurrenceCount);
+            for (int j = 0; j < expected.size(); j++) {
+                assertEquals(query, (int) expected.get(j), matches.occurrences[j]);
+            }
+            assertNonOverlapping(text, query, matches);
+        }
+    }
+
+    public void testIgnoreCase() {
+        String text = "Hello HELLO hello hElLo Ärger ärger";
+        assertEquals(4, TextMatcher.compile("hello", false, true).findAll(text).count);
+        assertEquals(1, TextMatcher.compile("hello", false, false).findAll(text).count);
+        assertEquals(2, TextMatcher.compile("ärger", false, true).findAll(text).count);
+        assertEquals(4, TextMatcher.compile("HELLO", true, true).findAll(text).count);
+    }
+
+    public void testRefineAgreesWithFindAll() {
+        Random random = new Random(5);
+        String text = randomText(random, 15000, "aab\n");
+        String[][] growing = {
+            { "a", "aa", "aab", "aab\n", "aab\na" },
+            { "b", "b\n", "b\na", "b\naa" },
+        };
+        for (String[] queries : growing) {
+            TextMatcher.Matches previous = null;
+            for (String query : queries) {
+                TextMatcher matcher = TextMatcher.compile(query, false, false);
+                TextMatcher.Matches refined = matcher.refine(text, previous);
+                TextMatcher.Matches full = matcher.findAll(text);
+                assertEquals(query, full.count, refined.count);
+                for (int i = 0; i < full.count; i++) {
+                    assertEquals(query, full.starts[i], refined.starts[i]);
+                }
+                previous = refined;
+            }
+        }
+
+        // Overlapping occurrences: "aa" matches at 0 only, as matches don't overlap, but
+        // "aab" starts at 1
+        TextMatcher.Matches matches = TextMatcher.compile("aa", false, false).findAll("aaab");
+        assertEquals(1, matches.count);
+        matches = TextMatcher.compile("aab", false, false).refine("aaab", matches);
+        assertEquals(1, matches.count);
+        assertEquals(1, matches.starts[0]);
+    }
+
+    public void testTruncatesManyMatches() {
+        char[] chars = new char[TextMatcher.MAX_MATCHES * 2];
+        Arrays.fill(chars, 'x');
+        TextMatcher.Matches matches =
+                TextMatcher.compile("x", false, false).findAll(new String(chars));
+        assertTrue(matches.truncated);
+        assertEquals(TextMatcher.MAX_MATCHES, matches.count);
+
+        matches = TextMatcher.compile("x+?", true, false).findAll(new String(chars));
+        assertTrue(matches.truncated);
+        assertEquals(TextMatcher.MAX_MATCHES, matches.count);
+    }
+
+    public void testRegex() {
+        TextMatcher.Matches matches = TextMatcher.compile("\\d+", true, false)
+                .findAll("a1 b22 c333");
+        assertEquals(3, matches.count);
+        assertEquals(1, matches.starts[0]);
+        assertEquals(2, matches.ends[0]);
+        assertEquals(8, matches.starts[2]);
+        assertEquals(11, matches.ends[2]);
+
+        // Empty matches can't be highlighted, and are skipped
+        assertEquals(0, TextMatcher.compile("x*", true, false).findAll("abc").count);
+        // Lines are anchored separately
+        assertEquals(2, TextMatcher.compile("^#", true, false).findAll("# a\ntext\n# b").count);
+    }
+
+    public void testRegexStopsAtBudget() throws Exception {
+        // Backtracks exponentially in the run of a's, the back reference defeating any
+        // memoization, for seconds rather than forever, since the search may only stop once it
+        // finishes
+        StringBuilder text = new StringBuilder("ab ");
+        for (int i = 0; i < 24; i++) {
+            text.append('a');
+        }
+        text.append('c');
+        TextMatcher.Matches matches = TextMatcher.compile("(x?)(a|a\\1)+b", true, false, 50)
+                .findAll(text);
+        assertTrue(matches.timedOut);
+        // The match found before the budget ran out is kept, but isn't replaced: matching the
+        // pattern again would most likely run out of time too
+        assertEquals(1, matches.count);
+        assertNull(matches.matcher.replace(text, matches, 0, 0, "x"));
+
+        // While the search that timed out is still running, another isn't started
+        matches = TextMatcher.compile("a", true, false).findAll("aaa");
+        assertEquals(matches.busy ? 0 : 3, matches.count);
+        awaitRegexIdle();
+        matches = TextMatcher.compile("a", true, false).findAll("aaa");
+        assertFalse(matches.busy);
+        assertEquals(3, matches.count);
+    }
+
+    public void testReplace() {
+        String text = "one fish two fish";
+        TextMatcher matcher = TextMatcher.compile("fish", false, false);
+        TextMatcher.Matches matches = matcher.findAll(text);
+        assertEquals("cat two cat", matcher.replace(text, matches, 0, 1, "cat"));
+        assertEquals("cat", matcher.replace(text, matches, 1, 1, "cat"));
+
+        text = "ann@home bob@work";
+        matcher = TextMatcher.compile("(\\w+)@(\\w+)", true, false);
+        matches = matcher.findAll(text);
+        assertEquals("home: ann $ work: bob $",
+                matcher.replace(text, matches, 0, 1, "$2: $1 \\$"));
+
+        // Matches that no longer line up with the text aren't replaced with the unexpanded
+        // replacement
+        matches = matcher.findAll("ann@home bob@work");
+        assertNull(matcher.replace("ann@home bobby@work", matches, 0, 1, "$2"));
+        assertNull(matcher.replace("ann", matches, 0, 1, "$2"));
+        assertEquals("work", matcher.replace(text, matches, 1, 1, "$2"));
+    }
+
+    private static void awaitRegexIdle() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + IDLE_TIMEOUT_MILLIS;
+        while (TextMatcher.isRegexBusy() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertFalse(TextMatcher.isRegexBusy());
+    }
+
+    private static String randomText(Random random, int length, String alphabet) {
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            text.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return text.toString();
+    }
+
+    // Every position the query occurs at, including overlapping ones
+    private static List<Integer> occurrences(String text, String query) {
+        List<Integer> result = new ArrayList<>();
+        for (int i = text.indexOf(query); i >= 0; i = text.indexOf(query, i + 1)) {
+            result.add(i);
+        }
+        return result;
+    }
+
+    // The matches are the occurrences taken from left to right without overlapping
+    private static void assertNonOverlapping(String text, String query,
+            TextMatcher.Matches matches) {
+        int n = 0;
+        for (int i = text.indexOf(query); i >= 0; i = text.indexOf(query, i + query.length())) {
+            assertEquals(query, i, matches.starts[n]);
+            assertEquals(query, i + query.length(), matches.ends[n]);
+            n++;
+        }
+        assertEquals(query, n, matches.count);
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.android.notepad;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Compares TimestampFormatter with the SimpleDateFormat and new Date() path that the list and
+ * the editor used before, on the modification times of a list of notes. The results are written
+ * to the log under the tag "NotePadBenchmark".
+ */
+public class TimestampFormatterBenchmark extends TestCase {
+
+    // The log tag that benchmark results are reported under
+    private static final String TAG = "NotePadBenchmark";
+
+    // The number of timestamps formatted per pass, and the number of passes
+    private static final int TIMESTAMPS = 10000;
+    private static final int ITERATIONS = 20;
+
+    /*
+     * Formats timestamps a few minutes apart over about two months, as a list of notes shows
+     * them, with each path, and reports the time per timestamp.
+     */
+    public void testFormatListTimestamps() {
+        TimeZone zone = TimeZone.getDefault();
+        long now = System.currentTimeMillis();
+        Random random = new Random(7);
+        long[] timestamps = new long[TIMESTAMPS];
+        long time = now;
+        for (int i = 0; i < TIMESTAMPS; i++) {
+            timestamps[i] = time;
+            time -= random.nextInt(15 * 60000);
+        }
+
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm", Locale.getDefault());
+        dateFormat.setTimeZone(zone);
+        TimestampFormatter formatter = new TimestampFormatter(zone);
+        char[] buffer = new char[TimestampFormatter.MAX_LENGTH];
+
+        // Warm up each path, and check that they agree
+        int length = 0;
+        for (long timestamp : timestamps) {
+            String text = dateFormat.format(new Date(timestamp));
+            assertEquals(text, new String(buffer, 0, formatter.format(timestamp, buffer)));
+            length += formatter.formatRelative(timestamp, now, buffer);
+        }
+        assertTrue(length > 0);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (long timestamp : timestamps) {
+                length += dateFormat.format(new Date(timestamp)).length();
+            }
+        }
+        long simpleNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (long timestamp : timestamps) {
+                length += formatter.format(timestamp, buffer);
+            }
+        }
+        long formatterNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (long timestamp : timestamps) {
+                length += formatter.formatRelative(timestamp, now, buffer);
+            }
+        }
+        long relativeNanos = System.nanoTime() - start;
+        assertTrue(length > 0);
+
+        int count = TIMESTAMPS * ITERATIONS;
+        Log.i(TAG, "format " + count + " timestamps: SimpleDateFormat " + simpleNanos / count
+                + " ns each, TimestampFormatter " + formatterNanos / count
+                + " ns each, relative " + relativeNanos / count + " ns each");
+    }
+}
@@ -0,0 +1,74 @@
+package com.example.android.notepad;
+
+import junit.framework.TestCase;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Tests that TimestampFormatter writes the same text as SimpleDateFormat, including across
+ * daylight saving transitions and before 1970, and that it labels today and yesterday.
+ */
+public class TimestampFormatterTest extends TestCase {
+
+    // Zones with and without daylight saving time, on both sides of UTC
+    private static final String[] ZONES = {
+        "Asia/Shanghai", "UTC", "America/New_York", "Europe/London", "Australia/Lord_Howe",
+        "Asia/Kolkata", "Pacific/Chatham"
+    };
+
+    private static final long HOUR_MILLIS = 60 * 60 * 1000L;
+
+    public void testMatchesSimpleDateFormat() {
+        Random random = new Random(42);
+        char[] buffer = new char[TimestampFormatter.MAX_LENGTH];
+        for (String id : ZONES) {
+            TimeZone zone = TimeZone.getTimeZone(id);
+            TimestampFormatter formatter = new TimestampFormatter(zone);
+            SimpleDateFormat expected = new SimpleDateFormat("yyyy-MM-dd HH:mm", Locale.US);
+            expected.setTimeZone(zone);
+
+            // Random times from 1900 to 2100, and every half hour through 2021, which has
+            // every daylight saving transition of these zones
+            for (int i = 0; i < 5000; i++) {
+                long millis = -2208988800000L + (long) (random.nextDouble() * 6311433600000L);
+                assertFormat(expected, formatter, buffer, millis);
+            }
+            for (long millis = 1609459200000L; millis < 1640995200000L; millis += HOUR_MILLIS / 2) {
+                assertFormat(expected, formatter, buffer, millis);
+            }
+        }
+    }
+
+    public void testRelativeLabels() {
+        TimestampFormatter formatter = new TimestampFormatter(TimeZone.getTimeZone("UTC"));
+        char[] buffer = new char[TimestampFormatter.MAX_LENGTH];
+        // 2021-03-15 10:30 UTC
+        long now = 1615804200000L;
+
+        assertEquals("今天 08:05", text(buffer,
+                formatter.formatRelative(now - 2 * HOUR_MILLIS - 25 * 60000L, now, buffer)));
+        assertEquals("今天 00:00", text(buffer,
+                formatter.formatRelative(now - 10 * HOUR_MILLIS - 30 * 60000L, now, buffer)));
+        assertEquals("昨天 23:59", text(buffer,
+                formatter.formatRelative(now - 10 * HOUR_MILLIS - 31 * 60000L, now, buffer)));
+        assertEquals("2021-03-13 23:59", text(buffer,
+                formatter.formatRelative(now - 34 * HOUR_MILLIS - 31 * 60000L, now, buffer)));
+        assertEquals(formatter.dayOf(now), formatter.dayOf(now - 10 * HOUR_MILLIS));
+        assertEquals(formatter.dayOf(now) - 1, formatter.dayOf(now - 11 * HOUR_MILLIS));
+    }
+
+    private static void assertFormat(SimpleDateFormat expected, TimestampFormatter formatter,
+                                     char[] buffer, long millis) {
+        String text = expected.format(new Date(millis));
+        assertEquals(text, text(buffer, formatter.format(millis, buffer)));
+        assertEquals(text, formatter.format(millis));
+    }
+
+    private static String text(char[] buffer, int length) {
+        return new String(buffer, 0, length);
+    }
+}
@@ -0,0 +1,251 @@
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 笔记编辑时的后台自动保存（write-behind）。
+ * <p>
+ * 每次编辑只调用 {@link #onEdit()} 记下"有未保存的修改"，并不立即读取文本。停止输入
+ * IDLE_MILLIS 后才保存一次；持续输入时，距第一次未保存的修改最多 MAX_LATENCY_MILLIS 也会保存一次，
+ * 这样进程被杀时最多丢失这么长时间的输入。保存时在主线程通过 {@link Source} 取得当前内容，
+ * 再交给所有笔记共用的单个后台写线程写入数据库。
+ * <p>
+ * 每篇笔记最多只有一个等待中的写入：写线程还没开始写时又有新的保存，新内容直接替换等待中的内容。
+ * {@link #flush()} 和 {@link #writeNow(ContentValues)} 在调用线程同步写入，并保证排在已经开始的
+ * 后台写入之后，用于 onPause() 等必须立即落盘的场合。
+ * <p>
+ * 统计编辑次数、实际写入次数（其余的编辑都被合并或判定为无变化而省掉了）和写入耗时，
+ * 在 {@link #release()} 时写入日志。除写入本身外，所有方法都只能在主线程调用。
+ */
+public class AutosaveScheduler {
+
+    /**
+     * 在主线程提供要保存的内容
+     */
+    public interface Source {
+        /**
+         * @return 要写入笔记的值；内容与已保存的相同时返回 null，不写入
+         */
+        ContentValues takeSnapshot();
+    }
+
+    // 日志标签
+    private static final String TAG = "AutosaveScheduler";
+
+    // 停止输入多久后保存（毫秒）
+    static final long IDLE_MILLIS = 2000;
+
+    // 持续输入时，未保存的修改最多保留多久（毫秒）
+    static final long MAX_LATENCY_MILLIS = 10000;
+
+    // 所有笔记共用的后台写线程，保证同一时刻最多只有一个自动保存在写数据库
+    private static ExecutorService sWriter;
+
+    private final ContentResolver mResolver;
+    private final Uri mUri;
+    private final Source mSource;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // 写入耗时
+    private final LatencyRecorder mLatency = new LatencyRecorder("autosave write", 100);
+
+    // 写入时持有，使同步写入排在已经开始的后台写入之后
+    private final Object mWriteLock = new Object();
+
+    // 等待后台写线程写入的内容，由 this 保护
+    private ContentValues mPending;
+
+    // 第一次未保存的修改的时间，没有未保存的修改时为 0
+    private long mDirtySince;
+
+    // 编辑次数和实际写入次数，由 this 保护
+    private int mEdits;
+    private int mWrites;
+
+    // 到时间后取得内容并交给写线程
+    private final Runnable mSave;
+
+    // 在写线程上写入等待中的内容
+    private final Runnable mWritePending = () -> {
+        synchronized (mWriteLock) {
+            ContentValues values;
+            synchronized (AutosaveScheduler.this) {
+                values = mPending;
+                mPending = null;
+            }
+            // 已经被同步写入取走或被取消
+            if (values != null) {
+                write(values);
+            }
+        }
+    };
+
+    public AutosaveScheduler(ContentResolver resolver, Uri uri, Source source) {
+        mResolver = resolver;
+        mUri = uri;
+        mSource = source;
+        mSave = () -> {
+            mDirtySince = 0;
+            ContentValues values = mSource.takeSnapshot();
+            if (values != null) {
+                enqueue(values);
+            }
+        };
+    }
+
+    /**
+     * 内容被编辑时调用，安排之后的保存
+     */
+    public void onEdit() {
+        synchronized (this) {
+            mEdits++;
+        }
+        long now = SystemClock.uptimeMillis();
+        if (mDirtySince == 0) {
+            mDirtySince = now;
+        }
+
+        // 每次编辑都把保存推迟到停止输入 IDLE_MILLIS 之后，但不晚于最大延迟
+        long delay = Math.min(IDLE_MILLIS, mDirtySince + MAX_LATENCY_MILLIS - now);
+        mMainHandler.removeCallbacks(mSave);
+        mMainHandler.postDelayed(mSave, Math.max(0, delay));
+    }
+
+    /**
+     * 立即在当前线程保存当前内容（如果有变化）。返回时所有修改都已写入数据库，
+     * 包括之前交给写线程、正在写或还没开始写的内容。
+     */
+    public void flush() {
+        mMainHandler.removeCallbacks(mSave);
+        mDirtySince = 0;
+        ContentValues values = mSource.takeSnapshot();
+        synchronized (mWriteLock) {
+            synchronized (this) {
+                // 没有新内容时，写入之前交给写线程但还没开始写的内容
+                if (values == null) {
+                    values = mPending;
+                }
+                mPending = null;
+            }
+            if (values != null) {
+                write(values);
+            }
+        }
+    }
+
+    /**
+     * 在当前线程写入给定的值，取代等待中的自动保存。会等待已经开始的后台写入完成，
+     * 因此写入顺序与调用顺序一致。
+     */
+    public void writeNow(ContentValues values) {
+        mMainHandler.removeCallbacks(mSave);
+        mDirtySince = 0;
+        synchronized (mWriteLock) {
+            synchronized (this) {
+                mPending = null;
+            }
+            write(values);
+        }
+    }
+
+    /**
+     * 放弃尚未写入的自动保存，例如笔记即将被删除时
+     */
+    public void cancel() {
+        mMainHandler.removeCallbacks(mSave);
+        mDirtySince = 0;
+        synchronized (this) {
+            mPending = null;
+        }
+    }
+
+    /**
+     * 放弃尚未写入的自动保存，并把统计写入日志。应在 {@link #flush()} 之后调用。
+     */
+    public void release() {
+        cancel();
+        Log.i(TAG, summary());
+    }
+
+    /**
+     * 编辑次数
+     */
+    public synchronized int getEditCount() {
+        return mEdits;
+    }
+
+    /**
+     * 实际写入数据库的次数
+     */
+    public synchronized int getSavesPerformed() {
+        return mWrites;
+    }
+
+    /**
+     * 省掉的写入次数：每次编辑都保存时需要的写入次数减去实际写入次数
+     */
+    public synchronized int getSavesAvoided() {
+        return Math.max(0, mEdits - mWrites);
+    }
+
+    /**
+     * 写入耗时统计
+     */
+    public LatencyRecorder getLatencyRecorder() {
+        return mLatency;
+    }
+
+    /**
+     * 返回一行统计摘要，例如 "autosave: edits=120 saves=4 avoided=116, autosave write: ..."
+     */
+    public String summary() {
+        synchronized (this) {
+            return "autosave: edits=" + mEdits + " saves=" + mWrites
+                    + " avoided=" + Math.max(0, mEdits - mWrites) + ", " + mLatency.summary();
+        }
+    }
+
+    // 把内容交给写线程；已有等待中的内容时直接替换，不再提交新任务
+    private void enqueue(ContentValues values) {
+        boolean scheduled;
+        synchronized (this) {
+            scheduled = mPending != null;
+            mPending = values;
+        }
+        if (!scheduled) {
+            writer().execute(mWritePending);
+        }
+    }
+
+    // 写入数据库并记录耗时，调用方持有 mWriteLock
+    private void write(ContentValues values) {
+        long start = SystemClock.uptimeMillis();
+        mResolver.update(mUri, values, null, null);
+        mLatency.record(SystemClock.uptimeMillis() - start);
+        synchronized (this) {
+            mWrites++;
+        }
+    }
+
+    // 返回共用的写线程，第一次使用时创建
+    private static synchronized ExecutorService writer() {
+        if (sWriter == null) {
+            sWriter = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "NoteAutosave");
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            });
+        }
+        return sWriter;
+    }
+}
@@ -0,0 +1,589 @@
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * The ordered chain of schema migrations for the Note Pad database. Each {@link Migration}
+ * upgrades the schema from the version before it to {@link Migration#version}, and the chain is
+ * walked one step at a time from the version on disk to
+ * {@link NotePadProvider#DATABASE_VERSION}. A fresh database is created at
+ * {@link #BASE_VERSION} and walked up the same chain, so new and upgraded installs always end
+ * up with the same schema.
+ * <p>
+ * A step only changes the schema inside the upgrade. Data that has to be derived from existing
+ * notes (index entries, derived columns) is filled in afterwards by {@link #runBackfills} in
+ * small batches, so that opening the database after an upgrade is not blocked on a rewrite of
+ * every note. Every step, and the time it and its backfill took, is recorded in the
+ * {@link #LOG_TABLE_NAME} table.
+ * <p>
+ * Steps must never change once released. To change the schema, append a new step and bump
+ * {@link NotePadProvider#DATABASE_VERSION}.
+ */
+final class DatabaseMigrations {
+    // Used for debugging and logging
+    private static final String TAG = "DatabaseMigrations";
+
+    /**
+     * The oldest database version that can be upgraded in place. Older databases are recreated.
+     */
+    static final int BASE_VERSION = 2;
+
+    /**
+     * The number of notes that a backfill processes in one transaction
+     */
+    static final int BACKFILL_BATCH_SIZE = 500;
+
+    /**
+     * The table that records the migrations applied to the database
+     */
+    static final String LOG_TABLE_NAME = "schema_migrations";
+
+    /*
+     * Column definitions for the migration log
+     */
+    static final String COLUMN_VERSION = "version";
+    static final String COLUMN_NAME = "name";
+    static final String COLUMN_APPLIED = "applied";
+    static final String COLUMN_MIGRATE_MILLIS = "migrate_ms";
+    static final String COLUMN_BACKFILL_POSITION = "backfill_position";
+    static final String COLUMN_BACKFILL_END = "backfill_end";
+    static final String COLUMN_BACKFILL_MILLIS = "backfill_ms";
+    static final String COLUMN_BACKFILL_DONE = "backfill_done";
+
+    /**
+     * One step of the migration chain.
+     */
+    abstract static class Migration {
+        /**
+         * The database version that this step upgrades to
+         */
+        final int version;
+
+        /**
+         * A short description of the step, recorded in the migration log
+         */
+        final String name;
+
+        Migration(int version, String name) {
+            this.version = version;
+            this.name = name;
+        }
+
+        /**
+         * Changes the schema. Runs inside a transaction, and must not rewrite existing notes.
+         */
+        abstract void migrate(SQLiteDatabase db);
+
+        /**
+         * Returns true if this step derives data from the notes that existed when it ran.
+         */
+        boolean hasBackfill() {
+            return false;
+        }
+
+        /**
+         * Derives this step's data for the notes whose _ID is greater than fromId and at most
+         * toId. Runs inside a transaction, possibly long after {@link #migrate}, while the
+         * provider is in use. Notes inserted or updated by the provider in the meantime already
+         * have their derived data, so the backfill must be safe to apply to them again.
+         */
+        void backfill(SQLiteDatabase db, long fromId, long toId) {
+        }
+    }
+
+    /**
+     * The migration chain, in version order.
+     */
+    private static final Migration[] MIGRATIONS = {
+
+        // Version 3 adds an FTS4 shadow table of the title and note columns, and the triggers
+        // that keep it in sync with the notes table.
+        new Migration(3, "full-text index") {
+            @Override
+            void migrate(SQLiteDatabase db) {
+                db.execSQL("CREATE VIRTUAL TABLE " + NotePadProvider.FTS_TABLE_NAME + " USING fts4("
+                        + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                        + NotePad.Notes.COLUMN_NAME_NOTE
+                        + ");");
+
+                db.execSQL("CREATE TRIGGER notes_fts_insert AFTER INSERT ON "
+                        + NotePad.Notes.TABLE_NAME + " BEGIN "
+                        + "INSERT INTO " + NotePadProvider.FTS_TABLE_NAME + " (docid, "
+                        + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE
+                        + ") VALUES (new." + NotePad.Notes._ID + ", new."
+                        + NotePad.Notes.COLUMN_NAME_TITLE + ", new."
+                        + NotePad.Notes.COLUMN_NAME_NOTE + "); END;");
+
+                // Only fires when the indexed text changes, not when just a timestamp is touched
+                db.execSQL("CREATE TRIGGER notes_fts_update AFTER UPDATE OF "
+                        + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE
+                        + " ON " + NotePad.Notes.TABLE_NAME + " BEGIN "
+                        + "UPDATE " + NotePadProvider.FTS_TABLE_NAME + " SET "
+                        + NotePad.Notes.COLUMN_NAME_TITLE + " = new."
+                        + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                        + NotePad.Notes.COLUMN_NAME_NOTE + " = new."
+                        + NotePad.Notes.COLUMN_NAME_NOTE
+                        + " WHERE docid = new." + NotePad.Notes._ID + "; END;");
+
+                db.execSQL("CREATE TRIGGER notes_fts_delete AFTER DELETE ON "
+                        + NotePad.Notes.TABLE_NAME + " BEGIN "
+                        + "DELETE FROM " + NotePadProvider.FTS_TABLE_NAME
+                        + " WHERE docid = old." + NotePad.Notes._ID + "; END;");
+            }
+
+            @Override
+            boolean hasBackfill() {
+                return true;
+            }
+
+            @Override
+            void backfill(SQLiteDatabase db, long fromId, long toId) {
+                // Notes in the range that were updated since the migration are not in the index
+                // either, because the update trigger only updates existing index rows.
+                db.execSQL("INSERT INTO " + NotePadProvider.FTS_TABLE_NAME + " (docid, "
+                        + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE
+                        + ") SELECT " + NotePad.Notes._ID + ", " + NotePad.Notes.COLUMN_NAME_TITLE
+                        + ", " + NotePad.Notes.COLUMN_NAME_NOTE
+                        + " FROM " + NotePad.Notes.TABLE_NAME
+                        + " WHERE " + NotePad.Notes._ID + " > ? AND " + NotePad.Notes._ID + " <= ?",
+                        new Object[] { fromId, toId });
+            }
+        },
+
+        // Version 4 adds the preview, body length and body hash columns, so that lists can show
+        // and compare notes without reading their bodies.
+        new Migration(4, "note previews") {
+            @Override
+            void migrate(SQLiteDatabase db) {
+                db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                        + NotePad.Notes.COLUMN_NAME_PREVIEW + " TEXT");
+                db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                        + NotePad.Notes.COLUMN_NAME_BODY_LENGTH + " INTEGER");
+                db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                        + NotePad.Notes.COLUMN_NAME_BODY_HASH + " INTEGER");
+            }
+
+            @Override
+            boolean hasBackfill() {
+                return true;
+            }
+
+            @Override
+            void backfill(SQLiteDatabase db, long fromId, long toId) {
+                SQLiteStatement update = db.compileStatement("UPDATE " + NotePad.Notes.TABLE_NAME
+                        + " SET " + NotePad.Notes.COLUMN_NAME_PREVIEW + " = ?, "
+                        + NotePad.Notes.COLUMN_NAME_BODY_LENGTH + " = ?, "
+                        + NotePad.Notes.COLUMN_NAME_BODY_HASH + " = ? WHERE "
+                        + NotePad.Notes._ID + " = ?");
+                // Notes whose text the provider has written since already have a hash. Their
+                // text may no longer be in the note column, if it is stored in chunks.
+                Cursor c = db.query(NotePad.Notes.TABLE_NAME,
+                        new String[] { NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_NOTE },
+                        NotePad.Notes._ID + " > " + fromId + " AND "
+                                + NotePad.Notes._ID + " <= " + toId + " AND "
+                                + NotePad.Notes.COLUMN_NAME_BODY_HASH + " IS NULL",
+                        null, null, null, null);
+                try {
+                    while (c.moveToNext()) {
+                        String note = c.getString(1);
+                        update.bindString(1, TextDigest.preview(note, NotePad.Notes.PREVIEW_LENGTH));
+                        update.bindLong(2, note == null ? 0 : note.length());
+                        update.bindLong(3, NoteChunks.bodyHash(note));
+                        update.bindLong(4, c.getLong(0));
+                        update.executeUpdateDelete();
+                    }
+                } finally {
+                    c.close();
+                    update.close();
+                }
+            }
+        },
+
+        // Version 5 indexes the notes list order, so that the list and each of its pages are
+        // read in order from the index instead of sorting the whole table.
+        new Migration(5, "modified index") {
+            @Override
+            void migrate(SQLiteDatabase db) {
+                db.execSQL("CREATE INDEX notes_modified ON " + NotePad.Notes.TABLE_NAME + " ("
+                        + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ", "
+                        + NotePad.Notes._ID + ");");
+            }
+        },
+
+        // Version 6 adds the title sort key, and indexes it and the creation date so that the
+        // other list orders are read from an index too.
+        new Migration(6, "title and created indexes") {
+            @Override
+            void migrate(SQLiteDatabase db) {
+                db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                        + NotePad.Notes.COLUMN_NAME_TITLE_KEY + " TEXT");
+                db.execSQL("CREATE INDEX notes_created ON " + NotePad.Notes.TABLE_NAME + " ("
+                        + NotePad.Notes.COLUMN_NAME_CREATE_DATE + ");");
+                db.execSQL("CREATE INDEX notes_title_key ON " + NotePad.Notes.TABLE_NAME + " ("
+                        + NotePad.Notes.COLUMN_NAME_TITLE_KEY + ");");
+            }
+
+            @Override
+            boolean hasBackfill() {
+                return true;
+            }
+
+            @Override
+            void backfill(SQLiteDatabase db, long fromId, long toId) {
+                SQLiteStatement update = db.compileStatement("UPDATE " + NotePad.Notes.TABLE_NAME
+                        + " SET " + NotePad.Notes.COLUMN_NAME_TITLE_KEY + " = ? WHERE "
+                        + NotePad.Notes._ID + " = ?");
+                Cursor c = db.query(NotePad.Notes.TABLE_NAME,
+                        new String[] { NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_TITLE },
+                        NotePad.Notes._ID + " > " + fromId + " AND "
+                                + NotePad.Notes._ID + " <= " + toId,
+                        null, null, null, null);
+                try {
+                    while (c.moveToNext()) {
+                        update.bindString(1, TextDigest.titleKey(c.getString(1)));
+                        update.bindLong(2, c.getLong(0));
+                        update.executeUpdateDelete();
+                    }
+                } finally {
+                    c.close();
+                    update.close();
+                }
+            }
+        },
+
+        // Version 7 adds chunked storage of large notes: the table of chunks, a column that says
+        // how each note's text is stored, and a column that marks chunked notes whose text the
+        // full-text index doesn't have yet. The index update trigger is replaced by one that
+        // leaves the indexed text of a chunked note alone, since its note column is empty.
+        new Migration(7, "chunked notes") {
+            @Override
+            void migrate(SQLiteDatabase db) {
+                db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                        + NotePadProvider.COLUMN_BODY_FORMAT + " INTEGER NOT NULL DEFAULT "
+                        + NotePadProvider.BODY_FORMAT_INLINE);
+                db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                        + NotePadProvider.COLUMN_FTS_STALE + " INTEGER NOT NULL DEFAULT 0");
+                db.execSQL("CREATE INDEX notes_fts_stale ON " + NotePad.Notes.TABLE_NAME + " ("
+                        + NotePadProvider.COLUMN_FTS_STALE + ");");
+
+                db.execSQL("CREATE TABLE " + NoteChunks.TABLE_NAME + " ("
+                        + NoteChunks.COLUMN_NOTE_ID + " INTEGER NOT NULL,"
+                        + NoteChunks.COLUMN_SEQ + " INTEGER NOT NULL,"
+                        + NoteChunks.COLUMN_HASH + " INTEGER NOT NULL,"
+                        + NoteChunks.COLUMN_CONTENT + " TEXT,"
+                        + "PRIMARY KEY (" + NoteChunks.COLUMN_NOTE_ID + ", "
+                        + NoteChunks.COLUMN_SEQ + ")"
+                        + ");");
+
+                db.execSQL("CREATE TRIGGER note_chunks_delete AFTER DELETE ON "
+                        + NotePad.Notes.TABLE_NAME + " BEGIN "
+                        + "DELETE FROM " + NoteChunks.TABLE_NAME
+                        + " WHERE " + NoteChunks.COLUMN_NOTE_ID + " = old." + NotePad.Notes._ID
+                        + "; END;");
+
+                db.execSQL("DROP TRIGGER notes_fts_update");
+                db.execSQL("CREATE TRIGGER notes_fts_update AFTER UPDATE OF "
+                        + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE
+                        + " ON " + NotePad.Notes.TABLE_NAME + " BEGIN "
+                        + "UPDATE " + NotePadProvider.FTS_TABLE_NAME + " SET "
+                        + NotePad.Notes.COLUMN_NAME_TITLE + " = new."
+                        + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                        + NotePad.Notes.COLUMN_NAME_NOTE + " = CASE new."
+                        + NotePadProvider.COLUMN_BODY_FORMAT + " WHEN "
+                        + NotePadProvider.BODY_FORMAT_CHUNKED + " THEN "
+                        + NotePad.Notes.COLUMN_NAME_NOTE + " ELSE new."
+                        + NotePad.Notes.COLUMN_NAME_NOTE + " END"
+                        + " WHERE docid = new." + NotePad.Notes._ID + "; END;");
+            }
+        },
+
+        // Version 8 adds the revision history of notes, and the trigger that deletes a note's
+        // revisions along with it.
+        new Migration(8, "note revisions") {
+            @Override
+            void migrate(SQLiteDatabase db) {
+                db.execSQL("CREATE TABLE " + NoteRevisions.TABLE_NAME + " ("
+                        + NotePad.Revisions._ID + " INTEGER PRIMARY KEY,"
+                        + NotePad.Revisions.COLUMN_NAME_NOTE_ID + " INTEGER NOT NULL,"
+                        + NotePad.Revisions.COLUMN_NAME_CREATE_DATE + " INTEGER,"
+                        + NotePad.Revisions.COLUMN_NAME_TITLE + " TEXT,"
+                        + NotePad.Revisions.COLUMN_NAME_BODY_LENGTH + " INTEGER,"
+                        + NotePad.Revisions.COLUMN_NAME_BODY_HASH + " INTEGER,"
+                        + NoteRevisions.COLUMN_DEPTH + " INTEGER NOT NULL,"
+                        + NoteRevisions.COLUMN_CONTENT + " TEXT"
+                        + ");");
+                db.execSQL("CREATE INDEX note_revisions_note_id ON " + NoteRevisions.TABLE_NAME
+                        + " (" + NotePad.Revisions.COLUMN_NAME_NOTE_ID + ");");
+
+                db.execSQL("CREATE TRIGGER note_revisions_delete AFTER DELETE ON "
+                        + NotePad.Notes.TABLE_NAME + " BEGIN "
+                        + "DELETE FROM " + NoteRevisions.TABLE_NAME
+                        + " WHERE " + NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = old."
+                        + NotePad.Notes._ID + "; END;");
+            }
+        },
+
+        // Version 9 adds compressed storage of note bodies: the column that holds a compressed
+        // note's text, and the table of dictionaries. The index update trigger is replaced by
+        // one that leaves the indexed text of any note that isn't stored in the note column
+        // alone.
+        new Migration(9, "compressed notes") {
+            @Override
+            void migrate(SQLiteDatabase db) {
+                db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                        + NoteCompression.COLUMN_NOTE_DATA + " BLOB");
+
+                db.execSQL("CREATE TABLE " + NoteCompression.DICTIONARY_TABLE_NAME + " ("
+                        + NoteCompression.COLUMN_ADLER + " INTEGER PRIMARY KEY,"
+                        + NoteCompression.COLUMN_CREATED + " INTEGER,"
+                        + NoteCompression.COLUMN_DATA + " BLOB"
+                        + ");");
+
+                db.execSQL("DROP TRIGGER notes_fts_update");
+                db.execSQL("CREATE TRIGGER notes_fts_update AFTER UPDATE OF "
+                        + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE
+                        + " ON " + NotePad.Notes.TABLE_NAME + " BEGIN "
+                        + "UPDATE " + NotePadProvider.FTS_TABLE_NAME + " SET "
+                        + NotePad.Notes.COLUMN_NAME_TITLE + " = new."
+                        + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                        + NotePad.Notes.COLUMN_NAME_NOTE + " = CASE new."
+                        + NotePadProvider.COLUMN_BODY_FORMAT + " WHEN "
+                        + NotePadProvider.BODY_FORMAT_INLINE + " THEN new."
+                        + NotePad.Notes.COLUMN_NAME_NOTE + " ELSE "
+                        + NotePad.Notes.COLUMN_NAME_NOTE + " END"
+                        + " WHERE docid = new." + NotePad.Notes._ID + "; END;");
+            }
+        },
+
+        // Version 10 lets a revision of a chunked note refer to chunks rather than hold its
+        // text: the column that marks such revisions, the table of chunks shared by them, the
+        // table of each revision's chunks in order, and the triggers that delete a revision's
+        // references along with it, and a chunk once nothing refers to it.
+        new Migration(10, "revision chunks") {
+            @Override
+            void migrate(SQLiteDatabase db) {
+                db.execSQL("ALTER TABLE " + NoteRevisions.TABLE_NAME + " ADD COLUMN "
+                        + NoteRevisions.COLUMN_CHUNKED + " INTEGER NOT NULL DEFAULT 0");
+
+                db.execSQL("CREATE TABLE " + NoteRevisions.CHUNKS_TABLE_NAME + " ("
+                        + NoteRevisions.COLUMN_CHUNK_ID + " INTEGER PRIMARY KEY,"
+                        + NoteRevisions.COLUMN_CHUNK_HASH + " INTEGER NOT NULL,"
+                        + NoteRevisions.COLUMN_CHUNK_CONTENT + " TEXT"
+                        + ");");
+                db.execSQL("CREATE INDEX revision_chunks_hash ON "
+                        + NoteRevisions.CHUNKS_TABLE_NAME + " ("
+                        + NoteRevisions.COLUMN_CHUNK_HASH + ");");
+
+                db.execSQL("CREATE TABLE " + NoteRevisions.REFS_TABLE_NAME + " ("
+                        + NoteRevisions.COLUMN_REF_REVISION_ID + " INTEGER NOT NULL,"
+                        + NoteRevisions.COLUMN_REF_SEQ + " INTEGER NOT NULL,"
+                        + NoteRevisions.COLUMN_REF_CHUNK_ID + " INTEGER NOT NULL,"
+                        + "PRIMARY KEY (" + NoteRevisions.COLUMN_REF_REVISION_ID + ", "
+                        + NoteRevisions.COLUMN_REF_SEQ + ")"
+                        + ");");
+                db.execSQL("CREATE INDEX revision_chunk_refs_chunk_id ON "
+                        + NoteRevisions.REFS_TABLE_NAME + " ("
+                        + NoteRevisions.COLUMN_REF_CHUNK_ID + ");");
+
+                db.execSQL("CREATE TRIGGER revision_chunk_refs_delete AFTER DELETE ON "
+                        + NoteRevisions.TABLE_NAME + " BEGIN "
+                        + "DELETE FROM " + NoteRevisions.REFS_TABLE_NAME
+                        + " WHERE " + NoteRevisions.COLUMN_REF_REVISION_ID + " = old."
+                        + NotePad.Revisions._ID + "; END;");
+                db.execSQL("CREATE TRIGGER revision_chunks_delete AFTER DELETE ON "
+                        + NoteRevisions.REFS_TABLE_NAME + " BEGIN "
+                        + "DELETE FROM " + NoteRevisions.CHUNKS_TABLE_NAME
+                        + " WHERE " + NoteRevisions.COLUMN_CHUNK_ID + " = old."
+                        + NoteRevisions.COLUMN_REF_CHUNK_ID + " AND NOT EXISTS (SELECT 1 FROM "
+                        + NoteRevisions.REFS_TABLE_NAME + " WHERE "
+                        + NoteRevisions.COLUMN_REF_CHUNK_ID + " = old."
+                        + NoteRevisions.COLUMN_REF_CHUNK_ID + "); END;");
+            }
+        },
+    };
+
+    // This class cannot be instantiated
+    private DatabaseMigrations() {
+    }
+
+    /**
+     * Creates the schema of a {@link #BASE_VERSION} database. This must never change; later
+     * schema changes belong in a new step of the chain.
+     */
+    static void createBaseSchema(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + NotePad.Notes.TABLE_NAME + " ("
+                + NotePad.Notes._ID + " INTEGER PRIMARY KEY,"
+                + NotePad.Notes.COLUMN_NAME_TITLE + " TEXT,"
+                + NotePad.Notes.COLUMN_NAME_NOTE + " TEXT,"
+                + NotePad.Notes.COLUMN_NAME_CREATE_DATE + " INTEGER,"
+                + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " INTEGER"
+                + ");");
+    }
+
+    /**
+     * Walks the chain from oldVersion to newVersion. Each step runs in its own transaction.
+     * When called from {@link android.database.sqlite.SQLiteOpenHelper} these nest inside the
+     * helper's upgrade transaction, so a step that fails rolls the whole upgrade back and the
+     * database stays at oldVersion.
+     *
+     * @throws IllegalArgumentException if the chain has no step that ends at newVersion.
+     */
+    static void migrate(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + LOG_TABLE_NAME + " ("
+                + COLUMN_VERSION + " INTEGER PRIMARY KEY,"
+                + COLUMN_NAME + " TEXT,"
+                + COLUMN_APPLIED + " INTEGER,"
+                + COLUMN_MIGRATE_MILLIS + " INTEGER,"
+                + COLUMN_BACKFILL_POSITION + " INTEGER,"
+                + COLUMN_BACKFILL_END + " INTEGER,"
+                + COLUMN_BACKFILL_MILLIS + " INTEGER,"
+                + COLUMN_BACKFILL_DONE + " INTEGER"
+                + ");");
+
+        int version = oldVersion;
+        for (Migration migration : MIGRATIONS) {
+            if (migration.version <= oldVersion || migration.version > newVersion) {
+                continue;
+            }
+
+            long start = SystemClock.elapsedRealtime();
+            db.beginTransaction();
+            try {
+                migration.migrate(db);
+
+                ContentValues values = new ContentValues();
+                values.put(COLUMN_VERSION, migration.version);
+                values.put(COLUMN_NAME, migration.name);
+                values.put(COLUMN_APPLIED, System.currentTimeMillis());
+                values.put(COLUMN_MIGRATE_MILLIS, SystemClock.elapsedRealtime() - start);
+                values.put(COLUMN_BACKFILL_POSITION, 0L);
+                values.put(COLUMN_BACKFILL_MILLIS, 0L);
+
+                // The backfill covers the notes that exist now. Notes inserted later get their
+                // derived data from the provider.
+                long end = migration.hasBackfill() ? maxNoteId(db) : 0;
+                values.put(COLUMN_BACKFILL_END, end);
+                values.put(COLUMN_BACKFILL_DONE, end > 0 ? 0 : 1);
+                db.replace(LOG_TABLE_NAME, null, values);
+
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            version = migration.version;
+
+            Log.i(TAG, "Migrated to version " + version + " (" + migration.name + ") in "
+                    + (SystemClock.elapsedRealtime() - start) + " ms");
+        }
+
+        if (version != newVersion) {
+            throw new IllegalArgumentException("No migration path from version " + oldVersion
+                    + " to " + newVersion);
+        }
+    }
+
+    /**
+     * Returns true if any migration still has notes left to backfill.
+     */
+    static boolean hasPendingBackfills(SQLiteDatabase db) {
+        Cursor c = db.query(LOG_TABLE_NAME, new String[] { COLUMN_VERSION },
+                COLUMN_BACKFILL_DONE + " = 0", null, null, null, null, "1");
+        try {
+            return c.getCount() > 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Runs every pending backfill to completion, batchSize notes per transaction, resuming
+     * where a previous run left off. This is safe to call while the provider is in use, and is
+     * normally run on a background thread after the database is opened.
+     */
+    static void runBackfills(SQLiteDatabase db, int batchSize) {
+        for (Migration migration : MIGRATIONS) {
+            if (!migration.hasBackfill()) {
+                continue;
+            }
+
+            long position;
+            long end;
+            long millis;
+            Cursor c = db.query(LOG_TABLE_NAME,
+                    new String[] { COLUMN_BACKFILL_POSITION, COLUMN_BACKFILL_END,
+                            COLUMN_BACKFILL_MILLIS },
+                    COLUMN_VERSION + " = " + migration.version + " AND "
+                            + COLUMN_BACKFILL_DONE + " = 0",
+                    null, null, null, null);
+            try {
+                if (!c.moveToFirst()) {
+                    continue;
+                }
+                position = c.getLong(0);
+                end = c.getLong(1);
+                millis = c.getLong(2);
+            } finally {
+                c.close();
+            }
+
+            while (position < end) {
+                long start = SystemClock.elapsedRealtime();
+                db.beginTransaction();
+                try {
+                    long batchEnd = batchEnd(db, position, end, batchSize);
+                    migration.backfill(db, position, batchEnd);
+                    position = batchEnd;
+
+                    millis += SystemClock.elapsedRealtime() - start;
+                    ContentValues values = new ContentValues();
+                    values.put(COLUMN_BACKFILL_POSITION, position);
+                    values.put(COLUMN_BACKFILL_MILLIS, millis);
+                    values.put(COLUMN_BACKFILL_DONE, position < end ? 0 : 1);
+                    db.update(LOG_TABLE_NAME, values,
+                            COLUMN_VERSION + " = " + migration.version, null);
+
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+
+            Log.i(TAG, "Backfilled version " + migration.version + " (" + migration.name
+                    + ") in " + millis + " ms");
+        }
+    }
+
+    // Returns the largest note _ID, or 0 if there are no notes
+    private static long maxNoteId(SQLiteDatabase db) {
+        Cursor c = db.rawQuery("SELECT max(" + NotePad.Notes._ID + ") FROM "
+                + NotePad.Notes.TABLE_NAME, null);
+        try {
+            return c.moveToFirst() ? c.getLong(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    /*
+     * Returns the _ID that ends the next batch: the batchSize-th note after position, or end if
+     * fewer notes than that are left.
+     */
+    private static long batchEnd(SQLiteDatabase db, long position, long end, int batchSize) {
+        Cursor c = db.rawQuery("SELECT max(" + NotePad.Notes._ID + ") FROM (SELECT "
+                + NotePad.Notes._ID + " FROM " + NotePad.Notes.TABLE_NAME
+                + " WHERE " + NotePad.Notes._ID + " > " + position
+                + " AND " + NotePad.Notes._ID + " <= " + end
+                + " ORDER BY " + NotePad.Notes._ID + " LIMIT " + batchSize + ")", null);
+        try {
+            // No notes are left in the range, so the range is done
+            return c.moveToFirst() && !c.isNull(0) ? c.getLong(0) : end;
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -0,0 +1,369 @@
+package com.example.android.notepad;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.text.Editable;
+
+/**
+ * 编辑框的撤销/重做历史。每次编辑记为一个操作：位置、删除的文字和插入的文字，大小只与这次编辑
+ * 有关，与全文长度无关；撤销和重做时在编辑框的 Editable 上原地替换这一段。
+ * <p>
+ * 操作保存在一个环形缓冲区中，最多 {@link #MAX_EDITS} 个。操作涉及的文字都依次追加到一个共用的
+ * 缓冲区里，操作只记录它在其中的偏移和长度（与 piece table 的追加缓冲区相同），不为每个操作
+ * 分配字符串。操作数或文字总量超过上限 {@link #MAX_CHARS} 时丢弃最旧的操作，缓冲区前部被丢弃的
+ * 文字超过一半时才整体前移，摊销下来每个字符只复制常数次。
+ * <p>
+ * 连续输入的文字在 {@link #MERGE_MILLIS} 内、且没有换行时合并为一个操作，一次撤销一段输入。
+ * <p>
+ * {@link #save} 只保存历史本身和全文的长度与哈希，不保存全文；重建后编辑框的内容从数据库读回，
+ * {@link #attach} 确认它与保存时相同才恢复历史，否则清空。所有方法都只能在主线程调用。
+ */
+final class EditHistory {
+
+    /**
+     * 最多保留的操作数
+     */
+    static final int MAX_EDITS = 1000;
+
+    /**
+     * 所有操作的文字合计最多保留的字符数
+     */
+    static final int MAX_CHARS = 256 * 1024;
+
+    /**
+     * 连续输入合并为一个操作的最大间隔
+     */
+    static final long MERGE_MILLIS = 1500;
+
+    // 保存实例状态时最多保存的字符数，以免超出 Bundle 的大小限制
+    private static final int MAX_SAVED_CHARS = 64 * 1024;
+
+    // 保存实例状态的键
+    private static final String KEY_OPS = "editHistory.ops";
+    private static final String KEY_TEXT = "editHistory.text";
+    private static final String KEY_APPLIED = "editHistory.applied";
+    private static final String KEY_COMPLETE = "editHistory.complete";
+    private static final String KEY_LENGTH = "editHistory.length";
+    private static final String KEY_HASH = "editHistory.hash";
+
+    // 环形缓冲区中每个操作的位置、删除和插入的长度，以及文字在 mChars 中的起点（删除的文字在前，
+    // 插入的文字紧随其后）。起点是从历史开始算起的逻辑位置，减去 mCharsBase 才是 mChars 中的下标
+    private final int[] mStarts = new int[MAX_EDITS];
+    private final int[] mRemoved = new int[MAX_EDITS];
+    private final int[] mInserted = new int[MAX_EDITS];
+    private final long[] mOffsets = new long[MAX_EDITS];
+
+    // 操作涉及的全部文字，按操作顺序追加
+    private final StringBuilder mChars = new StringBuilder();
+    private long mCharsBase;
+
+    // 最旧操作的下标、保留的操作数，以及其中已应用（可撤销）的操作数；其余的可以重做
+    private int mFirst;
+    private int mCount;
+    private int mApplied;
+
+    // 历史是否从清空时起完整：没有因为超出上限丢弃过操作
+    private boolean mComplete = true;
+
+    // 上一个操作的时间，以及它是否还能与下一次输入合并
+    private long mLastEditMillis;
+    private boolean mMergeable;
+
+    // 正在撤销或重做，此时编辑框的变化不算新的编辑
+    private boolean mApplying;
+
+    // 从实例状态恢复、等待 attach() 核对的全文长度和哈希，没有时长度为 -1
+    private int mExpectedLength = -1;
+    private long mExpectedHash;
+
+    /**
+     * 清空历史，例如编辑框的内容被整体替换之后
+     */
+    void clear() {
+        mFirst = 0;
+        mCount = 0;
+        mApplied = 0;
+        mChars.setLength(0);
+        mCharsBase = 0;
+        mComplete = true;
+        mMergeable = false;
+        mExpectedLength = -1;
+    }
+
+    /**
+     * 是否正在撤销或重做。编辑框的 TextWatcher 在此期间不应调用 {@link #record}。
+     */
+    boolean isApplying() {
+        return mApplying;
+    }
+
+    /**
+     * 记录一次编辑，丢弃可以重做的操作
+     *
+     * @param start    编辑的位置
+     * @param removed  被替换掉的文字
+     * @param inserted 插入的文字
+     */
+    void record(int start, CharSequence removed, CharSequence inserted) {
+        record(start, removed, inserted, SystemClock.uptimeMillis());
+    }
+
+    /**
+     * 同 {@link #record(int, CharSequence, CharSequence)}，编辑的时间由调用方给出
+     */
+    void record(int start, CharSequence removed, CharSequence inserted, long now) {
+        if (removed.length() == 0 && inserted.length() == 0) {
+            return;
+        }
+        mExpectedLength = -1;
+        discardRedo();
+
+        // 紧接在上一段输入之后的输入合并到上一个操作中，它的文字在缓冲区末尾
+        boolean typing = removed.length() == 0 && indexOfNewline(inserted) < 0;
+        if (typing && mMergeable && mApplied > 0 && now - mLastEditMillis <= MERGE_MILLIS) {
+            int last = index(mApplied - 1);
+            if (mStarts[last] + mInserted[last] == start
+                    && mInserted[last] + inserted.length() <= MAX_CHARS) {
+                mChars.append(inserted);
+                mInserted[last] += inserted.length();
+                mLastEditMillis = now;
+                trim();
+                return;
+            }
+        }
+
+        // 一次编辑就超过上限时无法撤销，之前的历史也随之作废
+        if (removed.length() + inserted.length() > MAX_CHARS) {
+            clear();
+            mComplete = false;
+            return;
+        }
+        if (mCount == MAX_EDITS) {
+            dropOldest();
+        }
+        int i = index(mCount);
+        mStarts[i] = start;
+        mRemoved[i] = removed.length();
+        mInserted[i] = inserted.length();
+        mOffsets[i] = mCharsBase + mChars.length();
+        mChars.append(removed).append(inserted);
+        mCount++;
+        mApplied++;
+        mLastEditMillis = now;
+        mMergeable = typing;
+        trim();
+    }
+
+    /**
+     * 是否有可以撤销的操作
+     */
+    boolean canUndo() {
+        return mApplied > 0;
+    }
+
+    /**
+     * 是否有可以重做的操作
+     */
+    boolean canRedo() {
+        return mApplied < mCount;
+    }
+
+    /**
+     * 历史是否从清空时起完整，即全部撤销后能回到那时的内容
+     */
+    boolean isComplete() {
+        return mComplete;
+    }
+
+    /**
+     * 撤销最近的操作
+     *
+     * @return 撤销后光标应在的位置，没有可撤销的操作时为 -1
+     */
+    int undo(Editable text) {
+        if (mApplied == 0) {
+            return -1;
+        }
+        int i = index(--mApplied);
+        int from = (int) (mOffsets[i] - mCharsBase);
+        apply(text, mStarts[i], mInserted[i], from, mRemoved[i]);
+        mMergeable = false;
+        return mStarts[i] + mRemoved[i];
+    }
+
+    /**
+     * 撤销全部可撤销的操作。历史完整时回到清空时的内容
+     *
+     * @return 撤销后光标应在的位置，没有可撤销的操作时为 -1
+     */
+    int undoAll(Editable text) {
+        int selection = -1;
+        while (mApplied > 0) {
+            selection = undo(text);
+        }
+        return selection;
+    }
+
+    /**
+     * 重做最近撤销的操作
+     *
+     * @return 重做后光标应在的位置，没有可重做的操作时为 -1
+     */
+    int redo(Editable text) {
+        if (mApplied == mCount) {
+            return -1;
+        }
+        int i = index(mApplied++);
+        int from = (int) (mOffsets[i] - mCharsBase) + mRemoved[i];
+        apply(text, mStarts[i], mRemoved[i], from, mInserted[i]);
+        mMergeable = false;
+        return mStarts[i] + mInserted[i];
+    }
+
+    /**
+     * 把历史保存到实例状态。保存的文字最多 {@link #MAX_SAVED_CHARS} 个字符，超出时只保存最近的
+     * 操作，恢复后的历史不再完整。没有操作可保存时也保存全文的长度、哈希和历史是否完整。
+     *
+     * @param text 编辑框当前的内容，只保存它的长度和哈希
+     */
+    void save(Bundle outState, CharSequence text) {
+        // 从最新的操作往前，找出能保存下的最旧操作
+        int first = mCount;
+        int chars = 0;
+        while (first > 0) {
+            int i = index(first - 1);
+            int length = mRemoved[i] + mInserted[i];
+            if (chars + length > MAX_SAVED_CHARS) {
+                break;
+            }
+            chars += length;
+            first--;
+        }
+        int count = mCount - first;
+        outState.putInt(KEY_LENGTH, text.length());
+        outState.putLong(KEY_HASH, TextDigest.hash64(text));
+        if (count == 0 || mApplied < first) {
+            // 没有可保存的操作，或者可撤销的操作一个也保存不下；没有可撤销的操作时仍与清空时相同
+            outState.putBoolean(KEY_COMPLETE, mComplete && mApplied == 0);
+            return;
+        }
+
+        int[] ops = new int[count * 3];
+        StringBuilder saved = new StringBuilder(chars);
+        for (int n = 0; n < count; n++) {
+            int i = index(first + n);
+            int from = (int) (mOffsets[i] - mCharsBase);
+            ops[n * 3] = mStarts[i];
+            ops[n * 3 + 1] = mRemoved[i];
+            ops[n * 3 + 2] = mInserted[i];
+            saved.append(mChars, from, from + mRemoved[i] + mInserted[i]);
+        }
+        outState.putIntArray(KEY_OPS, ops);
+        outState.putString(KEY_TEXT, saved.toString());
+        outState.putInt(KEY_APPLIED, mApplied - first);
+        outState.putBoolean(KEY_COMPLETE, mComplete && first == 0);
+    }
+
+    /**
+     * 从实例状态恢复历史。恢复的历史要等 {@link #attach} 确认编辑框的内容与保存时相同才能使用。
+     */
+    void restore(Bundle savedState) {
+        clear();
+        mComplete = savedState.getBoolean(KEY_COMPLETE);
+        mExpectedLength = savedState.getInt(KEY_LENGTH, -1);
+        mExpectedHash = savedState.getLong(KEY_HASH);
+        int[] ops = savedState.getIntArray(KEY_OPS);
+        String saved = savedState.getString(KEY_TEXT);
+        if (ops == null || saved == null) {
+            return;
+        }
+        int count = Math.min(ops.length / 3, MAX_EDITS);
+        mChars.append(saved);
+        long offset = 0;
+        for (int n = 0; n < count; n++) {
+            mStarts[n] = ops[n * 3];
+            mRemoved[n] = ops[n * 3 + 1];
+            mInserted[n] = ops[n * 3 + 2];
+            mOffsets[n] = offset;
+            offset += mRemoved[n] + mInserted[n];
+        }
+        if (offset != saved.length()) {
+            clear();
+            mComplete = false;
+            return;
+        }
+        mCount = count;
+        mApplied = Math.min(savedState.getInt(KEY_APPLIED), count);
+    }
+
+    /**
+     * 编辑框的内容从数据库读回后调用。内容与恢复的历史保存时相同就继续使用恢复的历史，
+     * 否则清空历史；这时全部撤销也回不到上次清空时的内容，历史不再完整。
+     */
+    void attach(CharSequence text) {
+        if (mExpectedLength < 0 || mExpectedLength != text.length()
+                || mExpectedHash != TextDigest.hash64(text)) {
+            clear();
+            mComplete = false;
+        }
+        mExpectedLength = -1;
+    }
+
+    // 在编辑框中把 [start, start + length) 换成缓冲区中 [from, from + count) 的文字
+    private void apply(Editable text, int start, int length, int from, int count) {
+        mApplying = true;
+        try {
+            text.replace(start, start + length, mChars, from, from + count);
+        } finally {
+            mApplying = false;
+        }
+    }
+
+    // 丢弃可以重做的操作，它们的文字在缓冲区末尾
+    private void discardRedo() {
+        if (mApplied < mCount) {
+            int i = index(mApplied);
+            mChars.setLength((int) (mOffsets[i] - mCharsBase));
+            mCount = mApplied;
+        }
+    }
+
+    // 保留的操作的文字超出总量上限时丢弃最旧的操作
+    private void trim() {
+        while (mCount > 1 && mChars.length() - (mOffsets[mFirst] - mCharsBase) > MAX_CHARS) {
+            dropOldest();
+        }
+    }
+
+    // 丢弃最旧的操作；缓冲区前部不再使用的文字超过一半时整体前移
+    private void dropOldest() {
+        mFirst = (mFirst + 1) % MAX_EDITS;
+        mCount--;
+        mApplied--;
+        mComplete = false;
+        if (mCount == 0) {
+            mCharsBase += mChars.length();
+            mChars.setLength(0);
+            return;
+        }
+        int unused = (int) (mOffsets[mFirst] - mCharsBase);
+        if (unused > mChars.length() / 2) {
+            mChars.delete(0, unused);
+            mCharsBase += unused;
+        }
+    }
+
+    // 第 n 个保留的操作在环形缓冲区中的下标
+    private int index(int n) {
+        return (mFirst + n) % MAX_EDITS;
+    }
+
+    private static int indexOfNewline(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,377 @@
+package com.example.android.notepad;
+
+import android.text.Editable;
+import android.text.Layout;
+import android.text.Spanned;
+import android.text.TextWatcher;
+import android.text.style.BackgroundColorSpan;
+import android.view.KeyEvent;
+import android.view.View;
+import android.widget.CheckBox;
+import android.widget.EditText;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import java.util.ArrayList;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * 笔记编辑页的查找替换栏，在编辑框中的内容里查找（超长笔记只在当前窗口中查找），忽略大小写。
+ * <p>
+ * 查询每次变化都重新查找；普通文字的查询只是追加了字符时用 {@link TextMatcher#refine} 只检查
+ * 上一次出现的位置。正则表达式的查询等输入停顿 {@link #RESEARCH_DELAY_MILLIS} 后才查找，
+ * 后台还在运行上一次超时的查找时显示“查找中”，稍后再试。内容被编辑后匹配的位置随之过期，同样
+ * 等输入停顿后再重新查找，期间的跳转和替换会先同步重新查找。
+ * <p>
+ * 匹配的位置只保存在数组中，高亮只加在屏幕上可见的几行里，滚动时移走看不见的、加上新出现的，
+ * 高亮对象放回池中复用：匹配再多，编辑框中的高亮也只有一屏的数量。
+ * <p>
+ * 全部替换先拼出从第一个匹配到最后一个匹配这一段替换后的文字，再对编辑框做一次替换，只触发
+ * 一次重新排版和自动保存，在撤销历史中也只是一个操作。所有方法都只能在主线程调用。
+ */
+final class FindBar {
+
+    // 内容或正则表达式的查询被编辑后，等待这么久没有新的编辑才重新查找
+    private static final long RESEARCH_DELAY_MILLIS = 300;
+
+    private final View mBar;
+    private final EditText mContent;
+    private final EditText mQuery;
+    private final EditText mReplacement;
+    private final TextView mCount;
+    private final CheckBox mRegex;
+
+    // 最近一次查找的结果，查询为空或无效时为 null；mStale 表示内容在查找之后被编辑过
+    private TextMatcher.Matches mMatches;
+    private boolean mStale;
+    private int mCurrent;
+
+    // 已加上的高亮和可以复用的高亮对象，当前匹配单独用一个颜色更深的高亮
+    private final ArrayList<BackgroundColorSpan> mApplied = new ArrayList<>();
+    private final ArrayList<BackgroundColorSpan> mPool = new ArrayList<>();
+    private final BackgroundColorSpan mCurrentSpan;
+    private final int mMatchColor;
+
+    // 已加上高亮的内容范围，没有时为 -1
+    private int mHighlightStart = -1;
+    private int mHighlightEnd = -1;
+
+    private final Runnable mResearch = () -> search(false);
+    private final Runnable mResearchAndReveal = () -> {
+        search(false);
+        reveal();
+    };
+
+    /**
+     * @param bar     布局中的查找替换栏
+     * @param content 在其中查找的编辑框
+     */
+    FindBar(View bar, EditText content) {
+        mBar = bar;
+        mContent = content;
+        mQuery = (EditText) bar.findViewById(R.id.find_query);
+        mReplacement = (EditText) bar.findViewById(R.id.find_replacement);
+        mCount = (TextView) bar.findViewById(R.id.find_count);
+        mRegex = (CheckBox) bar.findViewById(R.id.find_regex);
+        mMatchColor = bar.getResources().getColor(R.color.find_match);
+        mCurrentSpan = new BackgroundColorSpan(
+                bar.getResources().getColor(R.color.find_match_current));
+
+        mQuery.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                if (!isShowing()) {
+                    return;
+                }
+                if (mRegex.isChecked()) {
+                    // 每个字符都查找的话，回溯严重的中间状态会一个接一个地超时
+                    mContent.removeCallbacks(mResearchAndReveal);
+                    mContent.postDelayed(mResearchAndReveal, RESEARCH_DELAY_MILLIS);
+                } else {
+                    search(true);
+                    reveal();
+                }
+            }
+        });
+        // 输入法的动作没有按键事件；实体键盘的回车按下和抬起各来一次，只在按下时跳转
+        mQuery.setOnEditorActionListener((v, actionId, event) -> {
+            if (event == null || event.getAction() == KeyEvent.ACTION_DOWN) {
+                next();
+            }
+            return true;
+        });
+        mRegex.setOnCheckedChangeListener((button, checked) -> {
+            search(false);
+            reveal();
+        });
+        bar.findViewById(R.id.find_previous).setOnClickListener(v -> previous());
+        bar.findViewById(R.id.find_next).setOnClickListener(v -> next());
+        bar.findViewById(R.id.find_close).setOnClickListener(v -> hide());
+        bar.findViewById(R.id.find_replace).setOnClickListener(v -> replace());
+        bar.findViewById(R.id.find_replace_all).setOnClickListener(v -> replaceAll());
+
+        // 内容被编辑后稍后重新查找
+        content.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                if (isShowing()) {
+                    mStale = true;
+                    mContent.removeCallbacks(mResearch);
+                    mContent.postDelayed(mResearch, RESEARCH_DELAY_MILLIS);
+                }
+            }
+        });
+
+        // 滚动或重新排版后，可见的行变了
+        content.getViewTreeObserver().addOnScrollChangedListener(() -> updateHighlights(false));
+        content.getViewTreeObserver().addOnGlobalLayoutListener(() -> updateHighlights(false));
+    }
+
+    boolean isShowing() {
+        return mBar.getVisibility() == View.VISIBLE;
+    }
+
+    /**
+     * 打开查找栏，已有查询时立即查找
+     */
+    void show() {
+        mBar.setVisibility(View.VISIBLE);
+        mQuery.requestFocus();
+        mQuery.selectAll();
+        search(false);
+        reveal();
+    }
+
+    /**
+     * 关闭查找栏，移除全部高亮
+     */
+    void hide() {
+        mBar.setVisibility(View.GONE);
+        mContent.removeCallbacks(mResearch);
+        mContent.removeCallbacks(mResearchAndReveal);
+        clearHighlights();
+        mMatches = null;
+        mCount.setText("");
+        mContent.requestFocus();
+    }
+
+    /**
+     * 跳到下一个匹配，到结尾后回到第一个
+     */
+    void next() {
+        if (refresh()) {
+            mCurrent = (mCurrent + 1) % mMatches.count;
+            reveal();
+        }
+    }
+
+    /**
+     * 跳到上一个匹配，到开头后回到最后一个
+     */
+    void previous() {
+        if (refresh()) {
+            mCurrent = (mCurrent + mMatches.count - 1) % mMatches.count;
+            reveal();
+        }
+    }
+
+    /**
+     * 替换当前匹配并跳到下一个。当前匹配还没有选中时只选中它，让用户先看到要替换的文字。
+     * 正则表达式查找超时时不替换：超时的表达式再次匹配多半也会超时。
+     */
+    void replace() {
+        if (!refresh() || refuseTimedOut()) {
+            return;
+        }
+        int start = mMatches.starts[mCurrent];
+        int end = mMatches.ends[mCurrent];
+        if (mContent.getSelectionStart() != start || mContent.getSelectionEnd() != end) {
+            reveal();
+            return;
+        }
+        Editable text = mContent.getText();
+        String replaced = mMatches.matcher.replace(text, mMatches, mCurrent, mCurrent,
+                mReplacement.getText().toString());
+        if (replaced == null) {
+            onReplaceFailed();
+            return;
+        }
+        clearHighlights();
+        text.replace(start, end, replaced);
+        mContent.setSelection(start + replaced.length());
+        search(false);
+        reveal();
+    }
+
+    /**
+     * 把全部匹配作为一次编辑替换。匹配数超过 {@link TextMatcher#MAX_MATCHES} 时只替换记录下的
+     * 匹配，再按一次继续替换其余的。正则表达式查找超时时不替换。
+     */
+    void replaceAll() {
+        if (!refresh() || refuseTimedOut()) {
+            return;
+        }
+        int count = mMatches.count;
+        int start = mMatches.starts[0];
+        int end = mMatches.ends[count - 1];
+        Editable text = mContent.getText();
+        String replaced = mMatches.matcher.replace(text, mMatches, 0, count - 1,
+                mReplacement.getText().toString());
+        if (replaced == null) {
+            onReplaceFailed();
+            return;
+        }
+        clearHighlights();
+        text.replace(start, end, replaced);
+        mContent.setSelection(start + replaced.length());
+        search(false);
+        Toast.makeText(mBar.getContext(), mBar.getResources().getQuantityString(
+                R.plurals.find_replaced, count, count), Toast.LENGTH_SHORT).show();
+    }
+
+    // 查找超时时提示并返回 true
+    private boolean refuseTimedOut() {
+        if (mMatches.timedOut) {
+            Toast.makeText(mBar.getContext(), R.string.find_replace_timed_out,
+                    Toast.LENGTH_SHORT).show();
+        }
+        return mMatches.timedOut;
+    }
+
+    // 正则表达式的替换超时或与查找结果不一致，什么也没有替换，重新查找
+    private void onReplaceFailed() {
+        Toast.makeText(mBar.getContext(), R.string.find_replace_failed, Toast.LENGTH_SHORT).show();
+        search(false);
+    }
+
+    // 查找当前查询，当前匹配取光标处或之后的第一个。incremental 为 true 时可以利用上一次的结果
+    private void search(boolean incremental) {
+        mContent.removeCallbacks(mResearch);
+        mContent.removeCallbacks(mResearchAndReveal);
+        TextMatcher.Matches previous = incremental && !mStale ? mMatches : null;
+        mStale = false;
+        clearHighlights();
+        mMatches = null;
+
+        String query = mQuery.getText().toString();
+        if (query.isEmpty()) {
+            mCount.setText("");
+            return;
+        }
+        TextMatcher matcher;
+        try {
+            matcher = TextMatcher.compile(query, mRegex.isChecked(), true);
+        } catch (PatternSyntaxException e) {
+            mCount.setText(R.string.find_invalid);
+            return;
+        }
+        mMatches = matcher.refine(mContent.getText(), previous);
+        if (mMatches.busy) {
+            mContent.postDelayed(mResearchAndReveal, RESEARCH_DELAY_MILLIS);
+        }
+        int selection = Math.max(0, mContent.getSelectionStart());
+        mCurrent = mMatches.indexEndingAfter(selection);
+        if (mCurrent == mMatches.count) {
+            mCurrent = 0;
+        }
+        updateCount();
+        updateHighlights(true);
+    }
+
+    // 确保匹配与内容一致，返回是否有匹配
+    private boolean refresh() {
+        if (mStale) {
+            search(false);
+        }
+        return mMatches != null && mMatches.count > 0;
+    }
+
+    // 选中当前匹配并滚动到它
+    private void reveal() {
+        if (mMatches == null || mMatches.count == 0) {
+            return;
+        }
+        mContent.setSelection(mMatches.starts[mCurrent], mMatches.ends[mCurrent]);
+        mContent.bringPointIntoView(mMatches.starts[mCurrent]);
+        updateCount();
+        updateHighlights(true);
+    }
+
+    private void updateCount() {
+        int position = mMatches.count == 0 ? 0 : mCurrent + 1;
+        if (mMatches.busy) {
+            mCount.setText(R.string.find_busy);
+            return;
+        }
+        int format = mMatches.timedOut ? R.string.find_timed_out
+                : mMatches.truncated ? R.string.find_count_more
+                : R.string.find_count;
+        mCount.setText(mBar.getContext().getString(format, position, mMatches.count));
+    }
+
+    // 给可见的行中的匹配加上高亮，可见范围没有变化时除非 force 什么也不做
+    private void updateHighlights(boolean force) {
+        if (!isShowing() || mStale) {
+            return;
+        }
+        Layout layout = mContent.getLayout();
+        if (layout == null) {
+            return;
+        }
+        int top = Math.max(0, mContent.getScrollY() - mContent.getExtendedPaddingTop());
+        int start = layout.getLineStart(layout.getLineForVertical(top));
+        int end = layout.getLineEnd(layout.getLineForVertical(top + mContent.getHeight()));
+        if (!force && start == mHighlightStart && end == mHighlightEnd) {
+            return;
+        }
+        clearHighlights();
+        if (mMatches == null) {
+            return;
+        }
+        Editable text = mContent.getText();
+        for (int i = mMatches.indexEndingAfter(start);
+                i < mMatches.count && mMatches.starts[i] < end; i++) {
+            BackgroundColorSpan span;
+            if (i == mCurrent) {
+                span = mCurrentSpan;
+            } else {
+                span = mPool.isEmpty()
+                        ? new BackgroundColorSpan(mMatchColor) : mPool.remove(mPool.size() - 1);
+                mApplied.add(span);
+            }
+            text.setSpan(span, mMatches.starts[i], mMatches.ends[i],
+                    Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+        mHighlightStart = start;
+        mHighlightEnd = end;
+    }
+
+    // 移除全部高亮，高亮对象放回池中
+    private void clearHighlights() {
+        Editable text = mContent.getText();
+        for (int i = 0; i < mApplied.size(); i++) {
+            text.removeSpan(mApplied.get(i));
+        }
+        text.removeSpan(mCurrentSpan);
+        mPool.addAll(mApplied);
+        mApplied.clear();
+        mHighlightStart = -1;
+        mHighlightEnd = -1;
+    }
+}
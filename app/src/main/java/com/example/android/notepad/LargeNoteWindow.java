@@ -0,0 +1,303 @@
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 超长笔记的编辑窗口：只把笔记中连续的几个块（{@link NotePad.Chunks}）读入编辑框，滚动到窗口
+ * 边缘时再换成相邻的块，修改后只把窗口中的内容作为补丁写回，窗口以外的块不读也不写。打开笔记的
+ * 时间、内存和每次保存写入的数据量只与窗口大小有关，与笔记长度无关。
+ * <p>
+ * 窗口由它前后两个块的序号界定：前一块之后、后一块之前的所有块。写回时替换的正是这个范围，
+ * 窗口中的块会被重新分块、序号会变，前一块不变；范围内的序号用完时后一块及其后的块会被整体
+ * 挪到更大的序号，所以每次写回后都重新查出后一块的序号，同一个窗口可以反复写回。
+ * <p>
+ * 读取和写入都在同一个后台线程上按提交顺序进行，移动窗口时读到的内容一定包含之前所有写入。
+ * 所有方法都只能在主线程调用，回调也在主线程。
+ */
+final class LargeNoteWindow {
+
+    private static final String TAG = "LargeNoteWindow";
+
+    /**
+     * 在主线程接收读到的窗口
+     */
+    interface Callback {
+        /**
+         * @param text    窗口中的内容
+         * @param anchor  移动窗口前传入的位置在新内容中的位置，第一次读取时为 0
+         * @param atStart 窗口是否从笔记开头开始
+         * @param atEnd   窗口是否到笔记结尾为止
+         */
+        void onWindowLoaded(String text, int anchor, boolean atStart, boolean atEnd);
+    }
+
+    // 窗口中的块数；每块平均约 5K 字符，最多 16K
+    private static final int WINDOW_CHUNKS = 12;
+
+    // 移动窗口时保留的块数，用户正在看的内容在保留的块中
+    private static final int KEEP_CHUNKS = 4;
+
+    // 所有窗口共用的读写线程
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    private final ContentResolver mResolver;
+    private final Uri mChunksUri;
+    private final Callback mCallback;
+
+    // 界定当前窗口的两个块的序号：窗口从笔记开头开始时前一块为 0，到结尾为止时后一块为
+    // Long.MAX_VALUE。写回时后一块的序号可能改变，所以两者只在后台线程上读写
+    private long mAfterSeq;
+    private long mBeforeSeq;
+
+    // 是否已经读到窗口，只在主线程读写
+    private boolean mLoaded;
+
+    // 正在移动窗口；移动期间有新的编辑时编号增加，读到的窗口作废
+    private boolean mShifting;
+    private int mShiftGeneration;
+
+    /**
+     * @param noteId 笔记的 _ID
+     */
+    LargeNoteWindow(ContentResolver resolver, long noteId, Callback callback) {
+        mResolver = resolver;
+        mChunksUri = NotePad.Chunks.getContentUri(noteId);
+        mCallback = callback;
+    }
+
+    /**
+     * 在后台读取笔记开头的窗口
+     */
+    void load() {
+        final int generation = ++mShiftGeneration;
+        mShifting = true;
+        sExecutor.execute(() -> {
+            long[] seqs = readSeqs();
+            deliver(generation, readWindow(seqs, 0, Math.min(seqs.length, WINDOW_CHUNKS), 0));
+        });
+    }
+
+    /**
+     * 是否正在读取或移动窗口
+     */
+    boolean isShifting() {
+        return mShifting;
+    }
+
+    /**
+     * 窗口中的内容被编辑时调用，正在进行的窗口移动作废
+     */
+    void onEdit() {
+        if (mShifting) {
+            mShiftGeneration++;
+            mShifting = false;
+        }
+    }
+
+    /**
+     * 在后台把窗口中的内容写回笔记，替换窗口中原来的块
+     *
+     * @param text     窗口中的内容
+     * @param modified 修改时间
+     */
+    void save(final String text, long modified) {
+        if (!mLoaded) {
+            return;
+        }
+        final ContentValues values = new ContentValues();
+        values.put(NotePad.Chunks.COLUMN_NAME_CONTENT, text);
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, modified);
+        sExecutor.execute(() -> {
+            values.put(NotePad.Chunks.COLUMN_NAME_AFTER_SEQ, mAfterSeq);
+            if (mBeforeSeq != Long.MAX_VALUE) {
+                values.put(NotePad.Chunks.COLUMN_NAME_BEFORE_SEQ, mBeforeSeq);
+            }
+            if (mResolver.update(mChunksUri, values, null, null) == 0) {
+                Log.w(TAG, "笔记已不是分块保存，无法写回：" + mChunksUri);
+            } else if (mBeforeSeq != Long.MAX_VALUE) {
+                mBeforeSeq = readBeforeSeq(text);
+            }
+        });
+    }
+
+    /**
+     * 等待之前交给后台的写入全部完成。返回时所有修改都已写入数据库。
+     */
+    void flush() {
+        try {
+            sExecutor.submit(() -> { }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.w(TAG, "等待写入失败", e);
+        }
+    }
+
+    /**
+     * 把窗口向前或向后移动，保留靠近移动方向一侧的 {@link #KEEP_CHUNKS} 个块。窗口中的修改
+     * 必须已经交给 {@link #save}，移动在其后进行。已经在移动或已到笔记一端时什么也不做。
+     *
+     * @param forward 向笔记结尾移动
+     * @param text    窗口中的内容，与最后一次保存的相同
+     * @param anchor  内容中需要保持在原处的位置，例如屏幕上第一个字符
+     */
+    void shift(final boolean forward, final String text, final int anchor) {
+        if (mShifting || !mLoaded) {
+            return;
+        }
+        final int generation = ++mShiftGeneration;
+        mShifting = true;
+        sExecutor.execute(() -> {
+            long[] seqs = readSeqs();
+            // 当前窗口在最新的块序号中的位置：[first, end)
+            int first = 0;
+            while (first < seqs.length && seqs[first] <= mAfterSeq) {
+                first++;
+            }
+            int end = first;
+            while (end < seqs.length && seqs[end] < mBeforeSeq) {
+                end++;
+            }
+
+            Window window;
+            if (forward) {
+                int start = Math.max(first, end - KEEP_CHUNKS);
+                int stop = Math.min(seqs.length, start + WINDOW_CHUNKS);
+                // 移动后保留的块在新窗口开头，丢弃的内容长度为窗口长度减去保留的长度
+                window = stop > end ? readWindow(seqs, start, stop, end - start) : null;
+                if (window != null) {
+                    window.anchor = anchor - (text.length() - window.headLength);
+                }
+            } else {
+                int stop = Math.min(end, first + KEEP_CHUNKS);
+                int start = Math.max(0, stop - WINDOW_CHUNKS);
+                // 新增的块在新窗口开头，保留的内容向后移动新增的长度
+                window = start < first ? readWindow(seqs, start, stop, first - start) : null;
+                if (window != null) {
+                    window.anchor = anchor + window.headLength;
+                }
+            }
+            deliver(generation, window);
+        });
+    }
+
+    /**
+     * 一次读到的窗口
+     */
+    private static final class Window {
+        String text;
+        long afterSeq;
+        long beforeSeq;
+        boolean atStart;
+        boolean atEnd;
+        // 窗口开头若干块的长度，用来换算移动前后的位置
+        int headLength;
+        int anchor;
+    }
+
+    // 在后台线程读取笔记全部块的序号，不读内容
+    private long[] readSeqs() {
+        Cursor c = mResolver.query(mChunksUri, new String[] { NotePad.Chunks.COLUMN_NAME_SEQ },
+                null, null, null);
+        if (c == null) {
+            return new long[0];
+        }
+        try {
+            long[] seqs = new long[c.getCount()];
+            for (int i = 0; c.moveToNext(); i++) {
+                seqs[i] = c.getLong(0);
+            }
+            return seqs;
+        } finally {
+            c.close();
+        }
+    }
+
+    // 在后台线程查出刚写回的窗口后面第一块的序号：窗口中的内容被分成的块之后的那一块
+    private long readBeforeSeq(String text) {
+        int count = text.isEmpty() ? 0 : NoteChunks.boundaries(text).length;
+        Cursor c = mResolver.query(mChunksUri, new String[] { NotePad.Chunks.COLUMN_NAME_SEQ },
+                NotePad.Chunks.COLUMN_NAME_SEQ + " > ?",
+                new String[] { Long.toString(mAfterSeq) }, null);
+        if (c == null) {
+            return mBeforeSeq;
+        }
+        try {
+            return c.moveToPosition(count) ? c.getLong(0) : Long.MAX_VALUE;
+        } finally {
+            c.close();
+        }
+    }
+
+    // 在后台线程读取 [start, stop) 的块作为窗口，并记下开头 counted 个块的长度
+    private Window readWindow(long[] seqs, int start, int stop, int counted) {
+        Window window = new Window();
+        window.afterSeq = start > 0 ? seqs[start - 1] : 0;
+        window.beforeSeq = stop < seqs.length ? seqs[stop] : Long.MAX_VALUE;
+        window.atStart = start == 0;
+        window.atEnd = stop == seqs.length;
+
+        StringBuilder text = new StringBuilder();
+        if (stop > start) {
+            Cursor c = mResolver.query(mChunksUri,
+                    new String[] { NotePad.Chunks.COLUMN_NAME_CONTENT },
+                    NotePad.Chunks.COLUMN_NAME_SEQ + " >= ? AND "
+                            + NotePad.Chunks.COLUMN_NAME_SEQ + " <= ?",
+                    new String[] { Long.toString(seqs[start]), Long.toString(seqs[stop - 1]) },
+                    null);
+            if (c != null) {
+                try {
+                    for (int i = 0; c.moveToNext(); i++) {
+                        String chunk = c.getString(0);
+                        if (chunk != null) {
+                            text.append(chunk);
+                        }
+                        if (i + 1 == counted) {
+                            window.headLength = text.length();
+                        }
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+        }
+        window.text = text.toString();
+        Log.d(TAG, "窗口 " + start + "-" + stop + "/" + seqs.length + "，"
+                + window.text.length() + " 字符");
+        return window;
+    }
+
+    // 在主线程交付窗口；移动期间有新的编辑时丢弃。接受的窗口的序号交给后台线程，在之后的
+    // 写回之前生效
+    private void deliver(final int generation, final Window window) {
+        sMainHandler.post(() -> {
+            if (generation != mShiftGeneration) {
+                return;
+            }
+            mShifting = false;
+            if (window == null) {
+                return;
+            }
+            mLoaded = true;
+            sExecutor.execute(() -> {
+                mAfterSeq = window.afterSeq;
+                mBeforeSeq = window.beforeSeq;
+            });
+            mCallback.onWindowLoaded(window.text,
+                    Math.max(0, Math.min(window.anchor, window.text.length())),
+                    window.atStart, window.atEnd);
+        });
+    }
+}
@@ -0,0 +1,102 @@
+package com.example.android.notepad;
+
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * 延迟统计：在固定大小的环形缓冲区中保存最近的样本，按需计算百分位数。
+ * 每记录 REPORT_INTERVAL 个样本，就把 p50/p90/p99 写入日志（标签 "Latency"）。线程安全。
+ */
+public class LatencyRecorder {
+
+    // 日志标签
+    private static final String TAG = "Latency";
+
+    // 每记录多少个样本输出一次统计
+    private static final int REPORT_INTERVAL = 50;
+
+    // 统计名称，出现在日志中
+    private final String mName;
+
+    // 最近的样本（毫秒），环形覆盖
+    private final long[] mSamples;
+
+    // 已记录的样本总数
+    private long mTotal;
+
+    public LatencyRecorder(String name, int capacity) {
+        mName = name;
+        mSamples = new long[capacity];
+    }
+
+    /**
+     * 记录一个样本
+     *
+     * @param millis 耗时（毫秒）
+     */
+    public void record(long millis) {
+        boolean report;
+        synchronized (this) {
+            mSamples[(int) (mTotal % mSamples.length)] = millis;
+            mTotal++;
+            report = mTotal % REPORT_INTERVAL == 0;
+        }
+        if (report) {
+            Log.i(TAG, summary());
+        }
+    }
+
+    /**
+     * 返回最近样本的百分位数（最近秩法），没有样本时返回 0
+     *
+     * @param percent 0 到 100 之间的百分比
+     */
+    public long percentile(double percent) {
+        long[] sorted = snapshot();
+        return sorted.length == 0 ? 0 : pick(sorted, percent);
+    }
+
+    /**
+     * 已记录的样本总数
+     */
+    public synchronized long getCount() {
+        return mTotal;
+    }
+
+    /**
+     * 清空所有样本
+     */
+    public synchronized void reset() {
+        mTotal = 0;
+    }
+
+    /**
+     * 返回一行统计摘要，例如 "search: n=120 p50=35 p90=80 p99=140 max=150 ms"
+     */
+    public String summary() {
+        long[] sorted = snapshot();
+        if (sorted.length == 0) {
+            return mName + ": n=0";
+        }
+        return mName + ": n=" + getCount()
+                + " p50=" + pick(sorted, 50)
+                + " p90=" + pick(sorted, 90)
+                + " p99=" + pick(sorted, 99)
+                + " max=" + sorted[sorted.length - 1] + " ms";
+    }
+
+    // 复制并排序当前保留的样本
+    private synchronized long[] snapshot() {
+        int size = (int) Math.min(mTotal, mSamples.length);
+        long[] sorted = Arrays.copyOf(mSamples, size);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    // 在已排序的样本中取百分位数
+    private static long pick(long[] sorted, double percent) {
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+    }
+}
@@ -0,0 +1,156 @@
+package com.example.android.notepad;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 笔记列表首屏的快照：最前面 {@link #ROWS} 行的 _ID、标题和修改时间，以紧凑的二进制格式保存在
+ * 应用的文件目录中。
+ * <p>
+ * 冷启动时 NotesList 先读取快照并在第一帧显示，不必等待打开数据库和查询；真正的第一页在后台
+ * 查询，之后与快照比较，只刷新不同的行。列表显示全部笔记时，每次变化后调用 {@link #save}，
+ * 首屏的行没有变化时不写文件。
+ * <p>
+ * 文件格式：MAGIC、VERSION、行数，之后每行为 _ID（long）、修改时间（long）和标题（writeUTF）。
+ * 先写入临时文件再改名，读取时遇到不完整或版本不同的文件当作没有快照。
+ */
+final class ListSnapshot {
+
+    private static final String TAG = "ListSnapshot";
+
+    /**
+     * 快照保存的行数，与第一页相同：笔记没有变化时，快照与查询到的第一页完全相同
+     */
+    static final int ROWS = SearchExecutor.FIRST_PAGE_SIZE;
+
+    // 快照文件名
+    static final String FILE_NAME = "list_snapshot.bin";
+
+    private static final int MAGIC = 0x4e4c5331; // "NLS1"
+    private static final int VERSION = 1;
+
+    // 标题只保存这么多字符，列表项只显示一行
+    private static final int MAX_TITLE_LENGTH = 200;
+
+    // 所有快照共用的写文件线程
+    private static final ExecutorService sWriter = Executors.newSingleThreadExecutor();
+
+    private final File mFile;
+
+    // 上一次保存（或读取）的行，只在主线程访问
+    private List<NoteRow> mSaved = Collections.emptyList();
+
+    ListSnapshot(Context context) {
+        mFile = new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    /**
+     * 在当前线程读取快照，没有快照或快照无法读取时返回 null
+     */
+    List<NoteRow> read() {
+        if (!mFile.isFile()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            int count = in.readInt();
+            if (count < 0 || count > ROWS) {
+                return null;
+            }
+            ArrayList<NoteRow> rows = new ArrayList<NoteRow>(count);
+            for (int i = 0; i < count; i++) {
+                long id = in.readLong();
+                long modified = in.readLong();
+                rows.add(new NoteRow(id, in.readUTF(), modified));
+            }
+            mSaved = Collections.unmodifiableList(rows);
+            return mSaved;
+        } catch (IOException e) {
+            Log.w(TAG, "快照无法读取", e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * 保存全部笔记的最前面几行。与上一次保存的相同时什么也不做，否则在后台线程写文件。
+     */
+    void save(List<NoteRow> rows) {
+        final List<NoteRow> first = rows.subList(0, Math.min(ROWS, rows.size()));
+        if (same(first, mSaved)) {
+            return;
+        }
+        mSaved = Collections.unmodifiableList(new ArrayList<NoteRow>(first));
+        final List<NoteRow> saved = mSaved;
+        sWriter.execute(() -> write(saved));
+    }
+
+    // 在写文件线程写入临时文件，再替换快照
+    private void write(List<NoteRow> rows) {
+        File temp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(rows.size());
+            for (NoteRow row : rows) {
+                out.writeLong(row.id);
+                out.writeLong(row.modified);
+                out.writeUTF(row.title.length() > MAX_TITLE_LENGTH
+                        ? row.title.substring(0, MAX_TITLE_LENGTH) : row.title);
+            }
+            out.close();
+            out = null;
+            if (!temp.renameTo(mFile)) {
+                Log.w(TAG, "快照无法保存");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "快照无法保存", e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    // 两组行的 _ID、标题和修改时间是否都相同
+    private static boolean same(List<NoteRow> a, List<NoteRow> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            if (!a.get(i).sameContent(b.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,532 @@
+package com.example.android.notepad;
+
+import android.content.res.Resources;
+import android.text.Editable;
+import android.text.Layout;
+import android.text.Spanned;
+import android.text.TextPaint;
+import android.text.TextWatcher;
+import android.text.style.CharacterStyle;
+import android.text.style.UpdateAppearance;
+import android.widget.EditText;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * 编辑框中 Markdown 的语法高亮：标题、引用、列表标记、分隔线、代码块，以及行内的粗体、斜体、
+ * 行内代码、删除线和链接。
+ * <p>
+ * 高亮按逻辑行（两个换行符之间的文字）进行。高亮器维护每行的起点和这一行是否在 ``` 代码块中，
+ * 每次编辑只更新受影响的行：起点数组原地插入或删除被编辑的几行、平移后面的起点；代码块状态从
+ * 编辑处往后重新推算，推算到与原来的状态一致为止。只有这些行需要重新分析。
+ * <p>
+ * 高亮只加在可见的行及上下各 {@link #MARGIN_LINES} 行中，滚动时给新进入范围的行加上、移走离开
+ * 范围的行的高亮，编辑框中的高亮数量只与屏幕大小有关。移走的高亮对象放回池中复用。
+ * <p>
+ * 所有高亮都只改变绘制（颜色、背景、假粗体、倾斜、下划线和删除线），不改变字体和字号：加上或
+ * 移走高亮不会引起重新排版，屏幕外的行加上高亮时内容也不会跳动。所有方法都只能在主线程调用。
+ */
+final class MarkdownHighlighter {
+
+    /**
+     * 可见的行上下各多高亮的逻辑行数
+     */
+    static final int MARGIN_LINES = 40;
+
+    // 高亮的种类
+    private static final int HEADING = 0;
+    private static final int BOLD = 1;
+    private static final int ITALIC = 2;
+    private static final int CODE = 3;
+    private static final int STRIKE = 4;
+    private static final int LINK = 5;
+    private static final int QUOTE = 6;
+    private static final int MARKER = 7;
+
+    /**
+     * 高亮对象，种类可以改变以便复用
+     */
+    static final class MarkupSpan extends CharacterStyle implements UpdateAppearance {
+        private final MarkdownHighlighter mOwner;
+        int kind;
+
+        MarkupSpan(MarkdownHighlighter owner) {
+            mOwner = owner;
+        }
+
+        @Override
+        public void updateDrawState(TextPaint tp) {
+            switch (kind) {
+                case HEADING:
+                case BOLD:
+                    tp.setFakeBoldText(true);
+                    break;
+                case ITALIC:
+                    tp.setTextSkewX(-0.25f);
+                    break;
+                case CODE:
+                    tp.bgColor = mOwner.mCodeBackground;
+                    break;
+                case STRIKE:
+                    tp.setStrikeThruText(true);
+                    break;
+                case LINK:
+                    tp.setColor(mOwner.mLinkColor);
+                    tp.setUnderlineText(true);
+                    break;
+                case QUOTE:
+                    tp.setColor(mOwner.mQuoteColor);
+                    break;
+                case MARKER:
+                    tp.setColor(mOwner.mMarkerColor);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private final EditText mEditor;
+    private final int mMarkerColor;
+    private final int mCodeBackground;
+    private final int mQuoteColor;
+    private final int mLinkColor;
+
+    // 每个逻辑行的起点，以及这一行开始时是否在代码块中
+    private int[] mLineStarts = new int[64];
+    private boolean[] mInFence = new boolean[64];
+    private int mLineCount;
+    private int mLength;
+
+    // 已加上高亮的范围：从第一行的起点到最后一行的结尾，随编辑平移；没有时为 -1
+    private int mHighlightStart = -1;
+    private int mHighlightEnd = -1;
+
+    // 本次编辑后需要重新分析的行，没有时为 -1
+    private int mDirtyFirst = -1;
+    private int mDirtyLast = -1;
+
+    private final ArrayList<MarkupSpan> mPool = new ArrayList<>();
+
+    /**
+     * 开始为编辑框高亮，此后编辑框中的内容变化和滚动都会自动更新高亮
+     */
+    MarkdownHighlighter(EditText editor) {
+        mEditor = editor;
+        Resources res = editor.getResources();
+        mMarkerColor = res.getColor(R.color.md_marker);
+        mCodeBackground = res.getColor(R.color.md_code_background);
+        mQuoteColor = res.getColor(R.color.md_quote);
+        mLinkColor = res.getColor(R.color.md_link);
+        rebuild(editor.getText());
+
+        editor.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+                onEdit(s, start, before, count);
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                refreshDirty(s);
+                updateViewport();
+            }
+        });
+        editor.getViewTreeObserver().addOnScrollChangedListener(this::updateViewport);
+        editor.getViewTreeObserver().addOnGlobalLayoutListener(this::updateViewport);
+    }
+
+    /**
+     * 给可见的行及上下的余量加上高亮，移走范围以外的高亮
+     */
+    void updateViewport() {
+        Layout layout = mEditor.getLayout();
+        if (layout == null) {
+            return;
+        }
+        Editable text = mEditor.getText();
+        int top = Math.max(0, mEditor.getScrollY() - mEditor.getExtendedPaddingTop());
+        int visibleStart = layout.getLineStart(layout.getLineForVertical(top));
+        int visibleEnd = layout.getLineEnd(layout.getLineForVertical(top + mEditor.getHeight()));
+        int first = Math.max(0, lineOf(visibleStart) - MARGIN_LINES);
+        int last = Math.min(mLineCount - 1, lineOf(visibleEnd) + MARGIN_LINES);
+
+        if (mHighlightStart < 0) {
+            highlight(text, first, last);
+        } else {
+            int oldFirst = lineOf(mHighlightStart);
+            int oldLast = lineOf(mHighlightEnd);
+            if (oldFirst == first && oldLast == last) {
+                return;
+            }
+            if (last < oldFirst || first > oldLast) {
+                clear(text, oldFirst, oldLast);
+                highlight(text, first, last);
+            } else {
+                // 范围有重叠时只处理两端的差别
+                clear(text, oldFirst, first - 1);
+                clear(text, last + 1, oldLast);
+                highlight(text, first, oldFirst - 1);
+                highlight(text, oldLast + 1, last);
+            }
+        }
+        mHighlightStart = mLineStarts[first];
+        mHighlightEnd = lineEnd(last);
+    }
+
+    // 重新建立全部行的起点和代码块状态，例如编辑框的内容被整体替换后
+    private void rebuild(CharSequence text) {
+        mLength = text.length();
+        mLineCount = 1;
+        mLineStarts[0] = 0;
+        for (int i = 0; i < mLength; i++) {
+            if (text.charAt(i) == '\n') {
+                ensureCapacity(mLineCount + 1);
+                mLineStarts[mLineCount++] = i + 1;
+            }
+        }
+        mInFence[0] = false;
+        for (int line = 0; line + 1 < mLineCount; line++) {
+            mInFence[line + 1] = nextInFence(text, line);
+        }
+        mHighlightStart = -1;
+        mHighlightEnd = -1;
+        mDirtyFirst = -1;
+        mDirtyLast = -1;
+    }
+
+    // 内容中 [start, start + before) 被换成了 s 中 [start, start + count) 时调用，更新行表
+    private void onEdit(CharSequence s, int start, int before, int count) {
+        if (start == 0 && before == mLength) {
+            // 整体替换，原来的高亮随原来的文字一起丢弃
+            rebuild(s);
+            return;
+        }
+        int delta = count - before;
+        int line = lineOf(start);
+        // 起点落在 (start, start + before] 中的行，它前面的换行符被删掉了
+        int removedLast = lineOf(start + before);
+        int removed = removedLast - line;
+        int added = 0;
+        for (int i = start; i < start + count; i++) {
+            if (s.charAt(i) == '\n') {
+                added++;
+            }
+        }
+
+        // 后面的行整体移动并平移起点，再填入插入的行
+        ensureCapacity(mLineCount + added - removed);
+        int tail = mLineCount - removedLast - 1;
+        System.arraycopy(mLineStarts, removedLast + 1, mLineStarts, line + 1 + added, tail);
+        System.arraycopy(mInFence, removedLast + 1, mInFence, line + 1 + added, tail);
+        mLineCount += added - removed;
+        for (int i = line + 1 + added; i < mLineCount; i++) {
+            mLineStarts[i] += delta;
+        }
+        int next = line + 1;
+        for (int i = start; i < start + count; i++) {
+            if (s.charAt(i) == '\n') {
+                mLineStarts[next++] = i + 1;
+            }
+        }
+        mLength += delta;
+
+        // 从被编辑的行往后推算代码块状态，越过插入的行之后与原来一致就停止
+        int last = line + added;
+        int i = line;
+        while (i + 1 < mLineCount) {
+            boolean inFence = nextInFence(s, i);
+            if (i >= last && mInFence[i + 1] == inFence) {
+                break;
+            }
+            mInFence[i + 1] = inFence;
+            i++;
+        }
+        mDirtyFirst = line;
+        mDirtyLast = Math.max(i, last);
+
+        // 已高亮的范围随编辑平移
+        if (mHighlightStart >= 0) {
+            mHighlightStart = mapOffset(mHighlightStart, start, before, count, false);
+            mHighlightEnd = mapOffset(mHighlightEnd, start, before, count, true);
+        }
+    }
+
+    // 编辑之后，重新分析已高亮范围内受影响的行
+    private void refreshDirty(Editable text) {
+        if (mDirtyFirst < 0) {
+            return;
+        }
+        if (mHighlightStart >= 0) {
+            int first = Math.max(mDirtyFirst, lineOf(mHighlightStart));
+            int last = Math.min(mDirtyLast, lineOf(mHighlightEnd));
+            clear(text, first, last);
+            highlight(text, first, last);
+            // 插入的行可能让已高亮的范围延伸到新的行尾
+            mHighlightEnd = Math.max(mHighlightEnd, lineEnd(lineOf(mHighlightEnd)));
+        }
+        mDirtyFirst = -1;
+        mDirtyLast = -1;
+    }
+
+    // 位置 offset 在 [start, start + before) 被换成 count 个字符之后的位置
+    private static int mapOffset(int offset, int start, int before, int count, boolean end) {
+        if (offset <= start) {
+            return offset;
+        } else if (offset >= start + before) {
+            return offset + count - before;
+        }
+        return end ? start + count : start;
+    }
+
+    // 为第 first 到第 last 行（含）加上高亮
+    private void highlight(Editable text, int first, int last) {
+        for (int line = first; line <= last; line++) {
+            highlightLine(text, mLineStarts[line], lineEnd(line), mInFence[line]);
+        }
+    }
+
+    // 移走第 first 到第 last 行（含）的高亮，放回池中
+    private void clear(Editable text, int first, int last) {
+        if (first > last) {
+            return;
+        }
+        MarkupSpan[] spans = text.getSpans(mLineStarts[first], lineEnd(last), MarkupSpan.class);
+        for (MarkupSpan span : spans) {
+            text.removeSpan(span);
+            mPool.add(span);
+        }
+    }
+
+    // 分析一行并加上高亮，[start, end) 不含换行符
+    private void highlightLine(Editable text, int start, int end, boolean inFence) {
+        int indent = start;
+        while (indent < end && indent - start < 3 && text.charAt(indent) == ' ') {
+            indent++;
+        }
+        if (isFence(text, indent, end)) {
+            apply(text, MARKER, start, end);
+            return;
+        }
+        if (inFence) {
+            apply(text, CODE, start, end);
+            return;
+        }
+        if (indent == end) {
+            return;
+        }
+
+        int content = indent;
+        char c = text.charAt(indent);
+        if (c == '#') {
+            int p = indent;
+            while (p < end && text.charAt(p) == '#') {
+                p++;
+            }
+            if (p - indent <= 6 && (p == end || text.charAt(p) == ' ')) {
+                apply(text, MARKER, indent, p);
+                apply(text, HEADING, p, end);
+                content = p;
+            }
+        } else if (c == '>') {
+            apply(text, MARKER, indent, indent + 1);
+            apply(text, QUOTE, indent + 1, end);
+            content = indent + 1;
+        } else if (isRule(text, indent, end)) {
+            apply(text, MARKER, indent, end);
+            return;
+        } else if ((c == '-' || c == '*' || c == '+')
+                && indent + 1 < end && text.charAt(indent + 1) == ' ') {
+            apply(text, MARKER, indent, indent + 1);
+            content = indent + 2;
+        } else if (isDigit(c)) {
+            int p = indent;
+            while (p < end && p - indent < 9 && isDigit(text.charAt(p))) {
+                p++;
+            }
+            if (p < end && (text.charAt(p) == '.' || text.charAt(p) == ')')
+                    && (p + 1 == end || text.charAt(p + 1) == ' ')) {
+                apply(text, MARKER, indent, p + 1);
+                content = p + 1;
+            }
+        }
+        highlightInline(text, content, end);
+    }
+
+    // 分析行内的强调、代码、删除线和链接。不处理嵌套：标记之间的文字不再分析
+    private void highlightInline(Editable text, int start, int end) {
+        int i = start;
+        while (i < end) {
+            char c = text.charAt(i);
+            int next = i + 1 < end ? text.charAt(i + 1) : 0;
+            int close;
+            if (c == '\\') {
+                i += 2;
+                continue;
+            } else if (c == '`' && (close = indexOf(text, '`', i + 1, end)) > i + 1) {
+                apply(text, MARKER, i, i + 1);
+                apply(text, CODE, i + 1, close);
+                apply(text, MARKER, close, close + 1);
+                i = close + 1;
+                continue;
+            } else if ((c == '*' || c == '_' || c == '~') && next == c
+                    && (close = indexOfPair(text, c, i + 2, end)) > i + 2) {
+                apply(text, MARKER, i, i + 2);
+                apply(text, c == '~' ? STRIKE : BOLD, i + 2, close);
+                apply(text, MARKER, close, close + 2);
+                i = close + 2;
+                continue;
+            } else if ((c == '*' || c == '_') && next != 0 && next != ' ' && next != c
+                    && (c == '*' || i == start || !Character.isLetterOrDigit(text.charAt(i - 1)))
+                    && (close = indexOfEmphasisEnd(text, c, i + 1, end)) > i + 1) {
+                apply(text, MARKER, i, i + 1);
+                apply(text, ITALIC, i + 1, close);
+                apply(text, MARKER, close, close + 1);
+                i = close + 1;
+                continue;
+            } else if (c == '[') {
+                int middle = indexOf(text, ']', i + 1, end);
+                if (middle > i + 1 && middle + 1 < end && text.charAt(middle + 1) == '('
+                        && (close = indexOf(text, ')', middle + 2, end)) > 0) {
+                    apply(text, MARKER, i, i + 1);
+                    apply(text, LINK, i + 1, middle);
+                    apply(text, MARKER, middle, close + 1);
+                    i = close + 1;
+                    continue;
+                }
+            }
+            i++;
+        }
+    }
+
+    // 从池中取一个高亮对象加在 [start, end) 上
+    private void apply(Editable text, int kind, int start, int end) {
+        if (end <= start) {
+            return;
+        }
+        MarkupSpan span = mPool.isEmpty() ? new MarkupSpan(this) : mPool.remove(mPool.size() - 1);
+        span.kind = kind;
+        text.setSpan(span, start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+    }
+
+    // 第 line 行之后的一行开始时是否在代码块中
+    private boolean nextInFence(CharSequence text, int line) {
+        int start = mLineStarts[line];
+        int end = lineEnd(line);
+        int indent = start;
+        while (indent < end && indent - start < 3 && text.charAt(indent) == ' ') {
+            indent++;
+        }
+        return isFence(text, indent, end) != mInFence[line];
+    }
+
+    // 第 line 行的结尾，不含换行符
+    private int lineEnd(int line) {
+        return line + 1 < mLineCount ? mLineStarts[line + 1] - 1 : mLength;
+    }
+
+    // offset 所在的行
+    private int lineOf(int offset) {
+        int low = 0;
+        int high = mLineCount - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (mLineStarts[mid] <= offset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private void ensureCapacity(int lines) {
+        if (lines > mLineStarts.length) {
+            int capacity = Math.max(lines, mLineStarts.length * 2);
+            mLineStarts = Arrays.copyOf(mLineStarts, capacity);
+            mInFence = Arrays.copyOf(mInFence, capacity);
+        }
+    }
+
+    // 三个或更多 ` 或 ~ 开头的行是代码块的开始或结束
+    private static boolean isFence(CharSequence text, int start, int end) {
+        if (end - start < 3) {
+            return false;
+        }
+        char c = text.charAt(start);
+        return (c == '`' || c == '~') && text.charAt(start + 1) == c && text.charAt(start + 2) == c;
+    }
+
+    // 只由三个或更多相同的 -、* 或 _ 和空格组成的行是分隔线
+    private static boolean isRule(CharSequence text, int start, int end) {
+        char c = text.charAt(start);
+        if (c != '-' && c != '*' && c != '_') {
+            return false;
+        }
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            char ch = text.charAt(i);
+            if (ch == c) {
+                count++;
+            } else if (ch != ' ') {
+                return false;
+            }
+        }
+        return count >= 3;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static int indexOf(CharSequence text, char c, int from, int end) {
+        for (int i = from; i < end; i++) {
+            if (text.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // 两个连续的 c 的位置
+    private static int indexOfPair(CharSequence text, char c, int from, int end) {
+        for (int i = from; i + 1 < end; i++) {
+            if (text.charAt(i) == c && text.charAt(i + 1) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // 斜体结束的 c：前面不是空格，_ 后面不是字母或数字
+    private static int indexOfEmphasisEnd(CharSequence text, char c, int from, int end) {
+        for (int i = from + 1; i < end; i++) {
+            if (text.charAt(i) != c || text.charAt(i - 1) == ' ') {
+                continue;
+            }
+            if (c == '*' || i + 1 == end || !Character.isLetterOrDigit(text.charAt(i + 1))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 测试用：每个逻辑行的起点，可以与从头重建的结果比较
+     */
+    int[] getLineStartsForTest() {
+        return Arrays.copyOf(mLineStarts, mLineCount);
+    }
+
+    /**
+     * 测试用：每个逻辑行开始时是否在代码块中
+     */
+    boolean[] getInFenceForTest() {
+        return Arrays.copyOf(mInFence, mLineCount);
+    }
+}
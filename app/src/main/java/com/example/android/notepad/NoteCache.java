@@ -0,0 +1,202 @@
+package com.example.android.notepad;
+
+import android.content.ComponentCallbacks2;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A size-bounded cache of recently opened notes, shared by everything in the app's process,
+ * so that NoteEditor can show a note that was opened before without waiting for the database.
+ * Records are kept in least recently used order and evicted once their total size passes the
+ * cache's byte budget.
+ * <p>
+ * The cache never decides on its own whether a record is current. NotePadProvider invalidates
+ * the notes that each update or delete changes, once its transaction has committed. A reader
+ * takes {@link #generation()} before it queries a note and passes it to {@link #put}; every
+ * invalidation starts a new generation, so a record read before a write that committed in the
+ * meantime is turned away rather than cached.
+ * <p>
+ * Hits, misses, evictions and invalidations are counted, and are returned with the size of the
+ * cache by {@link NotePad.NoteCacheStats#CONTENT_URI}. All methods are thread-safe.
+ */
+final class NoteCache {
+
+    // The largest budget, in bytes, for the process-wide cache. On devices with a small heap
+    // the budget is a thirty-second of it.
+    private static final long MAX_BUDGET_BYTES = 4 * 1024 * 1024;
+
+    // A record larger than this fraction of the budget is not cached, since it would evict
+    // most of the others
+    private static final int MAX_RECORD_FRACTION = 4;
+
+    // The process-wide cache
+    private static NoteCache sInstance;
+
+    // The records, in least recently used order
+    private final LinkedHashMap<Long, NoteRecord> mRecords =
+            new LinkedHashMap<Long, NoteRecord>(16, 0.75f, true);
+
+    // The byte budget, and the bytes that the records take
+    private final long mMaxBytes;
+    private long mBytes;
+
+    // Incremented by every invalidation
+    private long mGeneration;
+
+    // Statistics, in the order of the columns of NotePad.NoteCacheStats
+    private long mHits;
+    private long mMisses;
+    private long mPuts;
+    private long mStalePuts;
+    private long mEvictions;
+    private long mInvalidations;
+
+    NoteCache(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the cache shared by the app's process.
+     */
+    static synchronized NoteCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new NoteCache(
+                    Math.min(MAX_BUDGET_BYTES, Runtime.getRuntime().maxMemory() / 32));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the record of a note, or null if it isn't cached, and counts the hit or miss.
+     */
+    synchronized NoteRecord get(long noteId) {
+        NoteRecord record = mRecords.get(noteId);
+        if (record != null) {
+            mHits++;
+        } else {
+            mMisses++;
+        }
+        return record;
+    }
+
+    /**
+     * Returns true if a note is cached, without counting a hit or miss or making it the most
+     * recently used.
+     */
+    synchronized boolean contains(long noteId) {
+        return mRecords.containsKey(noteId);
+    }
+
+    /**
+     * Returns the current generation, which a reader passes to {@link #put} with the record it
+     * then reads.
+     */
+    synchronized long generation() {
+        return mGeneration;
+    }
+
+    /**
+     * Caches a record, evicting the least recently used records until the cache is within its
+     * budget.
+     *
+     * @param record The record, read from the database after {@link #generation()} returned
+     * the generation below.
+     * @param generation The generation before the record was read.
+     * @return True if the record was cached; false if a note has been invalidated since the
+     * generation, so the record may be out of date, or if the record is too large to cache.
+     */
+    synchronized boolean put(NoteRecord record, long generation) {
+        if (generation != mGeneration) {
+            mStalePuts++;
+            return false;
+        }
+        if (record.sizeBytes() > mMaxBytes / MAX_RECORD_FRACTION) {
+            return false;
+        }
+        mPuts++;
+        NoteRecord previous = mRecords.put(record.id, record);
+        if (previous != null) {
+            mBytes -= previous.sizeBytes();
+        }
+        mBytes += record.sizeBytes();
+        trimToSize(mMaxBytes);
+        return true;
+    }
+
+    /**
+     * Removes the records of notes that have changed or been deleted, and starts a new
+     * generation.
+     */
+    synchronized void invalidate(long... noteIds) {
+        mGeneration++;
+        for (long noteId : noteIds) {
+            NoteRecord record = mRecords.remove(noteId);
+            if (record != null) {
+                mBytes -= record.sizeBytes();
+                mInvalidations++;
+            }
+        }
+    }
+
+    /**
+     * Removes every record, and starts a new generation.
+     */
+    synchronized void invalidateAll() {
+        mGeneration++;
+        mInvalidations += mRecords.size();
+        mRecords.clear();
+        mBytes = 0;
+    }
+
+    /**
+     * Gives back memory when the system asks the process to: half of the budget while the
+     * device runs low on memory, and all of it once the process is a candidate to be killed.
+     */
+    void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            synchronized (this) {
+                trimToSize(0);
+            }
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+                && level < ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            synchronized (this) {
+                trimToSize(mMaxBytes / 2);
+            }
+        }
+    }
+
+    /**
+     * Returns the statistics, in the order of the columns of {@link NotePad.NoteCacheStats}:
+     * hits, misses, puts, stale puts, evictions, invalidations, entries, size and budget.
+     */
+    synchronized long[] stats() {
+        return new long[] {
+                mHits, mMisses, mPuts, mStalePuts, mEvictions, mInvalidations, mRecords.size(),
+                mBytes, mMaxBytes
+        };
+    }
+
+    /**
+     * Returns a one-line summary of the statistics, such as
+     * "note cache: 12 hits, 3 misses (80%), 7 entries, 18 KB of 4096 KB".
+     */
+    synchronized String summary() {
+        long lookups = mHits + mMisses;
+        return "note cache: " + mHits + " hits, " + mMisses + " misses ("
+                + (lookups == 0 ? 0 : mHits * 100 / lookups) + "%), " + mRecords.size()
+                + " entries, " + (mBytes / 1024) + " KB of " + (mMaxBytes / 1024) + " KB";
+    }
+
+    // Evicts the least recently used records until the cache takes no more than maxBytes.
+    // Called with the lock held.
+    private void trimToSize(long maxBytes) {
+        Iterator<Map.Entry<Long, NoteRecord>> it = mRecords.entrySet().iterator();
+        while (mBytes > maxBytes && it.hasNext()) {
+            mBytes -= it.next().getValue().sizeBytes();
+            it.remove();
+            mEvictions++;
+        }
+    }
+}
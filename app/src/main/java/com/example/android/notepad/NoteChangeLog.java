@@ -0,0 +1,104 @@
+package com.example.android.notepad;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The recent changes that NotePadProvider has committed, for observers in the app's process.
+ * A content observer only learns that something under a URI changed; an observer that keeps
+ * the notes it shows can instead ask the log which notes changed, and how, since the data it
+ * shows was read, and update just those.
+ * <p>
+ * Every change gets the next generation number. An observer takes {@link #generation()} before
+ * it queries, and later passes it to {@link #since} to get the changes it has not seen. The log
+ * holds the last {@link #CAPACITY} changes; an observer that is further behind than that has to
+ * query again. All methods are thread-safe.
+ */
+final class NoteChangeLog {
+
+    /** Notes were inserted */
+    static final int OP_INSERT = 1;
+
+    /** Notes were updated */
+    static final int OP_UPDATE = 2;
+
+    /** Notes were deleted */
+    static final int OP_DELETE = 3;
+
+    // The number of changes kept
+    static final int CAPACITY = 64;
+
+    /**
+     * One committed insert, update or delete.
+     */
+    static final class Change {
+
+        /** The generation of the log once this change was made */
+        final long generation;
+
+        /** {@link #OP_INSERT}, {@link #OP_UPDATE} or {@link #OP_DELETE} */
+        final int op;
+
+        /** The _IDs of the notes, or null if any note may have changed */
+        final long[] noteIds;
+
+        Change(long generation, int op, long[] noteIds) {
+            this.generation = generation;
+            this.op = op;
+            this.noteIds = noteIds;
+        }
+    }
+
+    // The process-wide log
+    private static final NoteChangeLog sInstance = new NoteChangeLog();
+
+    // The last changes, in a ring; the change of generation g is at g % CAPACITY
+    private final Change[] mChanges = new Change[CAPACITY];
+
+    private long mGeneration;
+
+    /**
+     * Returns the log shared by the app's process.
+     */
+    static NoteChangeLog getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Returns the generation of the last change.
+     */
+    synchronized long generation() {
+        return mGeneration;
+    }
+
+    /**
+     * Adds a committed change to the log.
+     *
+     * @param op {@link #OP_INSERT}, {@link #OP_UPDATE} or {@link #OP_DELETE}.
+     * @param noteIds The _IDs of the notes that changed, or null if any note may have.
+     * @return The generation of the change.
+     */
+    synchronized long record(int op, long[] noteIds) {
+        mGeneration++;
+        mChanges[(int) (mGeneration % CAPACITY)] = new Change(mGeneration, op, noteIds);
+        return mGeneration;
+    }
+
+    /**
+     * Returns the changes made after a generation, oldest first.
+     *
+     * @param generation A generation that {@link #generation()} returned.
+     * @return The changes, empty if there are none, or null if some of them are no longer
+     * kept.
+     */
+    synchronized List<Change> since(long generation) {
+        if (mGeneration - generation > CAPACITY || generation > mGeneration) {
+            return null;
+        }
+        List<Change> changes = new ArrayList<Change>((int) (mGeneration - generation));
+        for (long g = generation + 1; g <= mGeneration; g++) {
+            changes.add(mChanges[(int) (g % CAPACITY)]);
+        }
+        return changes;
+    }
+}
@@ -0,0 +1,470 @@
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * Chunked storage of large note bodies. The text of a note at least
+ * {@link #MIN_CHUNKED_LENGTH} characters long is not kept in the note column of the notes table.
+ * It is split into chunks, stored in order in the {@link #TABLE_NAME} table, and put back
+ * together by {@link #read}, in order, when the note column of a query is read.
+ * <p>
+ * Chunk boundaries are content-defined: a boundary falls wherever a rolling hash of the
+ * preceding 64 characters has its top bits clear, so it depends only on the text around it.
+ * An edit changes the chunks that it touches, and leaves the boundaries and chunks everywhere
+ * else as they were. Saving a note compares the hashes of its new chunks with those of the
+ * stored ones and writes only the chunks in between the unchanged start and end of the note.
+ * Chunks are ordered by a sparse sequence number, so a chunk that is inserted between two
+ * others doesn't renumber, and rewrite, every chunk after it.
+ * <p>
+ * The full-text index is not updated when a chunked note is saved, since that would rewrite
+ * the whole text into it again. The note is marked instead, and {@link #reindexStale} brings
+ * the index up to date once writes have stopped.
+ */
+final class NoteChunks {
+    // Used for debugging and logging
+    private static final String TAG = "NoteChunks";
+
+    /**
+     * The table of chunks of the notes stored in chunks
+     */
+    static final String TABLE_NAME = "note_chunks";
+
+    /*
+     * Column definitions for the chunks table. The hash is declared before the content, so
+     * reading it doesn't read the content's overflow pages.
+     */
+    static final String COLUMN_NOTE_ID = "note_id";
+    static final String COLUMN_SEQ = "seq";
+    static final String COLUMN_HASH = "hash";
+    static final String COLUMN_CONTENT = "content";
+
+    /**
+     * The length, in characters, from which a note's text is stored in chunks
+     */
+    static final int MIN_CHUNKED_LENGTH = 32 * 1024;
+
+    /**
+     * The lengths, in characters, between which a chunk ends. A chunk is only cut short of the
+     * minimum at the end of the text, and at the maximum even if no boundary was found.
+     */
+    static final int MIN_CHUNK_LENGTH = 1024;
+    static final int MAX_CHUNK_LENGTH = 16 * 1024;
+
+    /**
+     * The rolling hash bits that must be clear at a boundary. With 12 bits, a chunk is about
+     * 4K characters longer than the minimum, on average.
+     */
+    private static final long BOUNDARY_MASK = 0xfff0000000000000L;
+
+    /**
+     * The gap between the sequence numbers of chunks that are written together
+     */
+    static final long SEQ_STEP = 1L << 16;
+
+    /**
+     * An SQL expression for the text of a note in the notes table: the note column, the
+     * note's _ID if it is stored in chunks, or the compressed text of a compressed note.
+     * {@link NoteCompression#wrap} turns the last two into the note's text as it is read. The
+     * chunks are not concatenated in SQL, since group_concat() doesn't guarantee their order.
+     */
+    static final String NOTE_EXPRESSION = "CASE " + NotePad.Notes.TABLE_NAME + "."
+            + NotePadProvider.COLUMN_BODY_FORMAT + " WHEN " + NotePadProvider.BODY_FORMAT_CHUNKED
+            + " THEN " + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID
+            + " WHEN " + NotePadProvider.BODY_FORMAT_DEFLATE + " THEN "
+            + NotePad.Notes.TABLE_NAME + "." + NoteCompression.COLUMN_NOTE_DATA + " ELSE "
+            + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_NOTE + " END";
+
+    // The random values that the rolling hash adds for each character, from a fixed seed so
+    // that boundaries are the same on every device and version
+    private static final long[] GEAR = new long[256];
+
+    static {
+        long seed = 0x6e6f74655f706164L;
+        for (int i = 0; i < GEAR.length; i++) {
+            // SplitMix64
+            long z = (seed += 0x9e3779b97f4a7c15L);
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    // This class cannot be instantiated
+    private NoteChunks() {
+    }
+
+    /**
+     * Returns true if a note's text is long enough to be stored in chunks.
+     */
+    static boolean isChunked(String text) {
+        return text != null && text.length() >= MIN_CHUNKED_LENGTH;
+    }
+
+    /**
+     * Returns the body hash of a note's text, as {@link NotePad.Notes#COLUMN_NAME_BODY_HASH}
+     * stores it. A text long enough to be stored in chunks is hashed by combining the hashes
+     * of its chunks in order with {@link TextDigest#combine}, so that the hash of a note whose
+     * chunks are patched can be worked out from the hashes of its stored chunks; any other text
+     * is hashed whole.
+     *
+     * @param text The text to hash. Null hashes like the empty string.
+     */
+    static long bodyHash(String text) {
+        if (!isChunked(text)) {
+            return TextDigest.hash64(text);
+        }
+        long hash = TextDigest.hash64(null);
+        int[] ends = boundaries(text);
+        for (int i = 0, start = 0; i < ends.length; start = ends[i++]) {
+            hash = TextDigest.combine(hash, TextDigest.hash64(text, start, ends[i]));
+        }
+        return hash;
+    }
+
+    /**
+     * Splits a text into chunks at content-defined boundaries. A surrogate pair is never split.
+     *
+     * @return The end offset of each chunk, in order. The last one is the length of the text.
+     */
+    static int[] boundaries(CharSequence text) {
+        int length = text.length();
+        // Every chunk but the last is at least the minimum length
+        int[] ends = new int[length / MIN_CHUNK_LENGTH + 1];
+        int count = 0;
+        int start = 0;
+        long hash = 0;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            // Each character shifts the earlier ones one bit further up, so the top bits
+            // depend on the last 64 characters only
+            hash = (hash << 1) + GEAR[(c ^ (c >>> 8)) & 0xff];
+
+            int chunkLength = i + 1 - start;
+            if (chunkLength >= MIN_CHUNK_LENGTH && !Character.isHighSurrogate(c)
+                    && ((hash & BOUNDARY_MASK) == 0 || chunkLength >= MAX_CHUNK_LENGTH)) {
+                ends[count++] = i + 1;
+                start = i + 1;
+                hash = 0;
+            }
+        }
+        if (start < length || count == 0) {
+            ends[count++] = length;
+        }
+        return Arrays.copyOf(ends, count);
+    }
+
+    /**
+     * Stores the text of a note as chunks. The chunks that the note starts and ends with are
+     * kept if they haven't changed; only the ones in between are deleted and written again.
+     * Must be called inside a transaction.
+     *
+     * @param db The database to write to.
+     * @param noteId The _ID of the note.
+     * @param text The note's text.
+     * @return The number of characters written, which is the length of the text if no stored
+     * chunk could be kept.
+     */
+    static long write(SQLiteDatabase db, long noteId, String text) {
+        int[] ends = boundaries(text);
+        long[] hashes = new long[ends.length];
+        for (int i = 0, start = 0; i < ends.length; start = ends[i++]) {
+            hashes[i] = TextDigest.hash64(text, start, ends[i]);
+        }
+
+        // The stored chunks, in order. Only their sequence numbers and hashes are read.
+        long[] oldSeqs;
+        long[] oldHashes;
+        Cursor c = db.query(TABLE_NAME, new String[] { COLUMN_SEQ, COLUMN_HASH },
+                COLUMN_NOTE_ID + " = " + noteId, null, null, null, COLUMN_SEQ);
+        try {
+            oldSeqs = new long[c.getCount()];
+            oldHashes = new long[oldSeqs.length];
+            for (int i = 0; c.moveToNext(); i++) {
+                oldSeqs[i] = c.getLong(0);
+                oldHashes[i] = c.getLong(1);
+            }
+        } finally {
+            c.close();
+        }
+
+        // Finds the unchanged chunks at the start and at the end of the note
+        int oldCount = oldSeqs.length;
+        int newCount = ends.length;
+        int prefix = 0;
+        while (prefix < oldCount && prefix < newCount && oldHashes[prefix] == hashes[prefix]) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < oldCount - prefix && suffix < newCount - prefix
+                && oldHashes[oldCount - 1 - suffix] == hashes[newCount - 1 - suffix]) {
+            suffix++;
+        }
+
+        // The chunks in between get sequence numbers spread evenly between those of the kept
+        // chunks on either side of them
+        int written = newCount - prefix - suffix;
+        long low = prefix > 0 ? oldSeqs[prefix - 1] : 0;
+        long high = suffix > 0 ? oldSeqs[oldCount - suffix] : Long.MAX_VALUE;
+        long step = suffix > 0 ? (high - low) / (written + 1) : SEQ_STEP;
+        if (step == 0) {
+            // There is no room left between the kept chunks, so the ones at the end are moved
+            // up to make room
+            long room = SEQ_STEP * (written + 1);
+            shiftSeqs(db, noteId, high, room);
+            high += room;
+            step = (high - low) / (written + 1);
+        }
+
+        db.delete(TABLE_NAME, COLUMN_NOTE_ID + " = " + noteId + " AND " + COLUMN_SEQ + " > "
+                + low + " AND " + COLUMN_SEQ + " < " + high, null);
+
+        long length = 0;
+        SQLiteStatement insert = compileInsert(db);
+        try {
+            for (int i = 0; i < written; i++) {
+                int chunk = prefix + i;
+                int start = chunk > 0 ? ends[chunk - 1] : 0;
+                insert.bindLong(1, noteId);
+                insert.bindLong(2, low + step * (i + 1));
+                insert.bindLong(3, hashes[chunk]);
+                insert.bindString(4, text.substring(start, ends[chunk]));
+                insert.executeInsert();
+                length += ends[chunk] - start;
+            }
+        } finally {
+            insert.close();
+        }
+        return length;
+    }
+
+    /**
+     * Replaces the chunks of a note between two of its chunks with a text, which is split into
+     * chunks of its own. The chunks outside the range are not touched, and keep their sequence
+     * numbers, so a client that edits a window of the note can write it back without the rest.
+     * If there is no room left for the new chunks' sequence numbers in the range, the chunks
+     * after it are moved up to make room, so the first of them gets a new sequence number;
+     * they are renumbered in place, without being read. Must be called inside a transaction.
+     * <p>
+     * Only the chunks in the range are read, to find how much shorter or longer the note gets.
+     *
+     * @param db The database to write to.
+     * @param noteId The _ID of the note.
+     * @param afterSeq The sequence number of the last chunk before the range, or 0 if the
+     * range starts at the start of the note.
+     * @param beforeSeq The sequence number of the first chunk after the range, or
+     * Long.MAX_VALUE if the range runs to the end of the note.
+     * @param text The text that replaces the chunks in the range.
+     * @return The change in the length of the note's text.
+     */
+    static long patch(SQLiteDatabase db, long noteId, long afterSeq, long beforeSeq,
+                      String text) {
+        int[] ends = text.isEmpty() ? new int[0] : boundaries(text);
+        long step = beforeSeq == Long.MAX_VALUE ? SEQ_STEP
+                : (beforeSeq - afterSeq) / (ends.length + 1);
+        if (step == 0) {
+            long room = SEQ_STEP * (ends.length + 1);
+            shiftSeqs(db, noteId, beforeSeq, room);
+            beforeSeq += room;
+            step = (beforeSeq - afterSeq) / (ends.length + 1);
+        }
+
+        String range = COLUMN_NOTE_ID + " = " + noteId + " AND " + COLUMN_SEQ + " > " + afterSeq
+                + " AND " + COLUMN_SEQ + " < " + beforeSeq;
+        long removed = 0;
+        Cursor c = db.query(TABLE_NAME, new String[] { COLUMN_CONTENT }, range, null, null,
+                null, null);
+        try {
+            while (c.moveToNext()) {
+                removed += c.isNull(0) ? 0 : c.getString(0).length();
+            }
+        } finally {
+            c.close();
+        }
+
+        db.delete(TABLE_NAME, range, null);
+        SQLiteStatement insert = compileInsert(db);
+        try {
+            for (int i = 0, start = 0; i < ends.length; start = ends[i++]) {
+                insert.bindLong(1, noteId);
+                insert.bindLong(2, afterSeq + step * (i + 1));
+                insert.bindLong(3, TextDigest.hash64(text, start, ends[i]));
+                insert.bindString(4, text.substring(start, ends[i]));
+                insert.executeInsert();
+            }
+        } finally {
+            insert.close();
+        }
+        return text.length() - removed;
+    }
+
+    /*
+     * Adds an amount to the sequence numbers of a note's chunks from a sequence number on. The
+     * numbers are negated first and then restored, so that no two chunks have the same number
+     * at any point of the update.
+     */
+    private static void shiftSeqs(SQLiteDatabase db, long noteId, long fromSeq, long by) {
+        String note = " WHERE " + COLUMN_NOTE_ID + " = " + noteId + " AND " + COLUMN_SEQ;
+        db.execSQL("UPDATE " + TABLE_NAME + " SET " + COLUMN_SEQ + " = -(" + COLUMN_SEQ + " + "
+                + by + ")" + note + " >= " + fromSeq);
+        db.execSQL("UPDATE " + TABLE_NAME + " SET " + COLUMN_SEQ + " = -" + COLUMN_SEQ + note
+                + " < 0");
+    }
+
+    /**
+     * Sets the preview, body length and body hash columns of a chunked note in a map of values,
+     * once {@link #patch} has replaced some of its chunks, without reading the rest of its
+     * text. The length is the stored length plus the change that the patch made, the hash is
+     * combined from the stored hashes of the chunks as {@link #bodyHash} combines them, and the
+     * preview is taken from the first chunks only.
+     *
+     * @param db The database to read from.
+     * @param noteId The _ID of the note.
+     * @param lengthChange The change in the length of the note's text that {@link #patch}
+     * returned.
+     * @param values The values to set the columns in.
+     */
+    static void putDigest(SQLiteDatabase db, long noteId, long lengthChange,
+                          ContentValues values) {
+        long length = DatabaseUtils.longForQuery(db, "SELECT "
+                + NotePad.Notes.COLUMN_NAME_BODY_LENGTH + " FROM " + NotePad.Notes.TABLE_NAME
+                + " WHERE " + NotePad.Notes._ID + " = " + noteId, null) + lengthChange;
+
+        long hash = TextDigest.hash64(null);
+        Cursor c = db.query(TABLE_NAME, new String[] { COLUMN_HASH },
+                COLUMN_NOTE_ID + " = " + noteId, null, null, null, COLUMN_SEQ);
+        try {
+            while (c.moveToNext()) {
+                hash = TextDigest.combine(hash, c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+
+        // A preview of the first chunk is as long as it gets, unless the chunk is cut short or
+        // mostly whitespace. The chunks are read one at a time, since a cursor would fill its
+        // window with as many of them as fit.
+        StringBuilder head = new StringBuilder();
+        long seq = 0;
+        while (head.length() < MIN_CHUNK_LENGTH) {
+            c = db.query(TABLE_NAME, new String[] { COLUMN_SEQ, COLUMN_CONTENT },
+                    COLUMN_NOTE_ID + " = " + noteId + " AND " + COLUMN_SEQ + " > " + seq, null,
+                    null, null, COLUMN_SEQ, "1");
+            try {
+                if (!c.moveToFirst()) {
+                    break;
+                }
+                seq = c.getLong(0);
+                if (!c.isNull(1)) {
+                    head.append(c.getString(1));
+                }
+            } finally {
+                c.close();
+            }
+        }
+
+        values.put(NotePad.Notes.COLUMN_NAME_PREVIEW,
+                TextDigest.preview(head, NotePad.Notes.PREVIEW_LENGTH));
+        values.put(NotePad.Notes.COLUMN_NAME_BODY_LENGTH, length);
+        values.put(NotePad.Notes.COLUMN_NAME_BODY_HASH, hash);
+    }
+
+    /**
+     * Deletes the chunks of a note, if it has any, once its text is stored in the notes table
+     * again.
+     */
+    static void clear(SQLiteDatabase db, long noteId) {
+        db.delete(TABLE_NAME, COLUMN_NOTE_ID + " = " + noteId, null);
+    }
+
+    /**
+     * Reads the text of a chunked note back from its chunks.
+     *
+     * @return The text, or the empty string if the note has no chunks.
+     */
+    static String read(SQLiteDatabase db, long noteId) {
+        Cursor c = db.query(TABLE_NAME, new String[] { COLUMN_CONTENT },
+                COLUMN_NOTE_ID + " = " + noteId, null, null, null, COLUMN_SEQ);
+        try {
+            StringBuilder text = new StringBuilder();
+            while (c.moveToNext()) {
+                text.append(c.getString(0));
+            }
+            return text.toString();
+        } finally {
+            c.close();
+        }
+    }
+
+    // Compiles the statement that inserts a chunk: its note, sequence number, hash and content
+    private static SQLiteStatement compileInsert(SQLiteDatabase db) {
+        return db.compileStatement("INSERT INTO " + TABLE_NAME + " (" + COLUMN_NOTE_ID + ", "
+                + COLUMN_SEQ + ", " + COLUMN_HASH + ", " + COLUMN_CONTENT
+                + ") VALUES (?, ?, ?, ?)");
+    }
+
+    /**
+     * Updates the full-text index with the text of every chunked note saved since it was last
+     * indexed, and of every compressed note saved before the full-text backfill reached it.
+     * Each note is indexed in its own transaction, so writers are only held up for one note at
+     * a time. A note that the full-text backfill hasn't reached yet stays marked, and is
+     * indexed by a later call.
+     *
+     * @return The _IDs of the notes indexed.
+     */
+    static long[] reindexStale(SQLiteDatabase db) {
+        long[] ids;
+        Cursor c = db.query(NotePad.Notes.TABLE_NAME, new String[] { NotePad.Notes._ID },
+                NotePadProvider.COLUMN_FTS_STALE + " = 1", null, null, null, null);
+        try {
+            ids = new long[c.getCount()];
+            for (int i = 0; c.moveToNext(); i++) {
+                ids[i] = c.getLong(0);
+            }
+        } finally {
+            c.close();
+        }
+        if (ids.length == 0) {
+            return ids;
+        }
+
+        SQLiteStatement index = db.compileStatement("UPDATE " + NotePadProvider.FTS_TABLE_NAME
+                + " SET " + NotePad.Notes.COLUMN_NAME_NOTE + " = ? WHERE docid = ?");
+        SQLiteStatement unmark = db.compileStatement("UPDATE " + NotePad.Notes.TABLE_NAME
+                + " SET " + NotePadProvider.COLUMN_FTS_STALE + " = 0 WHERE "
+                + NotePad.Notes._ID + " = ? AND " + NotePadProvider.COLUMN_FTS_STALE + " = 1");
+        // The notes indexed are moved to the front of the array, behind the one being read
+        int indexed = 0;
+        try {
+            for (long id : ids) {
+                db.beginTransaction();
+                try {
+                    // Only a note that is still marked is indexed; it may have been saved
+                    // again, or deleted, since it was found
+                    unmark.bindLong(1, id);
+                    if (unmark.executeUpdateDelete() > 0) {
+                        index.bindString(1, NotePadProvider.readNoteText(db, id));
+                        index.bindLong(2, id);
+                        if (index.executeUpdateDelete() > 0) {
+                            ids[indexed++] = id;
+                            db.setTransactionSuccessful();
+                        }
+                    }
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        } finally {
+            index.close();
+            unmark.close();
+        }
+        Log.d(TAG, "Indexed " + indexed + " of " + ids.length + " stored notes");
+        return Arrays.copyOf(ids, indexed);
+    }
+}
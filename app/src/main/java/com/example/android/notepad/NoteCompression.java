@@ -0,0 +1,365 @@
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.CharArrayBuffer;
+import android.database.CrossProcessCursorWrapper;
+import android.database.Cursor;
+import android.database.CursorWindow;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compressed storage of note bodies. The text of a note that is long enough, but not long
+ * enough to be stored in chunks by {@link NoteChunks}, is compressed with Deflate and kept in
+ * the {@link #COLUMN_NOTE_DATA} column of the notes table instead of the note column. Small
+ * notes compress poorly on their own, so once the database has enough notes a shared
+ * dictionary is trained from them, and notes from {@link #DICTIONARY_MIN_LENGTH} characters on
+ * are compressed against it as well.
+ * <p>
+ * Each compressed body is a zlib stream, which names the dictionary it needs, if any, by its
+ * Adler-32 checksum. Dictionaries are kept in the {@link #DICTIONARY_TABLE_NAME} table under
+ * that checksum and never deleted, so every body can always be read back.
+ * <p>
+ * The note column of a query returns the compressed bytes of a compressed note, and
+ * {@link #wrap} decompresses them only when the text of a row is actually read. Queries that
+ * don't project the note column, such as the notes list, never decompress anything.
+ */
+final class NoteCompression {
+    // Used for debugging and logging
+    private static final String TAG = "NoteCompression";
+
+    /**
+     * The column of the notes table that holds the compressed text of a compressed note. Like
+     * the body format, it is not part of the contract.
+     */
+    static final String COLUMN_NOTE_DATA = "note_data";
+
+    /**
+     * The table of dictionaries
+     */
+    static final String DICTIONARY_TABLE_NAME = "note_dictionaries";
+
+    /*
+     * Column definitions for the dictionaries table
+     */
+    static final String COLUMN_ADLER = "adler";
+    static final String COLUMN_CREATED = "created";
+    static final String COLUMN_DATA = "data";
+
+    /**
+     * The default length, in characters, from which a note's text is compressed
+     */
+    static final int DEFAULT_MIN_LENGTH = 4 * 1024;
+
+    /**
+     * The length, in characters, from which a note's text is compressed when there is a
+     * dictionary
+     */
+    static final int DICTIONARY_MIN_LENGTH = 256;
+
+    /**
+     * The size, in bytes, of a trained dictionary
+     */
+    static final int DICTIONARY_SIZE = 16 * 1024;
+
+    /**
+     * The number of notes a dictionary is trained from, at least and at most, and how much of
+     * the start of each is read
+     */
+    static final int MIN_TRAINING_NOTES = 50;
+    static final int MAX_TRAINING_NOTES = 500;
+    private static final int TRAINING_SAMPLE_LENGTH = 2048;
+
+    // The length of the pieces of text that the dictionary is made of, and the number of notes
+    // that a piece has to appear in to be worth adding
+    private static final int PIECE_LENGTH = 16;
+    private static final int MIN_PIECE_NOTES = 3;
+
+    // A compressed body is only kept if it is at most this fraction, in eighths, of the text
+    private static final int MAX_COMPRESSED_EIGHTHS = 7;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // The dictionaries read so far, by database path and checksum
+    private static final HashMap<String, byte[]> sDictionaries = new HashMap<String, byte[]>();
+
+    // This class cannot be instantiated
+    private NoteCompression() {
+    }
+
+    /**
+     * Compresses a text.
+     *
+     * @param text The text to compress.
+     * @param dictionary The dictionary to compress against, or null for none.
+     * @return The compressed text, or null if compressing it doesn't save enough space to be
+     * worth it.
+     */
+    static byte[] compress(String text, byte[] dictionary) {
+        byte[] input = text.getBytes(UTF_8);
+        Deflater deflater = new Deflater();
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(input);
+            deflater.finish();
+
+            // Compression gives up as soon as the output reaches the largest size worth keeping
+            byte[] output = new byte[input.length / 8 * MAX_COMPRESSED_EIGHTHS];
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == output.length) {
+                    return null;
+                }
+                length += deflater.deflate(output, length, output.length - length);
+            }
+            return Arrays.copyOf(output, length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decompresses a text compressed by {@link #compress}, reading the dictionary that it was
+     * compressed against from the database if it needs one.
+     *
+     * @throws SQLException if the compressed text is corrupt, or its dictionary is missing.
+     */
+    static String decompress(SQLiteDatabase db, byte[] data) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream text = new ByteArrayOutputStream(data.length * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length > 0) {
+                    text.write(buffer, 0, length);
+                } else if (inflater.needsDictionary()) {
+                    inflater.setDictionary(dictionary(db, inflater.getAdler() & 0xffffffffL));
+                } else if (inflater.needsInput()) {
+                    throw new SQLException("Compressed note is truncated");
+                }
+            }
+            return new String(text.toByteArray(), UTF_8);
+        } catch (DataFormatException e) {
+            throw new SQLException("Compressed note is corrupt: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Returns the dictionary that new notes are compressed against, which is the most recently
+     * trained one, or null if none has been trained.
+     */
+    static byte[] currentDictionary(SQLiteDatabase db) {
+        Cursor c = db.query(DICTIONARY_TABLE_NAME, new String[] { COLUMN_DATA }, null, null,
+                null, null, COLUMN_CREATED + " DESC", "1");
+        try {
+            return c.moveToFirst() ? c.getBlob(0) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Trains a dictionary from the starts of the most recently modified notes, and stores it.
+     * A dictionary is made of the pieces of text that the most notes have in common, the most
+     * common last, since Deflate finds matches near the end of the dictionary more cheaply.
+     *
+     * @return The dictionary, or null if there are too few notes to train one from.
+     */
+    static byte[] trainDictionary(SQLiteDatabase db, long now) {
+        // The number of notes that each piece appears in
+        HashMap<String, Integer> noteCounts = new HashMap<String, Integer>();
+        int notes = 0;
+        Cursor c = db.query(NotePad.Notes.TABLE_NAME, new String[] {
+                    "substr(" + NotePad.Notes.COLUMN_NAME_NOTE + ", 1, " + TRAINING_SAMPLE_LENGTH
+                            + ")"
+                }, NotePadProvider.COLUMN_BODY_FORMAT + " = " + NotePadProvider.BODY_FORMAT_INLINE
+                        + " AND " + NotePad.Notes.COLUMN_NAME_BODY_LENGTH + " >= "
+                        + DICTIONARY_MIN_LENGTH,
+                null, null, null, NotePad.Notes.DEFAULT_SORT_ORDER,
+                Integer.toString(MAX_TRAINING_NOTES));
+        try {
+            HashSet<String> pieces = new HashSet<String>();
+            while (c.moveToNext()) {
+                String sample = c.getString(0);
+                pieces.clear();
+                for (int i = 0; i + PIECE_LENGTH <= sample.length(); i += PIECE_LENGTH / 2) {
+                    pieces.add(sample.substring(i, i + PIECE_LENGTH));
+                }
+                for (String piece : pieces) {
+                    Integer count = noteCounts.get(piece);
+                    noteCounts.put(piece, count == null ? 1 : count + 1);
+                }
+                notes++;
+            }
+        } finally {
+            c.close();
+        }
+        if (notes < MIN_TRAINING_NOTES) {
+            return null;
+        }
+
+        ArrayList<String> common = new ArrayList<String>();
+        for (String piece : noteCounts.keySet()) {
+            if (noteCounts.get(piece) >= MIN_PIECE_NOTES) {
+                common.add(piece);
+            }
+        }
+        Collections.sort(common, (a, b) -> noteCounts.get(b) - noteCounts.get(a));
+
+        // Takes the most common pieces that fit, then puts the most common last
+        ArrayList<byte[]> chosen = new ArrayList<byte[]>();
+        int size = 0;
+        for (String piece : common) {
+            byte[] bytes = piece.getBytes(UTF_8);
+            if (size + bytes.length > DICTIONARY_SIZE) {
+                break;
+            }
+            chosen.add(bytes);
+            size += bytes.length;
+        }
+        if (chosen.isEmpty()) {
+            return null;
+        }
+        byte[] dictionary = new byte[size];
+        for (int i = chosen.size() - 1, offset = 0; i >= 0; i--) {
+            byte[] bytes = chosen.get(i);
+            System.arraycopy(bytes, 0, dictionary, offset, bytes.length);
+            offset += bytes.length;
+        }
+
+        Adler32 adler = new Adler32();
+        adler.update(dictionary);
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_ADLER, adler.getValue());
+        values.put(COLUMN_CREATED, now);
+        values.put(COLUMN_DATA, dictionary);
+        db.insertWithOnConflict(DICTIONARY_TABLE_NAME, null, values,
+                SQLiteDatabase.CONFLICT_REPLACE);
+        Log.i(TAG, "Trained a " + size + " byte dictionary from " + notes + " notes");
+        return dictionary;
+    }
+
+    /**
+     * Wraps a query's cursor so that the note column, if the cursor has one, returns the text
+     * of compressed notes rather than their compressed bytes, and the text of chunked notes
+     * rather than their _ID, as {@link NoteChunks#NOTE_EXPRESSION} selects them.
+     */
+    static Cursor wrap(SQLiteDatabase db, Cursor cursor) {
+        int noteColumn = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
+        return noteColumn < 0 ? cursor : new DecompressingCursor(cursor, db, noteColumn);
+    }
+
+    // Returns a dictionary by its checksum, reading it from the database the first time
+    private static byte[] dictionary(SQLiteDatabase db, long adler) {
+        String key = db.getPath() + "#" + adler;
+        synchronized (sDictionaries) {
+            byte[] dictionary = sDictionaries.get(key);
+            if (dictionary != null) {
+                return dictionary;
+            }
+        }
+
+        Cursor c = db.query(DICTIONARY_TABLE_NAME, new String[] { COLUMN_DATA },
+                COLUMN_ADLER + " = " + adler, null, null, null, null);
+        try {
+            if (!c.moveToFirst()) {
+                throw new SQLException("Missing dictionary " + adler);
+            }
+            byte[] dictionary = c.getBlob(0);
+            synchronized (sDictionaries) {
+                sDictionaries.put(key, dictionary);
+            }
+            return dictionary;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * A cursor whose note column is decompressed, or read from the note's chunks in order, as
+     * it is read. The text of the current row is kept, so reading it twice decompresses it
+     * once. The cursor has no window of its own, so a
+     * client in another process gets a window filled through it, with the text decompressed.
+     */
+    private static final class DecompressingCursor extends CrossProcessCursorWrapper {
+        private final SQLiteDatabase mDb;
+        private final int mNoteColumn;
+
+        // The position whose text was last decompressed, and the text
+        private int mDecompressedPosition = -1;
+        private String mDecompressed;
+
+        DecompressingCursor(Cursor cursor, SQLiteDatabase db, int noteColumn) {
+            super(cursor);
+            mDb = db;
+            mNoteColumn = noteColumn;
+        }
+
+        @Override
+        public int getType(int column) {
+            int type = super.getType(column);
+            return column == mNoteColumn
+                    && (type == FIELD_TYPE_BLOB || type == FIELD_TYPE_INTEGER)
+                    ? FIELD_TYPE_STRING : type;
+        }
+
+        @Override
+        public String getString(int column) {
+            if (column != mNoteColumn) {
+                return super.getString(column);
+            }
+            int type = super.getType(column);
+            if (type != FIELD_TYPE_BLOB && type != FIELD_TYPE_INTEGER) {
+                return super.getString(column);
+            }
+            if (mDecompressedPosition != getPosition()) {
+                mDecompressed = type == FIELD_TYPE_BLOB
+                        ? decompress(mDb, super.getBlob(column))
+                        : NoteChunks.read(mDb, super.getLong(column));
+                mDecompressedPosition = getPosition();
+            }
+            return mDecompressed;
+        }
+
+        @Override
+        public void copyStringToBuffer(int column, CharArrayBuffer buffer) {
+            if (column != mNoteColumn) {
+                super.copyStringToBuffer(column, buffer);
+                return;
+            }
+            String text = getString(column);
+            buffer.data = text == null ? new char[0] : text.toCharArray();
+            buffer.sizeCopied = buffer.data.length;
+        }
+
+        @Override
+        public CursorWindow getWindow() {
+            return null;
+        }
+
+        @Override
+        public void fillWindow(int position, CursorWindow window) {
+            DatabaseUtils.cursorFillWindow(this, position, window);
+        }
+    }
+}
@@ -11,6 +11,7 @@ import android.content.ClipData;
 import android.content.ClipboardManager;
 import android.content.ComponentName;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
@@ -24,8 +25,12 @@ import android.graphics.drawable.ColorDrawable;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.SystemClock;
+import android.text.Editable;
 import android.text.Html;
+import android.text.Layout;
 import android.text.TextUtils;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -35,11 +40,7 @@ import android.widget.EditText;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import java.text.SimpleDateFormat;
 import java.util.Calendar;
-import java.util.Date;
-import java.util.Locale;
-import java.util.TimeZone;
 
 /**
  * 笔记编辑页面
@@ -48,28 +49,62 @@ import java.util.TimeZone;
 public class NoteEditor extends Activity {
     // 日志标签
     private static final String TAG = "NoteEditor";
-    // 保存状态的键
-    private static final String ORIGINAL_CONTENT = "origContent";
     // 状态常量：编辑现有笔记
     private static final int STATE_EDIT = 0;
     // 状态常量：新建笔记
     private static final int STATE_INSERT = 1;
 
+    /**
+     * 启动编辑页的 Intent 中，用户按下列表项的时间（SystemClock.uptimeMillis()），
+     * 用于统计从按下到显示内容的延迟
+     */
+    static final String EXTRA_TOUCH_UPTIME = "com.example.android.notepad.extra.TOUCH_UPTIME";
+
+    // 从按下列表项到显示笔记内容的延迟，按列表页是否预读分别统计
+    private static final LatencyRecorder sTapToContent =
+            new LatencyRecorder("tap-to-content, prefetch on", 100);
+    private static final LatencyRecorder sTapToContentNoPrefetch =
+            new LatencyRecorder("tap-to-content, prefetch off", 100);
+
     // 全局变量
     private int mState;
     private Uri mUri;
-    private Cursor mCursor;
+    private NoteRecord mRecord; // 最近一次从缓存或数据库读到的笔记，尚未读到或已删除时为 null
+    private boolean mDeleted; // 笔记已被删除
+    private boolean mEditedSinceShown; // 显示 mRecord 之后用户是否编辑过
+    private int mLoadGeneration; // 最近一次读取的编号，过期的读取结果直接丢弃
+    private long mTouchUptime; // 用户按下列表项的时间，内容显示后清零
     private EditText mTitleText; // 标题输入框
     private LinedEditText mContentText; // 带线条的内容编辑框
     private TextView mCreateTimeTv; // 创建时间显示
     private TextView mModifyTimeTv; // 修改时间显示
-    private String mOriginalContent; // 原始内容（用于撤销）
-    private SimpleDateFormat mDateFormat; // 时间格式化器
+    private String mOriginalContent; // 原始内容（用于撤销），只保存在内存中
+    private String mOriginalTitle; // 原始标题（用于撤销），随实例状态保存
+    private boolean mRecreated; // 页面是重建的，打开时的原始内容已不可知
+    private final EditHistory mHistory = new EditHistory(); // 内容的撤销/重做历史
+    private String mSavedTitle; // 数据库中的标题
+    private TextDigest.Fingerprint mSavedContent; // 数据库中内容的指纹（长度 + 64 位哈希）
+    private AutosaveScheduler mAutosave; // 输入时的后台自动保存
+    private boolean mLoadingText; // 正在把数据库中的内容填入编辑框，这不算编辑
+    private TimestampFormatter mDateFormat; // 时间格式化器
+    private LargeNoteWindow mLargeNote; // 超长笔记的编辑窗口，普通笔记为 null
+    private boolean mWindowAtStart; // 窗口是否从笔记开头开始
+    private boolean mWindowAtEnd; // 窗口是否到笔记结尾为止
+    private FindBar mFindBar; // 笔记内查找替换栏
+    private MarkdownHighlighter mMarkdown; // 内容的 Markdown 高亮，关闭时为 null
 
     // 新增常量
     private static final int REQUEST_SET_REMINDER = 100;
     private static final String REMINDER_ACTION = "com.example.android.notepad.REMINDER";
 
+    // 保存实例状态时原始标题的键
+    private static final String KEY_ORIGINAL_TITLE = "originalTitle";
+
+    /**
+     * NotePrefs 中是否高亮 Markdown 的设置，默认开启。关闭后可以对比高亮前后每次输入的延迟
+     */
+    static final String PREF_MARKDOWN_HIGHLIGHT = "markdown_highlight";
+
 
     /**
      * 带线条的自定义编辑框
@@ -77,40 +112,64 @@ public class NoteEditor extends Activity {
      */
     public static class LinedEditText extends EditText {
         private final Rect mRect;
+        private final Rect mClip;
         private final Paint mPaint;
 
+        // 传给 drawLines() 的端点坐标，每条线四个数，只在行数变多时扩大
+        private float[] mLinePoints = new float[0];
+
         // 布局加载器使用的构造方法
         public LinedEditText(Context context, android.util.AttributeSet attrs) {
             super(context, attrs);
             mRect = new Rect();
+            mClip = new Rect();
             mPaint = new Paint();
             mPaint.setStyle(Paint.Style.STROKE);
             mPaint.setColor(0x80000000); // 深灰色线条
         }
 
         /**
-         * 绘制编辑框内容及线条
+         * 绘制编辑框内容及线条。只为与当前裁剪区域相交的行绘制下划线，全部线条由一次
+         * drawLines() 画出：几万行的笔记滚动或输入时，每帧的绘制量只与屏幕上的行数有关。
          *
          * @param canvas 绘图画布
          */
         @Override
         protected void onDraw(Canvas canvas) {
-            // 获取文字行数
-            int count = getLineCount();
-            Rect r = mRect;
-            Paint paint = mPaint;
-
-            // 为每行文字绘制下划线
-            for (int i = 0; i < count; i++) {
-                // 获取当前行的基线位置
-                int baseline = getLineBounds(i, r);
-                // 绘制横线（位于基线下方1dp处）
-                canvas.drawLine(r.left, baseline + 1, r.right, baseline + 1, paint);
+            Layout layout = getLayout();
+            if (layout != null && getLineCount() > 0 && canvas.getClipBounds(mClip)) {
+                drawRuledLines(canvas, layout);
             }
 
             // 调用父类方法完成其余绘制
             super.onDraw(canvas);
         }
+
+        // 为裁剪区域内的每行文字绘制下划线
+        private void drawRuledLines(Canvas canvas, Layout layout) {
+            // 裁剪区域是视图（含滚动）坐标，行的位置是布局坐标，相差顶部的内边距
+            int padding = getExtendedPaddingTop();
+            int first = layout.getLineForVertical(Math.max(0, mClip.top - padding));
+            int last = Math.min(layout.getLineForVertical(Math.max(0, mClip.bottom - padding)),
+                    getLineCount() - 1);
+            int needed = (last - first + 1) * 4;
+            if (mLinePoints.length < needed) {
+                mLinePoints = new float[Math.max(needed, mLinePoints.length * 2)];
+            }
+
+            Rect r = mRect;
+            float[] points = mLinePoints;
+            int n = 0;
+            for (int i = first; i <= last; i++) {
+                // 获取当前行的基线位置，横线位于基线下方1dp处
+                int baseline = getLineBounds(i, r);
+                points[n++] = r.left;
+                points[n++] = baseline + 1;
+                points[n++] = r.right;
+                points[n++] = baseline + 1;
+            }
+            canvas.drawLines(points, 0, n, mPaint);
+        }
     }
 
     /**
@@ -129,9 +188,8 @@ public class NoteEditor extends Activity {
             actionBar.setBackgroundDrawable(new ColorDrawable(Color.WHITE));
         }
 
-        // 初始化时间格式化器（北京时间，格式：年-月-日 时:分）
-        mDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm", Locale.getDefault());
-        mDateFormat.setTimeZone(TimeZone.getTimeZone("Asia/Shanghai"));
+        // 初始化时间格式化器（设备时区，格式：年-月-日 时:分）
+        mDateFormat = TimestampFormatter.getInstance();
 
         // 绑定视图控件
         mTitleText = (EditText) findViewById(R.id.note_title);
@@ -147,6 +205,7 @@ public class NoteEditor extends Activity {
         if (Intent.ACTION_EDIT.equals(action)) {
             mState = STATE_EDIT;
             mUri = intent.getData();
+            mTouchUptime = intent.getLongExtra(EXTRA_TOUCH_UPTIME, 0);
         } else if (Intent.ACTION_INSERT.equals(action) || Intent.ACTION_PASTE.equals(action)) {
             mState = STATE_INSERT;
             // 插入新笔记
@@ -163,20 +222,68 @@ public class NoteEditor extends Activity {
             return;
         }
 
-        // 查询笔记数据（包含ID、标题、内容、创建时间、修改时间）
-        mCursor = managedQuery(
-                mUri,
-                new String[]{
-                        NotePad.Notes._ID,
-                        NotePad.Notes.COLUMN_NAME_TITLE,
-                        NotePad.Notes.COLUMN_NAME_NOTE,
-                        NotePad.Notes.COLUMN_NAME_CREATE_DATE,
-                        NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
-                },
-                null,
-                null,
-                null
-        );
+        // 输入时合并修改，在后台定期保存，所有写入都经过它以保证顺序
+        mAutosave = new AutosaveScheduler(getContentResolver(), mUri, this::takeSnapshot);
+        TextWatcher autosaveWatcher = new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                if (mRecord != null && !mLoadingText) {
+                    mEditedSinceShown = true;
+                    mAutosave.onEdit();
+                    if (mLargeNote != null) {
+                        mLargeNote.onEdit();
+                    }
+                }
+            }
+        };
+        mTitleText.addTextChangedListener(autosaveWatcher);
+        mContentText.addTextChangedListener(autosaveWatcher);
+
+        // 记录编辑历史：替换之前取得被替换的文字，替换之后记录这次编辑。载入内容和撤销/重做
+        // 本身不算编辑
+        mContentText.addTextChangedListener(new TextWatcher() {
+            private String mRemoved;
+
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+                mRemoved = mLoadingText || mHistory.isApplying() ? null
+                        : TextUtils.substring(s, start, start + count);
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+                if (mRemoved != null) {
+                    mHistory.record(start, mRemoved, TextUtils.substring(s, start, start + count));
+                    mRemoved = null;
+                }
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+            }
+        });
+
+        // 内容不随实例状态保存，重建后从数据库读回（离开页面时已经写入），撤销历史单独保存
+        mContentText.setSaveEnabled(false);
+
+        // 超长笔记滚动到窗口边缘时移动窗口
+        mContentText.getViewTreeObserver().addOnScrollChangedListener(this::onContentScrolled);
+
+        // 查找替换栏，从菜单打开
+        mFindBar = new FindBar(findViewById(R.id.find_bar), mContentText);
+
+        // Markdown 高亮，只高亮可见的行附近
+        if (isMarkdownEnabled(this)) {
+            mMarkdown = new MarkdownHighlighter(mContentText);
+        }
 
         // 处理粘贴操作
         if (Intent.ACTION_PASTE.equals(action)) {
@@ -184,15 +291,25 @@ public class NoteEditor extends Activity {
             mState = STATE_EDIT;
         }
 
-        // 恢复保存的状态
+        // 恢复撤销历史，内容读回后核对
         if (savedInstanceState != null) {
-            mOriginalContent = savedInstanceState.getString(ORIGINAL_CONTENT);
+            mRecreated = true;
+            mOriginalTitle = savedInstanceState.getString(KEY_ORIGINAL_TITLE);
+            mHistory.restore(savedInstanceState);
         }
 
         // 应用背景设置
         applyBackgroundSetting();
     }
 
+    /**
+     * 是否高亮内容中的 Markdown
+     */
+    static boolean isMarkdownEnabled(Context context) {
+        return context.getSharedPreferences("NotePrefs", MODE_PRIVATE)
+                .getBoolean(PREF_MARKDOWN_HIGHLIGHT, true);
+    }
+
     /**
      * 应用背景颜色设置
      */
@@ -214,52 +331,188 @@ public class NoteEditor extends Activity {
 
     /**
      * 恢复数据并显示
-     * 在Activity进入前台时调用，加载笔记内容和时间信息
+     * 在Activity进入前台时调用。缓存中有这篇笔记时立即显示，再在后台从数据库读取核对
      */
-    @SuppressLint("SetTextI18n")
     @Override
     protected void onResume() {
         super.onResume();
 
-        if (mCursor != null) {
-            mCursor.requery();
-            mCursor.moveToFirst();
+        if (mDeleted) {
+            showMissing();
+            return;
+        }
+        NoteRecord cached = NoteCache.getInstance().get(ContentUris.parseId(mUri));
+        if (cached != null) {
+            showRecord(cached);
+        }
+        loadNote();
+    }
 
-            // 设置标题栏
-            if (mState == STATE_EDIT) {
-                String title = mCursor.getString(1); // COLUMN_NAME_TITLE的索引为1
-                setTitle(String.format(getString(R.string.title_edit), title));
-            } else {
-                setTitle(getString(R.string.title_create));
+    /**
+     * 在后台线程从数据库读取笔记，读到后放入缓存，并在主线程交给 onNoteLoaded()。
+     * 列表页已经在预读这篇笔记时，直接等待预读的结果
+     */
+    private void loadNote() {
+        final int load = ++mLoadGeneration;
+        NoteLoader.load(getContentResolver(), mUri, record -> onNoteLoaded(load, record));
+    }
+
+    /**
+     * 数据库中的笔记读到后在主线程调用。与已显示的缓存内容相同时什么也不做；不同且用户还没有
+     * 编辑时改为显示数据库中的内容；用户已经开始编辑时保留编辑框中的内容，只更新已保存内容的记录。
+     *
+     * @param load   读取的编号
+     * @param record 读到的笔记，笔记不存在时为 null
+     */
+    private void onNoteLoaded(int load, NoteRecord record) {
+        if (load != mLoadGeneration || mDeleted) {
+            return;
+        }
+        if (record == null) {
+            Log.w(TAG, "笔记不存在：" + mUri);
+            mRecord = null;
+            mAutosave.cancel();
+            showMissing();
+        } else if (record.sameAs(mRecord)) {
+            mRecord = record;
+        } else if (mRecord == null || !mEditedSinceShown) {
+            showRecord(record);
+        } else {
+            mRecord = record;
+            // 超长笔记的内容指纹是编辑窗口的，不随笔记变化
+            rememberSaved(record.title, record.large ? null : record.note);
+        }
+    }
+
+    /**
+     * 显示一条笔记的标题、内容和时间
+     */
+    @SuppressLint("SetTextI18n")
+    private void showRecord(NoteRecord record) {
+        mRecord = record;
+        mEditedSinceShown = false;
+
+        // 设置标题栏
+        if (mState == STATE_EDIT) {
+            setTitle(String.format(getString(R.string.title_edit), record.title));
+        } else {
+            setTitle(getString(R.string.title_create));
+        }
+
+        // 加载标题和内容
+        mLoadingText = true;
+        mTitleText.setText(record.title);
+        if (record.large) {
+            // 超长笔记的内容按窗口读取，已在窗口模式时保留编辑框中的窗口
+            if (mLargeNote == null) {
+                mLargeNote = new LargeNoteWindow(getContentResolver(), record.id,
+                        this::onWindowLoaded);
+                mContentText.setText("");
+                mContentText.setEnabled(false);
+                mLargeNote.load();
             }
+        } else {
+            mLargeNote = null;
+            mContentText.setEnabled(true);
+            // 内容没有变化时不重新设置，以免重新排版并清空撤销历史
+            if (!TextUtils.equals(mContentText.getText(), record.note)) {
+                mContentText.setTextKeepState(record.note);
+                mHistory.attach(record.note);
+            }
+        }
+        mLoadingText = false;
+        if (mOriginalContent == null && !record.large && !mRecreated) {
+            // 撤销历史从原始内容开始，全部撤销即回到原始内容
+            mOriginalContent = record.note;
+            mHistory.clear();
+        }
+        if (mOriginalTitle == null) {
+            mOriginalTitle = record.title;
+        }
+        rememberSaved(record.title, record.large ? null : record.note);
+
+        // 显示时间
+        mCreateTimeTv.setText("创建时间：" + mDateFormat.format(record.created));
+        mModifyTimeTv.setText("修改时间：" + mDateFormat.format(record.modified));
+
+        // 从列表页打开时，统计从按下列表项到第一次显示内容的延迟
+        if (mTouchUptime != 0) {
+            long millis = SystemClock.uptimeMillis() - mTouchUptime;
+            (NotesList.isPrefetchEnabled(this) ? sTapToContent : sTapToContentNoPrefetch)
+                    .record(millis);
+            mTouchUptime = 0;
+        }
+    }
 
-            // 加载标题和内容
-            mTitleText.setText(mCursor.getString(1));
-            String content = mCursor.getString(2); // COLUMN_NAME_NOTE的索引为2
-            mContentText.setTextKeepState(content);
-            if (mOriginalContent == null) {
-                mOriginalContent = content;
+    /**
+     * 超长笔记的一个窗口读到后在主线程调用：显示窗口中的内容，并让移动前屏幕顶部的内容留在原处
+     *
+     * @param text   窗口中的内容
+     * @param anchor 移动前屏幕上第一个字符在新内容中的位置
+     */
+    private void onWindowLoaded(String text, final int anchor, boolean atStart, boolean atEnd) {
+        mWindowAtStart = atStart;
+        mWindowAtEnd = atEnd;
+        mLoadingText = true;
+        mContentText.setText(text);
+        mContentText.setEnabled(true);
+        mContentText.setSelection(anchor);
+        mLoadingText = false;
+        mHistory.clear();
+        rememberSaved(null, text);
+        mContentText.post(() -> {
+            Layout layout = mContentText.getLayout();
+            if (layout != null) {
+                mContentText.scrollTo(0, layout.getLineTop(layout.getLineForOffset(anchor)));
             }
+        });
+    }
 
-            // 加载并显示时间
-            long createTime = mCursor.getLong(3); // COLUMN_NAME_CREATE_DATE的索引为3
-            long modifyTime = mCursor.getLong(4); // COLUMN_NAME_MODIFICATION_DATE的索引为4
-            mCreateTimeTv.setText("创建时间：" + mDateFormat.format(new Date(createTime)));
-            mModifyTimeTv.setText("修改时间：" + mDateFormat.format(new Date(modifyTime)));
+    /**
+     * 内容滚动时调用。超长笔记滚动到离窗口边缘不到一屏时，先交出窗口中未保存的修改，
+     * 再把窗口向滚动方向移动
+     */
+    private void onContentScrolled() {
+        Layout layout = mContentText.getLayout();
+        if (mLargeNote == null || layout == null || mLargeNote.isShifting()) {
+            return;
+        }
+        int top = mContentText.getScrollY();
+        int height = mContentText.getHeight();
+        boolean forward;
+        if (!mWindowAtEnd && top + 2 * height > layout.getHeight()) {
+            forward = true;
+        } else if (!mWindowAtStart && top < height) {
+            forward = false;
         } else {
-            setTitle(getString(R.string.error_title));
-            mContentText.setText(getString(R.string.error_message));
+            return;
         }
+        mAutosave.flush();
+        int anchor = layout.getLineStart(layout.getLineForVertical(
+                Math.max(0, top - mContentText.getExtendedPaddingTop())));
+        mLargeNote.shift(forward, mContentText.getText().toString(), anchor);
+    }
+
+    /**
+     * 笔记不存在时显示错误信息
+     */
+    private void showMissing() {
+        setTitle(getString(R.string.error_title));
+        mLoadingText = true;
+        mContentText.setText(getString(R.string.error_message));
+        mLoadingText = false;
+        mHistory.clear();
     }
 
     /**
      * 保存当前状态
-     * 在Activity可能被销毁时调用，保存原始内容
+     * 在Activity可能被销毁时调用，只保存撤销历史、内容的指纹和原始标题，不保存内容本身
      */
     @Override
     protected void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
-        outState.putString(ORIGINAL_CONTENT, mOriginalContent);
+        mHistory.save(outState, mContentText.getText());
+        outState.putString(KEY_ORIGINAL_TITLE, mOriginalTitle);
     }
 
     /**
@@ -270,7 +523,7 @@ public class NoteEditor extends Activity {
     protected void onPause() {
         super.onPause();
 
-        if (mCursor != null) {
+        if (!mDeleted) {
             String title = mTitleText.getText().toString().trim();
             String content = mContentText.getText().toString();
 
@@ -278,8 +531,11 @@ public class NoteEditor extends Activity {
             if (isFinishing() && TextUtils.isEmpty(content) && mState == STATE_INSERT) {
                 setResult(RESULT_CANCELED);
                 deleteNote();
+            } else if (mRecord == null) {
+                // 笔记还没有读到，编辑框中没有可保存的内容
             } else if (mState == STATE_EDIT) {
-                updateNote(content, title);
+                // 同步写入尚未保存的修改。只是打开又关闭时不写入，避免修改时间变化导致列表重新排序
+                flushEdits();
             } else if (mState == STATE_INSERT) {
                 updateNote(content, title);
                 mState = STATE_EDIT;
@@ -287,6 +543,31 @@ public class NoteEditor extends Activity {
         }
     }
 
+    /**
+     * 销毁时输出自动保存和笔记缓存的统计，并丢弃尚未返回的读取
+     */
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mLoadGeneration++;
+        if (mAutosave != null) {
+            mAutosave.release();
+            Log.i(TAG, NoteCache.getInstance().summary());
+        }
+    }
+
+    /**
+     * 返回键先关闭查找栏
+     */
+    @Override
+    public void onBackPressed() {
+        if (mFindBar != null && mFindBar.isShowing()) {
+            mFindBar.hide();
+        } else {
+            super.onBackPressed();
+        }
+    }
+
     /**
      * 创建菜单
      * 加载菜单资源并添加额外操作项
@@ -314,11 +595,19 @@ public class NoteEditor extends Activity {
      */
     @Override
     public boolean onPrepareOptionsMenu(Menu menu) {
-        if (mCursor != null) {
-            String savedContent = mCursor.getString(2);
+        if (mRecord != null && mRecord.large) {
+            // 超长笔记不保留原文副本，不能撤销
+            menu.findItem(R.id.menu_revert).setVisible(false);
+        } else if (mRecord != null && !canRevert()) {
+            // 重建后撤销历史不完整，全部撤销也回不到原始内容
+            menu.findItem(R.id.menu_revert).setVisible(false);
+        } else if (mRecord != null) {
+            String savedContent = mRecord.note;
             String currentContent = mContentText.getText().toString();
             menu.findItem(R.id.menu_revert).setVisible(!savedContent.equals(currentContent));
         }
+        menu.findItem(R.id.menu_undo).setEnabled(mHistory.canUndo());
+        menu.findItem(R.id.menu_redo).setEnabled(mHistory.canRedo());
         return super.onPrepareOptionsMenu(menu);
     }
 
@@ -329,14 +618,37 @@ public class NoteEditor extends Activity {
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         int id = item.getItemId();
-        if (id == R.id.menu_save) {
-            updateNote(mContentText.getText().toString(), mTitleText.getText().toString().trim());
+        if (id == R.id.menu_save && mLargeNote != null) {
+            flushEdits();
+            finish();
+            return true;
+        } else if (id == R.id.menu_save) {
+            String content = mContentText.getText().toString();
+            String title = mTitleText.getText().toString().trim();
+            if (mState != STATE_EDIT || isModified(content, title)) {
+                updateNote(content, title);
+            }
             finish();
             return true;
         } else if (id == R.id.menu_delete) {
             deleteNote();
             finish();
             return true;
+        } else if (id == R.id.menu_find) {
+            mFindBar.show();
+            return true;
+        } else if (id == R.id.menu_undo) {
+            int selection = mHistory.undo(mContentText.getText());
+            if (selection >= 0) {
+                mContentText.setSelection(selection);
+            }
+            return true;
+        } else if (id == R.id.menu_redo) {
+            int selection = mHistory.redo(mContentText.getText());
+            if (selection >= 0) {
+                mContentText.setSelection(selection);
+            }
+            return true;
         } else if (id == R.id.menu_revert) {
             cancelNote();
             return true;
@@ -493,11 +805,82 @@ public class NoteEditor extends Activity {
         // 更新内容
         values.put(NotePad.Notes.COLUMN_NAME_NOTE, content);
 
-        // 提交更新
-        getContentResolver().update(mUri, values, null, null);
+        // 提交更新，取代尚未写入的自动保存
+        mAutosave.writeNow(values);
+        rememberSaved(values.getAsString(NotePad.Notes.COLUMN_NAME_TITLE), content);
 
         // 更新界面时间显示
-        mModifyTimeTv.setText("修改时间：" + mDateFormat.format(new Date(currentTime)));
+        mModifyTimeTv.setText("修改时间：" + mDateFormat.format(currentTime));
+    }
+
+    /**
+     * 自动保存时在主线程取得要保存的内容。新建笔记的标题和创建时间仍由 onPause() 中的
+     * updateNote() 生成，这里只保存输入的内容。
+     *
+     * @return 要写入的值，内容没有变化时返回 null
+     */
+    @SuppressLint("SetTextI18n")
+    private ContentValues takeSnapshot() {
+        String content = mContentText.getText().toString();
+        String title = mTitleText.getText().toString().trim();
+        if (!isModified(content, title)) {
+            return null;
+        }
+
+        ContentValues values = new ContentValues();
+        long currentTime = System.currentTimeMillis();
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, currentTime);
+        boolean titleChanged = !TextUtils.isEmpty(title) && !title.equals(mSavedTitle);
+        if (!TextUtils.isEmpty(title)) {
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, title);
+        }
+        if (mLargeNote == null) {
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, content);
+        } else if (!mSavedContent.matches(content)) {
+            // 超长笔记只把窗口中的内容作为补丁写回，窗口以外的部分不动
+            mLargeNote.save(content, currentTime);
+        }
+
+        // 写入在后台进行，这里先记为已保存，下一次比较以此为准
+        rememberSaved(values.getAsString(NotePad.Notes.COLUMN_NAME_TITLE), content);
+        mModifyTimeTv.setText("修改时间：" + mDateFormat.format(currentTime));
+        return mLargeNote == null || titleChanged ? values : null;
+    }
+
+    /**
+     * 同步写入尚未保存的修改，返回时所有修改都已写入数据库，包括超长笔记窗口的补丁
+     */
+    private void flushEdits() {
+        mAutosave.flush();
+        if (mLargeNote != null) {
+            mLargeNote.flush();
+        }
+    }
+
+    /**
+     * 记录数据库中的标题和内容指纹，供 isModified() 比较
+     *
+     * @param title   已保存的标题，为 null 时保留之前记录的标题
+     * @param content 已保存的内容，为 null 时保留之前记录的指纹
+     */
+    private void rememberSaved(String title, String content) {
+        if (title != null) {
+            mSavedTitle = title.trim();
+        }
+        if (content != null) {
+            mSavedContent = TextDigest.Fingerprint.of(content);
+        }
+    }
+
+    /**
+     * 判断编辑框中的内容与数据库中的是否不同。内容只比较长度和哈希，不保留原文副本。
+     * 空标题不会被写入，因此不算修改。
+     */
+    private boolean isModified(String content, String title) {
+        if (mSavedContent == null || !mSavedContent.matches(content)) {
+            return true;
+        }
+        return !TextUtils.isEmpty(title) && !title.equals(mSavedTitle);
     }
 
     /**
@@ -505,15 +888,30 @@ public class NoteEditor extends Activity {
      * 恢复笔记到原始状态或删除新建笔记
      */
     private void cancelNote() {
-        if (mCursor != null) {
-            if (mState == STATE_EDIT) {
-                mCursor.close();
+        if (mLargeNote != null) {
+            Toast.makeText(this, R.string.revert_large_note, Toast.LENGTH_SHORT).show();
+        } else if (mRecord != null) {
+            if (!canRevert()) {
+                // 撤销历史不完整，菜单中也不显示此项
+                return;
+            }
+            if (mState == STATE_EDIT && mOriginalContent == null) {
+                // 页面重建后没有原始内容的副本，用撤销历史撤销全部修改，由自动保存写入
+                mHistory.undoAll(mContentText.getText());
+                mTitleText.setText(mOriginalTitle);
+                mAutosave.flush();
+            } else if (mState == STATE_EDIT) {
                 ContentValues values = new ContentValues();
                 values.put(NotePad.Notes.COLUMN_NAME_NOTE, mOriginalContent);
-                values.put(NotePad.Notes.COLUMN_NAME_TITLE, mCursor.getString(1));
-                getContentResolver().update(mUri, values, null, null);
+                values.put(NotePad.Notes.COLUMN_NAME_TITLE, mOriginalTitle);
+                mAutosave.writeNow(values);
+                rememberSaved(values.getAsString(NotePad.Notes.COLUMN_NAME_TITLE),
+                        mOriginalContent);
+                mLoadingText = true;
                 mContentText.setText(mOriginalContent);
-                mTitleText.setText(mCursor.getString(1));
+                mLoadingText = false;
+                mHistory.clear();
+                mTitleText.setText(mOriginalTitle);
             } else if (mState == STATE_INSERT) {
                 deleteNote();
                 finish();
@@ -521,17 +919,30 @@ public class NoteEditor extends Activity {
         }
     }
 
+    /**
+     * 能否撤销全部修改：有原始内容的副本，或者页面重建后撤销历史仍完整，且知道原始标题
+     */
+    private boolean canRevert() {
+        if (mState != STATE_EDIT) {
+            return true;
+        }
+        return mOriginalTitle != null && (mOriginalContent != null || mHistory.isComplete());
+    }
+
     /**
      * 删除笔记
      * 从数据库中移除当前笔记
      */
     private void deleteNote() {
-        if (mCursor != null) {
-            mCursor.close();
-            mCursor = null;
+        if (!mDeleted) {
+            // 笔记即将删除，不再需要尚未写入的自动保存
+            mAutosave.cancel();
+            mDeleted = true;
+            mRecord = null;
             getContentResolver().delete(mUri, null, null);
             mContentText.setText("");
             mTitleText.setText("");
+            mHistory.clear();
         }
     }
 
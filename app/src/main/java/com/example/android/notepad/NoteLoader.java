@@ -0,0 +1,135 @@
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 在后台线程读取笔记，读到的 NoteRecord 放入 {@link NoteCache}。
+ * <p>
+ * NotesList 在手指按下列表项时调用 {@link #prefetch}，在点击生效、NoteEditor 启动之前就开始读取，
+ * 编辑页打开时笔记通常已经在缓存中，第一帧就能显示内容。NoteEditor 调用 {@link #load} 从数据库
+ * 核对笔记；同一篇笔记的预读还在进行时不再重复查询，而是等待预读的结果。
+ * <p>
+ * 结果只有在读取期间没有任何笔记被修改时才算最新（缓存的代数没有变化）；否则预读的结果只丢弃，
+ * 等待它的 {@link #load} 会重新查询一次。所有方法都只能在主线程调用，回调也在主线程。
+ */
+final class NoteLoader {
+
+    /**
+     * 在主线程接收读到的笔记
+     */
+    interface Callback {
+        /**
+         * @param record 读到的笔记，笔记不存在时为 null
+         */
+        void onNoteLoaded(NoteRecord record);
+    }
+
+    // 所有读取共用的后台线程，预读排在前面的先完成
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    // 正在读取的笔记及等待其结果的回调，预读没有回调
+    private static final HashMap<Long, ArrayList<Callback>> sPending =
+            new HashMap<Long, ArrayList<Callback>>();
+
+    private NoteLoader() {
+    }
+
+    /**
+     * 笔记不在缓存中、也没有正在读取时，开始在后台读取并放入缓存
+     *
+     * @param noteUri 笔记的 URI
+     */
+    static void prefetch(ContentResolver resolver, Uri noteUri) {
+        long noteId = ContentUris.parseId(noteUri);
+        if (!sPending.containsKey(noteId) && !NoteCache.getInstance().contains(noteId)) {
+            sPending.put(noteId, new ArrayList<Callback>());
+            read(resolver, noteUri, noteId);
+        }
+    }
+
+    /**
+     * 从数据库读取笔记并放入缓存，读到后在主线程回调。正在预读这篇笔记时等待预读的结果。
+     *
+     * @param noteUri 笔记的 URI
+     */
+    static void load(ContentResolver resolver, Uri noteUri, Callback callback) {
+        long noteId = ContentUris.parseId(noteUri);
+        ArrayList<Callback> callbacks = sPending.get(noteId);
+        if (callbacks == null) {
+            callbacks = new ArrayList<Callback>();
+            sPending.put(noteId, callbacks);
+            read(resolver, noteUri, noteId);
+        }
+        callbacks.add(callback);
+    }
+
+    // 在后台线程读取笔记，在主线程交给等待的回调
+    private static void read(final ContentResolver resolver, final Uri noteUri,
+                             final long noteId) {
+        sExecutor.execute(() -> {
+            // 先取得缓存的代数，读取期间有笔记被修改时，读到的内容不会被缓存
+            NoteCache cache = NoteCache.getInstance();
+            long generation = cache.generation();
+            // 超长笔记只读取标题、长度和时间，正文由编辑页按窗口读取
+            NoteRecord record = query(resolver, noteUri, NoteRecord.SMALL_SELECTION, false);
+            if (record == null) {
+                record = query(resolver, noteUri, null, true);
+                if (record != null && !record.large) {
+                    // 两次查询之间笔记被改短了
+                    record = query(resolver, noteUri, null, false);
+                }
+            }
+            if (record != null) {
+                cache.put(record, generation);
+            }
+            final NoteRecord loaded = record;
+            final boolean current = cache.generation() == generation;
+            sMainHandler.post(() -> deliver(resolver, noteUri, noteId, loaded, current));
+        });
+    }
+
+    // 查询一篇笔记，header 为 true 时不读取正文；笔记不存在或不满足条件时返回 null
+    private static NoteRecord query(ContentResolver resolver, Uri noteUri, String selection,
+                                    boolean header) {
+        Cursor cursor = resolver.query(noteUri,
+                header ? NoteRecord.HEADER_PROJECTION : NoteRecord.PROJECTION, selection, null,
+                null);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            return header ? NoteRecord.headerFromCursor(cursor) : NoteRecord.fromCursor(cursor);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // 把结果交给等待的回调。结果可能已经过时且有回调在等待时，重新读取一次
+    private static void deliver(ContentResolver resolver, Uri noteUri, long noteId,
+                                NoteRecord record, boolean current) {
+        ArrayList<Callback> callbacks = sPending.get(noteId);
+        if (!current && !callbacks.isEmpty()) {
+            read(resolver, noteUri, noteId);
+            return;
+        }
+        sPending.remove(noteId);
+        for (Callback callback : callbacks) {
+            callback.onNoteLoaded(record);
+        }
+    }
+}
@@ -78,6 +78,11 @@ public final class NotePad {
          */
         private static final String PATH_LIVE_FOLDER = "/live_folders/notes";
 
+        /**
+         * Path part for the full-text search URI
+         */
+        private static final String PATH_SEARCH = "/search";
+
         /**
          * The content:// style URL for this table
          */
@@ -103,6 +108,38 @@ public final class NotePad {
         public static final Uri LIVE_FOLDER_URI
             = Uri.parse(SCHEME + AUTHORITY + PATH_LIVE_FOLDER);
 
+        /**
+         * The content:// style URL for full-text searches over the notes table. Callers supply
+         * the search terms in the {@link #QUERY_PARAMETER_SEARCH} query parameter. Rows come back
+         * ranked, notes whose title matches first, and carry a {@link #COLUMN_NAME_SNIPPET}.
+         */
+        public static final Uri SEARCH_URI = Uri.parse(SCHEME + AUTHORITY + PATH_SEARCH);
+
+        /**
+         * Query parameter of {@link #SEARCH_URI} that holds the user's search terms
+         */
+        public static final String QUERY_PARAMETER_SEARCH = "q";
+
+        /**
+         * Query parameter of {@link #CONTENT_URI} that limits the result to one page of at most
+         * this many notes. Paged results are always sorted by {@link #PAGE_SORT_ORDER}.
+         */
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+        /**
+         * Query parameter of a paged {@link #CONTENT_URI} query that holds the modification
+         * timestamp of the last note of the previous page. Must be used together with
+         * {@link #QUERY_PARAMETER_BEFORE_ID}; the page then starts with the note that follows
+         * that one in {@link #PAGE_SORT_ORDER}.
+         */
+        public static final String QUERY_PARAMETER_BEFORE_MODIFIED = "before_modified";
+
+        /**
+         * Query parameter of a paged {@link #CONTENT_URI} query that holds the _ID of the last
+         * note of the previous page
+         */
+        public static final String QUERY_PARAMETER_BEFORE_ID = "before_id";
+
         /*
          * MIME type definitions
          */
@@ -123,6 +160,24 @@ public final class NotePad {
          */
         public static final String DEFAULT_SORT_ORDER = "modified DESC";
 
+        /**
+         * The sort order of paged queries. It is the default sort order with ties broken by
+         * _ID, so that every note has a unique position to continue a page from.
+         */
+        public static final String PAGE_SORT_ORDER = "modified DESC, _id DESC";
+
+        /**
+         * A sort order by title, ignoring case and width differences, read from the index on
+         * {@link #COLUMN_NAME_TITLE_KEY}
+         */
+        public static final String TITLE_SORT_ORDER = "title_key, _id";
+
+        /**
+         * A sort order by creation date, newest first, read from the index on
+         * {@link #COLUMN_NAME_CREATE_DATE}
+         */
+        public static final String CREATED_SORT_ORDER = "created DESC";
+
         /*
          * Column definitions
          */
@@ -150,5 +205,365 @@ public final class NotePad {
          * <P>Type: INTEGER (long from System.curentTimeMillis())</P>
          */
         public static final String COLUMN_NAME_MODIFICATION_DATE = "modified";
+
+        /**
+         * Column name for a one-line preview of the start of the note content, at most
+         * {@link #PREVIEW_LENGTH} characters long. Maintained by the provider; lists should
+         * project this rather than {@link #COLUMN_NAME_NOTE}, which can be very large.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_PREVIEW = "preview";
+
+        /**
+         * Column name for the length of the note content in characters. Maintained by the
+         * provider.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_BODY_LENGTH = "body_length";
+
+        /**
+         * Column name for a 64-bit hash of the note content, which changes whenever the content
+         * does. Maintained by the provider.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_BODY_HASH = "body_hash";
+
+        /**
+         * The maximum length of {@link #COLUMN_NAME_PREVIEW}
+         */
+        public static final int PREVIEW_LENGTH = 100;
+
+        /**
+         * Column name for the sort key of the title: the title in Unicode NFKC form, lower
+         * cased and trimmed. Maintained by the provider.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_TITLE_KEY = "title_key";
+
+        /**
+         * Column name for the matching excerpt of a note, only available from {@link #SEARCH_URI}
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_SNIPPET = "snippet";
+    }
+
+    /**
+     * Note revisions contract. The provider records the text a note had before it was edited,
+     * at most once every few minutes, as a revision of the note. The revisions of a note are
+     * listed by the URI from {@link #getContentUri(long)}; appending a revision's _ID to it gives
+     * the URI of that revision, which is the only one that returns its text.
+     */
+    public static final class Revisions implements BaseColumns {
+
+        // This class cannot be instantiated
+        private Revisions() {}
+
+        /**
+         * Path part for the revisions of a note, after the note ID URI
+         */
+        private static final String PATH_REVISIONS = "revisions";
+
+        /**
+         * 0-relative position of a revision ID segment in the path part of a revision ID URI
+         */
+        public static final int REVISION_ID_PATH_POSITION = 3;
+
+        /**
+         * Returns the content:// style URL for the revisions of a note
+         *
+         * @param noteId The _ID of the note
+         */
+        public static Uri getContentUri(long noteId) {
+            return Notes.CONTENT_ID_URI_BASE.buildUpon()
+                    .appendPath(Long.toString(noteId))
+                    .appendPath(PATH_REVISIONS)
+                    .build();
+        }
+
+        /*
+         * MIME type definitions
+         */
+
+        /**
+         * The MIME type of a directory of revisions of a note
+         */
+        public static final String CONTENT_TYPE =
+                "vnd.android.cursor.dir/vnd.google.note.revision";
+
+        /**
+         * The MIME type of a single revision
+         */
+        public static final String CONTENT_ITEM_TYPE =
+                "vnd.android.cursor.item/vnd.google.note.revision";
+
+        /**
+         * The default sort order for this table, newest first
+         */
+        public static final String DEFAULT_SORT_ORDER = "_id DESC";
+
+        /*
+         * Column definitions
+         */
+
+        /**
+         * Column name for the _ID of the note that the revision is of
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_NOTE_ID = "note_id";
+
+        /**
+         * Column name for the time the revision was recorded
+         * <P>Type: INTEGER (long from System.curentTimeMillis())</P>
+         */
+        public static final String COLUMN_NAME_CREATE_DATE = "created";
+
+        /**
+         * Column name for the title the note had
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_TITLE = "title";
+
+        /**
+         * Column name for the text the note had. Only available from the URI of a single
+         * revision, since it has to be reconstructed.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_NOTE = "note";
+
+        /**
+         * Column name for the length of the text in characters
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_BODY_LENGTH = "body_length";
+
+        /**
+         * Column name for the 64-bit hash of the text, as in
+         * {@link Notes#COLUMN_NAME_BODY_HASH}
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_BODY_HASH = "body_hash";
+
+        /**
+         * Column name for whether the revision is stored as a full snapshot of the text, rather
+         * than as the changes from the revision before it
+         * <P>Type: INTEGER (1 or 0)</P>
+         */
+        public static final String COLUMN_NAME_SNAPSHOT = "snapshot";
+
+        /**
+         * Column name for the number of characters stored for the revision, 0 for a revision
+         * of a long note that refers to chunks shared with the note's other revisions
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_STORED_LENGTH = "stored_length";
+    }
+
+    /**
+     * Note chunks contract. The text of a long note is stored as a sequence of chunks, each a
+     * few thousand characters long. Querying the URI from {@link #getContentUri(long)} returns
+     * the chunks of a note in order, so that a client can read a window of a very long note
+     * without reading the rest; a selection on {@link #COLUMN_NAME_SEQ} picks the window.
+     * Projecting only the sequence numbers returns the note's chunk map without its text.
+     * <p>
+     * Updating the same URI replaces a range of chunks with new text, written as chunks again:
+     * every chunk after {@link #COLUMN_NAME_AFTER_SEQ} and before {@link #COLUMN_NAME_BEFORE_SEQ}
+     * is replaced by {@link #COLUMN_NAME_CONTENT}. The chunks on either side of the range are
+     * not touched, so their sequence numbers stay valid, but those of the replaced chunks don't.
+     * The note's length, hash, preview and modification date are updated with it. Notes that
+     * are short enough to be stored in one piece have no chunks, and are not updated.
+     */
+    public static final class Chunks {
+
+        // This class cannot be instantiated
+        private Chunks() {}
+
+        /**
+         * Path part for the chunks of a note, after the note ID URI
+         */
+        private static final String PATH_CHUNKS = "chunks";
+
+        /**
+         * Returns the content:// style URL for the chunks of a note
+         *
+         * @param noteId The _ID of the note
+         */
+        public static Uri getContentUri(long noteId) {
+            return Notes.CONTENT_ID_URI_BASE.buildUpon()
+                    .appendPath(Long.toString(noteId))
+                    .appendPath(PATH_CHUNKS)
+                    .build();
+        }
+
+        /**
+         * The MIME type of the chunks of a note
+         */
+        public static final String CONTENT_TYPE =
+                "vnd.android.cursor.dir/vnd.google.note.chunk";
+
+        /*
+         * Column definitions
+         */
+
+        /**
+         * Column name for the position of a chunk in its note. Chunks are ordered by it, but
+         * the numbers are sparse and change when the chunk is rewritten, or when an update of
+         * the chunks before it runs out of numbers and moves it up to make room.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_SEQ = "seq";
+
+        /**
+         * Column name for the text of a chunk
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_CONTENT = "content";
+
+        /**
+         * Key of an update's values for the sequence number of the last chunk before the range
+         * that is replaced, or 0 if the range starts at the start of the note
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_AFTER_SEQ = "after_seq";
+
+        /**
+         * Key of an update's values for the sequence number of the first chunk after the range
+         * that is replaced. Leave it out if the range ends at the end of the note.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_BEFORE_SEQ = "before_seq";
+    }
+
+    /**
+     * Query plans contract. A debugging aid: querying {@link #CONTENT_URI} returns the
+     * EXPLAIN QUERY PLAN output of each query that the Note Pad activities send to the
+     * provider, one row per plan step, so that tests can catch a query that stops using an
+     * index. The plans are of the queries' shapes; no note data is returned.
+     */
+    public static final class QueryPlans implements BaseColumns {
+
+        // This class cannot be instantiated
+        private QueryPlans() {}
+
+        /**
+         * The content:// style URL for the query plans
+         */
+        public static final Uri CONTENT_URI =  Uri.parse("content://" + AUTHORITY
+                + "/debug/query_plans");
+
+        /**
+         * The MIME type of {@link #CONTENT_URI}
+         */
+        public static final String CONTENT_TYPE =
+                "vnd.android.cursor.dir/vnd.google.note.query_plan";
+
+        /**
+         * Column name for the name of the query, such as "NotesList first page"
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_QUERY = "query";
+
+        /**
+         * Column name for the SQL statement that was explained
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_SQL = "sql";
+
+        /**
+         * Column name for one step of the plan, as described by SQLite
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_DETAIL = "detail";
+
+        /**
+         * Column name for whether the step reads every row of a table
+         * <P>Type: INTEGER (1 or 0)</P>
+         */
+        public static final String COLUMN_NAME_FULL_SCAN = "full_scan";
+
+        /**
+         * Column name for whether the step sorts rows in a temporary b-tree rather than
+         * reading them in order from an index
+         * <P>Type: INTEGER (1 or 0)</P>
+         */
+        public static final String COLUMN_NAME_TEMP_SORT = "temp_sort";
+    }
+
+    /**
+     * Note cache statistics contract. A debugging aid: querying {@link #CONTENT_URI} returns one
+     * row with the counters and size of the in-process cache that NoteEditor opens notes from,
+     * so that its hit rate and memory use can be checked. No note data is returned.
+     */
+    public static final class NoteCacheStats implements BaseColumns {
+
+        // This class cannot be instantiated
+        private NoteCacheStats() {}
+
+        /**
+         * The content:// style URL for the note cache statistics
+         */
+        public static final Uri CONTENT_URI =  Uri.parse("content://" + AUTHORITY
+                + "/debug/note_cache");
+
+        /**
+         * The MIME type of {@link #CONTENT_URI}
+         */
+        public static final String CONTENT_TYPE =
+                "vnd.android.cursor.dir/vnd.google.note.cache_stats";
+
+        /**
+         * Column name for the number of lookups that found the note in the cache
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_HITS = "hits";
+
+        /**
+         * Column name for the number of lookups that had to read the note from the database
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_MISSES = "misses";
+
+        /**
+         * Column name for the number of notes put in the cache
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_PUTS = "puts";
+
+        /**
+         * Column name for the number of notes not put in the cache because a note changed
+         * while they were being read
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_STALE_PUTS = "stale_puts";
+
+        /**
+         * Column name for the number of notes evicted to stay within the budget
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_EVICTIONS = "evictions";
+
+        /**
+         * Column name for the number of cached notes removed because they changed or were
+         * deleted
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_INVALIDATIONS = "invalidations";
+
+        /**
+         * Column name for the number of notes in the cache
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_ENTRIES = "entries";
+
+        /**
+         * Column name for the approximate memory that the cached notes take, in bytes
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_SIZE = "size";
+
+        /**
+         * Column name for the memory budget of the cache, in bytes
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_MAX_SIZE = "max_size";
     }
 }
@@ -17,22 +17,35 @@
 package com.example.android.notepad;
 
 import android.content.ClipDescription;
+import android.content.ComponentCallbacks2;
 import android.content.ContentProvider;
 import android.content.ContentProvider.PipeDataWriter;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.Resources;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.SystemClock;
 import android.provider.LiveFolders;
 import android.text.TextUtils;
 import android.util.Log;
@@ -43,6 +56,8 @@ import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 
 /**
@@ -61,7 +76,57 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     /**
      * The database version
      */
-    private static final int DATABASE_VERSION = 2;
+    static final int DATABASE_VERSION = 10;
+
+    /**
+     * The number of pages the write-ahead log may grow to before a commit checkpoints it back
+     * into the database. This is larger than SQLite's default, so that saving a large note
+     * doesn't checkpoint in the middle of the editor's writes; the idle checkpoint below keeps
+     * the log from staying large.
+     */
+    static final int WAL_AUTOCHECKPOINT_PAGES = 2000;
+
+    /**
+     * How long after the last write the write-ahead log is checkpointed in the background
+     */
+    static final long IDLE_CHECKPOINT_DELAY_MILLIS = 3000;
+
+    /**
+     * The full-text index over the title and note columns of the notes table. It is an FTS4
+     * table whose docid is the note's _ID, kept in sync with the notes table by triggers.
+     */
+    static final String FTS_TABLE_NAME = "notes_fts";
+
+    /**
+     * The column of the notes table that says how a note's text is stored: in the note column,
+     * in chunks by {@link NoteChunks}, or compressed by {@link NoteCompression}. It is written
+     * by the provider only, and is not part of the contract.
+     */
+    static final String COLUMN_BODY_FORMAT = "body_format";
+
+    /*
+     * Values of the body format column
+     */
+    static final int BODY_FORMAT_INLINE = 0;
+    static final int BODY_FORMAT_CHUNKED = 1;
+    static final int BODY_FORMAT_DEFLATE = 2;
+
+    /**
+     * The column of the notes table that marks a chunked note whose current text is not in the
+     * full-text index yet, or a compressed note written before the full-text backfill reached
+     * it. Like the body format, it is not part of the contract.
+     */
+    static final String COLUMN_FTS_STALE = "fts_stale";
+
+    /**
+     * The maximum number of tokens in a search result snippet
+     */
+    private static final int SNIPPET_TOKENS = 10;
+
+    /**
+     * The number of characters used as the snippet when a search falls back to a substring scan
+     */
+    private static final int SNIPPET_LENGTH = 64;
 
     /**
      * A projection map used to select columns from the database
@@ -73,16 +138,78 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      */
     private static final HashMap<String, String> sLiveFolderProjectionMap;
 
+    /**
+     * A projection map used to select columns from a full-text search
+     */
+    private static final HashMap<String, String> sSearchProjectionMap;
+
+    /**
+     * A projection map used to select columns from a search that falls back to a substring scan
+     */
+    private static final HashMap<String, String> sSearchScanProjectionMap;
+
+    /**
+     * A projection map used to select columns from the revisions of a note
+     */
+    private static final HashMap<String, String> sRevisionsProjectionMap;
+
+    /**
+     * A projection map used to select columns from the chunks of a note
+     */
+    private static final HashMap<String, String> sChunksProjectionMap;
+
+    /**
+     * The columns of a revision that are read from the revisions table, which is every column
+     * of the contract but the reconstructed text
+     */
+    private static final String[] REVISION_STORED_COLUMNS = new String[] {
+            NotePad.Revisions._ID,
+            NotePad.Revisions.COLUMN_NAME_NOTE_ID,
+            NotePad.Revisions.COLUMN_NAME_CREATE_DATE,
+            NotePad.Revisions.COLUMN_NAME_TITLE,
+            NotePad.Revisions.COLUMN_NAME_BODY_LENGTH,
+            NotePad.Revisions.COLUMN_NAME_BODY_HASH,
+            NotePad.Revisions.COLUMN_NAME_SNAPSHOT,
+            NotePad.Revisions.COLUMN_NAME_STORED_LENGTH,
+    };
+
     /**
      * Standard projection for the interesting columns of a normal note.
      */
     private static final String[] READ_NOTE_PROJECTION = new String[] {
             NotePad.Notes._ID,               // Projection position 0, the note's id
-            NotePad.Notes.COLUMN_NAME_NOTE,  // Projection position 1, the note's content
-            NotePad.Notes.COLUMN_NAME_TITLE, // Projection position 2, the note's title
+            NotePad.Notes.COLUMN_NAME_TITLE, // Projection position 1, the note's title
+    };
+    private static final int READ_NOTE_ID_INDEX = 0;
+    private static final int READ_NOTE_TITLE_INDEX = 1;
+
+    /**
+     * The columns of the notes table that a note's text is read from, whichever way it is
+     * stored: the body format, the note column and the compressed text.
+     */
+    private static final String[] READ_TEXT_PROJECTION = new String[] {
+            COLUMN_BODY_FORMAT,
+            NotePad.Notes.COLUMN_NAME_NOTE,
+            NoteCompression.COLUMN_NOTE_DATA,
+    };
+
+    /**
+     * The columns of a note once {@link #putInsertDefaults} and {@link #takeStoredNote} have
+     * filled it in, in the order that {@link #bulkInsert} binds them.
+     */
+    private static final String[] INSERT_COLUMNS = new String[] {
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_NOTE,
+            NotePad.Notes.COLUMN_NAME_CREATE_DATE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_PREVIEW,
+            NotePad.Notes.COLUMN_NAME_BODY_LENGTH,
+            NotePad.Notes.COLUMN_NAME_BODY_HASH,
+            NotePad.Notes.COLUMN_NAME_TITLE_KEY,
+            COLUMN_BODY_FORMAT,
+            COLUMN_FTS_STALE,
+            NoteCompression.COLUMN_NOTE_DATA,
     };
-    private static final int READ_NOTE_NOTE_INDEX = 1;
-    private static final int READ_NOTE_TITLE_INDEX = 2;
 
     /*
      * Constants used by the Uri matcher to choose an action based on the pattern
@@ -97,6 +224,24 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     // The incoming URI matches the Live Folder URI pattern
     private static final int LIVE_FOLDER_NOTES = 3;
 
+    // The incoming URI matches the search URI pattern
+    private static final int SEARCH = 4;
+
+    // The incoming URI matches the query plans URI pattern
+    private static final int QUERY_PLANS = 5;
+
+    // The incoming URI matches the revisions URI pattern
+    private static final int REVISIONS = 6;
+
+    // The incoming URI matches the revision ID URI pattern
+    private static final int REVISION_ID = 7;
+
+    // The incoming URI matches the note cache statistics URI pattern
+    private static final int NOTE_CACHE_STATS = 8;
+
+    // The incoming URI matches the note chunks URI pattern
+    private static final int NOTE_CHUNKS = 9;
+
     /**
      * A UriMatcher instance
      */
@@ -105,6 +250,28 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     // Handle to a new DatabaseHelper.
     private DatabaseHelper mOpenHelper;
 
+    // Set on the thread that is running applyBatch(), whose operations don't notify observers
+    // one at a time
+    private final ThreadLocal<Boolean> mApplyingBatch = new ThreadLocal<Boolean>();
+
+    // The changes made by the operations of the batch that the calling thread is applying,
+    // which are published once the batch has been committed
+    private final ThreadLocal<ArrayList<PendingChange>> mBatchChanges =
+            new ThreadLocal<ArrayList<PendingChange>>();
+
+    /**
+     * A change made by an operation of a batch, not yet committed.
+     */
+    private static final class PendingChange {
+        final int op;
+        final long[] noteIds;
+
+        PendingChange(int op, long[] noteIds) {
+            this.op = op;
+            this.noteIds = noteIds;
+        }
+    }
+
 
     /**
      * A block that instantiates and sets static objects
@@ -128,6 +295,25 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // live folder operation
         sUriMatcher.addURI(NotePad.AUTHORITY, "live_folders/notes", LIVE_FOLDER_NOTES);
 
+        // Add a pattern that routes URIs terminated with "search" to a full-text search
+        sUriMatcher.addURI(NotePad.AUTHORITY, "search", SEARCH);
+
+        // Add a pattern that routes URIs terminated with "debug/query_plans" to a query plan
+        // operation
+        sUriMatcher.addURI(NotePad.AUTHORITY, "debug/query_plans", QUERY_PLANS);
+
+        // Add patterns that route the revisions of a note, and a single revision, to revision
+        // operations
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#/revisions", REVISIONS);
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#/revisions/#", REVISION_ID);
+
+        // Add a pattern that routes URIs terminated with "debug/note_cache" to a note cache
+        // statistics operation
+        sUriMatcher.addURI(NotePad.AUTHORITY, "debug/note_cache", NOTE_CACHE_STATS);
+
+        // Add a pattern that routes the chunks of a note to a chunk operation
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#/chunks", NOTE_CHUNKS);
+
         /*
          * Creates and initializes a projection map that returns all columns
          */
@@ -142,8 +328,10 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // Maps "title" to "title"
         sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_TITLE);
 
-        // Maps "note" to "note"
-        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_NOTE, NotePad.Notes.COLUMN_NAME_NOTE);
+        // Maps "note" to the note column, or, if the note is stored in chunks or compressed, to
+        // what the query's cursor reads the note's text from
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_NOTE,
+                NoteChunks.NOTE_EXPRESSION + " AS " + NotePad.Notes.COLUMN_NAME_NOTE);
 
         // Maps "created" to "created"
         sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE,
@@ -154,6 +342,22 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
                 NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
 
+        // Maps "preview" to "preview"
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_PREVIEW,
+                NotePad.Notes.COLUMN_NAME_PREVIEW);
+
+        // Maps "body_length" to "body_length"
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_BODY_LENGTH,
+                NotePad.Notes.COLUMN_NAME_BODY_LENGTH);
+
+        // Maps "body_hash" to "body_hash"
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_BODY_HASH,
+                NotePad.Notes.COLUMN_NAME_BODY_HASH);
+
+        // Maps "title_key" to "title_key"
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_TITLE_KEY,
+                NotePad.Notes.COLUMN_NAME_TITLE_KEY);
+
         /*
          * Creates an initializes a projection map for handling Live Folders
          */
@@ -167,6 +371,60 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // Maps "NAME" to "title AS NAME"
         sLiveFolderProjectionMap.put(LiveFolders.NAME, NotePad.Notes.COLUMN_NAME_TITLE + " AS " +
             LiveFolders.NAME);
+
+        // Maps "DESCRIPTION" to "preview AS DESCRIPTION"
+        sLiveFolderProjectionMap.put(LiveFolders.DESCRIPTION,
+            NotePad.Notes.COLUMN_NAME_PREVIEW + " AS " + LiveFolders.DESCRIPTION);
+
+        /*
+         * Creates and initializes the projection maps for searches. Searches join the full-text
+         * table to the notes table, so every column is qualified with its table name.
+         */
+        sSearchProjectionMap = new HashMap<String, String>();
+        for (String column : sNotesProjectionMap.keySet()) {
+            sSearchProjectionMap.put(column,
+                    NotePad.Notes.TABLE_NAME + "." + column + " AS " + column);
+        }
+
+        // The note text expression is already qualified
+        sSearchProjectionMap.put(NotePad.Notes.COLUMN_NAME_NOTE,
+                sNotesProjectionMap.get(NotePad.Notes.COLUMN_NAME_NOTE));
+
+        // The scan map is identical, except for the way the snippet is produced
+        sSearchScanProjectionMap = new HashMap<String, String>(sSearchProjectionMap);
+
+        // Maps "snippet" to the excerpt that FTS builds around the matching terms
+        sSearchProjectionMap.put(NotePad.Notes.COLUMN_NAME_SNIPPET,
+                "snippet(" + FTS_TABLE_NAME + ", '', '', '\u2026', -1, " + SNIPPET_TOKENS + ") AS "
+                        + NotePad.Notes.COLUMN_NAME_SNIPPET);
+
+        // Maps "snippet" to the start of the note's preview, since there is no full-text match
+        // to excerpt. The preview is used rather than the note, so the body is never read.
+        sSearchScanProjectionMap.put(NotePad.Notes.COLUMN_NAME_SNIPPET,
+                "substr(" + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_PREVIEW
+                        + ", 1, " + SNIPPET_LENGTH + ") AS " + NotePad.Notes.COLUMN_NAME_SNIPPET);
+
+        /*
+         * Creates and initializes a projection map for the revisions of a note. The stored
+         * content is not offered, only whether it is a snapshot and how long it is.
+         */
+        sRevisionsProjectionMap = new HashMap<String, String>();
+        for (String column : REVISION_STORED_COLUMNS) {
+            sRevisionsProjectionMap.put(column, column);
+        }
+        sRevisionsProjectionMap.put(NotePad.Revisions.COLUMN_NAME_SNAPSHOT,
+                "(" + NoteRevisions.COLUMN_DEPTH + " = 0) AS "
+                        + NotePad.Revisions.COLUMN_NAME_SNAPSHOT);
+        sRevisionsProjectionMap.put(NotePad.Revisions.COLUMN_NAME_STORED_LENGTH,
+                "ifnull(length(" + NoteRevisions.COLUMN_CONTENT + "), 0) AS "
+                        + NotePad.Revisions.COLUMN_NAME_STORED_LENGTH);
+
+        /*
+         * Creates and initializes the projection map for the chunks of a note
+         */
+        sChunksProjectionMap = new HashMap<String, String>();
+        sChunksProjectionMap.put(NotePad.Chunks.COLUMN_NAME_SEQ, NoteChunks.COLUMN_SEQ);
+        sChunksProjectionMap.put(NotePad.Chunks.COLUMN_NAME_CONTENT, NoteChunks.COLUMN_CONTENT);
     }
 
     /**
@@ -176,48 +434,288 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     */
    static class DatabaseHelper extends SQLiteOpenHelper {
 
+       // Whether the database uses write-ahead logging rather than a rollback journal
+       private final boolean mWriteAheadLogging;
+
+       // The checkpoint policy: the automatic checkpoint size, in pages, and the delay after
+       // the last write before an idle checkpoint
+       private final int mAutoCheckpointPages;
+       private final long mIdleCheckpointMillis;
+
+       // The compression policy: the length from which notes are compressed, and whether a
+       // dictionary is trained and used for shorter notes
+       private volatile int mCompressMinLength = NoteCompression.DEFAULT_MIN_LENGTH;
+       private volatile boolean mUseDictionary = true;
+
+       // The dictionary that notes are compressed against, read on first use, and whether it
+       // has been read; null if there is none yet
+       private volatile byte[] mDictionary;
+       private volatile boolean mDictionaryRead;
+
+       // The background thread that migration backfills and idle maintenance run on, started
+       // on first use
+       private HandlerThread mMaintenanceThread;
+       private Handler mMaintenanceHandler;
+
+       // Indexes the chunked notes saved since the last run, thins out old
+       // revisions, trains a compression dictionary once there are enough notes, and
+       // checkpoints the write-ahead log. Posted again after every write, so it only runs once
+       // writes have stopped for the idle delay.
+       private final Runnable mIdleMaintenance = new Runnable() {
+           @Override
+           public void run() {
+               long[] indexed = NoteChunks.reindexStale(getWritableDatabase());
+               if (indexed.length > 0) {
+                   onReindexed(indexed);
+               }
+               NoteRevisions.compact(getWritableDatabase(), System.currentTimeMillis());
+               if (mUseDictionary && dictionary() == null) {
+                   trainDictionary();
+               }
+               if (mWriteAheadLogging) {
+                   checkpoint();
+               }
+           }
+       };
+
        DatabaseHelper(Context context) {
+           this(context, DATABASE_NAME, true, WAL_AUTOCHECKPOINT_PAGES,
+                   IDLE_CHECKPOINT_DELAY_MILLIS);
+       }
+
+       /**
+        * Creates a helper for a database with the given journal mode and checkpoint policy.
+        *
+        * @param name The database file name.
+        * @param writeAheadLogging True to use write-ahead logging, which lets queries run
+        * while a write is in progress, each on its own connection from the pool that SQLite
+        * keeps for the database; false to use a rollback journal, in which a write blocks
+        * every query.
+        * @param autoCheckpointPages The size of the write-ahead log, in pages, at which a
+        * commit checkpoints it.
+        * @param idleCheckpointMillis How long after the last write the log is checkpointed in
+        * the background.
+        */
+       DatabaseHelper(Context context, String name, boolean writeAheadLogging,
+               int autoCheckpointPages, long idleCheckpointMillis) {
 
            // calls the super constructor, requesting the default cursor factory.
-           super(context, DATABASE_NAME, null, DATABASE_VERSION);
+           super(context, name, null, DATABASE_VERSION);
+
+           mWriteAheadLogging = writeAheadLogging;
+           mAutoCheckpointPages = autoCheckpointPages;
+           mIdleCheckpointMillis = idleCheckpointMillis;
+
+           // From API 16 the helper enables write-ahead logging as it opens the database;
+           // before that, onOpen() enables it.
+           if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+               setWriteAheadLoggingEnabled(writeAheadLogging);
+           }
        }
 
        /**
         *
-        * Creates the underlying database with table name and column names taken from the
-        * NotePad class.
+        * Creates the underlying database by creating the base schema and applying every step
+        * of the migration chain to it, so that a new database has the same schema as an
+        * upgraded one.
         */
        @Override
        public void onCreate(SQLiteDatabase db) {
-           db.execSQL("CREATE TABLE " + NotePad.Notes.TABLE_NAME + " ("
-                   + NotePad.Notes._ID + " INTEGER PRIMARY KEY,"
-                   + NotePad.Notes.COLUMN_NAME_TITLE + " TEXT,"
-                   + NotePad.Notes.COLUMN_NAME_NOTE + " TEXT,"
-                   + NotePad.Notes.COLUMN_NAME_CREATE_DATE + " INTEGER,"
-                   + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " INTEGER"
-                   + ");");
+           DatabaseMigrations.createBaseSchema(db);
+           DatabaseMigrations.migrate(db, DatabaseMigrations.BASE_VERSION, DATABASE_VERSION);
        }
 
        /**
         *
         * Demonstrates that the provider must consider what happens when the
-        * underlying datastore is changed. In this sample, the database is upgraded the database
-        * by destroying the existing data.
-        * A real application should upgrade the database in place.
+        * underlying datastore is changed. Databases from {@link DatabaseMigrations#BASE_VERSION}
+        * on are upgraded in place by the migration chain, which keeps the existing notes.
+        * Anything older is upgraded by destroying the existing data.
         */
        @Override
        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
 
+           if (oldVersion >= DatabaseMigrations.BASE_VERSION) {
+               // Logs that the database is being upgraded
+               Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
+                       + newVersion);
+
+               DatabaseMigrations.migrate(db, oldVersion, newVersion);
+               return;
+           }
+
            // Logs that the database is being upgraded
            Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
                    + newVersion + ", which will destroy all old data");
 
-           // Kills the table and existing data
+           // Kills the tables and existing data
+           db.execSQL("DROP TABLE IF EXISTS " + DatabaseMigrations.LOG_TABLE_NAME);
+           db.execSQL("DROP TABLE IF EXISTS " + FTS_TABLE_NAME);
+           db.execSQL("DROP TABLE IF EXISTS " + NoteChunks.TABLE_NAME);
+           db.execSQL("DROP TABLE IF EXISTS " + NoteRevisions.TABLE_NAME);
+           db.execSQL("DROP TABLE IF EXISTS " + NoteRevisions.CHUNKS_TABLE_NAME);
+           db.execSQL("DROP TABLE IF EXISTS " + NoteRevisions.REFS_TABLE_NAME);
+           db.execSQL("DROP TABLE IF EXISTS " + NoteCompression.DICTIONARY_TABLE_NAME);
            db.execSQL("DROP TABLE IF EXISTS notes");
 
            // Recreates the database with a new version
            onCreate(db);
        }
+
+       /**
+        * Applies the journal mode and checkpoint policy, and starts any backfills that the
+        * migration chain left pending. They run in batches on a background thread, so the
+        * provider can be used while they catch up. Idle maintenance is scheduled after them,
+        * for chunked notes that were saved but not indexed before the database was last closed.
+        */
+       @Override
+       public void onOpen(final SQLiteDatabase db) {
+           if (db.isReadOnly()) {
+               return;
+           }
+
+           if (mWriteAheadLogging) {
+               if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+                   db.enableWriteAheadLogging();
+               }
+               // The pragma returns the new setting, so it has to be run as a query
+               DatabaseUtils.longForQuery(db, "PRAGMA wal_autocheckpoint = "
+                       + mAutoCheckpointPages, null);
+           }
+
+           if (DatabaseMigrations.hasPendingBackfills(db)) {
+               maintenanceHandler().post(new Runnable() {
+                   @Override
+                   public void run() {
+                       DatabaseMigrations.runBackfills(db,
+                               DatabaseMigrations.BACKFILL_BATCH_SIZE);
+                   }
+               });
+           }
+           scheduleIdleMaintenance();
+       }
+
+       /**
+        * Schedules idle maintenance for when the database has been idle for the idle delay:
+        * the full-text index is brought up to date for chunked notes, old revisions are
+        * compacted, and the write-ahead log is checkpointed. Called after every write; each
+        * call pushes the maintenance back, so a burst of writes is followed by one run.
+        */
+       void scheduleIdleMaintenance() {
+           Handler handler = maintenanceHandler();
+           handler.removeCallbacks(mIdleMaintenance);
+           handler.postDelayed(mIdleMaintenance, mIdleCheckpointMillis);
+       }
+
+       /**
+        * Called on the maintenance thread once idle maintenance has brought notes into the
+        * full-text index, so that searches open on them can be run again. Does nothing unless
+        * overridden.
+        *
+        * @param noteIds The _IDs of the notes indexed.
+        */
+       void onReindexed(long[] noteIds) {
+       }
+
+       /**
+        * Runs idle maintenance in the background now, rather than after the idle delay. Used
+        * when the app is no longer visible and won't be writing.
+        */
+       void maintainNow() {
+           Handler handler = maintenanceHandler();
+           handler.removeCallbacks(mIdleMaintenance);
+           handler.post(mIdleMaintenance);
+       }
+
+       /**
+        * Sets the compression policy for the notes written from now on. Notes that are already
+        * stored keep their format until they are written again.
+        *
+        * @param minLength The length, in characters, from which notes are compressed.
+        * {@link Integer#MAX_VALUE} turns compression off.
+        * @param useDictionary True to train a dictionary once there are enough notes, and
+        * compress notes from {@link NoteCompression#DICTIONARY_MIN_LENGTH} on against it.
+        */
+       void setCompression(int minLength, boolean useDictionary) {
+           mCompressMinLength = minLength;
+           mUseDictionary = useDictionary;
+       }
+
+       /**
+        * Compresses the text of a note, if the compression policy says it should be and
+        * compressing it saves enough space.
+        *
+        * @return The compressed text, or null if the text is stored as it is.
+        */
+       byte[] compress(String text) {
+           byte[] dictionary = mUseDictionary ? dictionary() : null;
+           int minLength = dictionary != null
+                   ? Math.min(mCompressMinLength, NoteCompression.DICTIONARY_MIN_LENGTH)
+                   : mCompressMinLength;
+           if (text == null || text.length() < minLength) {
+               return null;
+           }
+           return NoteCompression.compress(text, dictionary);
+       }
+
+       /**
+        * Trains a compression dictionary from the notes in the database, and compresses the
+        * notes written from now on against it.
+        *
+        * @return The dictionary, or null if there are too few notes to train one from.
+        */
+       byte[] trainDictionary() {
+           byte[] dictionary = NoteCompression.trainDictionary(getWritableDatabase(),
+                   System.currentTimeMillis());
+           if (dictionary != null) {
+               mDictionary = dictionary;
+               mDictionaryRead = true;
+           }
+           return dictionary;
+       }
+
+       // Returns the dictionary that notes are compressed against, reading it on first use
+       private byte[] dictionary() {
+           if (!mDictionaryRead) {
+               mDictionary = NoteCompression.currentDictionary(getWritableDatabase());
+               mDictionaryRead = true;
+           }
+           return mDictionary;
+       }
+
+       /**
+        * Copies the pages in the write-ahead log back into the database, so that queries no
+        * longer have to look them up in the log, and the log can start again from its
+        * beginning. Readers are not blocked, and pages still in use by a reader are left for
+        * the next checkpoint.
+        */
+       void checkpoint() {
+           SQLiteDatabase db = getWritableDatabase();
+           long start = SystemClock.elapsedRealtime();
+           Cursor c = db.rawQuery("PRAGMA wal_checkpoint", null);
+           try {
+               if (c.moveToFirst()) {
+                   // The columns are: whether the checkpoint was blocked, the number of pages
+                   // in the log, and the number of them that were checkpointed
+                   Log.d(TAG, "Checkpointed " + c.getInt(2) + " of " + c.getInt(1)
+                           + " pages in " + (SystemClock.elapsedRealtime() - start) + " ms"
+                           + (c.getInt(0) != 0 ? " (blocked)" : ""));
+               }
+           } finally {
+               c.close();
+           }
+       }
+
+       // Returns the handler of the maintenance thread, starting the thread on first use
+       private synchronized Handler maintenanceHandler() {
+           if (mMaintenanceThread == null) {
+               mMaintenanceThread = new HandlerThread("NotePadMaintenance",
+                       Process.THREAD_PRIORITY_BACKGROUND);
+               mMaintenanceThread.start();
+               mMaintenanceHandler = new Handler(mMaintenanceThread.getLooper());
+           }
+           return mMaintenanceHandler;
+       }
    }
 
    /**
@@ -231,12 +729,37 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
        // Creates a new helper object. Note that the database itself isn't opened until
        // something tries to access it, and it's only created if it doesn't already exist.
-       mOpenHelper = new DatabaseHelper(getContext());
+       mOpenHelper = new DatabaseHelper(getContext()) {
+           @Override
+           void onReindexed(long[] noteIds) {
+               // Observers of a search see the notes that it can now find
+               publishChange(NoteChangeLog.OP_UPDATE, noteIds);
+               notifyChange(NotePad.Notes.CONTENT_URI);
+           }
+       };
+
+       // The notes cached in this process, and shown by its observers, were read from
+       // whichever database the last provider had open
+       NoteCache.getInstance().invalidateAll();
+       NoteChangeLog.getInstance().record(NoteChangeLog.OP_UPDATE, null);
 
        // Assumes that any failures will be reported by a thrown exception.
        return true;
    }
 
+   /**
+    * Runs idle maintenance, which checkpoints the write-ahead log, once the app's UI is no
+    * longer visible, since no more writes are likely until the user comes back. Passes the
+    * level on to the note cache, which gives back memory as the level rises.
+    */
+   @Override
+   public void onTrimMemory(int level) {
+       if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+           mOpenHelper.maintainNow();
+       }
+       NoteCache.getInstance().onTrimMemory(level);
+   }
+
    /**
     * This method is called when a client calls
     * {@link android.content.ContentResolver#query(Uri, String[], String, String[], String)}.
@@ -249,11 +772,168 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
    @Override
    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
            String sortOrder) {
+       return query(uri, projection, selection, selectionArgs, sortOrder, null);
+   }
+
+   /**
+    * This method is called when a client calls
+    * {@link android.content.ContentResolver#query(Uri, String[], String, String[], String,
+    * CancellationSignal)}. It is the same as the query above, except that the query is
+    * abandoned, and {@link android.os.OperationCanceledException} is thrown, if the signal is
+    * cancelled while the query runs. Clients such as an incremental search use this to stop a
+    * query whose results they no longer need.
+    *
+    * @throws IllegalArgumentException if the incoming URI pattern is invalid.
+    */
+   @Override
+   public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+           String sortOrder, CancellationSignal cancellationSignal) {
+
+       // The query plan debug URI is answered from the canned query shapes, not from a table
+       if (sUriMatcher.match(uri) == QUERY_PLANS) {
+           return explainQueryPlans();
+       }
+
+       // The note cache statistics debug URI is answered from the cache's counters
+       if (sUriMatcher.match(uri) == NOTE_CACHE_STATS) {
+           return queryNoteCacheStats();
+       }
+
+       // A single revision's text is reconstructed from its snapshot and deltas
+       if (sUriMatcher.match(uri) == REVISION_ID) {
+           return queryRevision(uri, projection);
+       }
+
+       // Builds the query that the URI and sort order stand for
+       NotesQuery query = buildNotesQuery(uri, sortOrder);
+       SQLiteQueryBuilder qb = query.builder;
+       String orderBy = query.orderBy;
+       String limit = query.limit;
+
+       // Opens the database object in "read" mode, since no writes need to be done.
+       SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+
+       /*
+        * Performs the query. If no problems occur trying to read the database, then a Cursor
+        * object is returned; otherwise, the cursor variable contains null. If no records were
+        * selected, then the Cursor object is empty, and Cursor.getCount() returns 0.
+        */
+       Cursor c;
+       if (cancellationSignal == null) {
+           c = qb.query(
+               db,            // The database to query
+               projection,    // The columns to return from the query
+               selection,     // The columns for the where clause
+               selectionArgs, // The values for the where clause
+               null,          // don't group the rows
+               null,          // don't filter by row groups
+               orderBy,       // The sort order
+               limit          // The page size, or null for all rows
+           );
+       } else {
+           // Only callers on API 16 and later can pass a signal
+           c = qb.query(db, projection, selection, selectionArgs, null, null, orderBy, limit,
+                   cancellationSignal);
+       }
+
+       // Tells the Cursor what URI to watch, so it knows when its source data changes
+       c.setNotificationUri(getContext().getContentResolver(), query.notificationUri);
+
+       // Compressed notes are decompressed only if their text is read
+       return NoteCompression.wrap(db, c);
+   }
+
+   /**
+    * Answers the URI of a single revision. The stored columns are read from the revisions
+    * table, and the text, if it is projected, is reconstructed by {@link NoteRevisions}.
+    *
+    * @return A cursor with the revision in the projected columns, or an empty cursor if there
+    * is no such revision.
+    * @throws IllegalArgumentException if a projected column is unknown.
+    */
+   private Cursor queryRevision(Uri uri, String[] projection) {
+       if (projection == null) {
+           projection = Arrays.copyOf(REVISION_STORED_COLUMNS,
+                   REVISION_STORED_COLUMNS.length + 1);
+           projection[REVISION_STORED_COLUMNS.length] = NotePad.Revisions.COLUMN_NAME_NOTE;
+       }
+       MatrixCursor revision = new MatrixCursor(projection, 1);
+
+       SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+       // Compaction may rewrite the revisions that the text is reconstructed from, so they are
+       // all read in one transaction
+       db.beginTransactionNonExclusive();
+       try {
+           Cursor c = buildNotesQuery(uri, null).builder.query(db, REVISION_STORED_COLUMNS,
+                   null, null, null, null, null);
+           try {
+               if (c.moveToFirst()) {
+                   Object[] row = new Object[projection.length];
+                   for (int i = 0; i < projection.length; i++) {
+                       if (NotePad.Revisions.COLUMN_NAME_NOTE.equals(projection[i])) {
+                           row[i] = NoteRevisions.reconstruct(db, c.getLong(0));
+                           continue;
+                       }
+                       int column = c.getColumnIndex(projection[i]);
+                       if (column < 0) {
+                           throw new IllegalArgumentException("Invalid column " + projection[i]);
+                       }
+                       row[i] = c.getType(column) == Cursor.FIELD_TYPE_STRING
+                               ? c.getString(column) : c.isNull(column) ? null : c.getLong(column);
+                   }
+                   revision.addRow(row);
+               }
+           } finally {
+               c.close();
+           }
+           db.setTransactionSuccessful();
+       } finally {
+           db.endTransaction();
+       }
+
+       revision.setNotificationUri(getContext().getContentResolver(), uri);
+       return revision;
+   }
+
+   /**
+    * A query of the notes table, as built from a content URI by {@link #buildNotesQuery}.
+    */
+   private static final class NotesQuery {
+       // The query builder, with its tables, projection map and "where" clause set up
+       final SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+
+       // The sort order, and the page size or null for all rows
+       String orderBy;
+       String limit;
+
+       // The URI that the returned Cursor watches for changes
+       Uri notificationUri;
+   }
 
+   /**
+    * Sets up the query that a content URI and sort order stand for, without running it.
+    * {@link #query} runs it; {@link #explainQueryPlans()} explains it.
+    *
+    * @throws IllegalArgumentException if the incoming URI pattern is invalid.
+    */
+   private static NotesQuery buildNotesQuery(Uri uri, String sortOrder) {
        // Constructs a new query builder and sets its table name
-       SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+       NotesQuery query = new NotesQuery();
+       SQLiteQueryBuilder qb = query.builder;
        qb.setTables(NotePad.Notes.TABLE_NAME);
 
+       // The ranking that search results are sorted by ahead of the requested sort order
+       String rankOrder = null;
+
+       // The maximum number of rows of a paged query
+       String limit = null;
+
+       // The URI that the returned Cursor watches for changes
+       Uri notificationUri = uri;
+
+       // The sort order used when the query doesn't specify one
+       String defaultOrder = NotePad.Notes.DEFAULT_SORT_ORDER;
+
        /**
         * Choose the projection and adjust the "where" clause based on URI pattern-matching.
         */
@@ -261,6 +941,7 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
            // If the incoming URI is for notes, chooses the Notes projection
            case NOTES:
                qb.setProjectionMap(sNotesProjectionMap);
+               limit = appendPage(qb, uri);
                break;
 
            /* If the incoming URI is for a single note identified by its ID, chooses the
@@ -281,6 +962,46 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                qb.setProjectionMap(sLiveFolderProjectionMap);
                break;
 
+           /* If the incoming URI is a search, joins the full-text index to the notes table and
+            * restricts the join to the notes that match the search terms.
+            */
+           case SEARCH:
+               rankOrder = appendSearch(qb,
+                       uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH));
+
+               // Search results change whenever any note changes
+               notificationUri = NotePad.Notes.CONTENT_URI;
+               break;
+
+           /* If the incoming URI is for the revisions of a note, or for one of them, chooses the
+            * revisions table and restricts the query to the note's revisions. They change when
+            * the note does, and the note's URI is a prefix of theirs.
+            */
+           case REVISION_ID:
+               qb.appendWhere(NotePad.Revisions._ID + "="
+                       + uri.getPathSegments().get(NotePad.Revisions.REVISION_ID_PATH_POSITION)
+                       + " AND ");
+               // Falls through
+           case REVISIONS:
+               qb.setTables(NoteRevisions.TABLE_NAME);
+               qb.setProjectionMap(sRevisionsProjectionMap);
+               qb.appendWhere(NotePad.Revisions.COLUMN_NAME_NOTE_ID + "="
+                       + uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+               defaultOrder = NotePad.Revisions.DEFAULT_SORT_ORDER;
+               break;
+
+           /* If the incoming URI is for the chunks of a note, chooses the chunks table and
+            * restricts the query to the note's chunks, in order. They change when the note
+            * does.
+            */
+           case NOTE_CHUNKS:
+               qb.setTables(NoteChunks.TABLE_NAME);
+               qb.setProjectionMap(sChunksProjectionMap);
+               qb.appendWhere(NoteChunks.COLUMN_NOTE_ID + "="
+                       + uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+               defaultOrder = NoteChunks.COLUMN_SEQ;
+               break;
+
            default:
                // If the URI doesn't match any of the known patterns, throw an exception.
                throw new IllegalArgumentException("Unknown URI " + uri);
@@ -288,75 +1009,428 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
 
        String orderBy;
+       // Search results are ranked first, then sorted by the requested or default order
+       if (rankOrder != null) {
+           orderBy = rankOrder + ", "
+                   + (TextUtils.isEmpty(sortOrder) ? NotePad.Notes.DEFAULT_SORT_ORDER : sortOrder);
+       // Pages only line up when they are all in the page sort order
+       } else if (limit != null) {
+           if (!TextUtils.isEmpty(sortOrder)
+                   && !sortOrder.equals(NotePad.Notes.DEFAULT_SORT_ORDER)
+                   && !sortOrder.equals(NotePad.Notes.PAGE_SORT_ORDER)) {
+               throw new IllegalArgumentException("Paged queries cannot be sorted by " + sortOrder);
+           }
+           orderBy = NotePad.Notes.PAGE_SORT_ORDER;
        // If no sort order is specified, uses the default
-       if (TextUtils.isEmpty(sortOrder)) {
-           orderBy = NotePad.Notes.DEFAULT_SORT_ORDER;
+       } else if (TextUtils.isEmpty(sortOrder)) {
+           orderBy = defaultOrder;
        } else {
            // otherwise, uses the incoming sort order
            orderBy = sortOrder;
        }
 
-       // Opens the database object in "read" mode, since no writes need to be done.
-       SQLiteDatabase db = mOpenHelper.getReadableDatabase();
-
-       /*
-        * Performs the query. If no problems occur trying to read the database, then a Cursor
-        * object is returned; otherwise, the cursor variable contains null. If no records were
-        * selected, then the Cursor object is empty, and Cursor.getCount() returns 0.
-        */
-       Cursor c = qb.query(
-           db,            // The database to query
-           projection,    // The columns to return from the query
-           selection,     // The columns for the where clause
-           selectionArgs, // The values for the where clause
-           null,          // don't group the rows
-           null,          // don't filter by row groups
-           orderBy        // The sort order
-       );
-
-       // Tells the Cursor what URI to watch, so it knows when its source data changes
-       c.setNotificationUri(getContext().getContentResolver(), uri);
-       return c;
+       query.orderBy = orderBy;
+       query.limit = limit;
+       query.notificationUri = notificationUri;
+       return query;
    }
 
    /**
-    * This is called when a client calls {@link android.content.ContentResolver#getType(Uri)}.
-    * Returns the MIME data type of the URI given as a parameter.
+    * Answers {@link NotePad.QueryPlans#CONTENT_URI}. Builds the SQL of each query that
+    * NotesList, NoteEditor and TitleEditor send to the provider, and of the other sort orders
+    * in the contract, exactly as {@link #query} would for the same arguments; the SQL of each
+    * update from the same helpers as {@link #update}, one entry per statement it runs; and the
+    * DELETE of the notes table that {@link #delete} runs. Returns the steps of SQLite's plan
+    * for each.
     *
-    * @param uri The URI whose MIME type is desired.
-    * @return The MIME type of the URI.
-    * @throws IllegalArgumentException if the incoming URI pattern is invalid.
+    * @return A cursor with one row per plan step, in the columns of {@link NotePad.QueryPlans}.
     */
-   @Override
-   public String getType(Uri uri) {
+   private Cursor explainQueryPlans() {
+       // Placeholder values. The plan depends on the shape of a query, not on its values.
+       Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 1);
+       Uri firstPageUri = NotePad.Notes.CONTENT_URI.buildUpon()
+               .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT, "50")
+               .build();
+       Uri nextPageUri = NotePad.Notes.CONTENT_URI.buildUpon()
+               .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT, "200")
+               .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_BEFORE_MODIFIED, "0")
+               .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_BEFORE_ID, "0")
+               .build();
+       Uri searchUri = NotePad.Notes.SEARCH_URI.buildUpon()
+               .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, "note")
+               .build();
+       // A term that the full-text index cannot look up, so the search scans instead
+       Uri scanUri = NotePad.Notes.SEARCH_URI.buildUpon()
+               .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, "\u7b14\u8bb0")
+               .build();
+       String idWhere = NotePad.Notes._ID + " = 1";
+
+       String[] listProjection = {
+           NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_TITLE,
+           NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+       };
+       String[] editorProjection = {
+           NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_NOTE,
+           NotePad.Notes.COLUMN_NAME_CREATE_DATE, NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+       };
+       String[] titleProjection = { NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_TITLE };
+
+       MatrixCursor plans = new MatrixCursor(new String[] {
+           NotePad.QueryPlans._ID,
+           NotePad.QueryPlans.COLUMN_NAME_QUERY,
+           NotePad.QueryPlans.COLUMN_NAME_SQL,
+           NotePad.QueryPlans.COLUMN_NAME_DETAIL,
+           NotePad.QueryPlans.COLUMN_NAME_FULL_SCAN,
+           NotePad.QueryPlans.COLUMN_NAME_TEMP_SORT
+       });
+       SQLiteDatabase db = mOpenHelper.getReadableDatabase();
 
-       /**
-        * Chooses the MIME type based on the incoming URI pattern
-        */
-       switch (sUriMatcher.match(uri)) {
+       explain(db, plans, "NotesList first page",
+               querySql(firstPageUri, listProjection, null, NotePad.Notes.PAGE_SORT_ORDER));
+       explain(db, plans, "NotesList next page",
+               querySql(nextPageUri, listProjection, null, NotePad.Notes.PAGE_SORT_ORDER));
+       explain(db, plans, "Notes by title",
+               querySql(NotePad.Notes.CONTENT_URI, listProjection, null,
+                       NotePad.Notes.TITLE_SORT_ORDER));
+       explain(db, plans, "Notes by creation date",
+               querySql(NotePad.Notes.CONTENT_URI, listProjection, null,
+                       NotePad.Notes.CREATED_SORT_ORDER));
+       explain(db, plans, "NotesList search",
+               querySql(searchUri, listProjection, null, null));
+       explain(db, plans, "NotesList search refinement",
+               querySql(searchUri, listProjection, NotePad.Notes._ID + " IN (1,2,3)", null));
+       explain(db, plans, "NotesList substring search",
+               querySql(scanUri, listProjection, null, null));
+       explain(db, plans, "NoteEditor read",
+               querySql(noteUri, editorProjection, null, null));
+       ContentValues editorValues = new ContentValues();
+       editorValues.put(NotePad.Notes.COLUMN_NAME_TITLE, "");
+       editorValues.put(NotePad.Notes.COLUMN_NAME_NOTE, "");
+       editorValues.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, 0L);
+       explainUpdate(db, plans, "NoteEditor update", noteUri, editorValues);
+       explain(db, plans, "NoteEditor delete",
+               "DELETE FROM " + NotePad.Notes.TABLE_NAME + " WHERE " + idWhere);
+       explain(db, plans, "Note revisions",
+               querySql(NotePad.Revisions.getContentUri(1), REVISION_STORED_COLUMNS, null,
+                       null));
+       explain(db, plans, "TitleEditor read",
+               querySql(noteUri, titleProjection, null, null));
+       ContentValues titleValues = new ContentValues();
+       titleValues.put(NotePad.Notes.COLUMN_NAME_TITLE, "");
+       titleValues.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, 0L);
+       explainUpdate(db, plans, "TitleEditor update", noteUri, titleValues);
+       return plans;
+   }
 
-           // If the pattern is for notes or live folders, returns the general content type.
-           case NOTES:
-           case LIVE_FOLDER_NOTES:
-               return NotePad.Notes.CONTENT_TYPE;
+   /*
+    * Adds the plans of the statements that update() runs for a note URI and the values that a
+    * client sends: the UPDATE of the notes table, with the columns that update() derives from
+    * the values and its where clause, and, if the values contain the note text, the statements
+    * that keep the note's revision, chunks and full-text index entry, with the same conditions
+    * as recordRevision(), NoteChunks.clear() and writeStoredNote().
+    */
+   private void explainUpdate(SQLiteDatabase db, MatrixCursor plans, String name, Uri uri,
+           ContentValues values) {
+       values = new ContentValues(values);
+       putBodyDigest(values);
+       putTitleKey(values);
+       boolean writesNote = values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE);
+       takeStoredNote(values);
+
+       String where = updateWhere(uri, null);
+       String noteId = uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION);
+       explain(db, plans, name, SQLiteQueryBuilder.buildQueryString(false,
+               NotePad.Notes.TABLE_NAME, new String[] { NotePad.Notes._ID }, where, null, null,
+               null, null));
+       if (writesNote) {
+           explain(db, plans, name, SQLiteQueryBuilder.buildQueryString(false,
+                   NoteRevisions.TABLE_NAME,
+                   new String[] { NotePad.Revisions.COLUMN_NAME_CREATE_DATE },
+                   NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = " + noteId, null, null,
+                   NotePad.Revisions._ID + " DESC", "1"));
+       }
 
-           // If the pattern is for note IDs, returns the note ID content type.
-           case NOTE_ID:
-               return NotePad.Notes.CONTENT_ITEM_TYPE;
+       // As SQLiteDatabase.update() builds it, with a placeholder for each value
+       StringBuilder sql = new StringBuilder("UPDATE " + NotePad.Notes.TABLE_NAME + " SET ");
+       String separator = "";
+       for (String column : values.keySet()) {
+           sql.append(separator).append(column).append(" = ?");
+           separator = ", ";
+       }
+       explain(db, plans, name, sql.append(" WHERE ").append(where).toString());
 
-           // If the URI pattern doesn't match any permitted patterns, throws an exception.
-           default:
-               throw new IllegalArgumentException("Unknown URI " + uri);
+       if (writesNote) {
+           explain(db, plans, name, "DELETE FROM " + NoteChunks.TABLE_NAME + " WHERE "
+                   + NoteChunks.COLUMN_NOTE_ID + " = " + noteId);
+           explain(db, plans, name, "UPDATE " + FTS_TABLE_NAME + " SET "
+                   + NotePad.Notes.COLUMN_NAME_NOTE + " = ? WHERE docid = " + noteId);
        }
-    }
+   }
 
-//BEGIN_INCLUDE(stream)
-    /**
-     * This describes the MIME types that are supported for opening a note
-     * URI as a stream.
-     */
-    static ClipDescription NOTE_STREAM_TYPES = new ClipDescription(null,
-            new String[] { ClipDescription.MIMETYPE_TEXT_PLAIN });
+   // Returns the SQL that query() runs for the given arguments
+   private static String querySql(Uri uri, String[] projection, String selection,
+           String sortOrder) {
+       NotesQuery query = buildNotesQuery(uri, sortOrder);
+       return query.builder.buildQuery(projection, selection, null, null, query.orderBy,
+               query.limit);
+   }
+
+   /**
+    * Answers {@link NotePad.NoteCacheStats#CONTENT_URI}.
+    *
+    * @return A cursor with one row, in the columns of {@link NotePad.NoteCacheStats}.
+    */
+   private static Cursor queryNoteCacheStats() {
+       MatrixCursor stats = new MatrixCursor(new String[] {
+           NotePad.NoteCacheStats._ID,
+           NotePad.NoteCacheStats.COLUMN_NAME_HITS,
+           NotePad.NoteCacheStats.COLUMN_NAME_MISSES,
+           NotePad.NoteCacheStats.COLUMN_NAME_PUTS,
+           NotePad.NoteCacheStats.COLUMN_NAME_STALE_PUTS,
+           NotePad.NoteCacheStats.COLUMN_NAME_EVICTIONS,
+           NotePad.NoteCacheStats.COLUMN_NAME_INVALIDATIONS,
+           NotePad.NoteCacheStats.COLUMN_NAME_ENTRIES,
+           NotePad.NoteCacheStats.COLUMN_NAME_SIZE,
+           NotePad.NoteCacheStats.COLUMN_NAME_MAX_SIZE
+       }, 1);
+       long[] values = NoteCache.getInstance().stats();
+       Object[] row = new Object[values.length + 1];
+       row[0] = 0;
+       for (int i = 0; i < values.length; i++) {
+           row[i + 1] = values[i];
+       }
+       stats.addRow(row);
+       return stats;
+   }
+
+   // Adds a row for each step of the plan of an SQL statement
+   private static void explain(SQLiteDatabase db, MatrixCursor plans, String name, String sql) {
+       Cursor c = db.rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+       try {
+           int detailColumn = c.getColumnIndexOrThrow("detail");
+           while (c.moveToNext()) {
+               String detail = c.getString(detailColumn);
+               plans.addRow(new Object[] {
+                   plans.getCount(),
+                   name,
+                   sql,
+                   detail,
+                   isFullScan(detail) ? 1 : 0,
+                   detail.startsWith("USE TEMP B-TREE") ? 1 : 0
+               });
+           }
+       } finally {
+           c.close();
+       }
+   }
+
+   /**
+    * Returns true if a plan step reads every row of a table. SQLite describes such a step as
+    * "SCAN TABLE notes", or "SCAN notes" in newer versions; a scan that reads an index in order
+    * names the index, and a full-text table scan that looks up its MATCH expression names a
+    * non-zero index number. A scan of a subquery's results, such as the chunks of a note, is
+    * not a table scan.
+    */
+   static boolean isFullScan(String detail) {
+       if (!detail.startsWith("SCAN ") || detail.startsWith("SCAN SUBQUERY")
+               || detail.startsWith("SCAN (subquery") || detail.startsWith("SCAN CONSTANT ROW")) {
+           return false;
+       }
+       if (detail.contains(" VIRTUAL TABLE INDEX ")) {
+           return detail.contains(" VIRTUAL TABLE INDEX 0:");
+       }
+       return !detail.contains(" USING ");
+   }
+
+   /**
+    * Restricts a query of the notes URI to one page, if the URI has a
+    * {@link NotePad.Notes#QUERY_PARAMETER_LIMIT} parameter. Pages are keyset based: rather than
+    * skipping an offset, which SQLite does by stepping through every skipped row, a page after
+    * the first one starts right after the (modified, _ID) of the previous page's last note, and
+    * is read straight from the index on those columns. Each page therefore costs the same,
+    * however deep into the list it is.
+    *
+    * @param qb The query builder to restrict.
+    * @param uri The incoming URI.
+    * @return The page size to limit the query to, or null if the URI does not ask for a page.
+    * @throws IllegalArgumentException if the paging parameters are invalid.
+    */
+   private static String appendPage(SQLiteQueryBuilder qb, Uri uri) {
+       String limit = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT);
+       String beforeModified =
+               uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_BEFORE_MODIFIED);
+       String beforeId = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_BEFORE_ID);
+
+       if (limit == null) {
+           if (beforeModified != null || beforeId != null) {
+               throw new IllegalArgumentException("Paging parameters without a limit in " + uri);
+           }
+           return null;
+       }
+
+       long pageSize = parseLongParameter(uri, limit);
+       if (pageSize <= 0) {
+           throw new IllegalArgumentException("Invalid page size in " + uri);
+       }
+
+       if (beforeModified != null || beforeId != null) {
+           if (beforeModified == null || beforeId == null) {
+               throw new IllegalArgumentException("Incomplete page position in " + uri);
+           }
+           long modified = parseLongParameter(uri, beforeModified);
+           long id = parseLongParameter(uri, beforeId);
+
+           // The first condition bounds the index range; the second skips the notes of the
+           // previous page that have the same timestamp.
+           qb.appendWhere(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " <= " + modified
+                   + " AND (" + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " < " + modified
+                   + " OR " + NotePad.Notes._ID + " < " + id + ")");
+       }
+       return Long.toString(pageSize);
+   }
+
+   // Parses a numeric query parameter, rejecting the URI if it is not a number
+   private static long parseLongParameter(Uri uri, String value) {
+       try {
+           return Long.parseLong(value);
+       } catch (NumberFormatException e) {
+           throw new IllegalArgumentException("Invalid query parameter in " + uri);
+       }
+   }
+
+   /**
+    * Sets up a query builder for a search of the notes table. Terms made of ASCII text are
+    * looked up in the full-text index as word prefixes. The default FTS tokenizer cannot split
+    * text without spaces, such as Chinese, into words, so terms with any other characters fall
+    * back to a substring scan of the indexed text instead.
+    *
+    * @param qb The query builder to set up.
+    * @param terms The search terms, as typed by the user. May be null.
+    * @return The ranking to sort the results by, or null if there are no terms to rank by.
+    */
+   private static String appendSearch(SQLiteQueryBuilder qb, String terms) {
+       qb.setTables(FTS_TABLE_NAME + " JOIN " + NotePad.Notes.TABLE_NAME + " ON ("
+               + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID + " = "
+               + FTS_TABLE_NAME + ".docid)");
+
+       String match = buildMatchExpression(terms);
+       if (match != null) {
+           qb.setProjectionMap(sSearchProjectionMap);
+           qb.appendWhere(FTS_TABLE_NAME + " MATCH ");
+           qb.appendWhereEscapeString(match);
+
+           // Notes whose title matches rank ahead of notes that only match in the body
+           return "CASE WHEN " + FTS_TABLE_NAME + ".docid IN (SELECT docid FROM "
+                   + FTS_TABLE_NAME + " WHERE " + NotePad.Notes.COLUMN_NAME_TITLE + " MATCH "
+                   + DatabaseUtils.sqlEscapeString(match) + ") THEN 0 ELSE 1 END";
+       }
+
+       qb.setProjectionMap(sSearchScanProjectionMap);
+       if (terms == null || terms.trim().length() == 0) {
+           // Nothing to search for, so every note matches
+           return null;
+       }
+
+       String pattern = DatabaseUtils.sqlEscapeString("%" + terms.trim() + "%");
+       String titleColumn = FTS_TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_TITLE;
+       qb.appendWhere(titleColumn + " LIKE " + pattern + " OR "
+               + FTS_TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_NOTE + " LIKE " + pattern);
+       return "CASE WHEN " + titleColumn + " LIKE " + pattern + " THEN 0 ELSE 1 END";
+   }
+
+   /**
+    * Converts search terms into an FTS MATCH expression in which every whitespace-separated
+    * term must appear as the prefix of a word, for example "meet noo" becomes
+    * <code>"meet*" "noo*"</code>.
+    *
+    * @param terms The search terms, as typed by the user. May be null.
+    * @return The MATCH expression, or null if there are no terms or the terms contain
+    * characters that the full-text index cannot look up.
+    */
+   static String buildMatchExpression(String terms) {
+       if (terms == null) {
+           return null;
+       }
+
+       StringBuilder match = new StringBuilder();
+       for (String term : terms.trim().split("\\s+")) {
+           // Quotes would end the phrase early, so they are dropped from the term
+           term = term.replace("\"", "");
+           if (term.length() == 0) {
+               continue;
+           }
+           for (int i = 0; i < term.length(); i++) {
+               if (term.charAt(i) > 0x7f) {
+                   return null;
+               }
+           }
+           if (match.length() > 0) {
+               match.append(' ');
+           }
+           match.append('"').append(term).append("*\"");
+       }
+       return match.length() > 0 ? match.toString() : null;
+   }
+
+   /**
+    * This is called when a client calls {@link android.content.ContentResolver#getType(Uri)}.
+    * Returns the MIME data type of the URI given as a parameter.
+    *
+    * @param uri The URI whose MIME type is desired.
+    * @return The MIME type of the URI.
+    * @throws IllegalArgumentException if the incoming URI pattern is invalid.
+    */
+   @Override
+   public String getType(Uri uri) {
+
+       /**
+        * Chooses the MIME type based on the incoming URI pattern
+        */
+       switch (sUriMatcher.match(uri)) {
+
+           // If the pattern is for notes, live folders or searches, returns the general content
+           // type.
+           case NOTES:
+           case LIVE_FOLDER_NOTES:
+           case SEARCH:
+               return NotePad.Notes.CONTENT_TYPE;
+
+           // If the pattern is for query plans, returns the query plan content type.
+           case QUERY_PLANS:
+               return NotePad.QueryPlans.CONTENT_TYPE;
+
+           // If the pattern is for note cache statistics, returns their content type.
+           case NOTE_CACHE_STATS:
+               return NotePad.NoteCacheStats.CONTENT_TYPE;
+
+           // If the pattern is for note IDs, returns the note ID content type.
+           case NOTE_ID:
+               return NotePad.Notes.CONTENT_ITEM_TYPE;
+
+           // If the pattern is for revisions, returns the revision content types.
+           case REVISIONS:
+               return NotePad.Revisions.CONTENT_TYPE;
+
+           case REVISION_ID:
+               return NotePad.Revisions.CONTENT_ITEM_TYPE;
+
+           // If the pattern is for the chunks of a note, returns their content type.
+           case NOTE_CHUNKS:
+               return NotePad.Chunks.CONTENT_TYPE;
+
+           // If the URI pattern doesn't match any permitted patterns, throws an exception.
+           default:
+               throw new IllegalArgumentException("Unknown URI " + uri);
+       }
+    }
+
+//BEGIN_INCLUDE(stream)
+    /**
+     * This describes the MIME types that are supported for opening a note
+     * URI as a stream.
+     */
+    static ClipDescription NOTE_STREAM_TYPES = new ClipDescription(null,
+            new String[] { ClipDescription.MIMETYPE_TEXT_PLAIN });
 
     /**
      * Returns the types of available data streams.  URIs to specific notes are supported.
@@ -375,10 +1449,16 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
          */
         switch (sUriMatcher.match(uri)) {
 
-            // If the pattern is for notes or live folders, return null. Data streams are not
-            // supported for this type of URI.
+            // If the pattern is for notes, live folders, searches, debugging data or
+            // revisions, return null. Data streams are not supported for this type of URI.
             case NOTES:
             case LIVE_FOLDER_NOTES:
+            case SEARCH:
+            case QUERY_PLANS:
+            case NOTE_CACHE_STATS:
+            case REVISIONS:
+            case REVISION_ID:
+            case NOTE_CHUNKS:
                 return null;
 
             // If the pattern is for note IDs and the MIME filter is text/plain, then return
@@ -421,8 +1501,8 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             // rather than using the database query method.
             Cursor c = query(
                     uri,                    // The URI of a note
-                    READ_NOTE_PROJECTION,   // Gets a projection containing the note's ID, title,
-                                            // and contents
+                    READ_NOTE_PROJECTION,   // Gets a projection containing the note's ID and
+                                            // title. The text is streamed by writeDataToPipe().
                     null,                   // No WHERE clause, get all matching records
                     null,                   // Since there is no WHERE clause, no selection criteria
                     null                    // Use the default sort order (modification date,
@@ -455,7 +1535,8 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     /**
      * Implementation of {@link android.content.ContentProvider.PipeDataWriter}
      * to perform the actual work of converting the data in one of cursors to a
-     * stream of data for the client to read.
+     * stream of data for the client to read. The note's text is written a chunk at a time if
+     * it is stored in chunks, so it is never read into memory, or a cursor window, whole.
      */
     @Override
     public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType,
@@ -468,7 +1549,8 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             pw = new PrintWriter(new OutputStreamWriter(fout, "UTF-8"));
             pw.println(c.getString(READ_NOTE_TITLE_INDEX));
             pw.println("");
-            pw.println(c.getString(READ_NOTE_NOTE_INDEX));
+            writeNoteText(pw, c.getLong(READ_NOTE_ID_INDEX));
+            pw.println();
         } catch (UnsupportedEncodingException e) {
             Log.w(TAG, "Ooops", e);
         } finally {
@@ -484,6 +1566,40 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     }
 //END_INCLUDE(stream)
 
+    // Writes the text of a note, from the note column, decompressed, or from its chunks in
+    // order
+    private void writeNoteText(PrintWriter pw, long noteId) {
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        Cursor c = db.query(NotePad.Notes.TABLE_NAME, READ_TEXT_PROJECTION,
+                NotePad.Notes._ID + " = " + noteId, null, null, null, null);
+        try {
+            if (!c.moveToFirst()) {
+                return;
+            }
+            if (c.getInt(0) == BODY_FORMAT_DEFLATE) {
+                pw.print(NoteCompression.decompress(db, c.getBlob(2)));
+                return;
+            }
+            if (c.getInt(0) != BODY_FORMAT_CHUNKED) {
+                pw.print(c.getString(1));
+                return;
+            }
+        } finally {
+            c.close();
+        }
+
+        c = db.query(NoteChunks.TABLE_NAME, new String[] { NoteChunks.COLUMN_CONTENT },
+                NoteChunks.COLUMN_NOTE_ID + " = " + noteId, null, null, null,
+                NoteChunks.COLUMN_SEQ);
+        try {
+            while (c.moveToNext()) {
+                pw.print(c.getString(0));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
     /**
      * This is called when a client calls
      * {@link android.content.ContentResolver#insert(Uri, ContentValues)}.
@@ -513,50 +1629,47 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             values = new ContentValues();
         }
 
-        // Gets the current system time in milliseconds
-        Long now = Long.valueOf(System.currentTimeMillis());
-
-        // If the values map doesn't contain the creation date, sets the value to the current time.
-        if (values.containsKey(NotePad.Notes.COLUMN_NAME_CREATE_DATE) == false) {
-            values.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, now);
-        }
-
-        // If the values map doesn't contain the modification date, sets the value to the current
-        // time.
-        if (values.containsKey(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE) == false) {
-            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, now);
-        }
+        // Fills in the columns that the values map leaves out, using the current system time
+        // for the dates.
+        Resources r = Resources.getSystem();
+        putInsertDefaults(values, Long.valueOf(System.currentTimeMillis()),
+                r.getString(android.R.string.untitled));
 
-        // If the values map doesn't contain a title, sets the value to the default title.
-        if (values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE) == false) {
-            Resources r = Resources.getSystem();
-            values.put(NotePad.Notes.COLUMN_NAME_TITLE, r.getString(android.R.string.untitled));
-        }
-
-        // If the values map doesn't contain note text, sets the value to an empty string.
-        if (values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE) == false) {
-            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "");
-        }
+        // A long note's text is stored in chunks, and a compressed note's text is indexed for
+        // search, once the note has an ID
+        String storedNote = takeStoredNote(values);
 
         // Opens the database object in "write" mode.
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 
-        // Performs the insert and returns the ID of the new note.
-        long rowId = db.insert(
-            NotePad.Notes.TABLE_NAME,        // The table to insert into.
-            NotePad.Notes.COLUMN_NAME_NOTE,  // A hack, SQLite sets this column value to null
-                                             // if values is empty.
-            values                           // A map of column names, and the values to insert
-                                             // into the columns.
-        );
+        long rowId;
+        db.beginTransaction();
+        try {
+            // Performs the insert and returns the ID of the new note.
+            rowId = db.insert(
+                NotePad.Notes.TABLE_NAME,        // The table to insert into.
+                NotePad.Notes.COLUMN_NAME_NOTE,  // A hack, SQLite sets this column value to null
+                                                 // if values is empty.
+                values                           // A map of column names, and the values to
+                                                 // insert into the columns.
+            );
+            if (rowId > 0 && storedNote != null) {
+                writeStoredNote(db, rowId, storedNote);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
 
         // If the insert succeeded, the row ID exists.
         if (rowId > 0) {
+            publishChange(NoteChangeLog.OP_INSERT, new long[] { rowId });
+
             // Creates a URI with the note ID pattern and the new row ID appended to it.
             Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, rowId);
 
             // Notifies observers registered against this provider that the data changed.
-            getContext().getContentResolver().notifyChange(noteUri, null);
+            notifyChange(noteUri);
             return noteUri;
         }
 
@@ -564,6 +1677,141 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         throw new SQLException("Failed to insert row into " + uri);
     }
 
+    /**
+     * This is called when a client calls
+     * {@link android.content.ContentResolver#bulkInsert(Uri, ContentValues[])}.
+     * Inserts all of the notes in one transaction, through one compiled INSERT statement, and
+     * notifies listeners once at the end rather than once per note. Each note gets the same
+     * defaults as in {@link #insert}. If any note fails to insert, none of them are inserted.
+     *
+     * @return The number of notes inserted.
+     * @throws SQLException if an insertion fails.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] initialValues) {
+
+        // Validates the incoming URI. Only the full provider URI is allowed for inserts.
+        if (sUriMatcher.match(uri) != NOTES) {
+            throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+
+        // Every note in the batch gets the same timestamp and default title
+        Long now = Long.valueOf(System.currentTimeMillis());
+        Resources r = Resources.getSystem();
+        String untitled = r.getString(android.R.string.untitled);
+
+        // Opens the database object in "write" mode.
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+
+        StringBuilder sql = new StringBuilder("INSERT INTO ")
+                .append(NotePad.Notes.TABLE_NAME).append(" (")
+                .append(TextUtils.join(", ", INSERT_COLUMNS)).append(") VALUES (?");
+        for (int i = 1; i < INSERT_COLUMNS.length; i++) {
+            sql.append(", ?");
+        }
+        SQLiteStatement insert = db.compileStatement(sql.append(')').toString());
+
+        int count = 0;
+        long[] rowIds = new long[initialValues.length];
+        db.beginTransaction();
+        try {
+            for (ContentValues initial : initialValues) {
+                ContentValues values =
+                        initial != null ? new ContentValues(initial) : new ContentValues();
+                putInsertDefaults(values, now, untitled);
+                String storedNote = takeStoredNote(values);
+
+                long rowId;
+                // Once filled in, every note has all of the insert columns. A note with any other
+                // column, such as its own _ID, can't use the compiled statement.
+                if (values.size() == INSERT_COLUMNS.length) {
+                    for (int i = 0; i < INSERT_COLUMNS.length; i++) {
+                        DatabaseUtils.bindObjectToProgram(insert, i + 1,
+                                values.get(INSERT_COLUMNS[i]));
+                    }
+                    rowId = insert.executeInsert();
+                } else {
+                    rowId = db.insert(NotePad.Notes.TABLE_NAME, NotePad.Notes.COLUMN_NAME_NOTE,
+                            values);
+                }
+
+                // If the insert didn't succeed, then the rowID is <= 0. Throws an exception,
+                // which rolls back the whole batch.
+                if (rowId <= 0) {
+                    throw new SQLException("Failed to insert row into " + uri);
+                }
+                if (storedNote != null) {
+                    writeStoredNote(db, rowId, storedNote);
+                }
+                rowIds[count++] = rowId;
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+        }
+
+        // Notifies observers registered against this provider that the data changed.
+        if (count > 0) {
+            publishChange(NoteChangeLog.OP_INSERT, Arrays.copyOf(rowIds, count));
+            notifyChange(uri);
+        }
+        return count;
+    }
+
+    /**
+     * This is called when a client calls
+     * {@link android.content.ContentResolver#applyBatch(String, ArrayList)}.
+     * Applies the operations in one transaction, so either all of them take effect or, if one
+     * fails, none do. The operations notify no listeners themselves; the batch notifies them
+     * once, for the whole notes URI, when it has been committed. Operations with the same shape
+     * run the same SQL, which SQLite compiles once per connection and then reuses.
+     *
+     * @return The results of the operations, in order.
+     * @throws OperationApplicationException if an operation fails.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+
+        // Opens the database object in "write" mode.
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+
+        ContentProviderResult[] results;
+        ArrayList<PendingChange> changes = new ArrayList<PendingChange>();
+        mApplyingBatch.set(Boolean.TRUE);
+        mBatchChanges.set(changes);
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mApplyingBatch.remove();
+            mBatchChanges.remove();
+
+            // Notes read from the database while the batch ran were read as they were before
+            // it, and may have been cached since its operations invalidated them
+            for (PendingChange change : changes) {
+                if (change.op != NoteChangeLog.OP_INSERT) {
+                    invalidateCachedNotes(change.noteIds);
+                }
+            }
+        }
+
+        // Publishes the changes now that they have been committed
+        for (PendingChange change : changes) {
+            NoteChangeLog.getInstance().record(change.op, change.noteIds);
+        }
+
+        // Notifies observers registered against this provider, or any of its notes, that the
+        // data changed.
+        if (!operations.isEmpty()) {
+            notifyChange(NotePad.Notes.CONTENT_URI);
+        }
+        return results;
+    }
+
     /**
      * This is called when a client calls
      * {@link android.content.ContentResolver#delete(Uri, String, String[])}.
@@ -592,11 +1840,7 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             // If the incoming pattern matches the general pattern for notes, does a delete
             // based on the incoming "where" columns and arguments.
             case NOTES:
-                count = db.delete(
-                    NotePad.Notes.TABLE_NAME,  // The database table name
-                    where,                     // The incoming where clause column names
-                    whereArgs                  // The incoming where clause values
-                );
+                finalWhere = where;
                 break;
 
                 // If the incoming URI matches a single note ID, does the delete based on the
@@ -619,13 +1863,6 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 if (where != null) {
                     finalWhere = finalWhere + " AND " + where;
                 }
-
-                // Performs the delete.
-                count = db.delete(
-                    NotePad.Notes.TABLE_NAME,  // The database table name.
-                    finalWhere,                // The final WHERE clause
-                    whereArgs                  // The incoming where clause values.
-                );
                 break;
 
             // If the incoming pattern is invalid, throws an exception.
@@ -633,11 +1870,32 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
+        long[] noteIds;
+        db.beginTransaction();
+        try {
+            // The notes to delete are found first, to remove them from the note cache. Deleting
+            // every note needs no lookup.
+            noteIds = finalWhere != null ? queryNoteIds(db, finalWhere, whereArgs) : null;
+
+            // Performs the delete.
+            count = db.delete(
+                NotePad.Notes.TABLE_NAME,  // The database table name.
+                finalWhere,                // The final WHERE clause
+                whereArgs                  // The incoming where clause values.
+            );
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (noteIds == null || noteIds.length > 0) {
+            publishChange(NoteChangeLog.OP_DELETE, noteIds);
+        }
+
         /*Gets a handle to the content resolver object for the current context, and notifies it
          * that the incoming URI changed. The object passes this along to the resolver framework,
          * and observers that have registered themselves for the provider are notified.
          */
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
 
         // Returns the number of rows deleted.
         return count;
@@ -666,33 +1924,106 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     @Override
     public int update(Uri uri, ContentValues values, String where, String[] whereArgs) {
 
+        // A range of a note's chunks is replaced rather than any columns updated
+        if (sUriMatcher.match(uri) == NOTE_CHUNKS) {
+            return updateChunks(uri, values);
+        }
+
         // Opens the database object in "write" mode.
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         int count;
         String finalWhere;
 
+        // If the note text changes, so do its preview, length and hash, and if the title
+        // changes, so does its sort key. The incoming map belongs to the caller, so the derived
+        // values go into a copy.
+        values = new ContentValues(values);
+        putBodyDigest(values);
+        putTitleKey(values);
+
+        // A long note's text is stored in chunks rather than in the note column
+        boolean writesNote = values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE);
+        String storedNote = takeStoredNote(values);
+
         // Does the update based on the incoming URI pattern
+        finalWhere = updateWhere(uri, where);
+
+        long[] noteIds;
+        db.beginTransaction();
+        try {
+            // The notes to update are found before the update, which may change the columns
+            // that the where clause selects them by
+            noteIds = queryNoteIds(db, finalWhere, whereArgs);
+
+            // Keeps the text that the notes had before this edit, if they have no recent
+            // revision
+            if (writesNote) {
+                long now = System.currentTimeMillis();
+                Long newHash = values.getAsLong(NotePad.Notes.COLUMN_NAME_BODY_HASH);
+                for (long noteId : noteIds) {
+                    recordRevision(db, noteId, newHash, now);
+                }
+            }
+
+            // Does the update and returns the number of rows updated.
+            count = db.update(
+                NotePad.Notes.TABLE_NAME, // The database table name.
+                values,                   // A map of column names and new values to use.
+                finalWhere,               // The final WHERE clause to use
+                                          // placeholders for whereArgs
+                whereArgs                 // The where clause column values to select on, or
+                                          // null if the values are in the where argument.
+            );
+
+            // Writes the changed chunks of each note, or deletes the chunks of notes whose text
+            // is now short enough for the note column, and indexes compressed text
+            if (writesNote) {
+                for (long noteId : noteIds) {
+                    if (storedNote == null || !NoteChunks.isChunked(storedNote)) {
+                        NoteChunks.clear(db, noteId);
+                    }
+                    if (storedNote != null) {
+                        writeStoredNote(db, noteId, storedNote);
+                    }
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (noteIds.length > 0) {
+            publishChange(NoteChangeLog.OP_UPDATE, noteIds);
+        }
+
+        /*Gets a handle to the content resolver object for the current context, and notifies it
+         * that the incoming URI changed. The object passes this along to the resolver framework,
+         * and observers that have registered themselves for the provider are notified.
+         */
+        notifyChange(uri);
+
+        // Returns the number of rows updated.
+        return count;
+    }
+
+    /**
+     * Returns the where clause that {@link #update} selects the notes to update by, for the
+     * incoming URI and "where" clause.
+     *
+     * @throws IllegalArgumentException if the URI is not the notes URI or a note URI.
+     */
+    private static String updateWhere(Uri uri, String where) {
+        String finalWhere;
         switch (sUriMatcher.match(uri)) {
 
             // If the incoming URI matches the general notes pattern, does the update based on
             // the incoming data.
             case NOTES:
-
-                // Does the update and returns the number of rows updated.
-                count = db.update(
-                    NotePad.Notes.TABLE_NAME, // The database table name.
-                    values,                   // A map of column names and new values to use.
-                    where,                    // The where clause column names.
-                    whereArgs                 // The where clause column values to select on.
-                );
+                finalWhere = where;
                 break;
 
             // If the incoming URI matches a single note ID, does the update based on the incoming
             // data, but modifies the where clause to restrict it to the particular note ID.
             case NOTE_ID:
-                // From the incoming URI, get the note ID
-                String noteId = uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION);
-
                 /*
                  * Starts creating the final WHERE clause by restricting it to the incoming
                  * note ID.
@@ -709,31 +2040,337 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 if (where !=null) {
                     finalWhere = finalWhere + " AND " + where;
                 }
-
-
-                // Does the update and returns the number of rows updated.
-                count = db.update(
-                    NotePad.Notes.TABLE_NAME, // The database table name.
-                    values,                   // A map of column names and new values to use.
-                    finalWhere,               // The final WHERE clause to use
-                                              // placeholders for whereArgs
-                    whereArgs                 // The where clause column values to select on, or
-                                              // null if the values are in the where argument.
-                );
                 break;
+
             // If the incoming pattern is invalid, throws an exception.
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
+        return finalWhere;
+    }
 
-        /*Gets a handle to the content resolver object for the current context, and notifies it
-         * that the incoming URI changed. The object passes this along to the resolver framework,
-         * and observers that have registered themselves for the provider are notified.
-         */
-        getContext().getContentResolver().notifyChange(uri, null);
+    /**
+     * Answers an update of {@link NotePad.Chunks}: replaces the range of a chunked note's
+     * chunks that the values select with their text, and brings the note's length, hash and
+     * preview up to date from the replaced chunks, the stored chunk hashes and the first
+     * chunks, without reading the rest of its text. The note is marked as missing from the
+     * full-text index, as when its whole text is saved.
+     *
+     * @return 1 if the note was updated, or 0 if there is no such note or its text is not
+     * stored in chunks.
+     * @throws IllegalArgumentException if the values contain no text, or the range is empty.
+     */
+    private int updateChunks(Uri uri, ContentValues values) {
+        long noteId = Long.parseLong(
+                uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+        String text = values.getAsString(NotePad.Chunks.COLUMN_NAME_CONTENT);
+        if (text == null) {
+            throw new IllegalArgumentException("No text to write to " + uri);
+        }
+        Long afterSeq = values.getAsLong(NotePad.Chunks.COLUMN_NAME_AFTER_SEQ);
+        Long beforeSeq = values.getAsLong(NotePad.Chunks.COLUMN_NAME_BEFORE_SEQ);
+        if (afterSeq != null && beforeSeq != null && beforeSeq <= afterSeq) {
+            throw new IllegalArgumentException("Empty chunk range " + afterSeq + " to "
+                    + beforeSeq);
+        }
+        Long modified = values.getAsLong(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
+        long now = System.currentTimeMillis();
 
-        // Returns the number of rows updated.
-        return count;
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            Cursor c = db.query(NotePad.Notes.TABLE_NAME, new String[] { COLUMN_BODY_FORMAT },
+                    NotePad.Notes._ID + " = " + noteId, null, null, null, null);
+            try {
+                if (!c.moveToFirst() || c.getInt(0) != BODY_FORMAT_CHUNKED) {
+                    return 0;
+                }
+            } finally {
+                c.close();
+            }
+
+            // Keeps the text that the note had before this edit, if it has no recent revision
+            recordRevision(db, noteId, null, now);
+
+            long lengthChange = NoteChunks.patch(db, noteId, afterSeq != null ? afterSeq : 0,
+                    beforeSeq != null ? beforeSeq : Long.MAX_VALUE, text);
+
+            ContentValues note = new ContentValues();
+            NoteChunks.putDigest(db, noteId, lengthChange, note);
+            note.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+                    modified != null ? modified : now);
+            note.put(COLUMN_FTS_STALE, 1);
+            db.update(NotePad.Notes.TABLE_NAME, note, NotePad.Notes._ID + " = " + noteId, null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        publishChange(NoteChangeLog.OP_UPDATE, new long[] { noteId });
+        notifyChange(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId));
+        return 1;
+    }
+
+    // Returns the _IDs of the notes that a "where" clause selects
+    private static long[] queryNoteIds(SQLiteDatabase db, String where, String[] whereArgs) {
+        Cursor c = db.query(NotePad.Notes.TABLE_NAME, new String[] { NotePad.Notes._ID },
+                where, whereArgs, null, null, null);
+        try {
+            long[] ids = new long[c.getCount()];
+            for (int i = 0; c.moveToNext(); i++) {
+                ids[i] = c.getLong(0);
+            }
+            return ids;
+        } finally {
+            c.close();
+        }
+    }
+
+    /*
+     * Records the text that a note has as a revision, if the note has no revision from the
+     * last revision interval and the text is about to change. An empty note has nothing worth
+     * keeping. The revision of a chunked note refers to its chunks, so its text isn't read.
+     */
+    private static void recordRevision(SQLiteDatabase db, long noteId, Long newHash, long now) {
+        String title;
+        long length;
+        Long hash;
+        boolean chunked;
+        Cursor c = db.query(NotePad.Notes.TABLE_NAME, new String[] {
+                    NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_BODY_LENGTH,
+                    NotePad.Notes.COLUMN_NAME_BODY_HASH, COLUMN_BODY_FORMAT
+                }, NotePad.Notes._ID + " = " + noteId, null, null, null, null);
+        try {
+            if (!c.moveToFirst() || c.getLong(1) == 0
+                    || (newHash != null && !c.isNull(2) && c.getLong(2) == newHash)) {
+                return;
+            }
+            title = c.getString(0);
+            length = c.getLong(1);
+            hash = c.isNull(2) ? null : c.getLong(2);
+            chunked = c.getInt(3) == BODY_FORMAT_CHUNKED;
+        } finally {
+            c.close();
+        }
+        if (!NoteRevisions.isDue(db, noteId, now)) {
+            return;
+        }
+        if (chunked && hash != null) {
+            NoteRevisions.recordChunks(db, noteId, title, length, hash, now);
+        } else {
+            NoteRevisions.record(db, noteId, title, readNoteText(db, noteId), now);
+        }
+    }
+
+    /**
+     * Reads the text of a note, from the note column, decompressed, or from its chunks.
+     *
+     * @return The text, or null if there is no such note.
+     */
+    static String readNoteText(SQLiteDatabase db, long noteId) {
+        Cursor c = db.query(NotePad.Notes.TABLE_NAME, READ_TEXT_PROJECTION,
+                NotePad.Notes._ID + " = " + noteId, null, null, null, null);
+        try {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            if (c.getInt(0) == BODY_FORMAT_DEFLATE) {
+                return NoteCompression.decompress(db, c.getBlob(2));
+            }
+            if (c.getInt(0) != BODY_FORMAT_CHUNKED) {
+                return c.isNull(1) ? "" : c.getString(1);
+            }
+        } finally {
+            c.close();
+        }
+        return NoteChunks.read(db, noteId);
+    }
+
+    /**
+     * Publishes a change once it has been committed: removes the notes that were updated or
+     * deleted from the note cache, and adds the change to the {@link NoteChangeLog}. While the
+     * calling thread is applying a batch, the batch is committed later, so the notes are
+     * invalidated now and again by {@link #applyBatch}, which then adds the change to the log.
+     *
+     * @param op {@link NoteChangeLog#OP_INSERT}, {@link NoteChangeLog#OP_UPDATE} or
+     * {@link NoteChangeLog#OP_DELETE}.
+     * @param noteIds The _IDs of the notes, or null for every note.
+     */
+    private void publishChange(int op, long[] noteIds) {
+        if (op != NoteChangeLog.OP_INSERT) {
+            invalidateCachedNotes(noteIds);
+        }
+        ArrayList<PendingChange> changes = mBatchChanges.get();
+        if (changes != null) {
+            changes.add(new PendingChange(op, noteIds));
+        } else {
+            NoteChangeLog.getInstance().record(op, noteIds);
+        }
+    }
+
+    // Removes notes from the note cache, or every note if noteIds is null
+    private static void invalidateCachedNotes(long[] noteIds) {
+        if (noteIds != null) {
+            NoteCache.getInstance().invalidate(noteIds);
+        } else {
+            NoteCache.getInstance().invalidateAll();
+        }
+    }
+
+    /**
+     * Notifies observers registered against a URI that its data changed, and pushes back the
+     * idle maintenance. While the calling thread is applying a batch, nothing is done;
+     * {@link #applyBatch} notifies once at the end.
+     *
+     * @param uri The URI whose data changed.
+     */
+    private void notifyChange(Uri uri) {
+        if (mApplyingBatch.get() == null) {
+            getContext().getContentResolver().notifyChange(uri, null);
+            mOpenHelper.scheduleIdleMaintenance();
+        }
+    }
+
+    /**
+     * Fills in the values of a note to be inserted. The creation date, modification date, title
+     * and note text get defaults if the map doesn't contain them, and the columns derived from
+     * the title and the note text are set.
+     *
+     * @param values The values to be inserted.
+     * @param now The time to use for missing dates.
+     * @param untitled The title to use if the map doesn't contain one.
+     */
+    private static void putInsertDefaults(ContentValues values, Long now, String untitled) {
+
+        // If the values map doesn't contain the creation date, sets the value to the current time.
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_CREATE_DATE) == false) {
+            values.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, now);
+        }
+
+        // If the values map doesn't contain the modification date, sets the value to the current
+        // time.
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE) == false) {
+            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, now);
+        }
+
+        // If the values map doesn't contain a title, sets the value to the default title.
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE) == false) {
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, untitled);
+        }
+
+        // If the values map doesn't contain note text, sets the value to an empty string.
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE) == false) {
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "");
+        }
+
+        // Derives the preview, length and hash columns from the note text, and the sort key
+        // from the title.
+        putBodyDigest(values);
+        putTitleKey(values);
+    }
+
+    /**
+     * Sets the preview, body length and body hash columns in a map of values to write, if the
+     * map contains the note text. Callers cannot set these columns themselves; any values they
+     * supplied are replaced or removed, so the columns always describe the stored note.
+     *
+     * @param values The values to be inserted or updated.
+     */
+    static void putBodyDigest(ContentValues values) {
+        values.remove(NotePad.Notes.COLUMN_NAME_PREVIEW);
+        values.remove(NotePad.Notes.COLUMN_NAME_BODY_LENGTH);
+        values.remove(NotePad.Notes.COLUMN_NAME_BODY_HASH);
+
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+            String note = values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+            values.put(NotePad.Notes.COLUMN_NAME_PREVIEW,
+                    TextDigest.preview(note, NotePad.Notes.PREVIEW_LENGTH));
+            values.put(NotePad.Notes.COLUMN_NAME_BODY_LENGTH, note == null ? 0 : note.length());
+            values.put(NotePad.Notes.COLUMN_NAME_BODY_HASH, NoteChunks.bodyHash(note));
+        }
+    }
+
+    /**
+     * Sets the title sort key column in a map of values to write, if the map contains the
+     * title. As with {@link #putBodyDigest}, a key supplied by the caller is ignored.
+     *
+     * @param values The values to be inserted or updated.
+     */
+    static void putTitleKey(ContentValues values) {
+        values.remove(NotePad.Notes.COLUMN_NAME_TITLE_KEY);
+
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE)) {
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE_KEY,
+                    TextDigest.titleKey(values.getAsString(NotePad.Notes.COLUMN_NAME_TITLE)));
+        }
+    }
+
+    /**
+     * Moves the text of a note that is stored in chunks or compressed out of the note column of
+     * a map of values to write, and sets the columns that say how the text is stored. A note
+     * whose text is long enough is written with an empty note column and marked as missing
+     * from the full-text index; any other note text is compressed if the compression policy of
+     * {@link DatabaseHelper#compress} says so, and otherwise written as it is. As with
+     * {@link #putBodyDigest}, callers cannot set these columns themselves.
+     *
+     * @param values The values to be inserted or updated, with the body digest already set.
+     * @return The text to write with {@link #writeStoredNote} once the note is written, or null
+     * if the map contains no note text or the text is written as it is.
+     */
+    private String takeStoredNote(ContentValues values) {
+        values.remove(COLUMN_BODY_FORMAT);
+        values.remove(COLUMN_FTS_STALE);
+        values.remove(NoteCompression.COLUMN_NOTE_DATA);
+
+        if (!values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+            return null;
+        }
+        String note = values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+        if (NoteChunks.isChunked(note)) {
+            values.putNull(NotePad.Notes.COLUMN_NAME_NOTE);
+            values.putNull(NoteCompression.COLUMN_NOTE_DATA);
+            values.put(COLUMN_BODY_FORMAT, BODY_FORMAT_CHUNKED);
+            values.put(COLUMN_FTS_STALE, 1);
+            return note;
+        }
+
+        byte[] compressed = mOpenHelper.compress(note);
+        if (compressed != null) {
+            values.putNull(NotePad.Notes.COLUMN_NAME_NOTE);
+            values.put(NoteCompression.COLUMN_NOTE_DATA, compressed);
+            values.put(COLUMN_BODY_FORMAT, BODY_FORMAT_DEFLATE);
+            values.put(COLUMN_FTS_STALE, 0);
+            return note;
+        }
+        values.putNull(NoteCompression.COLUMN_NOTE_DATA);
+        values.put(COLUMN_BODY_FORMAT, BODY_FORMAT_INLINE);
+        values.put(COLUMN_FTS_STALE, 0);
+        return null;
+    }
+
+    /**
+     * Writes the text that {@link #takeStoredNote} moved out of the note column, in the same
+     * transaction as the note: the chunks of a long note, or the full-text index entry of a
+     * compressed one, which the index triggers leave alone since its note column is empty. A
+     * compressed note that the full-text backfill hasn't reached yet is marked as missing from
+     * the index, since the backfill copies its empty note column.
+     *
+     * @param db The database, in a transaction.
+     * @param noteId The ID of the note that was written.
+     * @param note The text that {@link #takeStoredNote} returned.
+     */
+    private static void writeStoredNote(SQLiteDatabase db, long noteId, String note) {
+        if (NoteChunks.isChunked(note)) {
+            NoteChunks.write(db, noteId, note);
+            return;
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, note);
+        if (db.update(FTS_TABLE_NAME, values, "docid = " + noteId, null) == 0) {
+            values.clear();
+            values.put(COLUMN_FTS_STALE, 1);
+            db.update(NotePad.Notes.TABLE_NAME, values, NotePad.Notes._ID + " = " + noteId, null);
+        }
     }
 
     /**
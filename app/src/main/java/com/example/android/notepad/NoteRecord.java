@@ -0,0 +1,113 @@
+package com.example.android.notepad;
+
+import android.database.Cursor;
+
+/**
+ * The columns of a note that NoteEditor shows, read once and kept in memory: its _ID, title,
+ * text and dates. Records are immutable, so one can be shared through {@link NoteCache}.
+ * <p>
+ * The text of a note at least {@link #LARGE_LENGTH} characters long is not read into its
+ * record. Such a record is {@link #large}, has an empty text and the text's length, and the
+ * editor reads the text a window at a time through {@link NotePad.Chunks}.
+ */
+final class NoteRecord {
+
+    /**
+     * The projection that {@link #fromCursor} reads a record from, in that order
+     */
+    static final String[] PROJECTION = new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_NOTE,
+            NotePad.Notes.COLUMN_NAME_CREATE_DATE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+    };
+
+    /**
+     * The projection that {@link #headerFromCursor} reads a record without its text from, in
+     * that order
+     */
+    static final String[] HEADER_PROJECTION = new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_BODY_LENGTH,
+            NotePad.Notes.COLUMN_NAME_CREATE_DATE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+    };
+
+    /**
+     * The length, in characters, from which a note's text is not read whole. It is well above
+     * {@link NoteChunks#MIN_CHUNKED_LENGTH}, so every such note is stored in chunks.
+     */
+    static final int LARGE_LENGTH = 512 * 1024;
+
+    /**
+     * A selection of the notes whose text is read whole, to query {@link #PROJECTION} with
+     */
+    static final String SMALL_SELECTION =
+            "IFNULL(" + NotePad.Notes.COLUMN_NAME_BODY_LENGTH + ", 0) < " + LARGE_LENGTH;
+
+    // The memory a record takes besides its characters: the record, its two strings and their
+    // arrays, and its entry in the cache
+    private static final int OVERHEAD_BYTES = 128;
+
+    final long id;
+    final String title;
+    final String note;
+    final long created;
+    final long modified;
+    final long length;
+    final boolean large;
+
+    NoteRecord(long id, String title, String note, long created, long modified) {
+        this(id, title, note, created, modified, note != null ? note.length() : 0, false);
+    }
+
+    private NoteRecord(long id, String title, String note, long created, long modified,
+                       long length, boolean large) {
+        this.id = id;
+        this.title = title != null ? title : "";
+        this.note = note != null ? note : "";
+        this.created = created;
+        this.modified = modified;
+        this.length = length;
+        this.large = large;
+    }
+
+    /**
+     * Reads a record from the current row of a cursor over {@link #PROJECTION}.
+     */
+    static NoteRecord fromCursor(Cursor c) {
+        return new NoteRecord(c.getLong(0), c.getString(1), c.getString(2), c.getLong(3),
+                c.getLong(4));
+    }
+
+    /**
+     * Reads a record without its text from the current row of a cursor over
+     * {@link #HEADER_PROJECTION}. The record is {@link #large} if the text is.
+     */
+    static NoteRecord headerFromCursor(Cursor c) {
+        long length = c.getLong(2);
+        return new NoteRecord(c.getLong(0), c.getString(1), null, c.getLong(3), c.getLong(4),
+                length, length >= LARGE_LENGTH);
+    }
+
+    /**
+     * Returns about how many bytes of memory the record takes: two for each character, plus
+     * the objects around them.
+     */
+    int sizeBytes() {
+        return OVERHEAD_BYTES + 2 * (title.length() + note.length());
+    }
+
+    /**
+     * Returns true if another record of the same note has the same title, text and dates.
+     * Large records are compared by their length, and have the same text only if both are
+     * large.
+     */
+    boolean sameAs(NoteRecord other) {
+        return other != null && id == other.id && created == other.created
+                && modified == other.modified && length == other.length && large == other.large
+                && title.equals(other.title) && note.equals(other.note);
+    }
+}
@@ -0,0 +1,654 @@
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The revision history of notes. When a note's text is about to change and its latest revision
+ * is older than {@link #REVISION_INTERVAL_MILLIS}, the text it had is recorded as a new
+ * revision, so the history holds the state of the note before each burst of editing.
+ * <p>
+ * A revision is stored either as a snapshot of its text, or as a delta against the revision
+ * before it: a list of instructions that copy ranges of the earlier text, or insert new text.
+ * The delta works on lines, with long lines split at content-defined boundaries by
+ * {@link NoteChunks#boundaries}, so its size is close to the size of the change. A new snapshot
+ * is taken once the deltas since the last one add up to more than the text itself, which keeps
+ * the storage in proportion to the changes, or once {@link #MAX_DEPTH} deltas follow it, which
+ * bounds the cost of reconstructing any revision to one snapshot and that many deltas.
+ * <p>
+ * A revision of a note stored in chunks is a snapshot that refers to chunks instead of holding
+ * its text. Each chunk is stored once in {@link #CHUNKS_TABLE_NAME}, however many revisions
+ * refer to it, and is copied from the note's chunks in SQL, so recording the revision of a
+ * large note neither reads its text nor stores again the chunks that haven't changed.
+ * <p>
+ * {@link #compact} thins out old revisions in the background, keeping the last revision of each
+ * day, and re-encodes the revisions after the ones it deletes.
+ */
+final class NoteRevisions {
+    // Used for debugging and logging
+    private static final String TAG = "NoteRevisions";
+
+    /**
+     * The table of revisions
+     */
+    static final String TABLE_NAME = "note_revisions";
+
+    /*
+     * Column definitions for the revisions table that are not in the contract: the number of
+     * deltas between the revision and its snapshot, 0 for a snapshot, and the snapshot text or
+     * delta.
+     */
+    static final String COLUMN_DEPTH = "depth";
+    static final String COLUMN_CONTENT = "content";
+
+    /*
+     * Whether a revision refers to chunks rather than holding its text, in which case its
+     * content is null
+     */
+    static final String COLUMN_CHUNKED = "chunked";
+
+    /**
+     * The table of chunks that revisions refer to, and the table of the chunks that each of
+     * those revisions refers to, in order
+     */
+    static final String CHUNKS_TABLE_NAME = "revision_chunks";
+    static final String REFS_TABLE_NAME = "revision_chunk_refs";
+
+    /*
+     * Column definitions for the revision chunks table. The hash is declared before the
+     * content, so finding a chunk by its hash doesn't read the content's overflow pages.
+     */
+    static final String COLUMN_CHUNK_ID = "_id";
+    static final String COLUMN_CHUNK_HASH = "hash";
+    static final String COLUMN_CHUNK_CONTENT = "content";
+
+    /*
+     * Column definitions for the references table: the revision, the position of the chunk in
+     * it, which is the sequence number that the note's chunk had, and the chunk
+     */
+    static final String COLUMN_REF_REVISION_ID = "revision_id";
+    static final String COLUMN_REF_SEQ = "seq";
+    static final String COLUMN_REF_CHUNK_ID = "chunk_id";
+
+    /**
+     * The minimum time between two revisions of a note
+     */
+    static final long REVISION_INTERVAL_MILLIS = 10 * 60 * 1000;
+
+    /**
+     * The largest number of deltas that follow a snapshot
+     */
+    static final int MAX_DEPTH = 16;
+
+    /**
+     * How long every revision is kept before {@link #compact} thins them out to one a day
+     */
+    static final long KEEP_ALL_MILLIS = 24 * 60 * 60 * 1000;
+
+    // The length of a day, which revisions are grouped by when they are thinned out
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000;
+
+    // Lines longer than this are split into chunks for the delta
+    private static final int MAX_SEGMENT_LENGTH = 2 * NoteChunks.MIN_CHUNK_LENGTH;
+
+    // A segment shorter than this is inserted rather than copied from somewhere else in the
+    // earlier text, since the copy instruction would be about as long
+    private static final int MIN_COPY_LENGTH = 8;
+
+    // The number of characters read from the database at a time, so that a large snapshot
+    // never has to fit in a cursor window in one piece
+    private static final int READ_PIECE_LENGTH = 256 * 1024;
+
+    // This class cannot be instantiated
+    private NoteRevisions() {
+    }
+
+    /**
+     * Returns true if a note has no revision from the last revision interval.
+     */
+    static boolean isDue(SQLiteDatabase db, long noteId, long now) {
+        Cursor c = db.query(TABLE_NAME, new String[] { NotePad.Revisions.COLUMN_NAME_CREATE_DATE },
+                NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = " + noteId, null, null, null,
+                NotePad.Revisions._ID + " DESC", "1");
+        try {
+            return !c.moveToFirst() || c.getLong(0) <= now - REVISION_INTERVAL_MILLIS;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Records a revision of a note, unless its text is the same as the latest revision's.
+     *
+     * @param db The database to write to. Must be in a transaction.
+     * @param noteId The _ID of the note.
+     * @param title The note's title.
+     * @param text The note's text.
+     * @param now The time of the revision.
+     * @return The _ID of the new revision, or -1 if none was recorded.
+     */
+    static long record(SQLiteDatabase db, long noteId, String title, String text, long now) {
+        long hash = NoteChunks.bodyHash(text);
+
+        long latestId = -1;
+        int latestDepth = 0;
+        Cursor c = db.query(TABLE_NAME, new String[] {
+                    NotePad.Revisions._ID, COLUMN_DEPTH, NotePad.Revisions.COLUMN_NAME_BODY_HASH
+                }, NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = " + noteId, null, null, null,
+                NotePad.Revisions._ID + " DESC", "1");
+        try {
+            if (c.moveToFirst()) {
+                if (c.getLong(2) == hash) {
+                    return -1;
+                }
+                latestId = c.getLong(0);
+                latestDepth = c.getInt(1);
+            }
+        } finally {
+            c.close();
+        }
+
+        String content = text;
+        int depth = 0;
+        if (latestId != -1) {
+            String delta = encodeDelta(reconstruct(db, latestId), text);
+            if (useDelta(latestDepth, chainLength(db, noteId, latestDepth), delta, text)) {
+                content = delta;
+                depth = latestDepth + 1;
+            }
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Revisions.COLUMN_NAME_NOTE_ID, noteId);
+        values.put(NotePad.Revisions.COLUMN_NAME_CREATE_DATE, now);
+        values.put(NotePad.Revisions.COLUMN_NAME_TITLE, title);
+        values.put(NotePad.Revisions.COLUMN_NAME_BODY_LENGTH, text.length());
+        values.put(NotePad.Revisions.COLUMN_NAME_BODY_HASH, hash);
+        values.put(COLUMN_DEPTH, depth);
+        values.put(COLUMN_CONTENT, content);
+        return db.insert(TABLE_NAME, null, values);
+    }
+
+    /**
+     * Records a revision of a chunked note that refers to the note's chunks, unless its text
+     * is the same as the latest revision's. The chunks are copied by the database, and only
+     * those that no revision has yet; the text is never read.
+     *
+     * @param db The database to write to. Must be in a transaction.
+     * @param noteId The _ID of the note, which must be stored in chunks.
+     * @param title The note's title.
+     * @param length The length of the note's text.
+     * @param hash The hash of the note's text.
+     * @param now The time of the revision.
+     * @return The _ID of the new revision, or -1 if none was recorded.
+     */
+    static long recordChunks(SQLiteDatabase db, long noteId, String title, long length,
+            long hash, long now) {
+        Cursor c = db.query(TABLE_NAME, new String[] { NotePad.Revisions.COLUMN_NAME_BODY_HASH },
+                NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = " + noteId, null, null, null,
+                NotePad.Revisions._ID + " DESC", "1");
+        try {
+            if (c.moveToFirst() && c.getLong(0) == hash) {
+                return -1;
+            }
+        } finally {
+            c.close();
+        }
+
+        // The same chunk, in the note's chunks and in the revision chunks
+        String sameChunk = "r." + COLUMN_CHUNK_HASH + " = n." + NoteChunks.COLUMN_HASH
+                + " AND r." + COLUMN_CHUNK_CONTENT + " = n." + NoteChunks.COLUMN_CONTENT;
+        String noteChunks = " FROM " + NoteChunks.TABLE_NAME + " n WHERE n."
+                + NoteChunks.COLUMN_NOTE_ID + " = " + noteId;
+
+        db.execSQL("INSERT INTO " + CHUNKS_TABLE_NAME + " (" + COLUMN_CHUNK_HASH + ", "
+                + COLUMN_CHUNK_CONTENT + ") SELECT DISTINCT n." + NoteChunks.COLUMN_HASH + ", n."
+                + NoteChunks.COLUMN_CONTENT + noteChunks + " AND NOT EXISTS (SELECT 1 FROM "
+                + CHUNKS_TABLE_NAME + " r WHERE " + sameChunk + ")");
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Revisions.COLUMN_NAME_NOTE_ID, noteId);
+        values.put(NotePad.Revisions.COLUMN_NAME_CREATE_DATE, now);
+        values.put(NotePad.Revisions.COLUMN_NAME_TITLE, title);
+        values.put(NotePad.Revisions.COLUMN_NAME_BODY_LENGTH, length);
+        values.put(NotePad.Revisions.COLUMN_NAME_BODY_HASH, hash);
+        values.put(COLUMN_DEPTH, 0);
+        values.putNull(COLUMN_CONTENT);
+        values.put(COLUMN_CHUNKED, 1);
+        long revisionId = db.insert(TABLE_NAME, null, values);
+
+        db.execSQL("INSERT INTO " + REFS_TABLE_NAME + " (" + COLUMN_REF_REVISION_ID + ", "
+                + COLUMN_REF_SEQ + ", " + COLUMN_REF_CHUNK_ID + ") SELECT " + revisionId + ", n."
+                + NoteChunks.COLUMN_SEQ + ", (SELECT min(r." + COLUMN_CHUNK_ID + ") FROM "
+                + CHUNKS_TABLE_NAME + " r WHERE " + sameChunk + ")" + noteChunks);
+        return revisionId;
+    }
+
+    /*
+     * Returns true if a revision should be stored as a delta after a revision at the given
+     * depth, rather than as a new snapshot: the chain must stay within the maximum depth, and
+     * the deltas since the snapshot, this one included, must be shorter than the text.
+     */
+    private static boolean useDelta(int previousDepth, long chainLength, String delta,
+            String text) {
+        return previousDepth < MAX_DEPTH && chainLength + delta.length() < text.length();
+    }
+
+    // Returns the total length of the latest deltas of a note, back to its latest snapshot
+    private static long chainLength(SQLiteDatabase db, long noteId, int depth) {
+        if (depth == 0) {
+            return 0;
+        }
+        return DatabaseUtils.longForQuery(db, "SELECT total(length(" + COLUMN_CONTENT
+                + ")) FROM (SELECT " + COLUMN_CONTENT + " FROM " + TABLE_NAME + " WHERE "
+                + NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = " + noteId + " ORDER BY "
+                + NotePad.Revisions._ID + " DESC LIMIT " + depth + ")", null);
+    }
+
+    /**
+     * Reconstructs the text of a revision from the snapshot before it and the deltas in
+     * between.
+     *
+     * @return The text, or null if there is no such revision.
+     */
+    static String reconstruct(SQLiteDatabase db, long revisionId) {
+        long noteId;
+        int depth;
+        Cursor c = db.query(TABLE_NAME, new String[] {
+                    NotePad.Revisions.COLUMN_NAME_NOTE_ID, COLUMN_DEPTH
+                }, NotePad.Revisions._ID + " = " + revisionId, null, null, null, null);
+        try {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            noteId = c.getLong(0);
+            depth = c.getInt(1);
+        } finally {
+            c.close();
+        }
+
+        // The revision and the ones before it, back to its snapshot, newest first
+        long[] chain = new long[depth + 1];
+        c = db.query(TABLE_NAME, new String[] { NotePad.Revisions._ID },
+                NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = " + noteId + " AND "
+                        + NotePad.Revisions._ID + " <= " + revisionId,
+                null, null, null, NotePad.Revisions._ID + " DESC", Integer.toString(depth + 1));
+        try {
+            for (int i = 0; c.moveToNext(); i++) {
+                chain[i] = c.getLong(0);
+            }
+        } finally {
+            c.close();
+        }
+
+        String text = readContent(db, chain[depth]);
+        for (int i = depth - 1; i >= 0; i--) {
+            text = applyDelta(text, readContent(db, chain[i]));
+        }
+        return text;
+    }
+
+    /**
+     * Thins out the revisions that are older than {@link #KEEP_ALL_MILLIS}, keeping the last
+     * one of each day. Each note is compacted in its own transaction.
+     *
+     * @return The number of revisions deleted.
+     */
+    static int compact(SQLiteDatabase db, long now) {
+        long cutoff = now - KEEP_ALL_MILLIS;
+
+        // The notes that have more than one old revision on the same day
+        long[] noteIds;
+        Cursor c = db.rawQuery("SELECT DISTINCT " + NotePad.Revisions.COLUMN_NAME_NOTE_ID
+                + " FROM (SELECT " + NotePad.Revisions.COLUMN_NAME_NOTE_ID + " FROM " + TABLE_NAME
+                + " WHERE " + NotePad.Revisions.COLUMN_NAME_CREATE_DATE + " < " + cutoff
+                + " GROUP BY " + NotePad.Revisions.COLUMN_NAME_NOTE_ID + ", "
+                + NotePad.Revisions.COLUMN_NAME_CREATE_DATE + " / " + DAY_MILLIS
+                + " HAVING count(*) > 1)", null);
+        try {
+            noteIds = new long[c.getCount()];
+            for (int i = 0; c.moveToNext(); i++) {
+                noteIds[i] = c.getLong(0);
+            }
+        } finally {
+            c.close();
+        }
+
+        int deleted = 0;
+        for (long noteId : noteIds) {
+            db.beginTransaction();
+            try {
+                deleted += compactNote(db, noteId, cutoff);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+        if (deleted > 0) {
+            Log.d(TAG, "Compacted " + deleted + " revisions of " + noteIds.length + " notes");
+        }
+        return deleted;
+    }
+
+    /*
+     * Deletes a note's old revisions other than the last of each day, and re-encodes every
+     * revision that follows a deleted one against the revision now before it.
+     */
+    private static int compactNote(SQLiteDatabase db, long noteId, long cutoff) {
+        long[] ids;
+        long[] created;
+        int[] depths;
+        boolean[] chunked;
+        Cursor c = db.query(TABLE_NAME, new String[] {
+                    NotePad.Revisions._ID, NotePad.Revisions.COLUMN_NAME_CREATE_DATE, COLUMN_DEPTH,
+                    COLUMN_CHUNKED
+                }, NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = " + noteId, null, null, null,
+                NotePad.Revisions._ID);
+        try {
+            ids = new long[c.getCount()];
+            created = new long[ids.length];
+            depths = new int[ids.length];
+            chunked = new boolean[ids.length];
+            for (int i = 0; c.moveToNext(); i++) {
+                ids[i] = c.getLong(0);
+                created[i] = c.getLong(1);
+                depths[i] = c.getInt(2);
+                chunked[i] = c.getInt(3) != 0;
+            }
+        } finally {
+            c.close();
+        }
+
+        int deleted = 0;
+        // Whether a revision before this one, since the last snapshot that was kept, was deleted
+        boolean reencode = false;
+        // The text of each revision as it is read, and the _ID, text, depth and delta chain
+        // length of the last revision kept. The text of a revision that refers to chunks is
+        // null until it is needed.
+        String text = null;
+        long keptId = -1;
+        String keptText = null;
+        int keptDepth = 0;
+        long keptChainLength = 0;
+        for (int i = 0; i < ids.length; i++) {
+            String content;
+            if (chunked[i]) {
+                // Only read if the next revision is a delta against it, since it may be
+                // deleted before that is applied
+                content = null;
+                text = i + 1 < ids.length && depths[i + 1] > 0 ? readContent(db, ids[i]) : null;
+            } else {
+                content = readContent(db, ids[i]);
+                text = depths[i] == 0 ? content : applyDelta(text, content);
+            }
+
+            boolean old = created[i] < cutoff;
+            boolean lastOfDay = i + 1 == ids.length
+                    || created[i + 1] / DAY_MILLIS != created[i] / DAY_MILLIS;
+            if (old && !lastOfDay) {
+                db.delete(TABLE_NAME, NotePad.Revisions._ID + " = " + ids[i], null);
+                deleted++;
+                reencode = true;
+                continue;
+            }
+
+            if (depths[i] == 0) {
+                // A snapshot doesn't depend on the revisions before it
+                reencode = false;
+            }
+            if (reencode) {
+                if (keptText == null && keptId != -1) {
+                    keptText = readContent(db, keptId);
+                }
+                String delta = keptText == null ? null : encodeDelta(keptText, text);
+                if (delta != null && useDelta(keptDepth, keptChainLength, delta, text)) {
+                    content = delta;
+                    keptDepth++;
+                } else {
+                    content = text;
+                    keptDepth = 0;
+                }
+                ContentValues values = new ContentValues();
+                values.put(COLUMN_DEPTH, keptDepth);
+                values.put(COLUMN_CONTENT, content);
+                db.update(TABLE_NAME, values, NotePad.Revisions._ID + " = " + ids[i], null);
+            } else {
+                keptDepth = depths[i];
+            }
+            keptChainLength = keptDepth == 0 ? 0 : keptChainLength + content.length();
+            keptId = ids[i];
+            keptText = text;
+        }
+        return deleted;
+    }
+
+    /**
+     * Encodes the differences between two texts as a delta that {@link #applyDelta} turns the
+     * base text into the target text with. A delta is a sequence of instructions:
+     * <code>c&lt;start&gt;,&lt;length&gt;;</code> copies a range of the base text, and
+     * <code>i&lt;length&gt;:&lt;text&gt;</code> inserts new text.
+     */
+    static String encodeDelta(String base, String target) {
+        // The start and end that the texts have in common are copied whole, so an edit within
+        // a long line costs no more than the edit itself
+        int prefix = 0;
+        int maxPrefix = Math.min(base.length(), target.length());
+        while (prefix < maxPrefix && base.charAt(prefix) == target.charAt(prefix)) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < maxPrefix - prefix && base.charAt(base.length() - 1 - suffix)
+                == target.charAt(target.length() - 1 - suffix)) {
+            suffix++;
+        }
+
+        // The segments in between, each from one bound to the next
+        int[] baseBounds = segments(base, prefix, base.length() - suffix);
+        HashMap<Long, Integer> firstSegment = new HashMap<Long, Integer>();
+        for (int i = baseBounds.length - 2; i >= 0; i--) {
+            firstSegment.put(TextDigest.hash64(base, baseBounds[i], baseBounds[i + 1]), i);
+        }
+
+        StringBuilder delta = new StringBuilder();
+        // The pending copy, as a range of the base text, and the pending insert, as a range of
+        // the target text; each is empty when its start is -1
+        int copyStart = prefix > 0 ? 0 : -1;
+        int copyEnd = prefix;
+        int insertStart = -1;
+        int insertEnd = -1;
+        // The base segment that would continue the pending copy
+        int nextSegment = prefix > 0 ? 0 : -1;
+
+        int[] targetBounds = segments(target, prefix, target.length() - suffix);
+        for (int j = 0; j + 1 < targetBounds.length; j++) {
+            int start = targetBounds[j];
+            int end = targetBounds[j + 1];
+
+            int match = -1;
+            if (nextSegment >= 0 && nextSegment + 1 < baseBounds.length
+                    && segmentEquals(base, baseBounds, nextSegment, target, start, end)) {
+                match = nextSegment;
+            } else if (end - start >= MIN_COPY_LENGTH) {
+                Integer segment = firstSegment.get(TextDigest.hash64(target, start, end));
+                if (segment != null
+                        && segmentEquals(base, baseBounds, segment, target, start, end)) {
+                    match = segment;
+                }
+            }
+
+            if (match < 0) {
+                if (copyStart >= 0) {
+                    appendCopy(delta, copyStart, copyEnd);
+                    copyStart = -1;
+                }
+                if (insertStart < 0) {
+                    insertStart = start;
+                }
+                insertEnd = end;
+                nextSegment = -1;
+                continue;
+            }
+
+            if (insertStart >= 0) {
+                appendInsert(delta, target, insertStart, insertEnd);
+                insertStart = -1;
+            }
+            if (copyStart >= 0 && copyEnd == baseBounds[match]) {
+                copyEnd = baseBounds[match + 1];
+            } else {
+                if (copyStart >= 0) {
+                    appendCopy(delta, copyStart, copyEnd);
+                }
+                copyStart = baseBounds[match];
+                copyEnd = baseBounds[match + 1];
+            }
+            nextSegment = match + 1;
+        }
+
+        if (insertStart >= 0) {
+            if (copyStart >= 0) {
+                appendCopy(delta, copyStart, copyEnd);
+                copyStart = -1;
+            }
+            appendInsert(delta, target, insertStart, insertEnd);
+        }
+        if (suffix > 0) {
+            if (copyStart >= 0 && copyEnd == base.length() - suffix) {
+                copyEnd = base.length();
+            } else {
+                if (copyStart >= 0) {
+                    appendCopy(delta, copyStart, copyEnd);
+                }
+                copyStart = base.length() - suffix;
+                copyEnd = base.length();
+            }
+        }
+        if (copyStart >= 0) {
+            appendCopy(delta, copyStart, copyEnd);
+        }
+        return delta.toString();
+    }
+
+    /**
+     * Applies a delta made by {@link #encodeDelta} to its base text.
+     *
+     * @throws IllegalArgumentException if the delta is malformed.
+     */
+    static String applyDelta(String base, String delta) {
+        StringBuilder text = new StringBuilder(base.length());
+        int i = 0;
+        while (i < delta.length()) {
+            char instruction = delta.charAt(i);
+            if (instruction == 'c') {
+                int comma = delta.indexOf(',', i);
+                int semicolon = delta.indexOf(';', comma);
+                if (comma < 0 || semicolon < 0) {
+                    throw new IllegalArgumentException("Malformed delta at " + i);
+                }
+                int start = Integer.parseInt(delta.substring(i + 1, comma));
+                int length = Integer.parseInt(delta.substring(comma + 1, semicolon));
+                text.append(base, start, start + length);
+                i = semicolon + 1;
+            } else if (instruction == 'i') {
+                int colon = delta.indexOf(':', i);
+                if (colon < 0) {
+                    throw new IllegalArgumentException("Malformed delta at " + i);
+                }
+                int length = Integer.parseInt(delta.substring(i + 1, colon));
+                text.append(delta, colon + 1, colon + 1 + length);
+                i = colon + 1 + length;
+            } else {
+                throw new IllegalArgumentException("Malformed delta at " + i);
+            }
+        }
+        return text.toString();
+    }
+
+    // Appends an instruction that copies a range of the base text
+    private static void appendCopy(StringBuilder delta, int start, int end) {
+        delta.append('c').append(start).append(',').append(end - start).append(';');
+    }
+
+    // Appends an instruction that inserts a range of the target text
+    private static void appendInsert(StringBuilder delta, String target, int start, int end) {
+        delta.append('i').append(end - start).append(':').append(target, start, end);
+    }
+
+    // Returns true if a segment of the base text equals a range of the target text
+    private static boolean segmentEquals(String base, int[] baseBounds, int segment,
+            String target, int start, int end) {
+        int segmentStart = baseBounds[segment];
+        return baseBounds[segment + 1] - segmentStart == end - start
+                && base.regionMatches(segmentStart, target, start, end - start);
+    }
+
+    /*
+     * Splits part of a text into the segments that deltas are made of: its lines, each with its
+     * line break, with lines longer than the maximum split into chunks.
+     *
+     * Returns the bounds of the segments: the start of the part, followed by the end of each
+     * segment.
+     */
+    private static int[] segments(String text, int from, int to) {
+        int[] bounds = new int[16];
+        int count = 0;
+        bounds[count++] = from;
+        int start = from;
+        while (start < to) {
+            int newline = text.indexOf('\n', start);
+            int end = newline < 0 || newline >= to ? to : newline + 1;
+            int[] lineEnds = end - start > MAX_SEGMENT_LENGTH
+                    ? NoteChunks.boundaries(text.substring(start, end))
+                    : new int[] { end - start };
+            for (int lineEnd : lineEnds) {
+                if (count == bounds.length) {
+                    bounds = Arrays.copyOf(bounds, count * 2);
+                }
+                bounds[count++] = start + lineEnd;
+            }
+            start = end;
+        }
+        return Arrays.copyOf(bounds, count);
+    }
+
+    // Reads the content of a revision, a piece at a time, or the text of the chunks that it
+    // refers to, a chunk at a time
+    private static String readContent(SQLiteDatabase db, long revisionId) {
+        String where = " FROM " + TABLE_NAME + " WHERE " + NotePad.Revisions._ID + " = "
+                + revisionId;
+        if (DatabaseUtils.longForQuery(db, "SELECT " + COLUMN_CHUNKED + where, null) != 0) {
+            return readChunks(db, revisionId);
+        }
+        long length = DatabaseUtils.longForQuery(db,
+                "SELECT length(" + COLUMN_CONTENT + ")" + where, null);
+        StringBuilder content = new StringBuilder((int) length);
+        for (long start = 1; start <= length; start += READ_PIECE_LENGTH) {
+            content.append(DatabaseUtils.stringForQuery(db, "SELECT substr(" + COLUMN_CONTENT
+                    + ", " + start + ", " + READ_PIECE_LENGTH + ")" + where, null));
+        }
+        return content.toString();
+    }
+
+    // Reads the text of the chunks that a revision refers to, in order
+    private static String readChunks(SQLiteDatabase db, long revisionId) {
+        Cursor c = db.rawQuery("SELECT r." + COLUMN_CHUNK_CONTENT + " FROM " + REFS_TABLE_NAME
+                + " f JOIN " + CHUNKS_TABLE_NAME + " r ON r." + COLUMN_CHUNK_ID + " = f."
+                + COLUMN_REF_CHUNK_ID + " WHERE f." + COLUMN_REF_REVISION_ID + " = " + revisionId
+                + " ORDER BY f." + COLUMN_REF_SEQ, null);
+        try {
+            StringBuilder text = new StringBuilder();
+            while (c.moveToNext()) {
+                text.append(c.getString(0));
+            }
+            return text.toString();
+        } finally {
+            c.close();
+        }
+    }
+}
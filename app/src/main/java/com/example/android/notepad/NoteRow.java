@@ -0,0 +1,56 @@
+package com.example.android.notepad;
+
+import android.database.Cursor;
+
+/**
+ * 笔记列表中的一行：_ID、标题和修改时间。列表只显示这些，不读取正文。
+ * 行是不可变的，列表的一次结果可以在线程之间传递。
+ */
+public final class NoteRow {
+
+    /**
+     * 读取一行所需的列，顺序与 {@link #fromCursor} 一致
+     */
+    public static final String[] PROJECTION = new String[]{
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+    };
+
+    public final long id;
+    public final String title;
+    public final long modified;
+
+    public NoteRow(long id, String title, long modified) {
+        this.id = id;
+        this.title = title != null ? title : "";
+        this.modified = modified;
+    }
+
+    /**
+     * 从按 {@link #PROJECTION} 查询的游标的当前行读取
+     */
+    public static NoteRow fromCursor(Cursor cursor) {
+        return new NoteRow(cursor.getLong(0), cursor.getString(1), cursor.getLong(2));
+    }
+
+    /**
+     * 按列表的排序（NotePad.Notes.PAGE_SORT_ORDER：修改时间降序，_ID 降序）比较两行
+     *
+     * @return 负数表示 a 排在 b 前面
+     */
+    public static int compare(NoteRow a, NoteRow b) {
+        if (a.modified != b.modified) {
+            return a.modified > b.modified ? -1 : 1;
+        }
+        return a.id == b.id ? 0 : (a.id > b.id ? -1 : 1);
+    }
+
+    /**
+     * 与另一行的标题和修改时间是否都相同，相同时不需要重新绑定视图
+     */
+    public boolean sameContent(NoteRow other) {
+        return other != null && id == other.id && modified == other.modified
+                && title.equals(other.title);
+    }
+}
@@ -11,35 +11,37 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.database.ContentObserver;
-import android.database.Cursor;
 import android.graphics.Color;
 import android.graphics.drawable.ColorDrawable;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.text.Editable;
 import android.text.Html;
 import android.text.TextUtils;
 import android.text.TextWatcher;
 import android.util.Log;
 import android.view.ContextMenu;
+import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
+import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
 import android.view.inputmethod.EditorInfo;
 import android.view.inputmethod.InputMethodManager;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
+import android.widget.BaseAdapter;
 import android.widget.EditText;
 import android.widget.ListView;
-import android.widget.SimpleCursorAdapter;
 import android.widget.TextView;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
-import java.util.TimeZone;
+import java.util.Collections;
+import java.util.List;
 
 
 /**
@@ -51,26 +53,35 @@ public class NotesList extends ListActivity {
     private static final String TAG = "NotesList";
 
     /**
-     * 游标适配器所需的列
+     * 距离列表底部还剩多少行时开始加载下一页
      */
-    private static final String[] PROJECTION = new String[]{
-            NotePad.Notes._ID,
-            NotePad.Notes.COLUMN_NAME_TITLE,
-            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
-            NotePad.Notes.COLUMN_NAME_NOTE
-    };
+    private static final int LOAD_MORE_THRESHOLD = 20;
 
     /**
-     * 标题列的索引
+     * 列表显示时预读最前面的几篇笔记，它们最近修改过，最可能被打开
      */
-    private static final int COLUMN_INDEX_TITLE = 1;
-    private static final int COLUMN_NAME_MODIFICATION_DATE = 2;
-    private static final int COLUMN_INDEX_NOTE = 3;
+    private static final int PREFETCH_TOP_NOTES = 3;
+
+    /**
+     * NotePrefs 中是否预读笔记的设置，默认开启。关闭后可以对比预读前后从按下到显示内容的延迟
+     */
+    private static final String PREF_PREFETCH_NOTES = "prefetch_notes";
+
+    // 从 onCreate() 到第一帧显示出笔记的延迟，分别统计从快照显示和同步查询第一页
+    private static final LatencyRecorder sFirstContentSnapshot =
+            new LatencyRecorder("list first content, snapshot", 20);
+    private static final LatencyRecorder sFirstContentQuery =
+            new LatencyRecorder("list first content, query", 20);
 
     // 原有变量保持不变，新增搜索相关变量
     private EditText mSearchEditText;
     private String mCurrentSearchQuery = "";
-    private Cursor mOriginalCursor; // 保存原始游标用于恢复
+    private SearchExecutor mSearchExecutor; // 防抖、可取消的异步搜索
+    private boolean mPrefetch; // 是否预读笔记
+    private boolean mResumed; // 列表是否在前台，只在前台时预读最前面的笔记
+    private long mTouchUptime; // 最近一次按下列表项的时间
+    private ListSnapshot mSnapshot; // 首屏的快照，只在显示全部笔记时使用
+    private long mFirstContentMillis = -1; // 从 onCreate() 到第一帧显示出笔记的时间
 
     private ContentObserver contentObserver;
 
@@ -80,6 +91,7 @@ public class NotesList extends ListActivity {
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        final long createUptime = SystemClock.uptimeMillis();
 
         // 设置自定义布局
         setContentView(R.layout.notes_list);
@@ -104,27 +116,74 @@ public class NotesList extends ListActivity {
 
         getListView().setOnCreateContextMenuListener(this);
 
-        // 获取原始游标并保存
-        loadNotesData();
+        // 搜索结果和按数据变更更新的行在主线程交给适配器，只交付最新一代查询的结果
+        mSearchExecutor = new SearchExecutor(getContentResolver(), getIntent().getData(),
+                new SearchExecutor.Callback() {
+                    @Override
+                    public void onSearchResult(String query, List<NoteRow> rows) {
+                        showRows(rows);
+                        saveSnapshot(query, rows);
+                    }
 
-        // 初始化适配器（使用原始游标）
-        String[] dataColumns = {
-                NotePad.Notes.COLUMN_NAME_TITLE,
-                NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
-        };
-        int[] viewIDs = {
-                android.R.id.text1,
-                R.id.update_time
-        };
+                    @Override
+                    public void onRowsChanged(List<NoteRow> rows, long[] updatedIds,
+                                              boolean moved) {
+                        updateRows(rows, updatedIds, moved);
+                        saveSnapshot(mSearchExecutor.getQuery(), rows);
+                    }
+                });
 
-        CustomCursorAdapter adapter = new CustomCursorAdapter(
-                this,
-                R.layout.noteslist_item,
-                mOriginalCursor,
-                dataColumns,
-                viewIDs
-        );
-        setListAdapter(adapter);
+        // 初始化适配器，先显示快照或同步加载的第一页
+        setListAdapter(new NoteRowAdapter());
+        if (NotePad.Notes.CONTENT_URI.equals(intent.getData())) {
+            mSnapshot = new ListSnapshot(this);
+        }
+        final boolean fromSnapshot = loadNotesData();
+
+        // 记录第一帧显示出笔记的时间
+        final ListView listView = getListView();
+        final ViewTreeObserver observer = listView.getViewTreeObserver();
+        observer.addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                listView.getViewTreeObserver().removeOnPreDrawListener(this);
+                mFirstContentMillis = SystemClock.uptimeMillis() - createUptime;
+                (fromSnapshot ? sFirstContentSnapshot : sFirstContentQuery)
+                        .record(mFirstContentMillis);
+                Log.d(TAG, "first content " + mFirstContentMillis + " ms"
+                        + (fromSnapshot ? " (snapshot)" : ""));
+                return true;
+            }
+        });
+
+        // 滚动到接近底部时加载下一页
+        getListView().setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                                 int totalItemCount) {
+                if (totalItemCount > 0
+                        && firstVisibleItem + visibleItemCount >= totalItemCount - LOAD_MORE_THRESHOLD) {
+                    mSearchExecutor.loadMore();
+                }
+            }
+        });
+
+        // 手指按下列表项时就开始预读这篇笔记，点击生效、编辑页启动时笔记通常已在缓存中
+        getListView().setOnTouchListener((v, event) -> {
+            if (event.getActionMasked() == MotionEvent.ACTION_DOWN) {
+                mTouchUptime = event.getEventTime();
+                int position = getListView().pointToPosition((int) event.getX(), (int) event.getY());
+                if (mPrefetch && position != AdapterView.INVALID_POSITION) {
+                    prefetch(getListView().getItemIdAtPosition(position));
+                }
+            }
+            // 不消费事件，点击和滚动照常处理
+            return false;
+        });
 
         // 初始化搜索框
         initSearchView();
@@ -135,7 +194,11 @@ public class NotesList extends ListActivity {
             @Override
             public void onChange(boolean selfChange) {
                 super.onChange(selfChange);
-                performSearch();
+                // 只应用尚未应用的变更。列表不在前台时（例如编辑页正在自动保存）先不处理，
+                // 回到前台时一次应用
+                if (mResumed) {
+                    mSearchExecutor.onNotesChanged();
+                }
             }
         };
         // 注册内容观察者以监听数据库变化
@@ -149,23 +212,47 @@ public class NotesList extends ListActivity {
     @Override
     protected void onResume() {
         super.onResume();
-        // 重新加载数据以确保游标有效
-        loadNotesData();
+        mResumed = true;
+        mPrefetch = isPrefetchEnabled(this);
+        // 应用离开期间的数据变更；没有变更时不重新加载
+        mSearchExecutor.onNotesChanged();
     }
 
     @Override
     protected void onPause() {
         super.onPause();
-        // 可以在这里做清理工作
+        // 编辑页在前台时列表仍会随自动保存重新查询，这时不再预读
+        mResumed = false;
+    }
+
+    /**
+     * 是否在按下列表项和列表显示时预读笔记
+     */
+    static boolean isPrefetchEnabled(Context context) {
+        return context.getSharedPreferences("NotePrefs", MODE_PRIVATE)
+                .getBoolean(PREF_PREFETCH_NOTES, true);
+    }
+
+    // 在后台把一篇笔记读入缓存
+    private void prefetch(long id) {
+        NoteLoader.prefetch(getContentResolver(), ContentUris.withAppendedId(getIntent().getData(), id));
+    }
+
+    // 列表在前台显示新的行时，预读最前面的几篇笔记
+    private void prefetchTopNotes(List<NoteRow> rows) {
+        if (!mPrefetch || !mResumed) {
+            return;
+        }
+        for (int i = 0; i < PREFETCH_TOP_NOTES && i < rows.size(); i++) {
+            prefetch(rows.get(i).id);
+        }
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        // 清理游标
-        if (mOriginalCursor != null && !mOriginalCursor.isClosed()) {
-            mOriginalCursor.close();
-        }
+        // 停止搜索线程，丢弃尚未交付的结果
+        mSearchExecutor.release();
         getContentResolver().unregisterContentObserver(contentObserver);
     }
 
@@ -181,7 +268,8 @@ public class NotesList extends ListActivity {
             @Override
             public void onTextChanged(CharSequence s, int start, int before, int count) {
                 mCurrentSearchQuery = s.toString().trim();
-                performSearch();
+                // 防抖后在后台查询，输入过程中旧的查询会被取消
+                mSearchExecutor.onQueryTextChanged(mCurrentSearchQuery);
             }
 
             @Override
@@ -204,88 +292,82 @@ public class NotesList extends ListActivity {
     }
 
 
-    private void loadNotesData() {
-        // 直接查询而不使用 managedQuery
-        Cursor cursor = getContentResolver().query(
-                getIntent().getData(),
-                PROJECTION,
-                null,
-                null,
-                NotePad.Notes.DEFAULT_SORT_ORDER
-        );
+    /*
+     * 有快照时先显示快照，第一页在后台查询后再与快照核对；没有快照时直接查询而不使用
+     * managedQuery，只同步加载很小的第一页，保证首帧就有内容。其余的笔记在滚动时按页加载。
+     *
+     * @return 是否显示的是快照
+     */
+    private boolean loadNotesData() {
+        List<NoteRow> snapshot = mSnapshot != null ? mSnapshot.read() : null;
+        if (snapshot != null) {
+            showRows(snapshot);
+            mSearchExecutor.loadFirstPage(snapshot);
+            return true;
+        }
+        List<NoteRow> rows = mSearchExecutor.loadFirstPage();
+        showRows(rows);
+        saveSnapshot("", rows);
+        return false;
+    }
 
-        if (mOriginalCursor != null && !mOriginalCursor.isClosed()) {
-            mOriginalCursor.close();
+    // 显示全部笔记时保存首屏的快照，供下次启动时显示
+    private void saveSnapshot(String query, List<NoteRow> rows) {
+        if (mSnapshot != null && TextUtils.isEmpty(query)) {
+            mSnapshot.save(rows);
         }
-        mOriginalCursor = cursor;
+    }
 
-        // 初始化或更新适配器
-        CustomCursorAdapter adapter = (CustomCursorAdapter) getListAdapter();
-        if (adapter == null) {
-            String[] dataColumns = {
-                    NotePad.Notes.COLUMN_NAME_TITLE,
-                    NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
-            };
-            int[] viewIDs = {
-                    android.R.id.text1,
-                    R.id.update_time
-            };
-
-            adapter = new CustomCursorAdapter(
-                    this,
-                    R.layout.noteslist_item,
-                    mOriginalCursor,
-                    dataColumns,
-                    viewIDs
-            );
-            setListAdapter(adapter);
-        } else {
-            adapter.changeCursor(mOriginalCursor);
+    /**
+     * 从 onCreate() 到第一帧显示出笔记的时间（毫秒），还没有显示时为 -1
+     */
+    long getFirstContentMillis() {
+        return mFirstContentMillis;
+    }
+
+    // 显示新的查询结果
+    private void showRows(List<NoteRow> rows) {
+        NoteRowAdapter adapter = (NoteRowAdapter) getListAdapter();
+        if (adapter != null) {
+            adapter.setRows(rows);
+            adapter.notifyDataSetChanged();
+            prefetchTopNotes(rows);
         }
     }
 
-    // 执行搜索逻辑
-    private void performSearch() {
-        Cursor filteredCursor;
-
-        if (TextUtils.isEmpty(mCurrentSearchQuery)) {
-            // 使用普通查询代替 managedQuery
-            filteredCursor = getContentResolver().query(
-                    getIntent().getData(),
-                    PROJECTION,
-                    null,
-                    null,
-                    NotePad.Notes.DEFAULT_SORT_ORDER
-            );
-        } else {
-            // 构建搜索条件：标题或内容包含搜索关键词
-            String selection = NotePad.Notes.COLUMN_NAME_TITLE + " LIKE ? OR "
-                    + NotePad.Notes.COLUMN_NAME_NOTE + " LIKE ?";
-            String[] selectionArgs = new String[]{
-                    "%" + mCurrentSearchQuery + "%",
-                    "%" + mCurrentSearchQuery + "%"
-            };
-
-            // 使用普通查询代替 managedQuery
-            filteredCursor = getContentResolver().query(
-                    getIntent().getData(),
-                    PROJECTION,
-                    selection,
-                    selectionArgs,
-                    NotePad.Notes.DEFAULT_SORT_ORDER
-            );
+    /*
+     * 显示按数据变更更新后的行。有行被插入、删除或移动时重新布局列表；否则只重新绑定内容
+     * 变化的行中正在显示的那些，其余的行不动。
+     */
+    private void updateRows(List<NoteRow> rows, long[] updatedIds, boolean moved) {
+        NoteRowAdapter adapter = (NoteRowAdapter) getListAdapter();
+        if (adapter == null) {
+            return;
+        }
+        adapter.setRows(rows);
+        if (moved) {
+            adapter.notifyDataSetChanged();
+            prefetchTopNotes(rows);
+            return;
+        }
+        ListView listView = getListView();
+        int first = listView.getFirstVisiblePosition();
+        for (int i = 0; i < listView.getChildCount(); i++) {
+            int position = first + i;
+            if (position < rows.size() && contains(updatedIds, rows.get(position).id)) {
+                adapter.getView(position, listView.getChildAt(i), listView);
+            }
         }
+    }
 
-        // 更新适配器数据
-        CustomCursorAdapter adapter = (CustomCursorAdapter) getListAdapter();
-        if (adapter != null) {
-            // 关闭旧游标后再设置新游标
-            Cursor oldCursor = adapter.getCursor();
-            adapter.changeCursor(filteredCursor);
-            if (oldCursor != null && !oldCursor.isClosed()) {
-                oldCursor.close();
+    // 数组中是否有这个 _ID
+    private static boolean contains(long[] ids, long id) {
+        for (long each : ids) {
+            if (each == id) {
+                return true;
             }
         }
+        return false;
     }
 
     // 重写状态保存方法
@@ -493,7 +575,7 @@ public class NotesList extends ListActivity {
         // 2. 更新列表背景（保持透明，继承根布局）
         getListView().setBackgroundColor(Color.TRANSPARENT);
         // 3. 更新适配器中的列表项背景
-        CustomCursorAdapter adapter = (CustomCursorAdapter) getListAdapter();
+        NoteRowAdapter adapter = (NoteRowAdapter) getListAdapter();
         if (adapter != null) {
             adapter.updateBackgroundColor(bgColor);
         }
@@ -532,12 +614,12 @@ public class NotesList extends ListActivity {
          * 获取与选中位置的项相关联的数据。getItem()返回
          * ListView的支持适配器与该项相关联的任何内容。在NotesList中，
          * 适配器将笔记的所有数据与其列表项相关联。因此，
-         * getItem()以Cursor的形式返回该数据。
+         * getItem()以NoteRow的形式返回该数据。
          */
-        Cursor cursor = (Cursor) getListAdapter().getItem(info.position);
+        NoteRow row = (NoteRow) getListAdapter().getItem(info.position);
 
-        // 如果游标为空，则由于某种原因适配器无法从提供者获取数据，因此向调用者返回null
-        if (cursor == null) {
+        // 如果行为空，则由于某种原因适配器无法从提供者获取数据，因此向调用者返回null
+        if (row == null) {
             // 由于某种原因，请求的项不可用，不执行任何操作
             return;
         }
@@ -548,7 +630,7 @@ public class NotesList extends ListActivity {
 
 
         // 将菜单标题设置为选中笔记的标题
-        menu.setHeaderTitle(cursor.getString(COLUMN_INDEX_TITLE));
+        menu.setHeaderTitle(row.title);
 
         // 附加其他可以处理它的活动的菜单项
         // 这会查询系统中任何实现了我们数据的ALTERNATIVE_ACTION的活动，为每个找到的活动添加一个菜单项
@@ -651,65 +733,119 @@ public class NotesList extends ListActivity {
 
             // 发送一个Intent来启动可以处理ACTION_EDIT的Activity。
             // Intent的数据是笔记ID URI。实际上，这会调用NoteEdit。
-            startActivity(new Intent(Intent.ACTION_EDIT, uri));
+            // 附上按下的时间，编辑页据此统计从按下到显示内容的延迟；用键盘点击时没有按下的时间
+            long touchUptime = mTouchUptime != 0 ? mTouchUptime : SystemClock.uptimeMillis();
+            mTouchUptime = 0;
+            startActivity(new Intent(Intent.ACTION_EDIT, uri)
+                    .putExtra(NoteEditor.EXTRA_TOUCH_UPTIME, touchUptime));
         }
     }
 
     /**
-     * 自定义游标适配器，用于动态设置列表项背景色
-     */
-    /**
-     * 自定义游标适配器，用于动态设置列表项背景色和显示创建时间
+     * 笔记行的适配器，用于动态设置列表项背景色和显示修改时间。
+     * 列表项的控件保存在 {@link RowHolder} 中，绑定时不再调用 findViewById()；
+     * 背景色只在设置改变时解析一次；标题、时间和背景只在与该列表项已显示的不同时才重新设置，
+     * 滚动时重新绑定同一篇笔记、或者只有标题变化时，不会重新格式化时间。时间由
+     * {@link TimestampFormatter} 写入列表项自己的 char 缓冲区，今天和昨天显示为相对日期。
      */
-    private class CustomCursorAdapter extends SimpleCursorAdapter {
+    private class NoteRowAdapter extends BaseAdapter {
         private int mBgColor;
-        // 时间格式化器（yyyy-MM-dd HH:mm）
-        private final SimpleDateFormat dateFormat;
-
-        public CustomCursorAdapter(Context context, int layout, Cursor c, String[] from, int[] to) {
-            super(context, layout, c, from, to, 0);
-            // 初始化时间格式化器并设置时区
-            dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm", Locale.getDefault());
-            dateFormat.setTimeZone(TimeZone.getTimeZone("Asia/Shanghai"));
-
+        // mBgColor 解析后的颜色值
+        private int mBgColorValue;
+        // 时间格式化器（yyyy-MM-dd HH:mm，今天和昨天用相对日期）
+        private TimestampFormatter mFormatter;
+        // 当前显示的行
+        private List<NoteRow> mRows = Collections.emptyList();
+
+        public NoteRowAdapter() {
             // 初始化背景色
             SharedPreferences prefs = getSharedPreferences("NotePrefs", MODE_PRIVATE);
-            mBgColor = prefs.getInt("bg_color", R.color.bg_light_gray);
+            setBgColor(prefs.getInt("bg_color", R.color.bg_light_gray));
+        }
+
+        // 换成新的行，由调用方决定如何刷新列表
+        public void setRows(List<NoteRow> rows) {
+            mRows = rows;
         }
 
         @Override
-        public View getView(int position, View convertView, ViewGroup parent) {
-            View view = super.getView(position, convertView, parent);
-            if (view != null) {
-                // 设置列表项整体背景（保留原功能）
-                view.setBackgroundColor(getResources().getColor(mBgColor));
-
-                // 新增：处理创建时间显示
-                Cursor cursor = getCursor();  // 获取当前游标
-                if (cursor.moveToPosition(position)) {  // 移动游标到当前位置
-                    // 获取时间控件
-                    TextView timeTv = (TextView) view.findViewById(R.id.update_time);
-                    if (timeTv != null) {
-                        // 从游标获取创建时间（毫秒值）
-                        long createTime = cursor.getLong(COLUMN_NAME_MODIFICATION_DATE);
-//                        System.out.println("createTime = " + createTime);
-//                        System.out.println(dateFormat.format(new Date(createTime)));
-//                        System.out.println(System.currentTimeMillis());
-//                        System.out.println(dateFormat.format(System.currentTimeMillis()));
-                        // 格式化时间并设置到控件
-                        timeTv.setText(dateFormat.format(new Date(createTime)));
-                    }
-                }
+        public void notifyDataSetChanged() {
+            // 重新布局时取得设备当前的时区
+            mFormatter = TimestampFormatter.getInstance();
+            super.notifyDataSetChanged();
+        }
 
-                // 如果需要恢复卡片容器背景，取消下面注释
-                // LinearLayout cardContainer = view.findViewById(R.id.card_container);
-                // if (cardContainer != null) {
-                //     cardContainer.setBackgroundColor(getDarkerColor(mBgColor));
-                // }
+        @Override
+        public int getCount() {
+            return mRows.size();
+        }
+
+        @Override
+        public NoteRow getItem(int position) {
+            return mRows.get(position);
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return mRows.get(position).id;
+        }
+
+        @Override
+        public boolean hasStableIds() {
+            return true;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            View view = convertView;
+            RowHolder holder;
+            if (view == null) {
+                view = LayoutInflater.from(NotesList.this)
+                        .inflate(R.layout.noteslist_item, parent, false);
+                holder = new RowHolder(view);
+                view.setTag(holder);
+            } else {
+                holder = (RowHolder) view.getTag();
+            }
+            if (mFormatter == null) {
+                mFormatter = TimestampFormatter.getInstance();
             }
+            bind(holder, mRows.get(position));
+
+            // 如果需要恢复卡片容器背景，取消下面注释
+            // LinearLayout cardContainer = view.findViewById(R.id.card_container);
+            // if (cardContainer != null) {
+            //     cardContainer.setBackgroundColor(getDarkerColor(mBgColor));
+            // }
             return view;
         }
 
+        // 把一行绑定到列表项上，只设置与已显示内容不同的部分
+        private void bind(RowHolder holder, NoteRow row) {
+            // 设置列表项整体背景（保留原功能）
+            if (holder.bgColor != mBgColorValue) {
+                holder.view.setBackgroundColor(mBgColorValue);
+                holder.bgColor = mBgColorValue;
+            }
+
+            // 标题和修改时间
+            if (!row.title.equals(holder.title)) {
+                holder.titleView.setText(row.title);
+                holder.title = row.title;
+            }
+            // 日期变化（例如过了午夜）后，相对日期也要重新格式化
+            long now = System.currentTimeMillis();
+            long today = mFormatter.dayOf(now);
+            if (holder.timeView != null && (holder.modified != row.modified
+                    || holder.today != today || holder.formatter != mFormatter)) {
+                int length = mFormatter.formatRelative(row.modified, now, holder.timeChars);
+                holder.timeView.setText(holder.timeChars, 0, length);
+                holder.modified = row.modified;
+                holder.today = today;
+                holder.formatter = mFormatter;
+            }
+        }
+
         // 辅助方法：将颜色调深一点作为卡片背景（
         private int getDarkerColor(int colorResId) {
             int color = getResources().getColor(colorResId);
@@ -721,10 +857,41 @@ public class NotesList extends ListActivity {
             return Color.argb(a, Math.min(r, 255), Math.min(g, 255), Math.min(b, 255));
         }
 
+        // 记住背景色资源及其颜色值
+        private void setBgColor(int colorResId) {
+            mBgColor = colorResId;
+            mBgColorValue = getResources().getColor(colorResId);
+        }
+
         // 更新背景色并刷新列表
         public void updateBackgroundColor(int colorResId) {
-            mBgColor = colorResId;
+            setBgColor(colorResId);
             notifyDataSetChanged();
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * 列表项的控件，以及该列表项当前显示的内容
+     */
+    private static final class RowHolder {
+        final View view;
+        final TextView titleView;
+        final TextView timeView;
+
+        // 时间的文字，TextView 直接显示这个缓冲区，只在重新设置时修改
+        final char[] timeChars = new char[TimestampFormatter.MAX_LENGTH];
+
+        // 已显示的背景色、标题和修改时间，以及格式化时间时的日期和格式化器
+        int bgColor;
+        String title;
+        long modified;
+        long today;
+        TimestampFormatter formatter;
+
+        RowHolder(View view) {
+            this.view = view;
+            titleView = (TextView) view.findViewById(android.R.id.text1);
+            timeView = (TextView) view.findViewById(R.id.update_time);
+        }
+    }
+}
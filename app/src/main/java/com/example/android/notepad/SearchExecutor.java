@@ -0,0 +1,597 @@
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 笔记搜索执行器，同时维护列表显示的行（{@link NoteRow}）。
+ * <p>
+ * 输入框每次变化都会开始新的一代查询：先防抖 DEBOUNCE_MILLIS，再在后台线程执行查询，
+ * 同时通过 CancellationSignal 取消上一代仍在进行中的查询。查询结果只有在仍属于最新一代时
+ * 才会在主线程交付给回调，过期的结果直接丢弃。
+ * <p>
+ * 执行器记住上一次交付的搜索词及其结果的 _ID 集合。用户继续输入、新搜索词只是在旧搜索词
+ * 后追加字符时，新结果一定是旧结果的子集，因此只需用 {@code _id IN (...)} 重新检查这些笔记，
+ * 每次按键的开销从 O(全部笔记) 降到 O(当前结果)。退格、改动中间的文字或数据变化时才执行完整查询。
+ * <p>
+ * 搜索词为空时按页加载全部笔记：首次只查询 FIRST_PAGE_SIZE 条，列表滚动到接近底部时调用
+ * {@link #loadMore()}，从上一页最后一条笔记的 (modified, _id) 之后继续查询下一页，
+ * 再与已有的行合并后交付。
+ * <p>
+ * 数据变化时调用 {@link #onNotesChanged()}。执行器记住已交付的行对应的 {@link NoteChangeLog}
+ * 代数，只处理之后的变更：没有新变更时什么也不做，因此重复的通知和 onResume() 不会重新加载；
+ * 显示全部笔记、变更涉及的笔记不多时，只用 {@code _id IN (...)} 查询这些笔记，在已有的行中
+ * 更新、移动、插入或删除它们，删除则不需要查询。搜索结果的排序取决于相关度，仍然完整地重新查询。
+ * <p>
+ * 同一个搜索词重新查询或应用变更时，新旧两组行的差异（{@link Diff}）在后台线程计算，主线程只
+ * 根据差异刷新列表：没有差异时不通知回调，只有内容变化时只重新绑定这些行。
+ * <p>
+ * 冷启动时可以先用 {@link #loadFirstPage(List)} 显示快照中的行，真正的第一页在后台查询后与快照比较，
+ * 同样只通过 {@link Callback#onRowsChanged} 刷新不同的行。
+ * <p>
+ * 从按键到结果交付的延迟由 LatencyRecorder 统计，并定期以百分位数写入日志。
+ * 除查询本身外，所有方法都只能在主线程调用。
+ */
+public class SearchExecutor {
+
+    /**
+     * 新旧两组行的差异，在后台线程计算
+     */
+    static final class Diff {
+        // 新的全部行
+        final List<NoteRow> rows;
+        // 内容变化、位置不变的行的 _ID；有行移动时为空
+        final long[] updatedIds;
+        // 是否有行被插入、删除或移动了位置
+        final boolean moved;
+
+        Diff(List<NoteRow> rows, long[] updatedIds, boolean moved) {
+            this.rows = rows;
+            this.updatedIds = updatedIds;
+            this.moved = moved;
+        }
+
+        // 两组行完全相同
+        boolean isEmpty() {
+            return !moved && updatedIds.length == 0;
+        }
+    }
+
+    /**
+     * 在主线程接收查询结果
+     */
+    public interface Callback {
+        /**
+         * 结果整体替换：新的搜索、重新查询或追加了一页
+         *
+         * @param query 产生该结果的搜索词，空字符串表示全部笔记
+         * @param rows  结果的全部行，不会再被修改；查询失败时为空
+         */
+        void onSearchResult(String query, List<NoteRow> rows);
+
+        /**
+         * 按数据变更更新了部分行
+         *
+         * @param rows       更新后的全部行，不会再被修改
+         * @param updatedIds 内容变化、位置不变的行的 _ID
+         * @param moved      是否有行被插入、删除或移动了位置
+         */
+        void onRowsChanged(List<NoteRow> rows, long[] updatedIds, boolean moved);
+    }
+
+    // 输入停止多久后才开始查询（毫秒）
+    static final long DEBOUNCE_MILLIS = 150;
+
+    // 结果超过这么多条时不记住 _ID 集合，下一次按键仍执行完整查询
+    static final int MAX_REFINE_IDS = 500;
+
+    // 第一页的笔记数，足够填满首屏即可
+    static final int FIRST_PAGE_SIZE = 50;
+
+    // 之后每页的笔记数
+    static final int PAGE_SIZE = 200;
+
+    // 变更涉及的笔记超过这么多时，不逐行更新而是重新查询
+    static final int MAX_CHANGED_IDS = 50;
+
+    private final ContentResolver mResolver;
+    private final Uri mNotesUri;
+    private final Callback mCallback;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // 单线程执行查询，保证同一时刻最多只有一个查询占用数据库
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    // 按键到结果交付的延迟
+    private final LatencyRecorder mLatency = new LatencyRecorder("search keystroke-to-results", 200);
+
+    // 当前一代查询的编号，每次新的查询请求加一
+    private int mGeneration;
+
+    // 当前一代尚未开始的防抖任务
+    private Runnable mPendingSearch;
+
+    // 当前一代正在进行的查询的取消信号（API 16 以下为 null）
+    private CancellationSignal mInFlight;
+
+    // 当前一代的查询、下一页或逐行更新是否还未交付
+    private boolean mBusy;
+
+    // 上一次交付的搜索词，以及其结果的 _ID 集合（结果太多或数据已变化时为 null）
+    private String mLastQuery;
+    private long[] mLastIds;
+
+    // 上一次交付的行，以及是否还有下一页
+    private List<NoteRow> mRows;
+    private boolean mHasMore;
+
+    // 已交付的行反映了到这一代为止的数据变更
+    private long mChangeGeneration;
+
+    /**
+     * @param notesUri 搜索词为空时查询的笔记 URI
+     */
+    public SearchExecutor(ContentResolver resolver, Uri notesUri, Callback callback) {
+        mResolver = resolver;
+        mNotesUri = notesUri;
+        mCallback = callback;
+    }
+
+    /**
+     * 在当前线程同步查询全部笔记的第一页，用于首帧显示
+     */
+    public List<NoteRow> loadFirstPage() {
+        Result result = query(pageUri(FIRST_PAGE_SIZE, null), null,
+                NotePad.Notes.PAGE_SORT_ORDER, FIRST_PAGE_SIZE, null);
+        remember("", result);
+        return result.rows;
+    }
+
+    /**
+     * 把快照中的行当作已交付的全部笔记，并在后台查询真正的第一页。查询结果与快照比较，
+     * 相同时不通知回调，不同时通过 {@link Callback#onRowsChanged} 交付。
+     *
+     * @param snapshot 上一次保存的最前面几行
+     */
+    public void loadFirstPage(List<NoteRow> snapshot) {
+        mLastQuery = "";
+        mLastIds = null;
+        mRows = snapshot;
+        mHasMore = false;
+        schedule("", 0, FIRST_PAGE_SIZE);
+    }
+
+    /**
+     * 已交付的行对应的搜索词，空字符串表示全部笔记
+     */
+    public String getQuery() {
+        return mLastQuery;
+    }
+
+    /**
+     * 搜索框内容变化时调用，防抖后再查询
+     */
+    public void onQueryTextChanged(String query) {
+        schedule(query, DEBOUNCE_MILLIS, FIRST_PAGE_SIZE);
+    }
+
+    /**
+     * 立即重新查询，不做防抖。已经加载了几页的列表会重新加载同样多的笔记，以保持滚动位置。
+     */
+    public void requery(String query) {
+        // 数据可能已经变化，之前的结果集合不再可信
+        mLastIds = null;
+        schedule(query, 0, Math.max(FIRST_PAGE_SIZE, mRows != null ? mRows.size() : 0));
+    }
+
+    /**
+     * 数据变化后调用，把已交付的行之后的变更应用到列表上。没有新的变更时什么也不做；
+     * 正在查询时等结果交付后再处理。
+     */
+    public void onNotesChanged() {
+        if (mBusy || mRows == null || mExecutor.isShutdown()) {
+            return;
+        }
+        NoteChangeLog log = NoteChangeLog.getInstance();
+        List<NoteChangeLog.Change> changes = log.since(mChangeGeneration);
+        if (changes != null && changes.isEmpty()) {
+            return;
+        }
+
+        // 找出变更涉及的笔记，以及它们是否全部是删除
+        HashSet<Long> ids = new HashSet<Long>();
+        boolean onlyDeletes = true;
+        if (changes != null && TextUtils.isEmpty(mLastQuery)) {
+            for (NoteChangeLog.Change change : changes) {
+                if (change.noteIds == null) {
+                    ids = null;
+                    break;
+                }
+                for (long id : change.noteIds) {
+                    ids.add(id);
+                }
+                onlyDeletes &= change.op == NoteChangeLog.OP_DELETE;
+            }
+        }
+        if (changes == null || ids == null || ids.size() > MAX_CHANGED_IDS
+                || !TextUtils.isEmpty(mLastQuery)) {
+            requery(mLastQuery);
+            return;
+        }
+
+        final long[] changedIds = new long[ids.size()];
+        int i = 0;
+        for (long id : ids) {
+            changedIds[i++] = id;
+        }
+        final long changeGeneration = log.generation();
+        final boolean queryChanged = !onlyDeletes;
+        final List<NoteRow> base = mRows;
+        final boolean hasMore = mHasMore;
+
+        // 在后台只查询变更涉及的笔记（只有删除时不需要查询），并计算差异；
+        // 这期间开始的新查询会使结果过期
+        final int generation = ++mGeneration;
+        cancelPending();
+        mBusy = true;
+        mExecutor.execute(() -> {
+            List<NoteRow> changedRows = queryChanged
+                    ? query(mNotesUri, idSelection(changedIds), null, 0, null).rows
+                    : Collections.<NoteRow>emptyList();
+            final Diff diff = diff(base, merge(base, hasMore, changedIds, changedRows));
+            mMainHandler.post(() -> {
+                if (generation == mGeneration) {
+                    mBusy = false;
+                    applyChanges(diff, changeGeneration);
+                }
+            });
+        });
+    }
+
+    /**
+     * 列表滚动到接近底部时调用，在后台加载下一页。搜索结果不分页；已经在加载或没有更多笔记时
+     * 什么也不做。
+     */
+    public void loadMore() {
+        if (mBusy || !mHasMore || mRows == null || !TextUtils.isEmpty(mLastQuery)
+                || mExecutor.isShutdown()) {
+            return;
+        }
+        mBusy = true;
+
+        // 新的查询会使这一页过期
+        final int generation = mGeneration;
+        NoteRow last = mRows.get(mRows.size() - 1);
+        final Uri uri = pageUri(PAGE_SIZE, new long[] { last.modified, last.id });
+        mExecutor.execute(() -> {
+            final Result page = query(uri, null, NotePad.Notes.PAGE_SORT_ORDER, PAGE_SIZE, null);
+            mMainHandler.post(() -> deliverPage(page, generation));
+        });
+    }
+
+    /**
+     * 取消所有查询并停止后台线程，之后不会再交付任何结果
+     */
+    public void release() {
+        mGeneration++;
+        cancelPending();
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * 按键到结果交付的延迟统计
+     */
+    public LatencyRecorder getLatencyRecorder() {
+        return mLatency;
+    }
+
+    // 开始新的一代查询，并取消上一代
+    private void schedule(final String query, long delayMillis, final int limit) {
+        final int generation = ++mGeneration;
+        final long requestTime = SystemClock.uptimeMillis();
+        cancelPending();
+        mBusy = true;
+
+        mPendingSearch = () -> {
+            mPendingSearch = null;
+            execute(query, generation, requestTime, limit);
+        };
+        if (delayMillis > 0) {
+            mMainHandler.postDelayed(mPendingSearch, delayMillis);
+        } else {
+            mMainHandler.post(mPendingSearch);
+        }
+    }
+
+    // 移除尚未开始的防抖任务，并取消正在进行的查询
+    private void cancelPending() {
+        if (mPendingSearch != null) {
+            mMainHandler.removeCallbacks(mPendingSearch);
+            mPendingSearch = null;
+        }
+        if (mInFlight != null) {
+            mInFlight.cancel();
+            mInFlight = null;
+        }
+    }
+
+    // 在后台线程执行查询，结果回到主线程交付
+    private void execute(final String query, final int generation, final long requestTime,
+                         final int limit) {
+        if (mExecutor.isShutdown()) {
+            return;
+        }
+
+        final Uri uri;
+        final String sortOrder;
+        final int pageSize;
+        String selection = null;
+        if (TextUtils.isEmpty(query)) {
+            uri = pageUri(limit, null);
+            sortOrder = NotePad.Notes.PAGE_SORT_ORDER;
+            pageSize = limit;
+        } else {
+            if (isRefinement(query)) {
+                // 只重新检查上一次结果中的笔记
+                selection = idSelection(mLastIds);
+            }
+            // 通过全文检索URI搜索标题或内容，结果按相关度排序（标题命中优先）
+            uri = NotePad.Notes.SEARCH_URI.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, query)
+                    .build();
+            sortOrder = null;
+            pageSize = 0;
+        }
+
+        // CancellationSignal 需要 API 16
+        final CancellationSignal signal =
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN
+                        ? new CancellationSignal() : null;
+        mInFlight = signal;
+
+        // 重新查询同一个搜索词时，在后台与已交付的行比较
+        final List<NoteRow> base = query.equals(mLastQuery) ? mRows : null;
+        final String where = selection;
+        mExecutor.execute(() -> {
+            final Result result;
+            try {
+                result = query(uri, where, sortOrder, pageSize, signal);
+            } catch (OperationCanceledException e) {
+                // 已经有更新的查询，放弃这一代
+                return;
+            }
+            if (base != null) {
+                result.base = base;
+                result.diff = diff(base, result.rows);
+            }
+            mMainHandler.post(() -> deliver(query, result, generation, requestTime));
+        });
+    }
+
+    /*
+     * 在当前线程执行查询并读出全部行，同时记下查询之前的变更代数，之后的变更还需要应用。
+     * pageSize 为 0 表示不分页。
+     */
+    private Result query(Uri uri, String selection, String sortOrder, int pageSize,
+                         CancellationSignal signal) {
+        Result result = new Result();
+        result.changeGeneration = NoteChangeLog.getInstance().generation();
+        Cursor cursor;
+        if (signal != null) {
+            cursor = mResolver.query(uri, NoteRow.PROJECTION, selection, null, sortOrder, signal);
+        } else {
+            cursor = mResolver.query(uri, NoteRow.PROJECTION, selection, null, sortOrder);
+        }
+        if (cursor == null) {
+            result.rows = Collections.emptyList();
+            return result;
+        }
+
+        try {
+            int count = cursor.getCount();
+            ArrayList<NoteRow> rows = new ArrayList<NoteRow>(count);
+            while (cursor.moveToNext()) {
+                rows.add(NoteRow.fromCursor(cursor));
+            }
+            result.rows = Collections.unmodifiableList(rows);
+            result.hasMore = pageSize > 0 && count == pageSize;
+            if (count <= MAX_REFINE_IDS) {
+                result.ids = new long[count];
+                for (int i = 0; i < count; i++) {
+                    result.ids[i] = rows.get(i).id;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return result;
+    }
+
+    // 只交付最新一代的结果，过期结果直接丢弃
+    private void deliver(String query, Result result, int generation, long requestTime) {
+        if (generation != mGeneration) {
+            return;
+        }
+        mInFlight = null;
+        mBusy = false;
+        List<NoteRow> base = mRows;
+        remember(query, result);
+        if (result.diff == null || result.base != base) {
+            mCallback.onSearchResult(query, result.rows);
+        } else if (!result.diff.isEmpty()) {
+            mCallback.onRowsChanged(result.rows, result.diff.updatedIds, result.diff.moved);
+        }
+        mLatency.record(SystemClock.uptimeMillis() - requestTime);
+
+        // 查询期间又有数据变更
+        onNotesChanged();
+    }
+
+    // 把下一页追加到已交付的行之后
+    private void deliverPage(Result page, int generation) {
+        if (generation != mGeneration) {
+            return;
+        }
+        mBusy = false;
+
+        // 在这一页之前的行已经反映了更新的变更；这一页里被那些变更移动到前面的笔记，
+        // 会重复出现，只保留已有的那一行
+        ArrayList<NoteRow> rows = new ArrayList<NoteRow>(mRows.size() + page.rows.size());
+        rows.addAll(mRows);
+        HashSet<Long> ids = new HashSet<Long>();
+        for (NoteRow row : mRows) {
+            ids.add(row.id);
+        }
+        for (NoteRow row : page.rows) {
+            if (!ids.contains(row.id)) {
+                rows.add(row);
+            }
+        }
+        mRows = Collections.unmodifiableList(rows);
+        mHasMore = page.hasMore;
+        mCallback.onSearchResult("", mRows);
+        onNotesChanged();
+    }
+
+    // 交付在后台应用了变更的行
+    private void applyChanges(Diff diff, long changeGeneration) {
+        mRows = diff.rows;
+        mLastIds = null;
+        mChangeGeneration = changeGeneration;
+        if (!diff.isEmpty()) {
+            mCallback.onRowsChanged(mRows, diff.updatedIds, diff.moved);
+        }
+        onNotesChanged();
+    }
+
+    /*
+     * 在一组行中应用变更：删除变更涉及的笔记原来的行，再把查询到的新行按排序插入。
+     * 还有下一页时，排在已加载的最后一行之后的笔记不插入，它们会随之后的页加载。
+     */
+    static List<NoteRow> merge(List<NoteRow> rows, boolean hasMore, long[] changedIds,
+                               List<NoteRow> changedRows) {
+        HashSet<Long> changed = new HashSet<Long>();
+        for (long id : changedIds) {
+            changed.add(id);
+        }
+        ArrayList<NoteRow> merged = new ArrayList<NoteRow>(rows.size() + changedRows.size());
+        for (NoteRow row : rows) {
+            if (!changed.contains(row.id)) {
+                merged.add(row);
+            }
+        }
+        NoteRow last = hasMore && !rows.isEmpty() ? rows.get(rows.size() - 1) : null;
+        for (NoteRow row : changedRows) {
+            if (last == null || NoteRow.compare(row, last) < 0) {
+                int position = Collections.binarySearch(merged, row, NoteRow::compare);
+                merged.add(position < 0 ? -position - 1 : position, row);
+            }
+        }
+        return Collections.unmodifiableList(merged);
+    }
+
+    /*
+     * 比较新旧两组行。每一行都还在原来的位置时，只有内容变化的行需要重新绑定；
+     * 否则列表需要重新布局，不再逐行比较。
+     */
+    static Diff diff(List<NoteRow> oldRows, List<NoteRow> newRows) {
+        boolean moved = oldRows.size() != newRows.size();
+        ArrayList<Long> updated = new ArrayList<Long>();
+        for (int i = 0; !moved && i < newRows.size(); i++) {
+            NoteRow oldRow = oldRows.get(i);
+            NoteRow newRow = newRows.get(i);
+            if (oldRow.id != newRow.id) {
+                moved = true;
+            } else if (!newRow.sameContent(oldRow)) {
+                updated.add(newRow.id);
+            }
+        }
+        long[] updatedIds = new long[moved ? 0 : updated.size()];
+        for (int i = 0; i < updatedIds.length; i++) {
+            updatedIds[i] = updated.get(i);
+        }
+        return new Diff(newRows, updatedIds, moved);
+    }
+
+    // 记住已交付的结果，用于增量搜索、加载下一页和应用之后的变更
+    private void remember(String query, Result result) {
+        mLastQuery = query;
+        mLastIds = result.ids;
+        mRows = result.rows;
+        mHasMore = result.hasMore;
+        mChangeGeneration = result.changeGeneration;
+    }
+
+    /*
+     * 构造分页查询的 URI。position 为上一页最后一条笔记的 {modified, _id}，为 null 时查询第一页。
+     */
+    private Uri pageUri(int limit, long[] position) {
+        Uri.Builder builder = mNotesUri.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT, Integer.toString(limit));
+        if (position != null) {
+            builder.appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_BEFORE_MODIFIED,
+                    Long.toString(position[0]));
+            builder.appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_BEFORE_ID,
+                    Long.toString(position[1]));
+        }
+        return builder.build();
+    }
+
+    /*
+     * 新搜索词是否只是在上一次的搜索词后追加了字符。此时新结果是旧结果的子集：全文检索中，
+     * 加长最后一个词的前缀或增加一个词都只会减少匹配；子串匹配中，更长的子串也只会减少匹配。
+     * 但两次搜索必须使用同一种匹配方式（见 NotePadProvider.buildMatchExpression()），
+     * 否则子集关系不成立。
+     */
+    private boolean isRefinement(String query) {
+        return mLastIds != null
+                && !TextUtils.isEmpty(mLastQuery)
+                && query.startsWith(mLastQuery)
+                && (NotePadProvider.buildMatchExpression(query) == null)
+                        == (NotePadProvider.buildMatchExpression(mLastQuery) == null);
+    }
+
+    // 构造 "_id IN (...)" 条件，空集合时不匹配任何笔记
+    private static String idSelection(long[] ids) {
+        StringBuilder selection = new StringBuilder(NotePad.Notes._ID).append(" IN (");
+        for (int i = 0; i < ids.length; i++) {
+            if (i > 0) {
+                selection.append(',');
+            }
+            selection.append(ids[i]);
+        }
+        return selection.append(')').toString();
+    }
+
+    /**
+     * 一次查询的结果
+     */
+    private static class Result {
+        List<NoteRow> rows;
+        // 结果的 _ID，结果太多时为 null
+        long[] ids;
+        // 分页查询是否可能还有下一页
+        boolean hasMore;
+        // 查询之前的数据变更代数
+        long changeGeneration;
+        // 重新查询同一个搜索词时，比较所用的旧行及差异
+        List<NoteRow> base;
+        Diff diff;
+    }
+}
@@ -0,0 +1,154 @@
+package com.example.android.notepad;
+
+import java.text.Normalizer;
+import java.util.Locale;
+
+/**
+ * Small summaries of note text: a 64-bit hash that identifies a body without reading it back,
+ * a bounded one-line preview, and a sort key for titles.
+ */
+final class TextDigest {
+
+    // FNV-1a 64-bit parameters
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * The length and 64-bit hash of a text, which identify it well enough to tell whether it
+     * has changed without keeping a copy of it.
+     */
+    static final class Fingerprint {
+        private final int mLength;
+        private final long mHash;
+
+        private Fingerprint(int length, long hash) {
+            mLength = length;
+            mHash = hash;
+        }
+
+        /**
+         * Returns the fingerprint of a text. Null has the fingerprint of the empty string.
+         */
+        static Fingerprint of(CharSequence text) {
+            return new Fingerprint(text == null ? 0 : text.length(), hash64(text));
+        }
+
+        /**
+         * Returns true if the text has this fingerprint. A text of a different length is told
+         * apart without hashing it.
+         */
+        boolean matches(CharSequence text) {
+            return (text == null ? 0 : text.length()) == mLength && hash64(text) == mHash;
+        }
+    }
+
+    // This class cannot be instantiated
+    private TextDigest() {
+    }
+
+    /**
+     * Returns the 64-bit FNV-1a hash of the UTF-16 code units of the text. The same text always
+     * has the same hash, on every device and version, so it can be stored and compared later.
+     *
+     * @param text The text to hash. Null hashes like the empty string.
+     */
+    static long hash64(CharSequence text) {
+        return text == null ? FNV_OFFSET_BASIS : hash64(text, 0, text.length());
+    }
+
+    /**
+     * Returns the hash of the characters of the text from start up to but not including end,
+     * which is the same as the hash of that part of the text on its own.
+     */
+    static long hash64(CharSequence text, int start, int end) {
+        return hash64(FNV_OFFSET_BASIS, text, start, end);
+    }
+
+    /**
+     * Continues a hash with the characters of the text from start up to but not including end.
+     * Hashing a text in pieces this way, starting from the hash of the empty string, gives the
+     * same hash as hashing it whole, so a text can be hashed without holding all of it.
+     *
+     * @param hash The hash of the text so far.
+     */
+    static long hash64(long hash, CharSequence text, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            hash ^= c & 0xff;
+            hash *= FNV_PRIME;
+            hash ^= c >>> 8;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Continues a hash of a sequence of hashes with one more. A text that is stored in pieces
+     * can be identified this way by the hashes of its pieces, in order, without reading the
+     * pieces themselves; a sequence starts from the hash of the empty string. The same pieces
+     * in another order give another hash, but so can the same text split differently.
+     *
+     * @param hash The hash of the sequence so far.
+     * @param pieceHash The hash of the next piece.
+     */
+    static long combine(long hash, long pieceHash) {
+        // SplitMix64's finalizer, so that every bit of both hashes affects every bit
+        long z = hash ^ pieceHash;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Returns the start of the text as a single line of at most maxLength characters: runs of
+     * whitespace, including line breaks, become one space, and leading whitespace is dropped.
+     * The text is only read as far as the preview needs, and a surrogate pair is never split.
+     *
+     * @param text The text to preview. Null previews as the empty string.
+     */
+    static String preview(CharSequence text, int maxLength) {
+        if (text == null) {
+            return "";
+        }
+        StringBuilder preview = new StringBuilder(Math.min(maxLength, text.length()));
+        boolean space = false;
+        for (int i = 0, length = text.length(); i < length && preview.length() < maxLength; i++) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = preview.length() > 0;
+                continue;
+            }
+            if (space) {
+                // A space is only worth adding if a character can follow it
+                if (preview.length() + 1 >= maxLength) {
+                    break;
+                }
+                preview.append(' ');
+                space = false;
+            }
+            if (Character.isHighSurrogate(c) && i + 1 < length) {
+                if (preview.length() + 2 > maxLength) {
+                    break;
+                }
+                preview.append(c).append(text.charAt(++i));
+            } else {
+                preview.append(c);
+            }
+        }
+        return preview.toString();
+    }
+
+    /**
+     * Returns the key that titles are sorted and looked up by: the title in Unicode NFKC form,
+     * so that full-width and half-width forms compare equal, lower cased without regard to the
+     * device locale, and trimmed.
+     *
+     * @param title The title. Null has the empty key.
+     */
+    static String titleKey(String title) {
+        if (title == null) {
+            return "";
+        }
+        return Normalizer.normalize(title, Normalizer.Form.NFKC).toLowerCase(Locale.ROOT).trim();
+    }
+}
@@ -0,0 +1,628 @@
+package com.example.android.notepad;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * 笔记内查找使用的匹配器。普通文字用 Boyer-Moore-Horspool 算法查找：按 {@link #BLOCK_CHARS}
+ * 分块把文字复制到一个复用的数组中逐块扫描，不复制全文，每次比较失败时按窗口末尾的字符跳过
+ * 多个位置，查询越长跳得越远。
+ * <p>
+ * 正则表达式用 {@link Pattern} 在唯一的一个后台线程中查找，调用方最多等待
+ * {@link #REGEX_BUDGET_MILLIS}，超时后取消查找并返回已经找到的匹配，灾难性回溯不会卡住界面。
+ * Android 的正则表达式由 ICU 在文字的副本上执行，取消只能在两个匹配之间生效，正在进行的一次
+ * 回溯仍会在后台线程中运行到结束；逐个字符读取文字的实现则在读取时发现取消就停止。后台线程
+ * 还在运行上一次超时的查找时不提交新的查找，结果标记为 {@link Matches#busy}：后台最多只有
+ * 一个查找和一份文字的副本。
+ * <p>
+ * 普通文字的查找结果除了互不重叠的匹配外，还保留文字出现的所有位置（可以重叠）。查询只是在
+ * 上一次的查询后追加字符时，{@link #refine} 只需检查这些位置，不必重新扫描全文。
+ * <p>
+ * 匹配器本身不可变，可以在任何线程使用；查找的文字在查找期间不能变化。
+ */
+final class TextMatcher {
+
+    /**
+     * 最多记录的匹配数，超出时结果被截断
+     */
+    static final int MAX_MATCHES = 10000;
+
+    /**
+     * 正则表达式一次查找允许的时间
+     */
+    static final long REGEX_BUDGET_MILLIS = 200;
+
+    // 普通文字查找时每次复制到数组中的字符数
+    private static final int BLOCK_CHARS = 64 * 1024;
+
+    // 正则表达式查找时每读取这么多个字符检查一次是否已被取消
+    private static final int CANCEL_CHECK_CHARS = 4096;
+
+    // 后台线程中运行正则表达式的结果
+    private static final int DONE = 0;
+    private static final int TIMED_OUT = 1;
+    private static final int FAILED = 2;
+    private static final int BUSY = 3;
+
+    private static final String TAG = "TextMatcher";
+
+    // 正则表达式查找的后台线程。查找超时后无法从外部强行停止，只能让它在后台线程中结束
+    private static final ExecutorService sRegexExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "TextMatcher");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    // 最近提交到后台线程的查找，由 TextMatcher.class 保护
+    private static Future<?> sRunning;
+
+    /**
+     * 一次查找的结果。匹配按位置排序，互不重叠，不含空匹配。
+     */
+    static final class Matches {
+        final TextMatcher matcher;
+        final int[] starts;
+        final int[] ends;
+        final int count;
+        // 匹配数超过 MAX_MATCHES，后面的匹配没有记录
+        final boolean truncated;
+        // 正则表达式查找超时，只记录了超时前找到的匹配
+        final boolean timedOut;
+        // 后台线程还在运行上一次超时的查找，这次没有查找，也没有匹配
+        final boolean busy;
+        // 普通文字出现的所有位置，包括重叠的；正则表达式为 null
+        final int[] occurrences;
+        final int occurrenceCount;
+
+        private Matches(TextMatcher matcher, int[] starts, int[] ends, int count,
+                boolean truncated, boolean timedOut, boolean busy, int[] occurrences,
+                int occurrenceCount) {
+            this.matcher = matcher;
+            this.starts = starts;
+            this.ends = ends;
+            this.count = count;
+            this.truncated = truncated;
+            this.timedOut = timedOut;
+            this.busy = busy;
+            this.occurrences = occurrences;
+            this.occurrenceCount = occurrenceCount;
+        }
+
+        /**
+         * 返回第一个在 offset 处或之后开始的匹配的序号，没有时返回 count
+         */
+        int indexAtOrAfter(int offset) {
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (starts[mid] < offset) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * 返回第一个在 offset 之后结束的匹配的序号，没有时返回 count
+         */
+        int indexEndingAfter(int offset) {
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (ends[mid] <= offset) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    private final String mQuery;
+    private final boolean mIgnoreCase;
+    private final long mBudgetMillis;
+
+    // 普通文字：折叠大小写后的查询，以及按字符低 8 位索引的跳跃表
+    private final char[] mLiteral;
+    private final int[] mShift;
+
+    // 正则表达式，普通文字为 null
+    private final Pattern mPattern;
+
+    private TextMatcher(String query, boolean regex, boolean ignoreCase, long budgetMillis) {
+        mQuery = query;
+        mIgnoreCase = ignoreCase;
+        mBudgetMillis = budgetMillis;
+        if (regex) {
+            mPattern = Pattern.compile(query, ignoreCase
+                    ? Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE | Pattern.MULTILINE
+                    : Pattern.MULTILINE);
+            mLiteral = null;
+            mShift = null;
+        } else {
+            mPattern = null;
+            mLiteral = query.toCharArray();
+            if (ignoreCase) {
+                for (int i = 0; i < mLiteral.length; i++) {
+                    mLiteral[i] = fold(mLiteral[i]);
+                }
+            }
+            // 窗口末尾的字符在查询中（最后一个字符除外）最后出现的位置决定跳过的距离；
+            // 低 8 位相同的字符共用一项，取较小的距离，只会少跳不会漏掉匹配
+            int last = mLiteral.length - 1;
+            mShift = new int[256];
+            Arrays.fill(mShift, mLiteral.length);
+            for (int i = 0; i < last; i++) {
+                mShift[mLiteral[i] & 0xFF] = last - i;
+            }
+        }
+    }
+
+    /**
+     * 编译查询
+     *
+     * @param query      要查找的文字或正则表达式，不能为空
+     * @param regex      是否是正则表达式
+     * @param ignoreCase 是否忽略大小写
+     * @throws PatternSyntaxException 正则表达式无效
+     */
+    static TextMatcher compile(String query, boolean regex, boolean ignoreCase) {
+        return compile(query, regex, ignoreCase, REGEX_BUDGET_MILLIS);
+    }
+
+    /**
+     * 同 {@link #compile(String, boolean, boolean)}，正则表达式查找的时间限制由调用方给出
+     */
+    static TextMatcher compile(String query, boolean regex, boolean ignoreCase,
+            long budgetMillis) {
+        if (TextUtils.isEmpty(query)) {
+            throw new IllegalArgumentException("查询不能为空");
+        }
+        return new TextMatcher(query, regex, ignoreCase, budgetMillis);
+    }
+
+    String query() {
+        return mQuery;
+    }
+
+    boolean isRegex() {
+        return mPattern != null;
+    }
+
+    /**
+     * 查找全部匹配
+     */
+    Matches findAll(CharSequence text) {
+        return mPattern != null ? findRegex(text) : findLiteral(text);
+    }
+
+    /**
+     * 查询在上一次的普通文字查询后追加了字符、文字没有变化时，只在上一次出现的位置中查找，
+     * 否则与 {@link #findAll} 相同
+     *
+     * @param previous 同一段文字上一次查找的结果，可以为 null
+     */
+    Matches refine(CharSequence text, Matches previous) {
+        if (!canRefine(previous)) {
+            return findAll(text);
+        }
+        int[] occurrences = new int[previous.occurrenceCount];
+        int count = 0;
+        int length = text.length();
+        for (int i = 0; i < previous.occurrenceCount; i++) {
+            int start = previous.occurrences[i];
+            if (start + mLiteral.length <= length && matchesAt(text, start)) {
+                occurrences[count++] = start;
+            }
+        }
+        return literalMatches(occurrences, count, false);
+    }
+
+    /**
+     * 把第 first 到第 last 个匹配（含）依次替换，返回从第 first 个匹配开头到第 last 个匹配
+     * 结尾这一段替换后的文字，调用方用它一次替换这一段。普通文字原样插入。
+     * <p>
+     * 正则表达式的替换文字中 $n 表示第 n 组，\ 转义下一个字符。展开组需要重新匹配，与查找一样在
+     * 后台线程中进行并受时间限制。查找超时的结果、后台线程忙、再次超时，或重新匹配的结果与
+     * matches 不一致（例如文字已经变化）时返回 null，调用方不应替换。
+     */
+    String replace(CharSequence text, Matches matches, int first, int last, String replacement) {
+        if (mPattern != null) {
+            if (matches.timedOut || matches.busy) {
+                return null;
+            }
+            RegexReplace task = new RegexReplace(mPattern, text.toString(), matches, first, last,
+                    replacement);
+            return runInBackground(task) == DONE ? task.result() : null;
+        }
+        int start = matches.starts[first];
+        StringBuilder out = new StringBuilder(
+                matches.ends[last] - start + (last - first + 1) * replacement.length());
+        int position = start;
+        for (int i = first; i <= last; i++) {
+            out.append(text, position, matches.starts[i]);
+            out.append(replacement);
+            position = matches.ends[i];
+        }
+        return out.toString();
+    }
+
+    // 分块扫描，记录查询出现的所有位置
+    private Matches findLiteral(CharSequence text) {
+        char[] literal = mLiteral;
+        int[] shift = mShift;
+        int m = literal.length;
+        int last = m - 1;
+        int length = text.length();
+        char[] block = new char[BLOCK_CHARS + last];
+        int[] occurrences = new int[16];
+        int count = 0;
+        boolean truncated = false;
+
+        // 每块检查 BLOCK_CHARS 个起点，块后多复制 m - 1 个字符，跨块的匹配也能找到
+        scan:
+        for (int base = 0; base + m <= length; base += BLOCK_CHARS) {
+            int end = Math.min(length, base + BLOCK_CHARS + last);
+            int filled = end - base;
+            TextUtils.getChars(text, base, end, block, 0);
+            if (mIgnoreCase) {
+                for (int i = 0; i < filled; i++) {
+                    block[i] = fold(block[i]);
+                }
+            }
+            int stop = Math.min(BLOCK_CHARS, filled - last);
+            int i = 0;
+            while (i < stop) {
+                char c = block[i + last];
+                if (c == literal[last]) {
+                    int j = last - 1;
+                    while (j >= 0 && block[i + j] == literal[j]) {
+                        j--;
+                    }
+                    if (j < 0) {
+                        if (count == MAX_MATCHES) {
+                            truncated = true;
+                            break scan;
+                        }
+                        if (count == occurrences.length) {
+                            occurrences = Arrays.copyOf(occurrences, count * 2);
+                        }
+                        occurrences[count++] = base + i;
+                    }
+                }
+                i += shift[c & 0xFF];
+            }
+        }
+        return literalMatches(occurrences, count, truncated);
+    }
+
+    // 从查询出现的位置中依次取出互不重叠的匹配
+    private Matches literalMatches(int[] occurrences, int occurrenceCount, boolean truncated) {
+        int m = mLiteral.length;
+        int[] starts = new int[occurrenceCount];
+        int[] ends = new int[occurrenceCount];
+        int count = 0;
+        int end = 0;
+        for (int i = 0; i < occurrenceCount; i++) {
+            int start = occurrences[i];
+            if (start >= end) {
+                end = start + m;
+                starts[count] = start;
+                ends[count] = end;
+                count++;
+            }
+        }
+        return new Matches(this, starts, ends, count, truncated, false, false, occurrences,
+                occurrenceCount);
+    }
+
+    /**
+     * 后台线程是否还在运行上一次的正则表达式查找
+     */
+    static synchronized boolean isRegexBusy() {
+        return sRunning != null && !sRunning.isDone();
+    }
+
+    // 在后台线程中查找，最多等待 mBudgetMillis，超时后取消查找并返回已经找到的匹配
+    private Matches findRegex(CharSequence text) {
+        // 先检查一次，后台线程忙时不必复制文字
+        if (isRegexBusy()) {
+            return busyMatches();
+        }
+        RegexSearch search = new RegexSearch(mPattern, text.toString());
+        int outcome = runInBackground(search);
+        if (outcome == BUSY) {
+            return busyMatches();
+        }
+        return search.result(this, outcome != DONE);
+    }
+
+    private Matches busyMatches() {
+        return new Matches(this, new int[0], new int[0], 0, false, false, true, null, 0);
+    }
+
+    // 在后台线程中运行 task，最多等待 mBudgetMillis，之后取消它。后台线程还在运行上一个任务
+    // 时不提交，返回 BUSY
+    private int runInBackground(RegexTask task) {
+        Future<?> future;
+        synchronized (TextMatcher.class) {
+            if (sRunning != null && !sRunning.isDone()) {
+                return BUSY;
+            }
+            future = sRegexExecutor.submit(task);
+            sRunning = future;
+        }
+        try {
+            future.get(mBudgetMillis, TimeUnit.MILLISECONDS);
+            return DONE;
+        } catch (TimeoutException e) {
+            return TIMED_OUT;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return TIMED_OUT;
+        } catch (ExecutionException e) {
+            // 例如过深的递归导致栈溢出
+            Log.w(TAG, "正则表达式执行失败：" + mQuery, e.getCause());
+            return FAILED;
+        } finally {
+            task.cancel();
+        }
+    }
+
+    // 上一次的结果能否用来缩小这次的查找范围
+    private boolean canRefine(Matches previous) {
+        if (previous == null || previous.truncated || previous.occurrences == null
+                || mPattern != null) {
+            return false;
+        }
+        TextMatcher matcher = previous.matcher;
+        return matcher.mIgnoreCase == mIgnoreCase && mQuery.length() > matcher.mQuery.length()
+                && mQuery.startsWith(matcher.mQuery);
+    }
+
+    // 文字在 start 处是否与查询相同
+    private boolean matchesAt(CharSequence text, int start) {
+        for (int j = mLiteral.length - 1; j >= 0; j--) {
+            char c = text.charAt(start + j);
+            if ((mIgnoreCase ? fold(c) : c) != mLiteral[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // 查找下一个非空匹配，空匹配不能高亮也没有替换的意义
+    private static boolean findNonEmpty(Matcher m) {
+        while (m.find()) {
+            if (m.end() > m.start()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 展开替换文字中的 $n 和 \ 转义
+    private static void expand(Matcher m, String replacement, StringBuilder out) {
+        int length = replacement.length();
+        for (int i = 0; i < length; i++) {
+            char c = replacement.charAt(i);
+            if (c == '\\' && i + 1 < length) {
+                out.append(replacement.charAt(++i));
+            } else if (c == '$' && i + 1 < length && isDigit(replacement.charAt(i + 1))) {
+                // 取不超过组数的最长数字
+                int group = replacement.charAt(++i) - '0';
+                while (i + 1 < length && isDigit(replacement.charAt(i + 1))) {
+                    int next = group * 10 + replacement.charAt(i + 1) - '0';
+                    if (next > m.groupCount()) {
+                        break;
+                    }
+                    group = next;
+                    i++;
+                }
+                if (group <= m.groupCount() && m.group(group) != null) {
+                    out.append(m.group(group));
+                }
+            } else {
+                out.append(c);
+            }
+        }
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    // 忽略大小写比较时使用的字符
+    private static char fold(char c) {
+        if (c < 0x80) {
+            return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+        }
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    /**
+     * 正则表达式查找被取消
+     */
+    private static final class CancelledException extends RuntimeException {
+        // 只用来中止查找，不需要调用栈
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    /**
+     * 在后台线程中运行的正则表达式任务，超时后被取消
+     */
+    private abstract static class RegexTask implements Runnable {
+        volatile boolean mCancelled;
+
+        void cancel() {
+            mCancelled = true;
+        }
+    }
+
+    /**
+     * 后台线程中的一次正则表达式查找，匹配随找随记，取消后仍可取得已经找到的部分
+     */
+    private static final class RegexSearch extends RegexTask {
+        private final Pattern mPattern;
+        private final String mText;
+
+        // 以下由 this 保护
+        private int[] mStarts = new int[16];
+        private int[] mEnds = new int[16];
+        private int mCount;
+        private boolean mTruncated;
+
+        RegexSearch(Pattern pattern, String text) {
+            mPattern = pattern;
+            mText = text;
+        }
+
+        @Override
+        public void run() {
+            Matcher m = mPattern.matcher(new CancellableText(mText, this));
+            try {
+                while (!mCancelled && findNonEmpty(m)) {
+                    synchronized (this) {
+                        if (mCount == MAX_MATCHES) {
+                            mTruncated = true;
+                            return;
+                        }
+                        if (mCount == mStarts.length) {
+                            mStarts = Arrays.copyOf(mStarts, mCount * 2);
+                            mEnds = Arrays.copyOf(mEnds, mCount * 2);
+                        }
+                        mStarts[mCount] = m.start();
+                        mEnds[mCount] = m.end();
+                        mCount++;
+                    }
+                }
+            } catch (CancelledException e) {
+                // 超时后被取消，已经找到的匹配仍然有效
+            }
+        }
+
+        synchronized Matches result(TextMatcher matcher, boolean timedOut) {
+            return new Matches(matcher, Arrays.copyOf(mStarts, mCount),
+                    Arrays.copyOf(mEnds, mCount), mCount, mTruncated, timedOut, false, null, 0);
+        }
+    }
+
+    /**
+     * 后台线程中的一次正则表达式替换：从第一个要替换的匹配处重新匹配，逐个展开替换文字。重新
+     * 匹配的结果与查找结果不一致时放弃，不把未展开的替换文字当作普通文字插入。
+     */
+    private static final class RegexReplace extends RegexTask {
+        private final Pattern mPattern;
+        private final String mText;
+        private final Matches mMatches;
+        private final int mFirst;
+        private final int mLast;
+        private final String mReplacement;
+        private String mResult;
+
+        RegexReplace(Pattern pattern, String text, Matches matches, int first, int last,
+                String replacement) {
+            mPattern = pattern;
+            mText = text;
+            mMatches = matches;
+            mFirst = first;
+            mLast = last;
+            mReplacement = replacement;
+        }
+
+        @Override
+        public void run() {
+            int start = mMatches.starts[mFirst];
+            if (mMatches.ends[mLast] > mText.length()) {
+                return;
+            }
+            StringBuilder out = new StringBuilder(mMatches.ends[mLast] - start
+                    + (mLast - mFirst + 1) * mReplacement.length());
+            Matcher m = mPattern.matcher(new CancellableText(mText, this));
+            m.useTransparentBounds(true);
+            m.useAnchoringBounds(false);
+            m.region(start, mText.length());
+            int position = start;
+            try {
+                for (int i = mFirst; i <= mLast; i++) {
+                    if (mCancelled || !findNonEmpty(m) || m.start() != mMatches.starts[i]
+                            || m.end() != mMatches.ends[i]) {
+                        return;
+                    }
+                    out.append(mText, position, m.start());
+                    expand(m, mReplacement, out);
+                    position = m.end();
+                }
+            } catch (CancelledException e) {
+                return;
+            }
+            mResult = out.toString();
+        }
+
+        // 替换后的文字，没有完成时为 null
+        String result() {
+            return mResult;
+        }
+    }
+
+    /**
+     * 给正则表达式查找的文字：每读取 {@link #CANCEL_CHECK_CHARS} 个字符检查一次查找是否已被
+     * 取消，取消后抛出 {@link CancelledException}
+     */
+    private static final class CancellableText implements CharSequence {
+        private final String mText;
+        private final RegexTask mSearch;
+        private int mReads;
+
+        CancellableText(String text, RegexTask search) {
+            mText = text;
+            mSearch = search;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (++mReads == CANCEL_CHECK_CHARS) {
+                mReads = 0;
+                if (mSearch.mCancelled) {
+                    throw new CancelledException();
+                }
+            }
+            return mText.charAt(index);
+        }
+
+        @Override
+        public int length() {
+            return mText.length();
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return mText.subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return mText;
+        }
+    }
+}
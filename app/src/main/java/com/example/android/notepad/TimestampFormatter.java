@@ -0,0 +1,186 @@
+package com.example.android.notepad;
+
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 把毫秒时间戳格式化为 "yyyy-MM-dd HH:mm"，或者带相对日期的 "今天 HH:mm"、"昨天 HH:mm"。
+ * <p>
+ * 与 SimpleDateFormat 不同，格式化不创建任何对象：日期部分 "yyyy-MM-dd " 按天缓存，
+ * 同一天的时间戳只需把缓存的前缀复制到调用方提供的 char 缓冲区，再填入 HH:mm 五个字符。
+ * 日期由时区偏移后的天数直接换算，不使用 Calendar。
+ * <p>
+ * 实例不可变，缓存的每一天也不可变，因此可以在多个线程中同时使用，例如在后台线程绑定列表项。
+ */
+final class TimestampFormatter {
+
+    /**
+     * 调用方提供的缓冲区的最小长度。"yyyy-MM-dd HH:mm" 为 16 个字符，留出五位数年份的余量。
+     */
+    static final int MAX_LENGTH = 20;
+
+    // 一天的毫秒数
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+
+    // 一分钟的毫秒数
+    private static final long MINUTE_MILLIS = 60 * 1000L;
+
+    // 缓存的天数，按天数取模存放
+    private static final int DAY_CACHE_SIZE = 16;
+
+    // 相对日期的标签
+    private static final String TODAY = "今天";
+    private static final String YESTERDAY = "昨天";
+
+    // 使用设备时区的实例，时区改变后重新创建
+    private static volatile TimestampFormatter sDefault;
+
+    private final TimeZone mZone;
+
+    // 最近用到的日期前缀
+    private final AtomicReferenceArray<Day> mDays = new AtomicReferenceArray<Day>(DAY_CACHE_SIZE);
+
+    /**
+     * @param zone 显示时间所用的时区
+     */
+    TimestampFormatter(TimeZone zone) {
+        // 复制一份，调用方之后修改时区不影响这里
+        mZone = (TimeZone) zone.clone();
+    }
+
+    /**
+     * 返回使用设备当前时区的实例
+     */
+    static TimestampFormatter getInstance() {
+        TimeZone zone = TimeZone.getDefault();
+        TimestampFormatter formatter = sDefault;
+        if (formatter == null || !formatter.mZone.getID().equals(zone.getID())) {
+            formatter = new TimestampFormatter(zone);
+            sDefault = formatter;
+        }
+        return formatter;
+    }
+
+    /**
+     * 格式化为 "yyyy-MM-dd HH:mm"
+     *
+     * @param buffer 至少 {@link #MAX_LENGTH} 个字符
+     * @return 写入的字符数
+     */
+    int format(long millis, char[] buffer) {
+        long local = millis + mZone.getOffset(millis);
+        long epochDay = floorDiv(local, DAY_MILLIS);
+        char[] prefix = day(epochDay).prefix;
+        System.arraycopy(prefix, 0, buffer, 0, prefix.length);
+        return writeTime(local - epochDay * DAY_MILLIS, buffer, prefix.length);
+    }
+
+    /**
+     * 格式化为带相对日期的时间：今天和昨天的时间戳写成 "今天 HH:mm"、"昨天 HH:mm"，
+     * 其余的与 {@link #format(long, char[])} 相同
+     *
+     * @param now    当前时间，用于判断今天和昨天
+     * @param buffer 至少 {@link #MAX_LENGTH} 个字符
+     * @return 写入的字符数
+     */
+    int formatRelative(long millis, long now, char[] buffer) {
+        long local = millis + mZone.getOffset(millis);
+        long epochDay = floorDiv(local, DAY_MILLIS);
+        long today = dayOf(now);
+        String label = epochDay == today ? TODAY : epochDay == today - 1 ? YESTERDAY : null;
+        if (label == null) {
+            return format(millis, buffer);
+        }
+        int length = label.length();
+        label.getChars(0, length, buffer, 0);
+        buffer[length++] = ' ';
+        return writeTime(local - epochDay * DAY_MILLIS, buffer, length);
+    }
+
+    /**
+     * 格式化为 "yyyy-MM-dd HH:mm" 字符串，用于不在意分配的地方
+     */
+    String format(long millis) {
+        char[] buffer = new char[MAX_LENGTH];
+        return new String(buffer, 0, format(millis, buffer));
+    }
+
+    /**
+     * 返回时间戳在这个时区中是从 1970-01-01 起的第几天。两个时间戳的天数相同时，
+     * {@link #formatRelative} 对它们使用相同的相对日期。
+     */
+    long dayOf(long millis) {
+        return floorDiv(millis + mZone.getOffset(millis), DAY_MILLIS);
+    }
+
+    // 在 buffer 的 offset 处写入 HH:mm，返回写入后的长度
+    private static int writeTime(long millisOfDay, char[] buffer, int offset) {
+        int minuteOfDay = (int) (millisOfDay / MINUTE_MILLIS);
+        int hour = minuteOfDay / 60;
+        int minute = minuteOfDay % 60;
+        buffer[offset] = (char) ('0' + hour / 10);
+        buffer[offset + 1] = (char) ('0' + hour % 10);
+        buffer[offset + 2] = ':';
+        buffer[offset + 3] = (char) ('0' + minute / 10);
+        buffer[offset + 4] = (char) ('0' + minute % 10);
+        return offset + 5;
+    }
+
+    // 返回一天的日期前缀，不在缓存中时计算并放入缓存
+    private Day day(long epochDay) {
+        int slot = (int) (epochDay - floorDiv(epochDay, DAY_CACHE_SIZE) * DAY_CACHE_SIZE);
+        Day day = mDays.get(slot);
+        if (day == null || day.epochDay != epochDay) {
+            day = new Day(epochDay);
+            mDays.set(slot, day);
+        }
+        return day;
+    }
+
+    // 向负无穷取整的除法（Math.floorDiv 需要 API 24）
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        return (x % y != 0 && (x < 0) != (y < 0)) ? q - 1 : q;
+    }
+
+    /**
+     * 一天及其格式化好的 "yyyy-MM-dd " 前缀
+     */
+    private static final class Day {
+        final long epochDay;
+        final char[] prefix;
+
+        Day(long epochDay) {
+            this.epochDay = epochDay;
+
+            // 由天数换算公历年月日（Howard Hinnant 的 civil_from_days 算法）
+            long z = epochDay + 719468;
+            long era = floorDiv(z, 146097);
+            long dayOfEra = z - era * 146097;
+            long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524
+                    - dayOfEra / 146096) / 365;
+            long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+            long mp = (5 * dayOfYear + 2) / 153;
+            int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+            int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+            long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+            String yearText = Long.toString(year);
+            StringBuilder builder = new StringBuilder(11);
+            for (int i = yearText.length(); i < 4; i++) {
+                builder.append('0');
+            }
+            builder.append(yearText).append('-');
+            if (month < 10) {
+                builder.append('0');
+            }
+            builder.append(month).append('-');
+            if (day < 10) {
+                builder.append('0');
+            }
+            builder.append(day).append(' ');
+            prefix = new char[builder.length()];
+            builder.getChars(0, prefix.length, prefix, 0);
+        }
+    }
+}
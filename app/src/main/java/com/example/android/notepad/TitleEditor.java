@@ -31,6 +31,8 @@ public class TitleEditor extends Activity {
     private EditText mText;
     // 当前编辑的笔记对应的URI
     private Uri mUri;
+    // 数据库中的标题，未修改时不写入
+    private String mSavedTitle;
 
     /**
      * Activity首次创建时调用
@@ -70,7 +72,8 @@ public class TitleEditor extends Activity {
             // 将游标移动到第一条记录（当前笔记）
             mCursor.moveToFirst();
             // 从游标中获取标题并显示到编辑框
-            mText.setText(mCursor.getString(COLUMN_INDEX_TITLE));
+            mSavedTitle = mCursor.getString(COLUMN_INDEX_TITLE);
+            mText.setText(mSavedTitle);
         }
     }
 
@@ -83,10 +86,16 @@ public class TitleEditor extends Activity {
         super.onPause();
 
         if (mCursor != null) {
+            String title = mText.getText().toString();
+            // 标题没有变化时不写入，也就不会更新修改时间、触发列表刷新
+            if (title.equals(mSavedTitle)) {
+                return;
+            }
+
             // 创建用于更新数据的ContentValues
             ContentValues values = new ContentValues();
             // 存入编辑后的标题
-            values.put(NotePad.Notes.COLUMN_NAME_TITLE, mText.getText().toString());
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, title);
             values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, System.currentTimeMillis());
             // 调用ContentResolver更新数据库中的标题
             getContentResolver().update(
@@ -95,6 +104,7 @@ public class TitleEditor extends Activity {
                     null,    // 无筛选条件
                     null     // 无筛选参数
             );
+            mSavedTitle = title;
         }
     }
 